@@ -0,0 +1,176 @@
+package edu.stanford.nlp.ie;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreAnnotations.AnswerAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.objectbank.ObjectBank;
+import edu.stanford.nlp.sequences.Clique;
+import edu.stanford.nlp.util.PaddedList;
+
+/**
+ * NER throughput, in tokens per second (the "tokens" counter), on the
+ * documents of a NER training file:
+ * <ul>
+ * <li>crfClassify: CRFClassifier.classify with the NER model</li>
+ * <li>cliqueFeatures: the NERFeatureFactory features of every clique of every
+ * token, which is most of the CRF time</li>
+ * <li>listClassify: ListNERSequenceClassifier.classify with a list made of the
+ * entities marked in the same documents</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class NERBenchmark {
+
+  @Param({"NerTrainingData/ner_test_leta_1.tab"})
+  public String testFile;
+
+  @Param({"lv-ner-model.ser.gz"})
+  public String model;
+
+  private CRFClassifier<CoreLabel> crf;
+  private List<List<CoreLabel>> documents;
+  private List<PaddedList<CoreLabel>> paddedDocuments;
+  private List<Clique> cliques;
+  private ListNERSequenceClassifier lists;
+  private List<List<CoreLabel>> listDocuments;
+  private int tokens;
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long tokens;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      tokens = 0;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setUp() throws Exception {
+    crf = CRFClassifier.getClassifier(model);
+    ObjectBank<List<CoreLabel>> docs = crf.makeObjectBankFromFile(testFile, crf.makeReaderAndWriter());
+    documents = new ArrayList<List<CoreLabel>>();
+    for (List<CoreLabel> doc : docs) {
+      documents.add(doc);
+      tokens += doc.size();
+    }
+
+    CoreLabel pad = new CoreLabel();
+    pad.set(AnswerAnnotation.class, crf.flags.backgroundSymbol);
+    paddedDocuments = new ArrayList<PaddedList<CoreLabel>>();
+    for (List<CoreLabel> doc : documents) {
+      paddedDocuments.add(new PaddedList<CoreLabel>(doc, pad));
+    }
+    cliques = crf.featureFactory.getCliques();
+
+    // the list entries are the gold entities, read before crfClassify overwrites the answers
+    File list = File.createTempFile("ner-benchmark", ".txt");
+    list.deleteOnExit();
+    writeEntities(documents, crf.flags.backgroundSymbol, list);
+    lists = new ListNERSequenceClassifier(list.getPath(), false, false, true);
+    listDocuments = new ArrayList<List<CoreLabel>>();
+    for (List<CoreLabel> doc : documents) {
+      List<CoreLabel> copy = new ArrayList<CoreLabel>();
+      for (CoreLabel token : doc) {
+        CoreLabel c = new CoreLabel(token);
+        c.set(AnswerAnnotation.class, crf.flags.backgroundSymbol);
+        copy.add(c);
+      }
+      listDocuments.add(copy);
+    }
+  }
+
+  /** Writes the entities (runs of tokens with the same answer) as a list of ListNERSequenceClassifier */
+  private static void writeEntities(List<List<CoreLabel>> documents, String backgroundSymbol, File file)
+      throws IOException {
+    Set<String> entries = new LinkedHashSet<String>();
+    for (List<CoreLabel> doc : documents) {
+      StringBuilder words = new StringBuilder();
+      String type = backgroundSymbol;
+      for (int i = 0; i <= doc.size(); i++) {
+        String answer = i < doc.size() ? doc.get(i).get(AnswerAnnotation.class) : backgroundSymbol;
+        if (answer == null) {
+          answer = backgroundSymbol;
+        }
+        if (!answer.equals(type)) {
+          if (!type.equals(backgroundSymbol)) {
+            entries.add(type + '\t' + words);
+          }
+          words.setLength(0);
+          type = answer;
+        }
+        if (i < doc.size() && !answer.equals(backgroundSymbol)) {
+          if (words.length() > 0) {
+            words.append(' ');
+          }
+          words.append(doc.get(i).word());
+        }
+      }
+    }
+    PrintWriter out = new PrintWriter(file, "UTF-8");
+    for (String entry : entries) {
+      out.println(entry);
+    }
+    out.close();
+  }
+
+  @Benchmark
+  public void crfClassify(Counters counters, Blackhole bh) {
+    for (List<CoreLabel> doc : documents) {
+      bh.consume(crf.classify(doc));
+    }
+    counters.tokens += tokens;
+  }
+
+  @Benchmark
+  public void cliqueFeatures(Counters counters, Blackhole bh) {
+    for (PaddedList<CoreLabel> doc : paddedDocuments) {
+      for (int loc = 0, size = doc.size(); loc < size; loc++) {
+        for (Clique c : cliques) {
+          bh.consume(crf.featureFactory.getCliqueFeatures(doc, loc, c));
+        }
+      }
+    }
+    counters.tokens += tokens;
+  }
+
+  @Benchmark
+  public void listClassify(Counters counters, Blackhole bh) {
+    for (List<CoreLabel> doc : listDocuments) {
+      bh.consume(lists.classify(doc));
+    }
+    counters.tokens += tokens;
+  }
+
+}
@@ -0,0 +1,96 @@
+package edu.stanford.nlp.ie.crf;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.objectbank.ObjectBank;
+import edu.stanford.nlp.optimization.QNMinimizer;
+import edu.stanford.nlp.util.Pair;
+
+/**
+ * CRF training steps per second, with the documents split among the given
+ * number of threads (multiThreadGrad):
+ * gradient is one value and gradient evaluation of the CRF training objective,
+ * qnIteration is one iteration of the QN minimizer from the same point, with its line search.
+ * Uses a word-level feature set, so that no gazetteers or distsim lexicon are needed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class CRFGradientBenchmark {
+
+  @Param({"NerTrainingData/ner_test_leta_1.tab"})
+  public String trainFile;
+
+  @Param({"1", "2", "4"})
+  public int threads;
+
+  private CRFLogConditionalObjectiveFunction func;
+  private double[] x;
+
+  @Setup
+  public void setUp() {
+    Properties props = new Properties();
+    props.setProperty("map", "word=1,answer=7");
+    props.setProperty("useClassFeature", "true");
+    props.setProperty("useWord", "true");
+    props.setProperty("useNGrams", "true");
+    props.setProperty("noMidNGrams", "true");
+    props.setProperty("maxNGramLeng", "6");
+    props.setProperty("usePrev", "true");
+    props.setProperty("useNext", "true");
+    props.setProperty("useSequences", "true");
+    props.setProperty("usePrevSequences", "true");
+    props.setProperty("maxLeft", "1");
+    props.setProperty("useTypeSeqs", "true");
+    props.setProperty("useTypeSeqs2", "true");
+    props.setProperty("useTypeySequences", "true");
+    props.setProperty("wordShape", "dan2useLC");
+    CRFClassifier<CoreLabel> crf = new CRFClassifier<CoreLabel>(props);
+
+    ObjectBank<List<CoreLabel>> docs = crf.makeObjectBankFromFile(trainFile, crf.makeReaderAndWriter());
+    crf.makeAnswerArraysAndTagIndex(docs);
+    Pair<int[][][][], int[][]> dataAndLabels = crf.documentsToDataAndLabels(docs);
+    func = new CRFLogConditionalObjectiveFunction(dataAndLabels.first(), dataAndLabels.second(), crf.featureIndex,
+        crf.flags.maxLeft + 1, crf.classIndex, crf.labelIndices, crf.map, crf.flags.backgroundSymbol, crf.flags.sigma);
+    func.multiThreadGrad = threads;
+    // a point away from zero, so that the clique trees aren't all uniform
+    x = func.initial();
+    for (int i = 0; i < x.length; i++) {
+      x[i] = ((i * 7919) % 13 - 6) / 60.0;
+    }
+  }
+
+  @Benchmark
+  public void gradient() {
+    // calculate() directly, as valueAt() would just return the cached value after the first call
+    func.calculate(x);
+  }
+
+  @Benchmark
+  public double[] qnIteration() {
+    QNMinimizer minimizer = new QNMinimizer(25);
+    minimizer.shutUp();
+    // a copy, as the minimizer moves the point it is given; the first gradient
+    // and the line search of the first step take about this many evaluations
+    return minimizer.minimize(func, 1e-4, x.clone(), 4);
+  }
+
+}
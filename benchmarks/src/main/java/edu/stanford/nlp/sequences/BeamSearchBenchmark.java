@@ -0,0 +1,133 @@
+package edu.stanford.nlp.sequences;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Beam search throughput, in tokens per second (the "tokens" counter):
+ * beam is BeamBestSequenceFinder, arrayBeam is ArrayBeamBestSequenceFinder, with the same settings.
+ * The sequence model is synthetic, with window scores made by hashing, so that the time is
+ * that of the search itself rather than of the features of a classifier.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class BeamSearchBenchmark {
+
+  @Param({"5", "30", "100"})
+  public int beamSize;
+
+  @Param({"20"})
+  public int tags;
+
+  @Param({"200"})
+  public int length;
+
+  private SequenceModel model;
+  private BestSequenceFinder beam;
+  private BestSequenceFinder arrayBeam;
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long tokens;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      tokens = 0;
+    }
+  }
+
+  /** A model over windows of two previous tags, as CMMClassifier's, with pseudo-random scores */
+  private static class HashedSequenceModel implements SequenceModel {
+    private static final int LEFT_WINDOW = 2;
+
+    private final int length;
+    private final int[] tags;
+    private final int[] padding = {0};
+
+    HashedSequenceModel(int length, int tagNum) {
+      this.length = length;
+      tags = new int[tagNum];
+      for (int t = 0; t < tagNum; t++) {
+        tags[t] = t;
+      }
+    }
+
+    public int length() {
+      return length;
+    }
+
+    public int leftWindow() {
+      return LEFT_WINDOW;
+    }
+
+    public int rightWindow() {
+      return 0;
+    }
+
+    public int[] getPossibleValues(int pos) {
+      return pos < LEFT_WINDOW ? padding : tags;
+    }
+
+    public double scoreOf(int[] sequence) {
+      throw new UnsupportedOperationException();
+    }
+
+    public double scoreOf(int[] tags, int pos) {
+      long h = pos;
+      for (int loc = pos - LEFT_WINDOW; loc <= pos; loc++) {
+        h = h * 1000003 + tags[loc];
+      }
+      h *= 0x9E3779B97F4A7C15L;
+      h ^= h >>> 32;
+      return -(h & 0xFFFFF) / 100000.0;
+    }
+
+    public double[] scoresOf(int[] tags, int pos) {
+      double[] scores = new double[this.tags.length];
+      for (int t = 0; t < scores.length; t++) {
+        tags[pos] = this.tags[t];
+        scores[t] = scoreOf(tags, pos);
+      }
+      return scores;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    model = new HashedSequenceModel(length, tags);
+    beam = new BeamBestSequenceFinder(beamSize, true, true);
+    arrayBeam = new ArrayBeamBestSequenceFinder(beamSize, true, true);
+  }
+
+  @Benchmark
+  public void beam(Counters counters, Blackhole bh) {
+    bh.consume(beam.bestSequence(model));
+    counters.tokens += length;
+  }
+
+  @Benchmark
+  public void arrayBeam(Counters counters, Blackhole bh) {
+    bh.consume(arrayBeam.bestSequence(model));
+    counters.tokens += length;
+  }
+
+}
@@ -0,0 +1,27 @@
+package lv.lumii.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The main class of benchmarks.jar: runs the JMH benchmarks as org.openjdk.jmh.Main does,
+ * with the same command line options, and always with the gc profiler, so that next to the
+ * throughput of each benchmark its allocation rate (gc.alloc.rate.norm, in bytes per operation) is reported.
+ * E.g. java -jar benchmarks/target/benchmarks.jar NERBenchmark -rf json
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmdOptions = new CommandLineOptions(args);
+		if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListProfilers()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		new Runner(new OptionsBuilder()
+				.parent(cmdOptions)
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
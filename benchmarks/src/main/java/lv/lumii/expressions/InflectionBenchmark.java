@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright 2014 Institute of Mathematics and Computer Science, University of Latvia
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package lv.lumii.expressions;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Phrase inflection throughput, in inflections per second (the "inflections" counter).
+ * The phrases are the person, organization and location entities of a NER training file;
+ * they are tagged once in the setup, so only Expression.inflect is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class InflectionBenchmark {
+
+	private static final String[] CASES = {"Nominatīvs", "Ģenitīvs", "Datīvs", "Akuzatīvs", "Lokatīvs"};
+
+	@Param({"NerTrainingData/ner_test_leta_1.tab"})
+	public String entityFile;
+
+	@Param({"models/lv-morpho-model.ser.gz"})
+	public String model;
+
+	private List<Expression> expressions;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long inflections;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			inflections = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		Expression.initClassifier(model);
+		// entity text -> category; word in the 2nd column, NER answer in the 8th
+		Map<String, String> entities = new LinkedHashMap<String, String>();
+		StringBuilder phrase = new StringBuilder();
+		String category = null;
+		List<String> lines = FileUtils.readLines(new File(entityFile), "UTF-8");
+		lines.add("");
+		for (String line : lines) {
+			String[] fields = line.split("\t");
+			String answer = fields.length > 7 ? fields[7] : null;
+			if (answer != null && !answer.equals("person") && !answer.equals("organization") && !answer.equals("location"))
+				answer = null;
+			if (category != null && !category.equals(answer)) {
+				entities.put(phrase.toString(), category);
+				phrase.setLength(0);
+			}
+			category = answer;
+			if (answer != null) {
+				if (phrase.length() > 0) phrase.append(' ');
+				phrase.append(fields[1]);
+			}
+		}
+
+		expressions = new ArrayList<Expression>();
+		for (Map.Entry<String, String> entity : entities.entrySet()) {
+			expressions.add(new Expression(entity.getKey(), entity.getValue(), false));
+		}
+	}
+
+	@Benchmark
+	public void inflect(Counters counters, Blackhole bh) {
+		for (Expression e : expressions) {
+			for (String inflectCase : CASES)
+				bh.consume(e.inflect(inflectCase));
+		}
+		counters.inflections += expressions.size() * CASES.length;
+	}
+}
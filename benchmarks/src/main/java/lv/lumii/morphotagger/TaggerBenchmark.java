@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2014 Institute of Mathematics and Computer Science, University of Latvia
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package lv.lumii.morphotagger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.stanford.nlp.ie.ner.CMMClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.sequences.LVMorphologyReaderAndWriter;
+import lv.semti.morphology.analyzer.Word;
+
+/**
+ * Morphological tagging throughput, in tokens per second (the "tokens" counter).
+ * tag: the text is tokenized and analyzed once in the setup, so only the CMM decoding is measured.
+ * analyze: the morphological analysis of the words of a CoNLL file, as done before tagging.
+ * To compare with an earlier version of the tagger, install that version and run the same benchmark jar against it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class TaggerBenchmark {
+
+	@Param({"sample.txt"})
+	public String textFile;
+
+	@Param({"test_file.conll"})
+	public String conllFile;
+
+	@Param({"models/lv-morpho-model.ser.gz"})
+	public String model;
+
+	private CMMClassifier<CoreLabel> cmm;
+	private List<List<CoreLabel>> sentences;
+	private int tokens;
+	private List<List<String>> conllSentences;
+	private int conllTokens;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long tokens;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			tokens = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		cmm = CMMClassifier.getClassifier(model);
+		String text = FileUtils.readFileToString(new File(textFile), "UTF-8");
+		sentences = new ArrayList<List<CoreLabel>>();
+		tokens = 0;
+		for (String paragraph : text.split("\n")) {
+			if (paragraph.trim().isEmpty()) continue;
+			for (LinkedList<Word> sentence : LVMorphologyReaderAndWriter.tokenizeSentences(paragraph, 250)) {
+				sentences.add(LVMorphologyReaderAndWriter.analyzeSentence2(sentence));
+				tokens += sentence.size();
+			}
+		}
+
+		conllSentences = new ArrayList<List<String>>();
+		conllTokens = 0;
+		List<String> sentence = new ArrayList<String>();
+		for (String line : FileUtils.readLines(new File(conllFile), "UTF-8")) {
+			String[] fields = line.split("\t");
+			if (fields.length > 1) {
+				sentence.add(fields[1]);
+			} else if (!sentence.isEmpty()) {
+				conllSentences.add(sentence);
+				conllTokens += sentence.size();
+				sentence = new ArrayList<String>();
+			}
+		}
+		if (!sentence.isEmpty()) {
+			conllSentences.add(sentence);
+			conllTokens += sentence.size();
+		}
+	}
+
+	@Benchmark
+	public void tag(Counters counters, Blackhole bh) {
+		for (List<CoreLabel> sentence : sentences)
+			bh.consume(cmm.classify(sentence));
+		counters.tokens += tokens;
+	}
+
+	@Benchmark
+	public void analyze(Counters counters, Blackhole bh) {
+		for (List<String> sentence : conllSentences)
+			bh.consume(LVMorphologyReaderAndWriter.analyzeSentence(sentence));
+		counters.tokens += conllTokens;
+	}
+}
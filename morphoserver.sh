@@ -0,0 +1,4 @@
+#!/bin/bash
+
+cd $(dirname $0)
+java -mx2g -cp "target/*" lv.lumii.morphotagger.MorphoServer $*
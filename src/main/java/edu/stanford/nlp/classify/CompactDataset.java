@@ -0,0 +1,307 @@
+package edu.stanford.nlp.classify;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import edu.stanford.nlp.ling.BasicDatum;
+import edu.stanford.nlp.ling.Datum;
+import edu.stanford.nlp.ling.RVFDatum;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
+import edu.stanford.nlp.util.Pair;
+
+/**
+ * A {@link Dataset} of binary features in compressed sparse row form: the
+ * feature indices of all the datums are kept one after another in one
+ * <code>int[]</code>, and the features of datum <i>d</i> are those from
+ * <code>offsets[d]</code> to <code>offsets[d+1]</code>. This saves the
+ * array header and pointer of every datum, which matters for corpora of
+ * millions of datums with a few dozen features each.
+ * <p>
+ * The features of a datum can be added right away as they are computed, so
+ * there's no need to keep a {@link Datum} object per datum around.
+ * {@link LogConditionalObjectiveFunction} trains directly on the compact
+ * form, but {@link #getDataArray()} has to build the usual int[][] for code
+ * that needs it.
+ *
+ * @param <L> Label type
+ * @param <F> Feature type
+ */
+public class CompactDataset<L, F> extends GeneralDataset<L, F> {
+
+  private static final long serialVersionUID = 2735312405418396212L;
+
+  /** The feature indices of all the datums */
+  protected int[] features;
+  /** The features of datum d are features[offsets[d]] .. features[offsets[d+1]-1] */
+  protected int[] offsets;
+  /** The number of features given so far by {@link #addFeature} to the datum being added */
+  private int pending;
+
+  public CompactDataset() {
+    this(10);
+  }
+
+  public CompactDataset(int numDatums) {
+    initialize(numDatums);
+  }
+
+  public CompactDataset(int numDatums, Index<F> featureIndex, Index<L> labelIndex) {
+    initialize(numDatums);
+    this.labelIndex = labelIndex;
+    this.featureIndex = featureIndex;
+  }
+
+  @Override
+  protected final void initialize(int numDatums) {
+    labelIndex = new HashIndex<L>();
+    featureIndex = new HashIndex<F>();
+    labels = new int[Math.max(numDatums, 1)];
+    offsets = new int[labels.length + 1];
+    features = new int[labels.length * 16];
+    data = null;
+    size = 0;
+  }
+
+  @Override
+  public void add(Datum<L, F> d) {
+    add(d.asFeatures(), d.label());
+  }
+
+  /**
+   * Adds a datum; features that aren't in a locked featureIndex are skipped.
+   */
+  public void add(Collection<F> datumFeatures, L label) {
+    ensureSize(datumFeatures.size());
+    labelIndex.add(label);
+    labels[size] = labelIndex.indexOf(label);
+    int end = offsets[size];
+    for (F feature : datumFeatures) {
+      featureIndex.add(feature);
+      int index = featureIndex.indexOf(feature);
+      if (index >= 0) {
+        features[end++] = index;
+      }
+    }
+    offsets[++size] = end;
+  }
+
+  /**
+   * Adds a datum given by feature and label indices, which must be valid in
+   * the indices of this dataset.
+   */
+  public void add(int[] datumFeatures, int numFeatures, int label) {
+    ensureSize(numFeatures);
+    labels[size] = label;
+    int end = offsets[size];
+    System.arraycopy(datumFeatures, 0, features, end, numFeatures);
+    offsets[++size] = end + numFeatures;
+  }
+
+  /**
+   * Adds a feature to the datum being added, so that the features of a datum
+   * can be given one by one as they are made, without collecting them first;
+   * {@link #finishDatum} ends the datum. A feature that isn't in a locked
+   * featureIndex is skipped.
+   */
+  public void addFeature(F feature) {
+    featureIndex.add(feature);
+    int index = featureIndex.indexOf(feature);
+    if (index >= 0) {
+      ensureSize(pending + 1);
+      features[offsets[size] + pending++] = index;
+    }
+  }
+
+  /** Ends the datum whose features {@link #addFeature} has added, with the given label */
+  public void finishDatum(L label) {
+    ensureSize(pending);
+    labelIndex.add(label);
+    labels[size] = labelIndex.indexOf(label);
+    int end = offsets[size] + pending;
+    offsets[++size] = end;
+    pending = 0;
+  }
+
+  private void ensureSize(int numFeatures) {
+    if (labels.length == size) {
+      labels = Arrays.copyOf(labels, size * 2);
+      offsets = Arrays.copyOf(offsets, size * 2 + 1);
+    }
+    int needed = offsets[size] + numFeatures;
+    if (needed > features.length) {
+      // grow by half, as the feature array is by far the largest thing here
+      features = Arrays.copyOf(features, Math.max(needed, features.length + (features.length >> 1)));
+    }
+  }
+
+  /** The feature indices of all the datums; only the first {@link #numFeatureTokens()} are used */
+  public int[] getFeatures() {
+    return features;
+  }
+
+  /** Where the features of each datum start in {@link #getFeatures()}, plus the end of the last one */
+  public int[] getOffsets() {
+    return offsets;
+  }
+
+  /**
+   * Makes the datums into separate arrays, which takes as much memory as a {@link Dataset}.
+   */
+  @Override
+  public int[][] getDataArray() {
+    int[][] arrays = new int[size][];
+    for (int d = 0; d < size; d++) {
+      arrays[d] = Arrays.copyOfRange(features, offsets[d], offsets[d + 1]);
+    }
+    return arrays;
+  }
+
+  @Override
+  public double[][] getValuesArray() {
+    return null;
+  }
+
+  @Override
+  public Datum<L, F> getDatum(int index) {
+    return new BasicDatum<L, F>(featureIndex.objects(Arrays.copyOfRange(features, offsets[index], offsets[index + 1])),
+        labelIndex.get(labels[index]));
+  }
+
+  @Override
+  public RVFDatum<L, F> getRVFDatum(int index) {
+    ClassicCounter<F> c = new ClassicCounter<F>();
+    for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+      c.incrementCount(featureIndex.get(features[i]));
+    }
+    return new RVFDatum<L, F>(c, labelIndex.get(labels[index]));
+  }
+
+  @Override
+  public float[] getFeatureCounts() {
+    float[] counts = new float[featureIndex.size()];
+    for (int i = 0, end = offsets[size]; i < end; i++) {
+      counts[features[i]] += 1.0;
+    }
+    return counts;
+  }
+
+  @Override
+  public int numFeatureTokens() {
+    return offsets[size];
+  }
+
+  @Override
+  public void applyFeatureCountThreshold(int k) {
+    float[] counts = getFeatureCounts();
+    boolean[] keep = new boolean[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      keep[i] = counts[i] >= k;
+    }
+    removeFeatures(keep);
+  }
+
+  @Override
+  public void applyFeatureMaxCountThreshold(int k) {
+    float[] counts = getFeatureCounts();
+    boolean[] keep = new boolean[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      keep[i] = counts[i] <= k;
+    }
+    removeFeatures(keep);
+  }
+
+  /** Renumbers the kept features in their old order and drops the others from the datums, in place */
+  private void removeFeatures(boolean[] keep) {
+    Index<F> newFeatureIndex = new HashIndex<F>();
+    int[] featMap = new int[keep.length];
+    for (int i = 0; i < featMap.length; i++) {
+      if (keep[i]) {
+        featMap[i] = newFeatureIndex.size();
+        newFeatureIndex.add(featureIndex.get(i));
+      } else {
+        featMap[i] = -1;
+      }
+    }
+    featureIndex = newFeatureIndex;
+
+    int end = 0;
+    for (int d = 0; d < size; d++) {
+      int start = offsets[d];
+      offsets[d] = end;
+      for (int i = start; i < offsets[d + 1]; i++) {
+        if (featMap[features[i]] >= 0) {
+          features[end++] = featMap[features[i]];
+        }
+      }
+    }
+    offsets[size] = end;
+  }
+
+  @Override
+  public void randomize(int randomSeed) {
+    // the same permutation as GeneralDataset.randomize makes
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    Random rand = new Random(randomSeed);
+    for (int j = size - 1; j > 0; j--) {
+      int randIndex = rand.nextInt(j);
+      int tmp = order[randIndex];
+      order[randIndex] = order[j];
+      order[j] = tmp;
+    }
+    CompactDataset<L, F> shuffled = new CompactDataset<L, F>(size, featureIndex, labelIndex);
+    for (int d : order) {
+      shuffled.addRow(this, d);
+    }
+    labels = shuffled.labels;
+    offsets = shuffled.offsets;
+    features = shuffled.features;
+  }
+
+  private void addRow(CompactDataset<L, F> from, int d) {
+    int start = from.offsets[d];
+    int numFeatures = from.offsets[d + 1] - start;
+    ensureSize(numFeatures);
+    labels[size] = from.labels[d];
+    System.arraycopy(from.features, start, features, offsets[size], numFeatures);
+    offsets[size + 1] = offsets[size] + numFeatures;
+    size++;
+  }
+
+  private CompactDataset<L, F> rows(int from, int to) {
+    CompactDataset<L, F> part = new CompactDataset<L, F>(to - from, featureIndex, labelIndex);
+    for (int d = from; d < to; d++) {
+      part.addRow(this, d);
+    }
+    return part;
+  }
+
+  @Override
+  public Pair<GeneralDataset<L, F>, GeneralDataset<L, F>> split(double percentDev) {
+    int devSize = (int) (percentDev * size());
+    return new Pair<GeneralDataset<L, F>, GeneralDataset<L, F>>(rows(devSize, size), rows(0, devSize));
+  }
+
+  @Override
+  public Pair<GeneralDataset<L, F>, GeneralDataset<L, F>> split(int start, int end) {
+    CompactDataset<L, F> train = rows(0, start);
+    for (int d = end; d < size; d++) {
+      train.addRow(this, d);
+    }
+    return new Pair<GeneralDataset<L, F>, GeneralDataset<L, F>>(train, rows(start, end));
+  }
+
+  @Override
+  public void summaryStatistics() {
+    System.err.println("numDatums: " + size);
+    System.err.println("numLabels: " + labelIndex.size() + " " + labelIndex.objectsList());
+    System.err.println("numFeatures (Phi(X) types): " + featureIndex.size());
+    System.err.println("numFeatureTokens: " + numFeatureTokens());
+  }
+
+}
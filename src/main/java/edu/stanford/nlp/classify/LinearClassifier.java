@@ -32,6 +32,8 @@ import edu.stanford.nlp.io.IOUtils;
 import edu.stanford.nlp.ling.BasicDatum;
 import edu.stanford.nlp.ling.Datum;
 import edu.stanford.nlp.ling.RVFDatum;
+import edu.stanford.nlp.math.CompactWeights;
+import edu.stanford.nlp.math.WeightMatrix;
 import edu.stanford.nlp.util.*;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
@@ -67,6 +69,8 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
    *  index is the labelIndex value.
    */
   private double[][] weights;
+  /** The weights after {@link #compact}, or those of a mapped model, which are used instead of weights (then null) */
+  private WeightMatrix compactWeights;
   private Index<L> labelIndex;
   private Index<F> featureIndex;
   public boolean intern = false;   // variable should be deleted when breaking serialization anyway....
@@ -99,6 +103,9 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
       //System.err.println("feature not seen ");
       return 0.0;
     }
+    if (compactWeights != null) {
+      return compactWeights.get(iFeature, iLabel);
+    }
     return weights[iFeature][iLabel];
   }
 
@@ -159,6 +166,54 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
     return scores;
   }
   
+  /** Fills an array indexed by labelIndex with the scores of the
+   *  internalized features (the first numFeatures entries of features).
+   *  Same as {@link #scoresOf(int[])}, but without building a Counter.
+   *  Negative feature indices are ignored.
+   */
+  public double[] scoresOf(int[] features, int numFeatures, double[] scores) {
+    if (compactWeights != null) {
+      Arrays.fill(scores, 0.0);
+      addWeights(features, numFeatures, scores);
+      for (int iLabel = 0; iLabel < scores.length; iLabel++) {
+        scores[iLabel] += thresholds[iLabel];
+      }
+      return scores;
+    }
+    for (int iLabel = 0; iLabel < scores.length; iLabel++) {
+      double score = 0.0;
+      for (int i = 0; i < numFeatures; i++) {
+        score += weight(features[i], iLabel);
+      }
+      scores[iLabel] = score + thresholds[iLabel];
+    }
+    return scores;
+  }
+
+  /** Adds the weights of the first numFeatures internalized features to
+   *  an array of partial scores indexed by labelIndex, such as one from
+   *  {@link #scoresOf(int[], int, double[])}.  Thresholds are not added.
+   *  Negative feature indices are ignored.
+   */
+  public double[] addWeights(int[] features, int numFeatures, double[] scores) {
+    if (compactWeights != null) {
+      for (int i = 0; i < numFeatures; i++) {
+        if (features[i] >= 0) {
+          compactWeights.addRow(features[i], scores);
+        }
+      }
+      return scores;
+    }
+    for (int iLabel = 0; iLabel < scores.length; iLabel++) {
+      double score = scores[iLabel];
+      for (int i = 0; i < numFeatures; i++) {
+        score += weight(features[i], iLabel);
+      }
+      scores[iLabel] = score;
+    }
+    return scores;
+  }
+
   /** Returns of the score of the Datum for the specified label.
    *  Ignores the true label of the Datum.
    */
@@ -370,9 +425,9 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
   public int getFeatureCount(double threshold, boolean useMagnitude)
   {
     int n = 0;
-    for (int feat = 0; feat < weights.length; feat++) {
-      for (int lab = 0; lab < weights[feat].length; lab++) {
-        double thisWeight = (useMagnitude)? Math.abs(weights[feat][lab]):weights[feat][lab];
+    for (int feat = 0; feat < featureIndex.size(); feat++) {
+      for (int lab = 0; lab < labelIndex.size(); lab++) {
+        double thisWeight = (useMagnitude)? Math.abs(weight(feat, lab)):weight(feat, lab);
         if (thisWeight > threshold) {
           n++;
         }
@@ -412,9 +467,9 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
   protected int getFeatureCountLabelIndices(Set<Integer> iLabels, double threshold, boolean useMagnitude)
   {
     int n = 0;
-    for (int feat = 0; feat < weights.length; feat++) {
+    for (int feat = 0; feat < featureIndex.size(); feat++) {
       for (int labIndex:iLabels) {
-        double thisWeight = (useMagnitude)? Math.abs(weights[feat][labIndex]):weights[feat][labIndex];
+        double thisWeight = (useMagnitude)? Math.abs(weight(feat, labIndex)):weight(feat, labIndex);
         if (thisWeight > threshold) {
           n++;
         }
@@ -479,16 +534,16 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
       new FixedPrioritiesPriorityQueue<Pair<Integer,Integer>>();
 
     // locate biggest keys
-    for (int feat = 0; feat < weights.length; feat++) {
-      for (int lab = 0; lab < weights[feat].length; lab++) {
+    for (int feat = 0; feat < featureIndex.size(); feat++) {
+      for (int lab = 0; lab < labelIndex.size(); lab++) {
         if (iLabels != null && !iLabels.contains(lab)) {
           continue;
         }
         double thisWeight;
         if (useMagnitude) {
-          thisWeight = Math.abs(weights[feat][lab]);
+          thisWeight = Math.abs(weight(feat, lab));
         } else {
-          thisWeight = weights[feat][lab];
+          thisWeight = weight(feat, lab);
         }
 
         if (thisWeight > threshold) {
@@ -513,7 +568,7 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
     List<Triple<F,L,Double>> topFeatures = new ArrayList<Triple<F,L,Double>>(biggestKeys.size());
     while (!biggestKeys.isEmpty()) {
       Pair<Integer,Integer> p = biggestKeys.removeFirst();
-      double weight = weights[p.first()][p.second()];
+      double weight = weight(p.first(), p.second());
       F feat = featureIndex.get(p.first());
       L label = labelIndex.get(p.second());
       topFeatures.add(new Triple<F,L,Double>(feat, label, weight));
@@ -583,14 +638,14 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
       new FixedPrioritiesPriorityQueue<Pair<Integer,Integer>>();
 
     // locate biggest keys
-    for (int feat = 0; feat < weights.length; feat++) {
-      for (int lab = 0; lab < weights[feat].length; lab++) {
+    for (int feat = 0; feat < featureIndex.size(); feat++) {
+      for (int lab = 0; lab < labelIndex.size(); lab++) {
         double thisWeight;
         // reverse the weight, so get smallest first
         if (useMagnitude) {
-          thisWeight = -Math.abs(weights[feat][lab]);
+          thisWeight = -Math.abs(weight(feat, lab));
         } else {
-          thisWeight = -weights[feat][lab];
+          thisWeight = -weight(feat, lab);
         }
         if (biggestKeys.size() == numFeatures) {
           // have enough features, add only if bigger
@@ -649,7 +704,7 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
       String key = "(" + featureIndex.get(p.first) + "," + labelIndex.get(p.second) + ")";
       sb.append(StringUtils.pad(key, maxLeng));
       sb.append(" ");
-      double cnt = weights[p.first][p.second];
+      double cnt = weight(p.first, p.second);
       if (Double.isInfinite(cnt)) {
         sb.append(cnt);
       } else {
@@ -670,9 +725,9 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
     Counter<Double> weightCounts = new ClassicCounter<Double>();
     StringBuilder s = new StringBuilder();
     s.append("Total number of weights: ").append(totalSize());
-    for (int f = 0; f < weights.length; f++) {
-      for (int l = 0; l < weights[f].length; l++) {
-        weightCounts.incrementCount(weights[f][l]);
+    for (int f = 0; f < featureIndex.size(); f++) {
+      for (int l = 0; l < labelIndex.size(); l++) {
+        weightCounts.incrementCount(weight(f, l));
       }
     }
 
@@ -697,11 +752,11 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
     double total = 0.0;
     double x2total = 0.0;
     double max = 0.0, min = 0.0;
-    for (int f = 0; f < weights.length; f++) {
-      for (int l = 0; l < weights[f].length; l++) {
+    for (int f = 0; f < featureIndex.size(); f++) {
+      for (int l = 0; l < labelIndex.size(); l++) {
         Pair<F, L> feat = new Pair<F, L>(featureIndex.get(f), labelIndex.get(l));
         num++;
-        double wt = weights[f][l];
+        double wt = weight(f, l);
         total += wt;
         x2total += wt * wt;
         if (wt > max) {
@@ -1182,7 +1237,7 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
       Counter<F> c = new ClassicCounter<F>();
       mapOfCounters.put(label, c);
       for (F f : featureIndex) {
-        c.incrementCount(f, weights[featureIndex.indexOf(f)][labelID]);
+        c.incrementCount(f, weight(featureIndex.indexOf(f), labelID));
       }
     }
     return mapOfCounters;
@@ -1235,7 +1290,7 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
 		  throw new UnsupportedOperationException();
 	  }
 	  
-	  int labelCount = weights[0].length;
+	  int labelCount = labelIndex.size();
 	  //System.out.printf("labelCount: %d\n", labelCount);
 	  Collection<F> features = example.asFeatures();
 	  
@@ -1251,7 +1306,7 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
 		  double score = 0;
 		  for (int j = 0; j < featureInts.length; j++) {
 			  if (featureInts[j] < 0) continue;
-			  score += weights[featureInts[j]][i];
+			  score += weight(featureInts[j], i);
 		  }
 		  if (score > bestScore) {
 			  bestI = i;
@@ -1296,12 +1351,14 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
     this.weights = weights;
     if (thresholds.length != labelIndex.size())
       throw new Exception("Number of thresholds and number of labels do not match.");
-    thresholds = new double[thresholds.length];
-    int curr = 0;
-    for (double tval : thresholds) {
-      thresholds[curr++] = tval;
-    }
-    Arrays.fill(thresholds, 0.0);
+    this.thresholds = Arrays.copyOf(thresholds, thresholds.length);
+  }
+
+  /** A classifier that scores straight from the given weights, such as those of a mapped model */
+  public LinearClassifier(WeightMatrix weights, Index<F> featureIndex, Index<L> labelIndex,
+      double[] thresholds) throws Exception {
+    this((double[][]) null, featureIndex, labelIndex, thresholds);
+    compactWeights = weights;
   }
 
   public LinearClassifier(double[] weights, Index<Pair<F, L>> weightIndex) {
@@ -1348,17 +1405,49 @@ public class LinearClassifier<L, F> implements ProbabilisticClassifier<L, F>, RV
 
 
   public void adaptWeights(Dataset<L, F> adapt,LinearClassifierFactory<L, F> lcf) {
+    weights = weights();
+    compactWeights = null;
     System.err.println("before adapting, weights size="+weights.length);
     weights = lcf.adaptWeights(weights,adapt);
     System.err.println("after adapting, weights size="+weights.length);
   }
 
+  /** The weights; a dense copy of them if they have been compacted */
   public double[][] weights() {
+    if (compactWeights != null) {
+      return compactWeights.toArray();
+    }
     return weights;
   }
 
+  /**
+   * Replaces the weights with a {@link CompactWeights} form of them, which
+   * leaves out the weights whose magnitude is at most threshold and stores
+   * the rest with the given precision. The classifier scores straight from
+   * that form afterwards; it can't be trained or adapted any more, except
+   * after {@link #setWeights}.
+   */
+  public void compact(double threshold, CompactWeights.Precision precision) {
+    if (compactWeights != null) {
+      weights = compactWeights.toArray();
+    }
+    compactWeights = new CompactWeights(weights, threshold, precision);
+    weights = null;
+  }
+
+  /** The compacted or mapped weights, or null if the weights are a plain array */
+  public WeightMatrix compactWeights() {
+    return compactWeights;
+  }
+
+  /** The bias added to the score of each label, by labelIndex */
+  public double[] thresholds() {
+    return thresholds;
+  }
+
   public void setWeights(double[][] newWeights) {
     weights = newWeights;
+    compactWeights = null;
   }
 
   /**
@@ -86,6 +86,7 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
   private double min = 0.1;
   private double max = 10.0;
   private boolean retrainFromScratchAfterSigmaTuning = false;
+  private int threads = 1;
 
 
   /**
@@ -132,6 +133,7 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
       }
     }
     LogConditionalObjectiveFunction<L, F> objective = new LogConditionalObjectiveFunction<L, F>(dataset, logPrior);
+    objective.setThreads(threads);
     if(initial == null && interimWeights != null && ! retrainFromScratchAfterSigmaTuning) {
       //System.err.println("## taking advantage of interim weights as starting point.");
       initial = interimWeights;
@@ -367,6 +369,14 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
     this.verbose = verbose;
   }
 
+  /**
+   * Sets the number of threads that compute the objective function while training.
+   * The trained weights are the same for any number of threads.  1 is the default.
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   /**
    * Sets the minimizer.  {@link QNMinimizer} is the default.
    */
@@ -730,6 +740,7 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
     if(dataset instanceof RVFDataset)
       ((RVFDataset<L,F>)dataset).ensureRealValues();
     LogConditionalObjectiveFunction<L, F> objective = new LogConditionalObjectiveFunction<L, F>(dataset, dataWeights, logPrior);
+    objective.setThreads(threads);
 
     double[] initial = objective.initial();
     double[] weights = minimizer.minimize(objective, TOL, initial);
@@ -1,8 +1,14 @@
 package edu.stanford.nlp.classify;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import edu.stanford.nlp.ling.Datum;
 import edu.stanford.nlp.math.ADMath;
@@ -36,6 +42,9 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
   protected int numClasses = 0;
 
   protected int[][] data = null;
+  // compact data (see CompactDataset): the features of datum d are compactFeatures[compactOffsets[d] .. compactOffsets[d+1]-1]
+  protected int[] compactFeatures = null;
+  protected int[] compactOffsets = null;
   protected Iterable<Datum<L, F>> dataIterable = null;
   protected double[][] values = null;
   protected int[] labels = null;
@@ -54,6 +63,9 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
 
   protected boolean useSummedConditionalLikelihood = false; //whether to use sumConditional or logConditional
 
+  protected int threads = 1; // for the int[][] data case of calculateCL
+  private ForkJoinPool pool = null;
+
   @Override
   public int domainDimension() {
     return numFeatures * numClasses;
@@ -61,7 +73,7 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
 
   @Override
   public int dataDimension(){
-    return data.length;
+    return data != null ? data.length : labels.length;
   }
 
   int classOf(int index) {
@@ -229,6 +241,18 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
           }
         }
       }
+      else if (compactOffsets != null) {
+        for (int d = 0; d < labels.length; d++) {
+          for (int f = compactOffsets[d]; f < compactOffsets[d + 1]; f++) {
+            int i = indexOf(compactFeatures[f], labels[d]);
+            if (dataweights == null) {
+              derivativeNumerator[i] -= 1;
+            } else {
+              derivativeNumerator[i] -= dataweights[d];
+            }
+          }
+        }
+      }
       //TODO: Make sure this work as expected!!
       else if(dataIterable != null) {
         //int index = 0;
@@ -255,6 +279,11 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
     }
     copy(derivative, derivativeNumerator);
     //    Arrays.fill(derivative, 0.0);
+    if ((threads > 1 || compactOffsets != null) && !useIterable) {
+      parallelCL(x);
+      value += prior.compute(x, derivative);
+      return;
+    }
     double[] sums = new double[numClasses];
     double[] probs = new double[numClasses];
     //    double[] counts = new double[numClasses];
@@ -801,6 +830,145 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
     value += prior.compute(x, derivative);
   }
 
+  /**
+   * The int[][] data part of calculateCL, split among the threads
+   * (and the only version of it for compact data).
+   * The datums are taken in blocks: first the class probabilities of all the
+   * datums of a block are computed in parallel, then they are added to the
+   * derivative in parallel over ranges of features. So every entry of the
+   * derivative still gets its terms in the order of the datums, and the value
+   * and derivative are exactly those of the serial loop, for any number of threads.
+   */
+  private void parallelCL(final double[] x) {
+    final int numDatums = dataDimension();
+    final int parts = Math.max(1, threads);
+    final int blockSize = Math.max(parts, Math.min(4096, (1 << 22) / numClasses));
+    final double[][] blockProbs = new double[blockSize][numClasses];
+    final double[] blockDV = new double[blockSize];
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for (int start = 0; start < numDatums; start += blockSize) {
+      final int blockStart = start;
+      final int blockEnd = Math.min(numDatums, start + blockSize);
+
+      tasks.clear();
+      for (int t = 0; t < parts; t++) {
+        final int from = blockStart + (int) ((long) (blockEnd - blockStart) * t / parts);
+        final int to = blockStart + (int) ((long) (blockEnd - blockStart) * (t + 1) / parts);
+        tasks.add(new Callable<Object>() {
+          public Object call() {
+            double[] sums = new double[numClasses];
+            for (int d = from; d < to; d++) {
+              blockDV[d - blockStart] = classProbabilities(x, d, sums, blockProbs[d - blockStart]);
+            }
+            return null;
+          }
+        });
+      }
+      runAll(tasks);
+
+      tasks.clear();
+      int ranges = parts > 1 ? 2 * parts : 1;
+      for (int r = 0; r < ranges; r++) {
+        final int fromFeature = (int) ((long) numFeatures * r / ranges);
+        final int toFeature = (int) ((long) numFeatures * (r + 1) / ranges);
+        tasks.add(new Callable<Object>() {
+          public Object call() {
+            for (int d = blockStart; d < blockEnd; d++) {
+              double[] probs = blockProbs[d - blockStart];
+              int[] featuresArr = data != null ? data[d] : compactFeatures;
+              int fromF = data != null ? 0 : compactOffsets[d];
+              int toF = data != null ? featuresArr.length : compactOffsets[d + 1];
+              for (int f = fromF; f < toF; f++) {
+                int feature = featuresArr[f];
+                if (feature >= fromFeature && feature < toFeature) {
+                  int i = indexOf(feature, 0);
+                  for (int c = 0; c < numClasses; c++) {
+                    derivative[i + c] += probs[c];
+                  }
+                }
+              }
+            }
+            return null;
+          }
+        });
+      }
+      runAll(tasks);
+
+      for (int d = blockStart; d < blockEnd; d++) {
+        value -= blockDV[d - blockStart];
+      }
+    }
+  }
+
+  /**
+   * Class probabilities of datum d (times its weight), computed as in calculateCL.
+   *
+   * @param sums Scratch space of numClasses
+   * @param probs Where the probabilities are stored
+   * @return The (weighted) log probability of the datum's label
+   */
+  private double classProbabilities(double[] x, int d, double[] sums, double[] probs) {
+    int[] featuresArr = data != null ? data[d] : compactFeatures;
+    int fromF = data != null ? 0 : compactOffsets[d];
+    int toF = data != null ? featuresArr.length : compactOffsets[d + 1];
+    Arrays.fill(sums, 0.0);
+    for (int c = 0; c < numClasses; c++) {
+      for (int f = fromF; f < toF; f++) {
+        int i = indexOf(featuresArr[f], c);
+        sums[c] += x[i];
+      }
+    }
+    double total = ArrayMath.logSum(sums);
+    for (int c = 0; c < numClasses; c++) {
+      probs[c] = Math.exp(sums[c] - total);
+      if (dataweights != null) {
+        probs[c] *= dataweights[d];
+      }
+    }
+    double dV = sums[labels[d]] - total;
+    if (dataweights != null) {
+      dV *= dataweights[d];
+    }
+    return dV;
+  }
+
+  private void runAll(List<Callable<Object>> tasks) {
+    if (threads <= 1) {
+      for (Callable<Object> task : tasks) {
+        try {
+          task.call();
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return;
+    }
+    if (pool == null) {
+      pool = new ForkJoinPool(threads);
+    }
+    for (Future<Object> result : pool.invokeAll(tasks)) {
+      try {
+        result.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Sets the number of threads that compute the value and derivative
+   * (only for int[][] data with the standard conditional likelihood).
+   * The result doesn't depend on the number of threads.
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   //   public void setTestMinMax(int testMin, int testMax) {
   //     this.testMin = testMin;
   //     this.testMax = testMax;
@@ -829,7 +997,13 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
     setUseSumCondObjFun(useSumCondObjFun);
     this.numFeatures = dataset.numFeatures();
     this.numClasses = dataset.numClasses();
-    this.data = dataset.getDataArray();
+    if (dataset instanceof CompactDataset<?,?>) {
+      // only calculate() works on compact data, not the stochastic methods
+      this.compactFeatures = ((CompactDataset<L, F>) dataset).getFeatures();
+      this.compactOffsets = ((CompactDataset<L, F>) dataset).getOffsets();
+    } else {
+      this.data = dataset.getDataArray();
+    }
     this.labels = dataset.getLabelsArray();
     this.values = dataset.getValuesArray();
     if (dataset instanceof WeightedDataset<?,?>) {
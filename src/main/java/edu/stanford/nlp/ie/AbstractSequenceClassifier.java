@@ -51,12 +51,18 @@ import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 
 import edu.stanford.nlp.fsm.DFSA;
 import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.io.MappedModel;
 import edu.stanford.nlp.io.RegExFileFilter;
 import edu.stanford.nlp.ling.CoreAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations;
@@ -76,6 +82,7 @@ import edu.stanford.nlp.process.CoreTokenFactory;
 import edu.stanford.nlp.sequences.DocumentReaderAndWriter;
 import edu.stanford.nlp.sequences.FeatureFactory;
 import edu.stanford.nlp.sequences.KBestSequenceFinder;
+import edu.stanford.nlp.sequences.LVCoNLLDocumentReaderAndWriter;
 import edu.stanford.nlp.sequences.LatticeWriter;
 import edu.stanford.nlp.sequences.ObjectBankWrapper;
 import edu.stanford.nlp.sequences.PlainTextDocumentReaderAndWriter;
@@ -85,12 +92,12 @@ import edu.stanford.nlp.sequences.SequenceSampler;
 import edu.stanford.nlp.sequences.ViterbiSearchGraphBuilder;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
-import edu.stanford.nlp.stats.Counters;
 import edu.stanford.nlp.stats.Sampler;
 import edu.stanford.nlp.util.CoreMap;
 import edu.stanford.nlp.util.Function;
 import edu.stanford.nlp.util.Index;
 import edu.stanford.nlp.util.MetaClass;
+import edu.stanford.nlp.util.ScoredObject;
 import edu.stanford.nlp.util.StringUtils;
 import edu.stanford.nlp.util.Timing;
 import edu.stanford.nlp.util.Triple;
@@ -128,6 +135,19 @@ public abstract class AbstractSequenceClassifier<IN extends CoreMap> implements
   // so we need a concurrent data structure
   protected Set<String> knownLCWords = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>()); 
 
+  /**
+   * Copies knownLCWords read from a serialized classifier (usually a plain
+   * HashSet) into a concurrent set, as tagging adds words to it.
+   */
+  protected static Set<String> concurrentSet(Set<String> words) {
+    if (words == null) {
+      return null;
+    }
+    Set<String> result = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+    result.addAll(words);
+    return result;
+  }
+
   private DocumentReaderAndWriter<IN> defaultReaderAndWriter;
   private DocumentReaderAndWriter<IN> plainTextReaderAndWriter;
 
@@ -355,9 +375,21 @@ public abstract class AbstractSequenceClassifier<IN extends CoreMap> implements
   }
 
   public Counter<List<IN>> classifyKBest(List<IN> doc, Class<? extends CoreAnnotation<String>> answerField, int k) {
+    Counter<List<IN>> kBest = new ClassicCounter<List<IN>>();
+    for (ScoredObject<List<IN>> kth : classifyKBestList(doc, answerField, k)) {
+      kBest.setCount(kth.object(), kth.score());
+    }
+    return kBest;
+  }
 
+  /**
+   * The k best labelings of a document, best first, each a copy of the document tokens
+   * with the labels in answerField, scored by its log probability
+   */
+  public List<ScoredObject<List<IN>>> classifyKBestList(List<IN> doc, Class<? extends CoreAnnotation<String>> answerField, int k) {
+    List<ScoredObject<List<IN>>> kBest = new ArrayList<ScoredObject<List<IN>>>();
     if (doc.isEmpty()) {
-      return new ClassicCounter<List<IN>>();
+      return kBest;
     }
 
     // TODO get rid of ObjectBankWrapper
@@ -368,23 +400,21 @@ public abstract class AbstractSequenceClassifier<IN extends CoreMap> implements
     SequenceModel model = getSequenceModel(doc);
 
     KBestSequenceFinder tagInference = new KBestSequenceFinder();
-    Counter<int[]> bestSequences = tagInference.kBestSequences(model, k);
-
-    Counter<List<IN>> kBest = new ClassicCounter<List<IN>>();
+    List<ScoredObject<int[]>> bestSequences = tagInference.kBestSequenceList(model, k);
 
-    for (int[] seq : bestSequences.keySet()) {
+    for (ScoredObject<int[]> seq : bestSequences) {
       List<IN> kth = new ArrayList<IN>();
       int pos = model.leftWindow();
       for (IN fi : doc) {
         IN newFL = tokenFactory.makeToken(fi);
-        String guess = classIndex.get(seq[pos]);
+        String guess = classIndex.get(seq.object()[pos]);
         fi.remove(AnswerAnnotation.class); // because fake answers will get
                                            // added during testing
         newFL.set(answerField, guess);
         pos++;
         kth.add(newFL);
       }
-      kBest.setCount(kth, bestSequences.getCount(seq));
+      kBest.add(new ScoredObject<List<IN>>(kth, seq.score()));
     }
 
     return kBest;
@@ -966,6 +996,9 @@ public abstract class AbstractSequenceClassifier<IN extends CoreMap> implements
   
   /**
    * Classify stdin by documents seperated by 3 blank line
+   * (fewer blank lines are sentence boundaries, 4 blank lines end the input).
+   * The documents are built as their lines are read, and each one is classified
+   * and written on a background thread while the next one is being read.
    * @param readerWriter
    * @return boolean reached end of IO
    * @throws IOException
@@ -974,34 +1007,118 @@ public abstract class AbstractSequenceClassifier<IN extends CoreMap> implements
     throws IOException
   {
     BufferedReader is = new BufferedReader(new InputStreamReader(System.in, flags.inputEncoding));
+    PrintWriter out = IOUtils.encodedOutputStreamPrintWriter(System.out, flags.outputEncoding, true);
+    ExecutorService writer = Executors.newSingleThreadExecutor();
+    Future<?> previous = null;
+    DocumentBuilder document = new DocumentBuilder(readerWriter);
     String line;
-    String text = "";
-    String eol = "\n";
     String sentence = "<s>";
     int blankLines = 0;
-    while ((line = is.readLine()) != null) {
-      if (line.trim().equals("")) {
-    	  ++blankLines;
-    	  if (blankLines > 3) {
-    		  return false;
-    	  } else if (blankLines > 2) {
-			  ObjectBank<List<IN>> documents = makeObjectBankFromString(text, readerWriter);
-	    	  classifyAndWriteAnswers(documents, readerWriter);
-    		  text = "";
-    	  } else {
-    		  text += sentence + eol;
-    	  }
+    boolean endMarker = false;
+    try {
+      while (!endMarker && (line = is.readLine()) != null) {
+        if (line.trim().equals("")) {
+          ++blankLines;
+          if (blankLines > 3) {
+            endMarker = true;
+          } else if (blankLines > 2) {
+            previous = classifyAndWriteAfter(previous, document.finish(), out, readerWriter, writer);
+            document = new DocumentBuilder(readerWriter);
+          } else {
+            document.add(sentence);
+          }
+        } else {
+          document.add(line);
+          blankLines = 0;
+        }
+      }
+      // Classify last document before input stream end
+      if (!endMarker && !document.isEmpty()) {
+        previous = classifyAndWriteAfter(previous, document.finish(), out, readerWriter, writer);
+      }
+      waitFor(previous);
+    } finally {
+      writer.shutdown();
+    }
+    return !endMarker; // reached eol
+  }
+
+  /**
+   * Collects the lines of a stdin document. The tokens of CoNLL input are made as the lines arrive;
+   * for other formats the text is kept and read with the DocumentReaderAndWriter at the end.
+   */
+  private class DocumentBuilder {
+    private final DocumentReaderAndWriter<IN> readerWriter;
+    private final LVCoNLLDocumentReaderAndWriter conll;
+    private final List<IN> tokens = new ArrayList<IN>();
+    private final StringBuilder text = new StringBuilder();
+    private boolean empty = true;
+
+    DocumentBuilder(DocumentReaderAndWriter<IN> readerWriter) {
+      this.readerWriter = readerWriter;
+      this.conll = readerWriter instanceof LVCoNLLDocumentReaderAndWriter ? (LVCoNLLDocumentReaderAndWriter) readerWriter : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    void add(String line) {
+      if (conll != null) {
+        tokens.add((IN) conll.makeCoreLabel(line));
       } else {
-    	  text += line + eol;
-    	  blankLines = 0;
+        text.append(line).append('\n');
       }
+      empty = false;
     }
-    // Classify last document before input stream end
-    if (text.trim() != "") {
-      ObjectBank<List<IN>> documents = makeObjectBankFromString(text, readerWriter);
-  	  classifyAndWriteAnswers(documents, readerWriter);
+
+    boolean isEmpty() {
+      return empty;
+    }
+
+    Collection<List<IN>> finish() {
+      if (conll == null) {
+        return makeObjectBankFromString(text.toString(), readerWriter);
+      }
+      ObjectBankWrapper<IN> wrapper = new ObjectBankWrapper<IN>(flags, null, knownLCWords);
+      return wrapper.processDocuments(tokens);
+    }
+  }
+
+  /**
+   * Queues the documents to be classified and written once the previously queued ones are done,
+   * waiting for those first, so that at most one document is read ahead
+   */
+  private Future<?> classifyAndWriteAfter(Future<?> previous, final Collection<List<IN>> documents, final PrintWriter out,
+                                          final DocumentReaderAndWriter<IN> readerWriter, ExecutorService writer)
+    throws IOException
+  {
+    waitFor(previous);
+    return writer.submit(new Callable<Void>() {
+      public Void call() throws IOException {
+        classifyAndWriteDocuments(documents, out, readerWriter);
+        return null;
+      }
+    });
+  }
+
+  private static void waitFor(Future<?> task) throws IOException {
+    if (task == null) {
+      return;
+    }
+    try {
+      task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
     }
-    return (line == null); // reached eol
   }
   
   /**
@@ -1015,21 +1132,21 @@ public abstract class AbstractSequenceClassifier<IN extends CoreMap> implements
   {
     BufferedReader is = new BufferedReader(new InputStreamReader(System.in, flags.inputEncoding));
     String line;
-    String text = "";
+    StringBuilder text = new StringBuilder();
     String eol = "\n";
     String sentence = "<s>";
     while ((line = is.readLine()) != null) {
     	
       if (line.trim().equals("")) {
-    	  text += sentence + eol;
-    	  ObjectBank<List<IN>> documents = makeObjectBankFromString(text, readerWriter);
+    	  text.append(sentence).append(eol);
+    	  ObjectBank<List<IN>> documents = makeObjectBankFromString(text.toString(), readerWriter);
           classifyAndWriteAnswers(documents, readerWriter);
-          text = "";
+          text.setLength(0);
       } else {
-    	  text += line + eol;
+    	  text.append(line).append(eol);
       }
     }
-    if (text.trim().equals("")) {
+    if (text.toString().trim().equals("")) {
     	return false;
     }
     return true;
@@ -1111,6 +1228,14 @@ public abstract class AbstractSequenceClassifier<IN extends CoreMap> implements
                                       PrintWriter printWriter,
                                       DocumentReaderAndWriter<IN> readerWriter)
     throws IOException
+  {
+    classifyAndWriteDocuments(documents, printWriter, readerWriter);
+  }
+
+  private void classifyAndWriteDocuments(Iterable<List<IN>> documents,
+                                         PrintWriter printWriter,
+                                         DocumentReaderAndWriter<IN> readerWriter)
+    throws IOException
   {
     Timing timer = new Timing();
 
@@ -1174,14 +1299,13 @@ public abstract class AbstractSequenceClassifier<IN extends CoreMap> implements
     int numSentences = 0;
 
     for (List<IN> doc : documents) {
-      Counter<List<IN>> kBest = classifyKBest(doc, AnswerAnnotation.class, k);
+      List<ScoredObject<List<IN>>> kBest = classifyKBestList(doc, AnswerAnnotation.class, k);
       numWords += doc.size();
-      List<List<IN>> sorted = Counters.toSortedList(kBest);
       int n = 1;
-      for (List<IN> l : sorted) {
-        System.out.println("<sentence id=" + numSentences + " k=" + n + " logProb=" + kBest.getCount(l) + " prob="
-            + Math.exp(kBest.getCount(l)) + '>');
-        writeAnswers(l, printWriter, readerAndWriter);
+      for (ScoredObject<List<IN>> l : kBest) {
+        System.out.println("<sentence id=" + numSentences + " k=" + n + " logProb=" + l.score() + " prob="
+            + Math.exp(l.score()) + '>');
+        writeAnswers(l.object(), printWriter, readerAndWriter);
         System.out.println("</sentence>");
         n++;
       }
@@ -1482,6 +1606,33 @@ public abstract class AbstractSequenceClassifier<IN extends CoreMap> implements
    */
   public abstract void serializeClassifier(String serializePath);
 
+  /**
+   * Writes the classifier as a {@link MappedModel}, which
+   * {@link #loadClassifier(File, Properties)} maps instead of deserializing,
+   * so large models load faster and share their memory between processes.
+   * Not all classifiers support this.
+   *
+   * @param serializePath
+   *          The path/filename to write the classifier to.
+   */
+  public void serializeMappedClassifier(String serializePath) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " can't be saved as a mapped model");
+  }
+
+  /**
+   * Loads a classifier written by {@link #serializeMappedClassifier(String)}.
+   *
+   * @param model
+   *          The mapped model file
+   * @param props
+   *          This Properties object will be used to update the
+   *          SeqClassifierFlags which are stored in the model
+   */
+  protected void loadMappedClassifier(MappedModel model, Properties props) throws IOException, ClassCastException,
+      ClassNotFoundException {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " can't load a mapped model");
+  }
+
   /**
    * Loads a classifier from the given input stream. The JVM shuts down
    * (System.exit(1)) if there is an exception. This does not close the
@@ -1631,7 +1782,7 @@ public abstract class AbstractSequenceClassifier<IN extends CoreMap> implements
   /**
    * Loads a classifier from the file specified. If the file's name ends in .gz,
    * uses a GZIPInputStream, else uses a regular FileInputStream. This method
-   * closes the File when done.
+   * closes the File when done. A {@link MappedModel} file is mapped instead.
    *
    * @param file
    *          Loads a classifier from this file.
@@ -1648,6 +1799,12 @@ public abstract class AbstractSequenceClassifier<IN extends CoreMap> implements
    */
   public void loadClassifier(File file, Properties props) throws ClassCastException, IOException,
       ClassNotFoundException {
+    if (MappedModel.isMappedModel(file)) {
+      Timing.startDoing("Mapping classifier from " + file.getAbsolutePath());
+      loadMappedClassifier(new MappedModel(file), props);
+      Timing.endDoing();
+      return;
+    }
     Timing.startDoing("Loading classifier from " + file.getAbsolutePath());
     BufferedInputStream bis;
     if (file.getName().endsWith(".gz")) {
@@ -11,6 +11,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import edu.stanford.nlp.ie.crf.CRFClassifier;
 import edu.stanford.nlp.ie.ner.CMMClassifier;
@@ -41,6 +47,9 @@ import edu.stanford.nlp.util.StringUtils;
  * properties. We also maintain the older usage when only two base classifiers were accepted,
  * specified using -loadClassifier and -loadAuxClassifier.
  * <p>
+ * With -combinerThreads greater than 1, the base classifiers of a document run concurrently,
+ * each on its own copy of the tokens; the merge is the same, so is the result.
+ * <p>
  * ms 2009: removed all NER functionality (see NERClassifierCombiner), changed code so it accepts an arbitrary number of base classifiers, removed dead code.
  *
  * @author Chris Cox
@@ -50,6 +59,8 @@ public class ClassifierCombiner<IN extends CoreMap & HasWord> extends AbstractSe
 
 	private static final boolean DEBUG = false;
 	private List<AbstractSequenceClassifier<IN>> baseClassifiers;
+	/** Runs the base classifiers other than the first one, if flags.combinerThreads > 1 */
+	private ExecutorService workers;
 
 	private static final String DEFAULT_AUX_CLASSIFIER_PATH="/u/nlp/data/ner/goodClassifiers/english.muc.7class.distsim.crf.ser.gz";
 	private static final String DEFAULT_CLASSIFIER_PATH="/u/nlp/data/ner/goodClassifiers/english.all.3class.distsim.crf.ser.gz";
@@ -440,29 +451,83 @@ public class ClassifierCombiner<IN extends CoreMap & HasWord> extends AbstractSe
 		if (baseClassifiers.isEmpty()) {
 			return tokens;
 		}
-		List<List<IN>> baseOutputs = new ArrayList<List<IN>>();
+		// no need for deep copy: classifySentence creates a copy of the input anyway
+		List<List<IN>> baseOutputs = (flags.combinerThreads > 1 && baseClassifiers.size() > 1) ?
+				classifyConcurrently(tokens) : classifySequentially(tokens);
 
 		// the first base model works in place, modifying the original tokens
-		List<IN> output = baseClassifiers.get(0).classifySentence(tokens);
+		List<IN> output = baseOutputs.get(0);
 		// classify(List<IN>) is supposed to work in place, so add AnswerAnnotation to tokens!
 		for (int i = 0, sz = output.size(); i < sz; i++) {
 			tokens.get(i).set(AnswerAnnotation.class, output.get(i).get(AnswerAnnotation.class));
 		}
-		baseOutputs.add(tokens);
+		baseOutputs.set(0, tokens);
 
-		for (int i = 1, sz = baseClassifiers.size(); i < sz; i ++) {
-			//List<CoreLabel> copy = deepCopy(tokens);
-			// no need for deep copy: classifySentence creates a copy of the input anyway
-			// List<CoreLabel> copy = tokens;
-			output = baseClassifiers.get(i).classifySentence(tokens);
-			baseOutputs.add(output);
-		}
 		assert(baseOutputs.size() == baseClassifiers.size());
 		List<IN> finalAnswer = mergeDocuments(baseOutputs);
 
 		return finalAnswer;
 	}
 
+	private List<List<IN>> classifySequentially(List<IN> tokens) {
+		List<List<IN>> baseOutputs = new ArrayList<List<IN>>();
+		for (AbstractSequenceClassifier<IN> baseClassifier : baseClassifiers) {
+			baseOutputs.add(baseClassifier.classifySentence(tokens));
+		}
+		return baseOutputs;
+	}
+
+	/**
+	 * Runs the first base classifier in this thread and the others on the worker pool, all at once.
+	 * Each classifySentence only reads the tokens, which aren't changed until all of them are done.
+	 */
+	private List<List<IN>> classifyConcurrently(final List<IN> tokens) {
+		ExecutorService pool = workers();
+		List<Future<List<IN>>> results = new ArrayList<Future<List<IN>>>();
+		for (int i = 1, sz = baseClassifiers.size(); i < sz; i ++) {
+			final AbstractSequenceClassifier<IN> baseClassifier = baseClassifiers.get(i);
+			results.add(pool.submit(new Callable<List<IN>>() {
+				public List<IN> call() {
+					return baseClassifier.classifySentence(tokens);
+				}
+			}));
+		}
+
+		List<List<IN>> baseOutputs = new ArrayList<List<IN>>();
+		try {
+			baseOutputs.add(baseClassifiers.get(0).classifySentence(tokens));
+			for (Future<List<IN>> result : results) {
+				baseOutputs.add(result.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		} finally {
+			for (Future<List<IN>> result : results) {
+				result.cancel(false);
+			}
+		}
+		return baseOutputs;
+	}
+
+	private synchronized ExecutorService workers() {
+		if (workers == null) {
+			workers = Executors.newFixedThreadPool(flags.combinerThreads - 1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ClassifierCombiner-worker");
+					t.setDaemon(true); // nobody shuts the pool down
+					return t;
+				}
+			});
+		}
+		return workers;
+	}
+
 
 	@Override
 	public void train(Collection<List<IN>> docs,
@@ -0,0 +1,410 @@
+package edu.stanford.nlp.ie;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable Aho-Corasick automaton over the tokens of gazette entries, which
+ * finds all the occurrences of all the entries in a sentence in one pass over it.
+ * <p>
+ * The words of the entries are mapped to integer ids, and the automaton is kept
+ * in flat arrays: for each state, its transitions sorted by token id, its failure
+ * link, the entries that end in it, and the nearest state on its failure chain
+ * that has entries too. So even a gazette of millions of entries takes a few
+ * arrays, and a token costs one hash lookup and a binary search or two, however
+ * many entries contain it.
+ * <p>
+ * A matcher is made by a {@link Builder}, from entries given one by one or read
+ * from a gazette file (the {@link NERFeatureFactory} format) or a whitelist file
+ * (the {@link ListNERSequenceClassifier} format). It is safe for concurrent use.
+ */
+public class GazetteMatcher implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** A gazette entry: a phrase of one or more tokens, and what it stands for */
+  public static class Entry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final String type;
+    public final String[] words;
+    /** The file that the entry comes from, or null */
+    public final String source;
+    public final double priority;
+    /** The labels that the entry may overwrite, for whitelists, otherwise null */
+    public final Set<String> overwritableTypes;
+
+    public Entry(String type, String[] words, String source, double priority, Set<String> overwritableTypes) {
+      if (words.length == 0) {
+        throw new IllegalArgumentException("A gazette entry of no words");
+      }
+      this.type = type;
+      this.words = words;
+      this.source = source;
+      this.priority = priority;
+      this.overwritableTypes = overwritableTypes;
+    }
+
+    @Override
+    public String toString() {
+      return type + '\t' + Arrays.toString(words);
+    }
+  }
+
+  /** An occurrence of an entry: the tokens from start (inclusive) to end (exclusive) */
+  public static class Match {
+    public final int entry;
+    public final int start;
+    public final int end;
+
+    Match(int entry, int start, int end) {
+      this.entry = entry;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public String toString() {
+      return entry + "@[" + start + ',' + end + ')';
+    }
+  }
+
+  private static final Comparator<Match> MATCH_ORDER = new Comparator<Match>() {
+    public int compare(Match a, Match b) {
+      if (a.start != b.start) {
+        return a.start - b.start;
+      }
+      if (a.end != b.end) {
+        return a.end - b.end;
+      }
+      return a.entry - b.entry;
+    }
+  };
+
+  private final boolean ignoreCase;
+  private final Entry[] entries;
+  private final Map<String,Integer> tokenIds;
+  // transitions of state s are edgeLabel/edgeTarget[edgeStart[s] .. edgeStart[s+1]), by label
+  private final int[] edgeStart;
+  private final int[] edgeLabel;
+  private final int[] edgeTarget;
+  private final int[] fail;
+  // entries that end in state s are outEntry[outStart[s] .. outStart[s+1])
+  private final int[] outStart;
+  private final int[] outEntry;
+  // the nearest state on the failure chain of s that has entries, or -1
+  private final int[] outLink;
+  // the number of words of the longest entry, computed on first use
+  private transient int maxLength;
+
+  /**
+   * Collects the entries of a {@link GazetteMatcher}.
+   */
+  public static class Builder {
+
+    private final boolean ignoreCase;
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * @param ignoreCase Whether the words of the entries and of the sentences
+     *     are lowercased before they are compared
+     */
+    public Builder(boolean ignoreCase) {
+      this.ignoreCase = ignoreCase;
+    }
+
+    /** Adds an entry; its id in the matcher is the number of the entries added before it */
+    public int add(Entry entry) {
+      entries.add(entry);
+      return entries.size() - 1;
+    }
+
+    public int size() {
+      return entries.size();
+    }
+
+    /**
+     * Reads a gazette file.  Each line of it consists of a class name
+     * (a String not containing whitespace characters), followed by whitespace
+     * characters followed by a phrase, which is one or more tokens separated
+     * by a single space.  Other lines are skipped.
+     *
+     * @param in Where to read the gazette from
+     * @param source The name of the gazette, for {@link Entry#source}
+     * @throws IOException If IO errors
+     */
+    public Builder readGazette(BufferedReader in, String source) throws IOException {
+      Pattern p = Pattern.compile("^(\\S+)\\s+(.+)$");
+      for (String line; (line = in.readLine()) != null; ) {
+        Matcher m = p.matcher(line);
+        if (m.matches()) {
+          add(new Entry(m.group(1).intern(), m.group(2).split(" "), source, 0, null));
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Reads a whitelist file.  Each line of it has two to four tab separated fields:
+     * the label, the phrase (tokens separated by whitespace), a comma separated list
+     * of the labels it can overwrite besides backgroundSymbol, and its priority.
+     *
+     * @param in Where to read the whitelist from
+     * @param source The name of the whitelist, for {@link Entry#source} and the error messages
+     * @param backgroundSymbol A label that any entry can overwrite
+     * @throws IOException If IO errors
+     */
+    public Builder readWhitelist(BufferedReader in, String source, String backgroundSymbol) throws IOException {
+      int lineCount = 0;
+      for (String line; (line = in.readLine()) != null; ) {
+        lineCount++;
+        String[] split = line.split("\t");
+        if (split.length < 2 || split.length > 4) {
+          throw new RuntimeException("Provided mapping file is in wrong format");
+        }
+        String[] words = split[1].trim().split("\\s+");
+        String type = split[0].trim().intern();
+        Set<String> overwritableTypes = new HashSet<String>();
+        overwritableTypes.add(backgroundSymbol);
+        overwritableTypes.add(null);
+        double priority = 0;
+        try {
+          if (split.length >= 3) {
+            overwritableTypes.addAll(Arrays.asList(split[2].trim().split(",")));
+          }
+          if (split.length == 4) {
+            priority = Double.parseDouble(split[3].trim());
+          }
+        } catch (NumberFormatException e) {
+          System.err.println("ERROR: Invalid line " + lineCount + " in regexner file " + source + ": \"" + line + "\"!");
+          throw e;
+        }
+        add(new Entry(type, words, source, priority, overwritableTypes));
+      }
+      return this;
+    }
+
+    public GazetteMatcher build() {
+      return new GazetteMatcher(ignoreCase, entries.toArray(new Entry[entries.size()]));
+    }
+
+  } // end class Builder
+
+  private GazetteMatcher(boolean ignoreCase, Entry[] entries) {
+    this.ignoreCase = ignoreCase;
+    this.entries = entries;
+
+    // the entries as token id sequences
+    tokenIds = new HashMap<String,Integer>();
+    final int[][] sequences = new int[entries.length][];
+    for (int e = 0; e < entries.length; e++) {
+      String[] words = entries[e].words;
+      sequences[e] = new int[words.length];
+      for (int i = 0; i < words.length; i++) {
+        String word = normalize(words[i]);
+        Integer id = tokenIds.get(word);
+        if (id == null) {
+          id = tokenIds.size();
+          tokenIds.put(word, id);
+        }
+        sequences[e][i] = id;
+      }
+    }
+
+    // the trie, built from the sorted sequences: the states are numbered in depth
+    // first order, and the edges of every state come in the order of their labels
+    Integer[] order = new Integer[entries.length];
+    for (int e = 0; e < order.length; e++) {
+      order[e] = e;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int[] x = sequences[a];
+        int[] y = sequences[b];
+        for (int i = 0, n = Math.min(x.length, y.length); i < n; i++) {
+          if (x[i] != y[i]) {
+            return x[i] < y[i] ? -1 : 1;
+          }
+        }
+        return x.length != y.length ? x.length - y.length : a - b;
+      }
+    });
+    int maxStates = 1;
+    for (int[] sequence : sequences) {
+      maxStates += sequence.length;
+    }
+    int[] parent = new int[maxStates];
+    int[] label = new int[maxStates];
+    int[] entryState = new int[entries.length];
+    int states = 1;
+    int[] path = new int[1];
+    int[] previous = new int[0];
+    for (int e : order) {
+      int[] sequence = sequences[e];
+      int common = 0;
+      while (common < sequence.length && common < previous.length && sequence[common] == previous[common]) {
+        common++;
+      }
+      if (path.length < sequence.length + 1) {
+        path = Arrays.copyOf(path, sequence.length + 1);
+      }
+      for (int i = common; i < sequence.length; i++) {
+        parent[states] = path[i];
+        label[states] = sequence[i];
+        path[i + 1] = states++;
+      }
+      entryState[e] = path[sequence.length];
+      previous = sequence;
+    }
+
+    edgeStart = new int[states + 1];
+    for (int s = 1; s < states; s++) {
+      edgeStart[parent[s] + 1]++;
+    }
+    for (int s = 0; s < states; s++) {
+      edgeStart[s + 1] += edgeStart[s];
+    }
+    edgeLabel = new int[states - 1];
+    edgeTarget = new int[states - 1];
+    int[] fill = Arrays.copyOf(edgeStart, states);
+    for (int s = 1; s < states; s++) {
+      int edge = fill[parent[s]]++;
+      edgeLabel[edge] = label[s];
+      edgeTarget[edge] = s;
+    }
+
+    outStart = new int[states + 1];
+    for (int s : entryState) {
+      outStart[s + 1]++;
+    }
+    for (int s = 0; s < states; s++) {
+      outStart[s + 1] += outStart[s];
+    }
+    outEntry = new int[entries.length];
+    fill = Arrays.copyOf(outStart, states);
+    for (int e = 0; e < entries.length; e++) {
+      outEntry[fill[entryState[e]]++] = e;
+    }
+
+    // the failure links, breadth first
+    fail = new int[states];
+    outLink = new int[states];
+    outLink[0] = -1;
+    int[] queue = new int[states];
+    int head = 0;
+    int tail = 0;
+    for (int edge = edgeStart[0]; edge < edgeStart[1]; edge++) {
+      queue[tail++] = edgeTarget[edge];
+    }
+    while (head < tail) {
+      int s = queue[head++];
+      int f = fail[s];
+      outLink[s] = (outStart[f] < outStart[f + 1]) ? f : outLink[f];
+      for (int edge = edgeStart[s]; edge < edgeStart[s + 1]; edge++) {
+        int t = edgeTarget[edge];
+        int r = f;
+        int next;
+        while ((next = transition(r, edgeLabel[edge])) < 0 && r != 0) {
+          r = fail[r];
+        }
+        fail[t] = next < 0 ? 0 : next;
+        queue[tail++] = t;
+      }
+    }
+  }
+
+  private String normalize(String word) {
+    return ignoreCase ? word.toLowerCase() : word;
+  }
+
+  /** The state reached from state s by the token, or -1 if there is no transition */
+  private int transition(int s, int token) {
+    int lo = edgeStart[s];
+    int hi = edgeStart[s + 1] - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int l = edgeLabel[mid];
+      if (l < token) {
+        lo = mid + 1;
+      } else if (l > token) {
+        hi = mid - 1;
+      } else {
+        return edgeTarget[mid];
+      }
+    }
+    return -1;
+  }
+
+  /** The number of entries */
+  public int size() {
+    return entries.length;
+  }
+
+  public Entry entry(int id) {
+    return entries[id];
+  }
+
+  public boolean ignoresCase() {
+    return ignoreCase;
+  }
+
+  /** The number of words of the longest entry, 0 if there are no entries */
+  public int maxLength() {
+    int length = maxLength;
+    if (length == 0) {
+      for (Entry entry : entries) {
+        length = Math.max(length, entry.words.length);
+      }
+      maxLength = length;
+    }
+    return length;
+  }
+
+  /**
+   * Finds all the occurrences of all the entries in a sentence, overlapping
+   * ones included.
+   *
+   * @param tokens The words of the sentence; a null word matches nothing
+   * @return The matches, ordered by start, then end, then entry id
+   */
+  public List<Match> matches(List<String> tokens) {
+    List<Match> matches = new ArrayList<Match>();
+    int state = 0;
+    for (int i = 0, n = tokens.size(); i < n; i++) {
+      String token = tokens.get(i);
+      Integer id = (token == null) ? null : tokenIds.get(normalize(token));
+      if (id == null) {
+        state = 0;
+        continue;
+      }
+      int next;
+      while ((next = transition(state, id)) < 0 && state != 0) {
+        state = fail[state];
+      }
+      state = next < 0 ? 0 : next;
+      for (int s = (outStart[state] < outStart[state + 1]) ? state : outLink[state]; s > 0; s = outLink[s]) {
+        for (int o = outStart[s]; o < outStart[s + 1]; o++) {
+          int e = outEntry[o];
+          matches.add(new Match(e, i + 1 - entries[e].words.length, i + 1));
+        }
+      }
+    }
+    if (matches.size() > 1) {
+      Collections.sort(matches, MATCH_ORDER);
+    }
+    return matches;
+  }
+
+}
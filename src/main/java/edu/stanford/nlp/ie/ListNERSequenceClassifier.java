@@ -7,13 +7,10 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -26,7 +23,8 @@ import edu.stanford.nlp.util.CoreMap;
 import edu.stanford.nlp.util.HashIndex;
 
 public class ListNERSequenceClassifier extends AbstractSequenceClassifier<CoreLabel> {
-	private Map<String, Entry> entries;
+	/** The entries of all the lists, matched against the whole document at once */
+	private GazetteMatcher entries;
 
 	/**
 	 * If true, it overwrites NE labels generated through this regex NER
@@ -51,14 +49,18 @@ public class ListNERSequenceClassifier extends AbstractSequenceClassifier<CoreLa
 	 */
 	public ListNERSequenceClassifier(String mapping, boolean ignoreCase, boolean useLemmas, boolean overwriteMyLabels) {
 		super(new Properties());
-		entries = new HashMap<>();
 		this.ignoreCase = ignoreCase;
 		this.overwriteMyLabels = overwriteMyLabels;
 		this.useLemmas = useLemmas;
 		String[] mappings = mapping.split(",");
-		myLabels = new HashSet<String>();
+		GazetteMatcher.Builder builder = new GazetteMatcher.Builder(ignoreCase);
 		for (String map : mappings) {
-			readEntries(map, ignoreCase);
+			readEntries(map, builder);
+		}
+		entries = builder.build();
+		myLabels = new HashSet<String>();
+		for (int e = 0; e < entries.size(); e++) {
+			myLabels.add(entries.entry(e).type);
 		}
 		System.err.println("Lists are initialized...");
 		this.classIndex = new HashIndex<String>(myLabels);
@@ -82,24 +84,6 @@ public class ListNERSequenceClassifier extends AbstractSequenceClassifier<CoreLa
 			return ignoreCase ? token.toLowerCase() : token;
 	}
 
-	private static class Entry {
-			public String word;
-			public Map<String, Entry> words;
-			public String type; // the associated type
-			public Set<String> overWritableTypes;
-			public double priority;
-
-			public Entry() {
-				words = new HashMap<>();
-			}
-			public Entry(String type, Set<String> overWritableTypes, double priority) {
-				this.type = type.intern();
-				this.overWritableTypes = overWritableTypes;
-				this.priority = priority;
-				this.words = new HashMap<>();
-			}
-		}
-
 	// TODO: make this a property?
 	// ms: but really this should be rewritten from scratch
 	//		 we should have a language to specify regexes over *tokens*, where each token could be a regular Java regex (over words, POSs, etc.)
@@ -143,58 +127,48 @@ public class ListNERSequenceClassifier extends AbstractSequenceClassifier<CoreLa
 	
 	@Override
 	public List<CoreLabel> classify(List<CoreLabel> document) {
+		List<String> words = new ArrayList<>(document.size());
+		for (CoreLabel w : document) {
+			words.add(token(w));
+		}
+		List<GazetteMatcher.Match> matches = entries.matches(words);
 		List<MatchedEntry> matchedEntries = new ArrayList<>();
-		int maxWord = 0; // max right word reached (in matched entry) from before or current position i
-		for (int i = 0; i < document.size(); i++) {
-			Map<String, Entry> entryMap = entries;
-			List<CoreLabel> tokens = new ArrayList<>();
-			int j = i;
-			CoreLabel wj = document.get(j);
-			while (entryMap != null && entryMap.containsKey(token(wj))) {
-				tokens.add(wj);
-				Entry e = entryMap.get(token(wj));
-				if (e.type != null && e.type.length() > 0) {
-					//System.err.println("FOUND " + e.type);
-					int priority_mod = 0; // modify default priority
-					
-					// simple pattern post processing
-					// remove quotes
-					int from = 0, to = tokens.size(), count = 0;
-					for (int tokens_i = 0; tokens_i < tokens.size(); tokens_i++) {
-						CoreLabel l = tokens.get(tokens_i);
-						if (quotes.contains(l.word())) {
-							count++;
-							if (count == 1) from = Math.min(tokens_i + 1, tokens.size()-1);
-							else if (count == 2) to = tokens_i;
-						}
-					}
-					if (count == 2) {
-						priority_mod = 1; // entry matched context pattern, increase priority
-					} else {
-						from = 0; to = tokens.size();
-					}
-					List<CoreLabel> matched_tokens = new ArrayList<>(tokens.subList(from, to));
-//					for (CoreLabel cl : matched_tokens) {
-//						System.err.print(cl.word() + " ");
-//					}
-//					System.err.println();					
-					matchedEntries.add(new MatchedEntry(matched_tokens, e.type, e.overWritableTypes, e.priority + priority_mod));
-				}
-				entryMap = e.words;
-				if (j+1 >= document.size()) break;
-				wj = document.get(++j);
+		for (int m = 0; m < matches.size(); m++) {
+			GazetteMatcher.Match match = matches.get(m);
+			if (m + 1 < matches.size() && matches.get(m + 1).start == match.start && matches.get(m + 1).end == match.end) {
+				continue; // of the entries with the same words, the last one counts
 			}
-			
-			maxWord = Math.max(maxWord, j);
-			if (i == maxWord && matchedEntries.size() > 0) {
-				Collections.sort(matchedEntries);
-				for (MatchedEntry me : matchedEntries) {
-					for (CoreLabel c : me.tokens) {
-						c.set(AnswerAnnotation.class, me.type);
-						//System.err.println(c.word() + "\t" + me.type);
-					}
+			GazetteMatcher.Entry e = entries.entry(match.entry);
+			if (e.type.length() == 0) continue;
+			List<CoreLabel> tokens = document.subList(match.start, match.end);
+			int priority_mod = 0; // modify default priority
+
+			// simple pattern post processing
+			// remove quotes
+			int from = 0, to = tokens.size(), count = 0;
+			for (int tokens_i = 0; tokens_i < tokens.size(); tokens_i++) {
+				CoreLabel l = tokens.get(tokens_i);
+				if (quotes.contains(l.word())) {
+					count++;
+					if (count == 1) from = Math.min(tokens_i + 1, tokens.size()-1);
+					else if (count == 2) to = tokens_i;
 				}
-				matchedEntries.clear();
+			}
+			if (count == 2) {
+				priority_mod = 1; // entry matched context pattern, increase priority
+			} else {
+				from = 0; to = tokens.size();
+			}
+			List<CoreLabel> matched_tokens = new ArrayList<>(tokens.subList(from, to));
+			matchedEntries.add(new MatchedEntry(matched_tokens, e.type, e.overwritableTypes, e.priority + priority_mod));
+		}
+
+		// the matches come by position, and the sort is stable, so of the overlapping entries
+		// of the same priority and length the one that starts last is applied last
+		Collections.sort(matchedEntries);
+		for (MatchedEntry me : matchedEntries) {
+			for (CoreLabel c : me.tokens) {
+				c.set(AnswerAnnotation.class, me.type);
 			}
 		}
 		return document;
@@ -211,81 +185,23 @@ public class ListNERSequenceClassifier extends AbstractSequenceClassifier<CoreLa
 					throws IOException, ClassCastException, ClassNotFoundException {}
 
 	/**
-	 *	Creates a combined list of Entries using the provided mapping file, and sorts them by
-	 *	first by priority, then the number of tokens in the regex.
+	 *	Reads the entries of a whitelist file into the builder.
 	 *
 	 *	@param mapping The path to a file of mappings
-	 *	@return a sorted list of Entries
 	 */
-	private Map<String, Entry> readEntries(String mapping, boolean ignoreCase) {
-		Map<String, Entry> entries = new HashMap<>();
-
+	private void readEntries(String mapping, GazetteMatcher.Builder builder) {
 		try {
 			// ms, 2010-10-05: try to load the file from the CLASSPATH first
 			InputStream is = getClass().getClassLoader().getResourceAsStream(mapping);
 			// if not found in the CLASSPATH, load from the file system
 			if (is == null) is = new FileInputStream(mapping);
 			BufferedReader rd = new BufferedReader(new InputStreamReader(is));
-
-			int lineCount = 0;
-			for (String line; (line = rd.readLine()) != null; ) {
-				lineCount ++;
-				String[] split = line.split("\t");
-				if (split.length < 2 || split.length > 4)
-					throw new RuntimeException("Provided mapping file is in wrong format");
-				if (split[1].trim().equalsIgnoreCase("AS")) System.err.println("ERRRR " + mapping + "|" + line + " at " + lineCount);
-				String stringLine = split[1].trim();
-				if (ignoreCase) stringLine = stringLine.toLowerCase();
-				String[] words = stringLine.split("\\s+");
-				String type = split[0].trim();
-				Set<String> overwritableTypes = new HashSet<String>();
-				overwritableTypes.add(flags.backgroundSymbol);
-				overwritableTypes.add(null);
-				double priority = 0;
-				List<String> tokens = new ArrayList<String>();
-
-				try {
-					if (split.length >= 3)
-						overwritableTypes.addAll(Arrays.asList(split[2].trim().split(",")));
-					if (split.length == 4)
-						priority = Double.parseDouble(split[3].trim());
-
-					for (String str : words) {
-						tokens.add(str);
-					}
-				} catch(NumberFormatException e) {
-					System.err.println("ERROR: Invalid line " + lineCount + " in regexner file " + mapping + ": \"" + line + "\"!");
-					throw e;
-				}
-				addEntry(words, type, priority, overwritableTypes);
-			}
+			builder.readWhitelist(rd, mapping, flags.backgroundSymbol);
 			rd.close();
 			is.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		return entries;
-	}
-	
-	
-	private void addEntry(String[] words, String type, Double priority, Set<String> overwritableTypes) {
-		Map<String, Entry> entryMap = entries;
-		Entry currentEntry = new Entry();
-			for(String word : words) {
-				currentEntry = new Entry();
-				if (entryMap.containsKey(word)) {
-					currentEntry = entryMap.get(word);
-					entryMap = currentEntry.words;
-				} else {
-					entryMap.put(word, currentEntry);
-					entryMap = currentEntry.words;
-				}
-			}
-			currentEntry.overWritableTypes = overwritableTypes;
-			currentEntry.priority = priority;
-			currentEntry.type = type;
-			
-			myLabels.add(type);
 	}
 
 	@Override
@@ -32,9 +32,12 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -43,6 +46,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -70,10 +74,6 @@ import edu.stanford.nlp.ling.CoreAnnotations.IsDateRangeAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.IsURLAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.LVGazAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.LVGazFileAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.LVMorphoCaseAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.LVMorphoLetaLemmaAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.LVMorphoNumberAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.LVMorphoPOSAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.LVMorphologyAnalysis;
 import edu.stanford.nlp.ling.CoreAnnotations.LVMorphologyAnalysisBest;
 import edu.stanford.nlp.ling.CoreAnnotations.LemmaAnnotation;
@@ -101,6 +101,7 @@ import edu.stanford.nlp.process.WordShapeClassifier;
 import edu.stanford.nlp.sequences.Clique;
 import edu.stanford.nlp.sequences.CoNLLDocumentReaderAndWriter;
 import edu.stanford.nlp.sequences.FeatureFactory;
+import edu.stanford.nlp.sequences.LVMorphoFeatures;
 import edu.stanford.nlp.sequences.SeqClassifierFlags;
 import edu.stanford.nlp.trees.TreeCoreAnnotations;
 import edu.stanford.nlp.util.PaddedList;
@@ -582,13 +583,36 @@ public class NERFeatureFactory<IN extends CoreLabel> extends FeatureFactory<IN>
   }
 
 
-  private Map<String,Collection<String>> wordToSubstrings = new HashMap<String,Collection<String>>();
+  // concurrent, as it is filled while tagging and the same feature factory is shared between the tagging threads
+  private volatile Map<String,Collection<String>> wordToSubstrings = new ConcurrentHashMap<String,Collection<String>>();
 
   public void clearMemory() {
-    wordToSubstrings = new HashMap<String,Collection<String>>();
+    wordToSubstrings = new ConcurrentHashMap<String,Collection<String>>();
     lexicon = null;
   }
 
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    // older models have a plain HashMap serialized here
+    wordToSubstrings = (wordToSubstrings == null) ? new ConcurrentHashMap<String,Collection<String>>() : new ConcurrentHashMap<String,Collection<String>>(wordToSubstrings);
+    if (cleanGazette == null && wordToGazetteInfos != null && ! wordToGazetteInfos.isEmpty()) {
+      // older models have the clean gazette entries by each of their words
+      GazetteMatcher.Builder builder = new GazetteMatcher.Builder(flags.useLemmas);
+      List<String> features = new ArrayList<String>();
+      for (Collection<GazetteInfo> infos : wordToGazetteInfos.values()) {
+        for (GazetteInfo info : infos) {
+          if (info.loc == 0) {
+            builder.add(new GazetteMatcher.Entry(info.type, info.words, info.source, 0, null));
+            features.add(info.feature);
+          }
+        }
+      }
+      cleanGazette = builder.build();
+      cleanGazetteFeatures = features.toArray(new String[features.size()]);
+      wordToGazetteInfos = new HashMap<String,Collection<GazetteInfo>>();
+    }
+  }
+
   private static String dehyphenate(String str) {
     // don't take out leading or ending ones, just internal
     // and remember padded with < > characters
@@ -725,6 +749,7 @@ public class NERFeatureFactory<IN extends CoreLabel> extends FeatureFactory<IN>
    * Gazette Stuff.
    */
 
+  /** Clean gazette entries as older models have them, by word; see readObject */
   private static class GazetteInfo implements Serializable {
     String feature = "";
     int loc = 0;
@@ -736,72 +761,175 @@ public class NERFeatureFactory<IN extends CoreLabel> extends FeatureFactory<IN>
 
   private Map<String,Collection<String>> wordToGazetteEntries = new HashMap<String,Collection<String>>();
   private Map<String,Collection<GazetteInfo>> wordToGazetteInfos = new HashMap<String,Collection<GazetteInfo>>();
+  /** The clean gazette entries, which are matched against the whole document at once; null if there are none */
+  private GazetteMatcher cleanGazette;
+  /** The feature of each entry of cleanGazette */
+  private String[] cleanGazetteFeatures;
+  /** The clean gazette features at each position of the document that each thread has seen last */
+  private transient volatile ThreadLocal<GazetteMatches> gazetteMatches;
+
+  private static class GazetteMatches {
+    /** The first token of the document, which tells it apart without keeping it alive */
+    final WeakReference<Object> first;
+    /** The words that the document was matched with */
+    final String[] words;
+    final List<List<String>> features;
+
+    GazetteMatches(Object first, String[] words, List<List<String>> features) {
+      this.first = new WeakReference<Object>(first);
+      this.words = words;
+      this.features = features;
+    }
+  } // end class GazetteMatches
+
+  /** Makes the sloppy and the clean gazette features (as the flags say) of the entries of a gazette */
+  private void setGazette(GazetteMatcher gazette, String[] features) {
+    for (int e = 0; e < gazette.size(); e++) {
+      GazetteMatcher.Entry entry = gazette.entry(e);
+      if (flags.sloppyGazette) {
+        String feature = intern(entry.type + "-GAZS" + entry.words.length);
+        for (String w : entry.words) {
+          String word = intern(w);
+          Collection<String> entries = wordToGazetteEntries.get(word);
+          if (entries == null) {
+            entries = new HashSet<String>();
+            wordToGazetteEntries.put(word, entries);
+          }
+          entries.add(feature);
+        }
+      }
+      if (features[e] == null) {
+        features[e] = intern(entry.type + "-GAZC" + entry.words.length);
+      }
+    }
+    if (flags.cleanGazette && gazette.size() > 0) {
+      cleanGazette = gazette;
+      cleanGazetteFeatures = features;
+    }
+  }
 
-  /** Reads a gazette file.  Each line of it consists of a class name
-   *  (a String not containing whitespace characters), followed by whitespace
-   *  characters followed by a phrase, which is one or more tokens separated
-   *  by a single space.
-   *
-   *  @param in Where to read the gazette from
-   *  @throws IOException If IO errors
+  /**
+   * The clean gazette features at a position of a document: those of the entries that
+   * occur in it and cover the position. The document is matched once per thread, when the
+   * first of its positions is asked for, and the tokens of the entries found get their
+   * types and sources (LVGazAnnotation, LVGazFileAnnotation). It is matched again if
+   * the words that the position's features depend on have changed since.
    */
-  private void readGazette(BufferedReader in) throws IOException {
-	  readGazette(in, null);
+  private List<String> cleanGazetteFeatures(PaddedList<IN> cInfo, int loc) {
+    ThreadLocal<GazetteMatches> local = gazetteMatches;
+    if (local == null) {
+      local = new ThreadLocal<GazetteMatches>();
+      gazetteMatches = local;
+    }
+    // within its size, the padded list is the document
+    List<IN> document = cInfo;
+    if (document.isEmpty()) {
+      return Collections.emptyList();
+    }
+    GazetteMatches matches = local.get();
+    if (matches == null || ! isCurrent(matches, document, loc)) {
+      String[] words = new String[document.size()];
+      for (int i = 0; i < words.length; i++) {
+        words[i] = gazetteWord(document.get(i));
+      }
+      matches = new GazetteMatches(document.get(0), words, matchCleanGazette(document, words));
+      local.set(matches);
+    }
+    if (loc < 0 || loc >= matches.words.length || matches.features.get(loc) == null) {
+      return Collections.emptyList();
+    }
+    return matches.features.get(loc);
   }
-  private void readGazette(BufferedReader in, String filename) throws IOException {
-    Pattern p = Pattern.compile("^(\\S+)\\s+(.+)$");
-    for (String line; (line = in.readLine()) != null; ) {
-      Matcher m = p.matcher(line);
-      if (m.matches()) {
-        String type = intern(m.group(1));
-        String phrase = m.group(2);
-        String[] words = phrase.split(" ");
-        for (int i = 0; i < words.length; i++) {
-          String word = intern(words[i]);
-          if (flags.sloppyGazette) {
-            Collection<String> entries = wordToGazetteEntries.get(word);
-            if (entries == null) {
-              entries = new HashSet<String>();
-              wordToGazetteEntries.put(word, entries);
-            }
-            String feature = intern(type + "-GAZS" + words.length);
-            entries.add(feature);
-          }
-          if (flags.cleanGazette) {
-            Collection<GazetteInfo> infos = wordToGazetteInfos.get(word);
-            if (infos == null) {
-              infos = new HashSet<GazetteInfo>();
-              wordToGazetteInfos.put(word, infos);
-            }
-            GazetteInfo info = new GazetteInfo();
-            info.loc = i;
-            info.words = words;
-            info.feature = intern(type + "-GAZC" + words.length);
-            info.source = filename;
-            info.type = type;
-            infos.add(info);
-          }
+
+  /** The word of a token that the clean gazette is matched with */
+  private String gazetteWord(IN token) {
+    // with useLemmas, the gazette entries are lemmas, matched ignoring case
+    return flags.useLemmas ? token.getString(LemmaAnnotation.class) : getWord(token);
+  }
+
+  /**
+   * Whether matches were made from this very document (the one with the same first token) with
+   * the words that it has now around loc: the entries that cover loc lie within the length of the
+   * longest entry on either side.
+   */
+  private boolean isCurrent(GazetteMatches matches, List<IN> document, int loc) {
+    if (matches.first.get() != document.get(0) || matches.words.length != document.size()) {
+      return false;
+    }
+    int reach = cleanGazette.maxLength() - 1;
+    for (int i = Math.max(0, loc - reach), end = Math.min(document.size(), loc + reach + 1); i < end; i++) {
+      String word = gazetteWord(document.get(i));
+      if (word == null ? matches.words[i] != null : ! word.equals(matches.words[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private List<List<String>> matchCleanGazette(List<IN> document, String[] words) {
+    List<String> tokens = Arrays.asList(words);
+    List<List<String>> features = new ArrayList<List<String>>(Collections.<List<String>>nCopies(document.size(), null));
+    for (GazetteMatcher.Match match : cleanGazette.matches(tokens)) {
+      GazetteMatcher.Entry entry = cleanGazette.entry(match.entry);
+      boolean found = false;
+      for (int i = match.start; i < match.end; i++) {
+        String word = entry.words[i - match.start];
+        // with useLemmas, the entries used to be looked up by the lowercased lemma, so an
+        // entry only gives the feature to the tokens where its word is in lowercase
+        if (flags.useLemmas && !word.equals(word.toLowerCase())) {
+          continue;
+        }
+        if (features.get(i) == null) {
+          features.set(i, new ArrayList<String>(2));
+        }
+        features.get(i).add(cleanGazetteFeatures[match.entry]);
+        found = true;
+      }
+      if (found) {
+        for (int i = match.start; i < match.end; i++) {
+          CoreLabel lab = document.get(i);
+          Set<String> cats = lab.get(LVGazAnnotation.class);
+          if (cats == null) cats = new HashSet<>();
+          cats.add(entry.type);
+          lab.set(LVGazAnnotation.class, cats);
+          Set<String> files = lab.get(LVGazFileAnnotation.class);
+          if (files == null) files = new HashSet<>();
+          files.add(entry.source);
+          lab.set(LVGazFileAnnotation.class, files);
         }
       }
     }
+    return features;
   }
 
-  private HashSet<Class<? extends GenericAnnotation<?>>> genericAnnotationKeys; // = null; //cache which keys are generic annotations so we don't have to do too many instanceof checks
+  private volatile HashSet<Class<? extends GenericAnnotation<?>>> genericAnnotationKeys; // = null; //cache which keys are generic annotations so we don't have to do too many instanceof checks
 
   @SuppressWarnings({"unchecked", "SuspiciousMethodCalls"})
   private void makeGenericKeyCache(CoreLabel c) {
-    genericAnnotationKeys = new HashSet<Class<? extends GenericAnnotation<?>>>();
+    // filled before publishing, so that concurrent callers never see a half-built set
+    HashSet<Class<? extends GenericAnnotation<?>>> keys = new HashSet<Class<? extends GenericAnnotation<?>>>();
     for (Class<?> key : c.keySet()) {
       if (CoreLabel.genericValues.containsKey(key)) {
         Class<? extends GenericAnnotation<?>> genKey = (Class<? extends GenericAnnotation<?>>) key;
-        genericAnnotationKeys.add(genKey);
+        keys.add(genKey);
       }
     }
+    genericAnnotationKeys = keys;
   }
 
-  private HashSet<String> lastNames; // = null;
-  private HashSet<String> maleNames; // = null;
-  private HashSet<String> femaleNames; // = null;
+  // loaded on first use; volatile and only assigned when complete, as the features may be computed by several threads
+  private volatile HashSet<String> lastNames; // = null;
+  private volatile HashSet<String> maleNames; // = null;
+  private volatile HashSet<String> femaleNames; // = null;
+
+  private static HashSet<String> readNameList(String filename) {
+    HashSet<String> names = new HashSet<String>();
+    for (String line : ObjectBank.getLineIterator(filename)) {
+      String[] cols = line.split("\\s+");
+      names.add(cols[0]);
+    }
+    return names;
+  }
 
   private final Pattern titlePattern = Pattern.compile("(Mr|Ms|Mrs|Dr|Miss|Sen|Judge|Sir)\\.?"); // todo: should make static final and add more titles
 
@@ -829,10 +957,6 @@ public class NERFeatureFactory<IN extends CoreLabel> extends FeatureFactory<IN>
       featuresC.add(p.get(DistSimAnnotation.class) + '-' + cWord + "-PDISTSIM-CWORD");
     }
     
-    if (flags.useMorphologyFeatures) {
-    	annotateMorphoFeatures(c);
-    }
-
 
     if (flags.useDistSim) {
       featuresC.add(c.get(DistSimAnnotation.class) + "-DISTSIM");
@@ -890,26 +1014,13 @@ public class NERFeatureFactory<IN extends CoreLabel> extends FeatureFactory<IN>
       if (flags.checkNameList) {
         try {
           if (lastNames == null) {
-            lastNames = new HashSet<String>();
-
-            for (String line : ObjectBank.getLineIterator(flags.lastNameList)) {
-              String[] cols = line.split("\\s+");
-              lastNames.add(cols[0]);
-            }
+            lastNames = readNameList(flags.lastNameList);
           }
           if (maleNames == null) {
-            maleNames = new HashSet<String>();
-            for (String line : ObjectBank.getLineIterator(flags.maleNameList)) {
-              String[] cols = line.split("\\s+");
-              maleNames.add(cols[0]);
-            }
+            maleNames = readNameList(flags.maleNameList);
           }
           if (femaleNames == null) {
-            femaleNames = new HashSet<String>();
-            for (String line : ObjectBank.getLineIterator(flags.femaleNameList)) {
-              String[] cols = line.split("\\s+");
-              femaleNames.add(cols[0]);
-            }
+            femaleNames = readNameList(flags.femaleNameList);
           }
 
           String name = cWord.toUpperCase();
@@ -1248,7 +1359,7 @@ public class NERFeatureFactory<IN extends CoreLabel> extends FeatureFactory<IN>
       }
 
       if (flags.useNGrams) {
-        Collection<String> subs = wordToSubstrings.get(cWord);
+        Collection<String> subs = (cWord == null) ? null : wordToSubstrings.get(cWord);
         if (subs == null) {
           subs = new ArrayList<String>();
           String word = '<' + cWord + '>';
@@ -1272,7 +1383,7 @@ public class NERFeatureFactory<IN extends CoreLabel> extends FeatureFactory<IN>
               subs.add(intern('#' + word.substring(i, j) + '#'));
             }
           }
-          if (flags.cacheNGrams) {
+          if (flags.cacheNGrams && cWord != null) {
             wordToSubstrings.put(cWord, subs);
           }
         }
@@ -1300,67 +1411,33 @@ public class NERFeatureFactory<IN extends CoreLabel> extends FeatureFactory<IN>
             featuresC.addAll(entries);
           }
         }
-        if (flags.cleanGazette) {           
-          Collection<GazetteInfo> infos = wordToGazetteInfos.get(cWord);
-          if (flags.useLemmas) // Search for gazeteer entries matching the lemma, not the wordform 
-        	  infos = wordToGazetteInfos.get(c.getString(LemmaAnnotation.class).toLowerCase()); //TODO - case sensitivity nosaukumiem tomēr var noderēt... bet nevar īsti paļauties uz to, kādā case būs atgrieztā lemma
-          
-          if (infos != null) {
-        	//System.err.println("Meklējam gazetē vārdu " + getWord(cInfo.get(loc)));
-            for (GazetteInfo gInfo : infos) {
-              boolean ok = true;
-              for (int gLoc = 0; gLoc < gInfo.words.length; gLoc++) {
-            	  //TODO - entītiju nosaukumu locīšana varētu būt labāk
-            	  if (flags.useLemmas) {
-            		  String gazeteerLemma = cInfo.get(loc + gLoc - gInfo.loc).getString(LemmaAnnotation.class);
-            		  ok &= gInfo.words[gLoc].equalsIgnoreCase(gazeteerLemma);
-            	  } else
-            		  ok &= gInfo.words[gLoc].equals(getWord(cInfo.get(loc + gLoc - gInfo.loc)));
-                
-              }
-              if (ok) {
-            	  //System.err.println("Atradām gazetē vārdu" + getWord(cInfo.get(loc)) + " gazetes ieraksts " + Arrays.toString(gInfo.words));            	  
-                  featuresC.add(gInfo.feature);
-                  //featuresC.add(gInfo.source); // filename doesnot help
-                  for (int gLoc = 0; gLoc < gInfo.words.length; gLoc++) {
-                	  CoreLabel lab = cInfo.get(loc + gLoc - gInfo.loc);
-                	  Set<String> cats = lab.get(LVGazAnnotation.class);
-                      if (cats == null) cats = new HashSet<>();
-                      cats.add(gInfo.type);
-                      lab.set(LVGazAnnotation.class, cats);
-                      Set<String> files = lab.get(LVGazFileAnnotation.class);
-                      if (files == null) files = new HashSet<>();
-                      files.add(gInfo.source);
-                      lab.set(LVGazFileAnnotation.class, files);
-                  }
-              }
-            }
-          }
+        if (flags.cleanGazette && cleanGazette != null) {
+          //TODO - entītiju nosaukumu locīšana varētu būt labāk
+          featuresC.addAll(cleanGazetteFeatures(cInfo, loc));
+          //featuresC.add(gInfo.source); // filename doesnot help
         }
       }
       
       /**
        * @author Artūrs Znotiņš
        */
-      if (flags.useMorphoCase) {
-    	  featuresC.add("MORPHO-CASE-C-" + c.getString(LVMorphoCaseAnnotation.class));
-    	  featuresC.add("MORPHO-CASE-P-" + p.getString(LVMorphoCaseAnnotation.class));
-    	  featuresC.add("MORPHO-CASE-N-" + n.getString(LVMorphoCaseAnnotation.class));
-      }
-      if (flags.useMorphoNumber) {
-    	  featuresC.add("MORPHO-NUMBER-C-" + c.getString(LVMorphoNumberAnnotation.class));
-    	  featuresC.add("MORPHO-NUMBER-P-" + p.getString(LVMorphoNumberAnnotation.class));
-    	  featuresC.add("MORPHO-NUMBER-N-" + n.getString(LVMorphoNumberAnnotation.class));
-      }
-      if (flags.useMorphoPOS) {
-    	  featuresC.add("MORPHO-POS-C-" + c.getString(LVMorphoPOSAnnotation.class));
-    	  featuresC.add("MORPHO-POS-P-" + p.getString(LVMorphoPOSAnnotation.class));
-    	  featuresC.add("MORPHO-POS-N-" + n.getString(LVMorphoPOSAnnotation.class));
-      }
-      if (flags.useMorphoLetaLemma) {
-    	  featuresC.add("MORPHO-LETA-LEMMA-C-" + c.getString(LVMorphoLetaLemmaAnnotation.class));
-    	  featuresC.add("MORPHO-LETA-LEMMA-P-" + p.getString(LVMorphoLetaLemmaAnnotation.class));
-    	  featuresC.add("MORPHO-LETA-LEMMA-N-" + n.getString(LVMorphoLetaLemmaAnnotation.class));
+      if (flags.useMorphoCase || flags.useMorphoNumber || flags.useMorphoPOS || flags.useMorphoLetaLemma) {
+    	  LVMorphoFeatures cMorpho = morphoFeatures(c);
+    	  LVMorphoFeatures pMorpho = morphoFeatures(p);
+    	  // the next token's features used to be empty, as it wasn't annotated yet; older models expect that
+    	  LVMorphoFeatures nMorpho = flags.morphoNextFeatures ? morphoFeatures(n) : LVMorphoFeatures.EMPTY;
+    	  if (flags.useMorphoCase) {
+    		  addMorphoFeatures(featuresC, LVMorphoFeatures.CASE, cMorpho, pMorpho, nMorpho);
+    	  }
+    	  if (flags.useMorphoNumber) {
+    		  addMorphoFeatures(featuresC, LVMorphoFeatures.NUMBER, cMorpho, pMorpho, nMorpho);
+    	  }
+    	  if (flags.useMorphoPOS) {
+    		  addMorphoFeatures(featuresC, LVMorphoFeatures.POS, cMorpho, pMorpho, nMorpho);
+    	  }
+    	  if (flags.useMorphoLetaLemma) {
+    		  addMorphoFeatures(featuresC, LVMorphoFeatures.LETA_LEMMA, cMorpho, pMorpho, nMorpho);
+    	  }
       }
       
 //      if (flags.useMorphologyFeatures) {
@@ -1564,7 +1641,7 @@ public class NERFeatureFactory<IN extends CoreLabel> extends FeatureFactory<IN>
       }
 
       if (flags.useNGrams) {
-        Collection<String> subs = wordToSubstrings.get(cWord);
+        Collection<String> subs = (cWord == null) ? null : wordToSubstrings.get(cWord);
         if (subs == null) {
           subs = new ArrayList<String>();
           String word = '<' + cWord + '>';
@@ -1589,7 +1666,7 @@ public class NERFeatureFactory<IN extends CoreLabel> extends FeatureFactory<IN>
               subs.add(intern('#' + word.substring(i, j) + '#'));
             }
           }
-          if (flags.cacheNGrams) {
+          if (flags.cacheNGrams && cWord != null) {
             wordToSubstrings.put(cWord, subs);
           }
         }
@@ -2447,36 +2524,36 @@ public class NERFeatureFactory<IN extends CoreLabel> extends FeatureFactory<IN>
       // read in gazettes
       if (flags.gazettes == null) { flags.gazettes = new ArrayList<String>(); }
       List<String> gazettes = flags.gazettes;
+      // with useLemmas, entries are lemmas, and case may differ
+      GazetteMatcher.Builder builder = new GazetteMatcher.Builder(flags.useLemmas);
       for (String gazetteFile : gazettes) {
     	File f = new File(gazetteFile);
         BufferedReader r = new BufferedReader(new FileReader(gazetteFile));
-        readGazette(r, f.getName());
+        builder.readGazette(r, f.getName());
         r.close();
       }
+      if (builder.size() > 0) {
+        setGazette(builder.build(), new String[builder.size()]);
+      }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
   
-  private void annotateMorphoFeatures(CoreLabel fl) {
-	  String featureString = fl.getString(MorphologyFeatureStringAnnotation.class);
-	  if (featureString != null) {
-    	  String[] morphoFeatures =  featureString.split("\\|");
-    	  for (String f : morphoFeatures) {
-    		  if (f.startsWith("Locījums")) {
-    			  fl.set(LVMorphoCaseAnnotation.class, f.substring("Locījums".length()));
-    		  }
-    		  if (f.startsWith("Skaitlis")) {
-    			  fl.set(LVMorphoNumberAnnotation.class, f.substring("Skaitlis".length()));
-    		  }
-    		  if (f.startsWith("Vārdšķira")) {
-    			  fl.set(LVMorphoPOSAnnotation.class, f.substring("Vārdšķira".length()));
-    		  }
-    		  if (f.startsWith("LETA_lemma")) {
-    			  fl.set(LVMorphoLetaLemmaAnnotation.class, f.substring("LETA_lemma".length()));
-    		  }
-    	  }
-	  }
+  /**
+   * The parsed morphology features of a token (see LVMorphoFeatures), which are all empty
+   * unless useMorphologyFeatures is set
+   */
+  private LVMorphoFeatures morphoFeatures(CoreLabel fl) {
+	  return flags.useMorphologyFeatures ? LVMorphoFeatures.of(fl) : LVMorphoFeatures.EMPTY;
+  }
+
+  /** The features of a morphology attribute of the current, previous and next token */
+  private static void addMorphoFeatures(Collection<String> features, int attribute,
+		  LVMorphoFeatures c, LVMorphoFeatures p, LVMorphoFeatures n) {
+	  features.add(c.feature(attribute, LVMorphoFeatures.CURRENT));
+	  features.add(p.feature(attribute, LVMorphoFeatures.PREVIOUS));
+	  features.add(n.feature(attribute, LVMorphoFeatures.NEXT));
   }
   
   private String extractNerFeature(CoreLabel c, String name) {
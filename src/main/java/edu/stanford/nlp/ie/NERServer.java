@@ -10,6 +10,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import edu.stanford.nlp.ie.crf.CRFClassifier;
 import edu.stanford.nlp.io.EncodingPrintWriter;
@@ -55,6 +57,11 @@ public class NERServer {
    */
   private final AbstractSequenceClassifier ner;
 
+  /**
+   * The threads that run the sessions; a connection waits for a free one.
+   */
+  private final ExecutorService sessions;
+
 
   //// Constructors
 
@@ -67,9 +74,24 @@ public class NERServer {
    * @throws IOException If there is a problem creating a ServerSocket
    */
   public NERServer(int port, AbstractSequenceClassifier asc, String charset) throws IOException {
+    this(port, asc, charset, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a new named entity recognizer server on the specified port,
+   * which handles at most the given number of sessions at once.
+   *
+   * @param port the port this NERServer listens on.
+   * @param asc The classifier which will do the tagging
+   * @param charset The character set for encoding Strings over the socket stream, e.g., "utf-8"
+   * @param threads The maximum number of sessions that are processed at the same time
+   * @throws IOException If there is a problem creating a ServerSocket
+   */
+  public NERServer(int port, AbstractSequenceClassifier asc, String charset, int threads) throws IOException {
     ner = asc;
     listener = new ServerSocket(port);
     this.charset = charset;
+    sessions = Executors.newFixedThreadPool(threads);
   }
 
   //// Public Methods
@@ -87,7 +109,7 @@ public class NERServer {
           System.err.print("Accepted request from ");
           System.err.println(client.getInetAddress().getHostName());
         }
-        new Session(client);
+        sessions.execute(new Session(client));
       } catch (Exception e1) {
         System.err.println("NERServer: couldn't accept");
         e1.printStackTrace(System.err);
@@ -108,7 +130,7 @@ public class NERServer {
    * A single user session, accepting one request, processing it, and
    * sending back the results.
    */
-  private class Session extends Thread {
+  private class Session implements Runnable {
 
   //// Instance Fields
 
@@ -134,7 +156,6 @@ public class NERServer {
       client = socket;
       in = new BufferedReader(new InputStreamReader(client.getInputStream(), charset));
       out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), charset));
-      start();
     }
 
 
@@ -145,7 +166,6 @@ public class NERServer {
      * back the result.  The input should be a single line (no embedded
      * newlines), which represents a whole sentence or document.
      */
-    @Override
     public void run() {
       if (DEBUG) {System.err.println("Created new session");}
       String input = null;
@@ -270,7 +290,7 @@ public class NERServer {
   } // end static class NERClient
 
 
-  private static final String USAGE = "Usage: NERServer [-loadClassifier file|-loadJarClassifier resource|-client] -port portNumber";
+  private static final String USAGE = "Usage: NERServer [-loadClassifier file|-loadJarClassifier resource|-client] -port portNumber [-threads N]";
 
   /**
    * Starts this server on the specified port.  The classifier used can be
@@ -279,7 +299,7 @@ public class NERServer {
    * resource name, which must correspond to the name of a resource in the
    * /classifiers/ directory of the jar file.
    * <p>
-   * Usage: <code>java edu.stanford.nlp.ie.NERServer [-loadClassifier file|-loadJarClassifier resource|-client] -port portNumber</code>
+   * Usage: <code>java edu.stanford.nlp.ie.NERServer [-loadClassifier file|-loadJarClassifier resource|-client] -port portNumber [-threads N]</code>
    *
    * @param args Command-line arguments (described above)
    * @throws Exception If file or Java class problems with serialized classifier
@@ -292,6 +312,8 @@ public class NERServer {
     String client = props.getProperty("client");
     String portStr = props.getProperty("port");
     props.remove("port"); // so later code doesn't complain
+    String threadsStr = props.getProperty("threads");
+    props.remove("threads");
     if (portStr == null || portStr.equals("")) {
       System.err.println(USAGE);
       return;
@@ -328,7 +350,11 @@ public class NERServer {
         asc = CRFClassifier.getDefaultClassifier(props);
       }
 
-      new NERServer(port, asc, charset).run();
+      int threads = Runtime.getRuntime().availableProcessors();
+      if (threadsStr != null && ! threadsStr.equals("")) {
+        threads = Math.max(1, Integer.parseInt(threadsStr));
+      }
+      new NERServer(port, asc, charset, threads).run();
     }
   }
 
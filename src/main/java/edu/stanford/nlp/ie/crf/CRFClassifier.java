@@ -28,11 +28,14 @@ package edu.stanford.nlp.ie.crf;
 
 import edu.stanford.nlp.ie.*;
 import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.io.MappedModel;
 import edu.stanford.nlp.ling.CoreAnnotations.AnswerAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.TextAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.math.ArrayMath;
+import edu.stanford.nlp.math.CompactWeights;
+import edu.stanford.nlp.math.WeightMatrix;
 import edu.stanford.nlp.maxent.Convert;
 import edu.stanford.nlp.objectbank.ObjectBank;
 import edu.stanford.nlp.optimization.*;
@@ -40,6 +43,7 @@ import edu.stanford.nlp.sequences.*;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.FeatureHashIndex;
 import edu.stanford.nlp.util.Index;
 import edu.stanford.nlp.util.HashIndex;
 import edu.stanford.nlp.util.PaddedList;
@@ -135,6 +139,8 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
   Index<CRFLabel>[] labelIndices;
   /** Parameter weights of the classifier. */
   double[][] weights;
+  /** The weights after {@link #compactWeights}, or those of a mapped model, which are used instead of weights (then null) */
+  WeightMatrix compactWeights;
   /** index the features of CRF */
   Index<String> featureIndex;
   /** caches the featureIndex */
@@ -181,21 +187,79 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
       this.labelIndices = null;
     }
     int numFeatures = featureIndex != null ? featureIndex.size() : 0;
+    double[][] crfWeights = crf.denseWeights();
     weights = new double[numFeatures][];
     for (int i = 0; i < numFeatures; i++) {
       String feature = featureIndex.get(i);
       int index = crf.featureIndex.indexOf(feature);
-      weights[i] = new double[crf.weights[index].length];
-      System.arraycopy(crf.weights[index], 0, weights[i], 0, weights[i].length);
+      weights[i] = new double[crfWeights[index].length];
+      System.arraycopy(crfWeights[index], 0, weights[i], 0, weights[i].length);
+    }
+  }
+
+  /** The weights; a dense copy of them if they have been compacted */
+  double[][] denseWeights() {
+    return compactWeights != null ? compactWeights.toArray() : weights;
+  }
+
+  /** Turns compacted weights back into dense weights, which can be changed */
+  void expandWeights() {
+    if (compactWeights != null) {
+      weights = compactWeights.toArray();
+      compactWeights = null;
     }
   }
 
+  /**
+   * Replaces the weights with a {@link CompactWeights} form of them, which
+   * leaves out the weights whose magnitude is at most threshold and stores
+   * the rest with the given precision. The classifier scores straight from
+   * that form afterwards.
+   */
+  public void compactWeights(double threshold, CompactWeights.Precision precision) {
+    expandWeights();
+    compactWeights = new CompactWeights(weights, threshold, precision);
+    weights = null;
+  }
+
+  /**
+   * Compacts the weights as the flags say (compactWeights), unless they are
+   * compacted with that precision already. The exact weights of a mapped model stay mapped.
+   */
+  private void compactWeights() {
+    if (!flags.compactWeights) {
+      return;
+    }
+    CompactWeights.Precision precision = CompactWeights.Precision.parse(flags.weightPrecision);
+    if (compactWeights != null && compactWeights.precision() == precision) {
+      return;
+    }
+    compactWeights(flags.compactWeightsThreshold, precision);
+    System.err.println("Compacted the weights: " + compactWeights);
+  }
+
+  private CRFCliqueTree<String> getCalibratedCliqueTree(int[][][] data) {
+    if (compactWeights != null) {
+      return CRFCliqueTree.getCalibratedCliqueTree(compactWeights, data, labelIndices, classIndex.size(), classIndex,
+          flags.backgroundSymbol);
+    }
+    return CRFCliqueTree.getCalibratedCliqueTree(weights, data, labelIndices, classIndex.size(), classIndex,
+        flags.backgroundSymbol);
+  }
+
   /**
    * Returns the total number of weights associated with this classifier.
    *
    * @return number of weights
    */
   public int getNumWeights() {
+    if (compactWeights != null) {
+      int numWeights = 0;
+      for (int i = 0; i < compactWeights.rows(); i++) {
+        numWeights += compactWeights.length(i);
+      }
+      return numWeights;
+    }
     if (weights == null) return 0;
     int numWeights = 0;
     for (double[] wts : weights) {
@@ -242,12 +306,31 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     }
   }
 
+  /**
+   * The feature index of featureHashing: the features of each clique are hashed
+   * into a block of buckets of their own, as their weights have the size of the
+   * labels of that clique.
+   */
+  static class CliqueHashIndex extends FeatureHashIndex {
+    private static final long serialVersionUID = 1L;
+
+    CliqueHashIndex(int buckets, int windowSize) {
+      super(buckets, windowSize);
+    }
+
+    @Override
+    protected int block(String feature) {
+      return getFeatureTypeIndex(feature);
+    }
+  }
+
   /**
    * Scales the weights of this crfclassifier by the specified weight
    *
    * @param scale
    */
   public void scaleWeights(double scale) {
+    expandWeights();
     for (int i = 0; i < weights.length; i++) {
       for (int j = 0; j < weights[i].length; j++) {
         weights[i][j] *= scale;
@@ -335,6 +418,8 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
    */
   public void combine(CRFClassifier<IN> crf, double weight) {
     Timing timer = new Timing();
+    expandWeights();
+    crf.expandWeights();
 
     // Check the CRFClassifiers are compatible
     if (!this.pad.equals(crf.pad)) {
@@ -378,6 +463,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
   }
 
   public void dropFeaturesBelowThreshold(double threshold) {
+    expandWeights();
     Index<String> newFeatureIndex = new HashIndex<String>();
     for (int i = 0; i < weights.length; i++) {
       double smallest = weights[i][0];
@@ -495,6 +581,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
       classes.add(classIndex.get(i));
     }
     String[] columnHeaders = classes.toArray(new String[classes.size()]);
+    double[][] weights = denseWeights();
 
     // System.err.println("docSize:"+docSize);
     for (int j = 0; j < document.size(); j++) {
@@ -697,6 +784,9 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
 
         CRFDatum<List<String>, CRFLabel> d = makeDatum(doc, j, featureFactory);
         labelIndex.add(d.label());
+        if (flags.featureHashing > 0) {
+          continue; // the features are hashed, not collected
+        }
 
         List<List<String>> features = d.asFeatures();
         for (int k = 0, fsize = features.size(); k < fsize; k++) {
@@ -744,12 +834,21 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
       numFeatures += featureIndices[i].size();
     }
 
-    featureIndex = new HashIndex<String>();
-    map = new int[numFeatures];
-    for (int i = 0; i < windowSize; i++) {
-      featureIndex.addAll(featureIndices[i]);
-      for (String str : featureIndices[i]) {
-        map[featureIndex.indexOf(str)] = i;
+    if (flags.featureHashing > 0) {
+      FeatureHashIndex hashIndex = new CliqueHashIndex(flags.featureHashing, windowSize);
+      featureIndex = hashIndex;
+      map = new int[hashIndex.size()];
+      for (int i = 0; i < map.length; i++) {
+        map[i] = hashIndex.blockOf(i);
+      }
+    } else {
+      featureIndex = new HashIndex<String>();
+      map = new int[numFeatures];
+      for (int i = 0; i < windowSize; i++) {
+        featureIndex.addAll(featureIndices[i]);
+        for (String str : featureIndices[i]) {
+          map[featureIndex.indexOf(str)] = i;
+        }
       }
     }
 
@@ -1004,8 +1103,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     Pair<int[][][], int[]> p = documentDataAndLabels;
     int[][][] data = p.first();
 
-    CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(weights, data, labelIndices, classIndex.size(),
-        classIndex, flags.backgroundSymbol);
+    CRFCliqueTree cliqueTree = getCalibratedCliqueTree(data);
 
     // Scorer scorer = new Scorer(factorTables);
     return new TestSequenceModel(cliqueTree);
@@ -1050,7 +1148,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     if (flags.inferenceType.equalsIgnoreCase("Viterbi")) {
       tagInference = new ExactBestSequenceFinder();
     } else if (flags.inferenceType.equalsIgnoreCase("Beam")) {
-      tagInference = new BeamBestSequenceFinder(flags.beamSize);
+      tagInference = new ArrayBeamBestSequenceFinder(flags.beamSize);
     } else {
       throw new RuntimeException("Unknown inference type: " + flags.inferenceType + ". Your options are Viterbi|Beam.");
     }
@@ -1091,8 +1189,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
       Collections.reverse(document);
     }
 
-    CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(weights, data, labelIndices, classIndex.size(),
-        classIndex, flags.backgroundSymbol);
+    CRFCliqueTree cliqueTree = getCalibratedCliqueTree(data);
 
     SequenceModel model = cliqueTree;
     SequenceListener listener = cliqueTree;
@@ -1214,8 +1311,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
       Collections.reverse(sentence);
     }
 
-    CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(weights, data, labelIndices, classIndex.size(),
-        classIndex, flags.backgroundSymbol);
+    CRFCliqueTree cliqueTree = getCalibratedCliqueTree(data);
 
     SequenceModel model = cliqueTree;
     SequenceListener listener = cliqueTree;
@@ -1290,8 +1386,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
       Collections.reverse(newDocument);
     }
 
-    CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(weights, data, labelIndices, classIndex.size(),
-        classIndex, flags.backgroundSymbol);
+    CRFCliqueTree cliqueTree = getCalibratedCliqueTree(data);
 
     SequenceModel model = cliqueTree;
     SequenceListener listener = cliqueTree;
@@ -1360,8 +1455,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     // FactorTable[] factorTables =
     // CRFLogConditionalObjectiveFunction.getCalibratedCliqueTree(weights, data,
     // labelIndices, classIndex.size());
-    CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(weights, data, labelIndices, classIndex.size(),
-        classIndex, flags.backgroundSymbol);
+    CRFCliqueTree cliqueTree = getCalibratedCliqueTree(data);
 
     // for (int i = 0; i < factorTables.length; i++) {
     for (int i = 0; i < cliqueTree.length(); i++) {
@@ -1440,8 +1534,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     // FactorTable[] factorTables =
     // CRFLogConditionalObjectiveFunction.getCalibratedCliqueTree(weights, data,
     // labelIndices, classIndex.size());
-    return CRFCliqueTree.getCalibratedCliqueTree(weights, data, labelIndices, classIndex.size(), classIndex,
-        flags.backgroundSymbol);
+    return getCalibratedCliqueTree(data);
   }
 
   /**
@@ -1511,7 +1604,12 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
       elapsedMs = timer.stop();
       System.err.println("Time to export features: " + Timing.toSecondsString(elapsedMs) + " seconds");
     }
-    for (int i = 0; i <= flags.numTimesPruneFeatures; i++) {
+    int numTimesPruneFeatures = flags.numTimesPruneFeatures;
+    if (flags.featureHashing > 0 && numTimesPruneFeatures > 0) {
+      System.err.println("Hashed features can't be pruned; not pruning");
+      numTimesPruneFeatures = 0;
+    }
+    for (int i = 0; i <= numTimesPruneFeatures; i++) {
       timer.start();
       Pair<int[][][][], int[][]> dataAndLabels = documentsToDataAndLabels(docs);
       elapsedMs = timer.stop();
@@ -1557,7 +1655,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
         evaluatorList.toArray(evaluators);
       }
 
-      if (flags.numTimesPruneFeatures == i) {
+      if (numTimesPruneFeatures == i) {
         docs = null; // hopefully saves memory
       }
       // save feature index to disk and read in later
@@ -1638,6 +1736,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
         System.err.println("numWeights: " + initialWeights.length);
         float[] weights = minimizer.minimize(func, (float) flags.tolerance, initialWeights);
         this.weights = ArrayMath.floatArrayToDoubleArray(func.to2D(weights));
+        this.compactWeights = null;
 
       } else {
 
@@ -1677,6 +1776,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
         CRFLogConditionalObjectiveFunction func = new CRFLogConditionalObjectiveFunction(data, labels, featureIndex,
             windowSize, classIndex, labelIndices, map, flags.backgroundSymbol, flags.sigma);
         func.crfType = flags.crfType;
+        func.multiThreadGrad = flags.multiThreadGrad;
         if (evaluators != null) {
           for (Evaluator eval : evaluators) {
             if (eval instanceof CRFClassifierEvaluator) {
@@ -1714,6 +1814,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
         }
         double[] weights = minimizer.minimize(func, flags.tolerance, initialWeights);
         this.weights = func.to2D(weights);
+        this.compactWeights = null;
       }
 
       // save feature index to disk and read in later
@@ -1726,12 +1827,13 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
         }
       }
 
-      if (i != flags.numTimesPruneFeatures) {
+      if (i != numTimesPruneFeatures) {
         dropFeaturesBelowThreshold(flags.featureDiffThresh);
         System.err.println("Removing features with weight below " + flags.featureDiffThresh + " and retraining...");
       }
 
     }
+    compactWeights();
   }
 
   protected Minimizer getMinimizer() {
@@ -2108,6 +2210,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     }
     int weightsLength = Integer.parseInt(toks[1]);
     weights = new double[weightsLength][];
+    compactWeights = null;
     count = 0;
     while (count < weightsLength) {
       line = br.readLine();
@@ -2179,6 +2282,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
 
       pw.printf("<windowSize> %d </windowSize>\n", windowSize);
 
+      double[][] weights = denseWeights();
       pw.printf("weights.length=\t%d\n", weights.length);
       for (double[] ws : weights) {
         ArrayList<Double> list = new ArrayList<Double>();
@@ -2216,7 +2320,8 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
       oos.writeObject(flags);
       oos.writeObject(featureFactory);
       oos.writeInt(windowSize);
-      oos.writeObject(weights);
+      // compacted weights are written instead of the weights; loadClassifier takes either
+      oos.writeObject(compactWeights != null ? compactWeights : weights);
       // oos.writeObject(WordShapeClassifier.getKnownLowerCaseWords());
 
       oos.writeObject(knownLCWords);
@@ -2233,6 +2338,51 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     }
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void serializeMappedClassifier(String serializePath) {
+    if (featureIndex instanceof FeatureHashIndex) {
+      throw new UnsupportedOperationException("A classifier with hashed features has no feature index to map");
+    }
+    System.err.print("Serializing classifier to " + serializePath + " as a mapped model...");
+    try {
+      MappedModel.write(serializePath, featureIndex, denseWeights(), labelIndices, classIndex, flags, featureFactory,
+          windowSize, knownLCWords);
+      System.err.println("done.");
+    } catch (Exception e) {
+      System.err.println("Failed");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  @SuppressWarnings( { "unchecked" })
+  protected void loadMappedClassifier(MappedModel model, Properties props) throws ClassCastException, IOException,
+      ClassNotFoundException {
+    ObjectInputStream ois = model.objects();
+    labelIndices = (Index<CRFLabel>[]) ois.readObject();
+    classIndex = (Index<String>) ois.readObject();
+    flags = (SeqClassifierFlags) ois.readObject();
+    featureFactory = (edu.stanford.nlp.sequences.FeatureFactory) ois.readObject();
+
+    if (props != null) {
+      flags.setProperties(props, false);
+    }
+    reinit();
+
+    windowSize = (Integer) ois.readObject();
+    knownLCWords = concurrentSet((Set<String>) ois.readObject());
+    featureIndex = model.featureIndex();
+    compactWeights = model.weights();
+    weights = null;
+    compactWeights();
+  }
+
   /**
    * Loads a classifier from the specified InputStream. This version works
    * quietly (unless VERBOSE is true). If props is non-null then any properties
@@ -2260,10 +2410,18 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     reinit();
 
     windowSize = ois.readInt();
-    weights = (double[][]) ois.readObject();
+    Object w = ois.readObject();
+    if (w instanceof CompactWeights) {
+      compactWeights = (CompactWeights) w;
+      weights = null;
+    } else {
+      weights = (double[][]) w;
+      compactWeights = null;
+    }
+    compactWeights();
 
     // WordShapeClassifier.setKnownLowerCaseWords((Set) ois.readObject());
-    knownLCWords = (Set<String>) ois.readObject();
+    knownLCWords = concurrentSet((Set<String>) ois.readObject());
 
     if (VERBOSE) {
       System.err.println("windowSize=" + windowSize);
@@ -2431,7 +2589,11 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     // StringUtils.getShortClassName(crf.readerAndWriter));
 
     if (serializeTo != null) {
-      crf.serializeClassifier(serializeTo);
+      if (crf.flags.serializeToMapped) {
+        crf.serializeMappedClassifier(serializeTo);
+      } else {
+        crf.serializeClassifier(serializeTo);
+      }
     }
 
     if (serializeToText != null) {
@@ -2471,6 +2633,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
   }
 
   public void writeWeights(PrintStream p) {
+    double[][] weights = denseWeights();
     for (String feature : featureIndex) {
       int index = featureIndex.indexOf(feature);
       // line.add(feature+"["+(-p)+"]");
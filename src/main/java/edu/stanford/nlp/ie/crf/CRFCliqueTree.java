@@ -1,6 +1,7 @@
 package edu.stanford.nlp.ie.crf;
 
 import edu.stanford.nlp.math.ArrayMath;
+import edu.stanford.nlp.math.WeightMatrix;
 import edu.stanford.nlp.sequences.SequenceListener;
 import edu.stanford.nlp.sequences.SequenceModel;
 import edu.stanford.nlp.stats.ClassicCounter;
@@ -533,6 +534,33 @@ public class CRFCliqueTree<E> implements SequenceModel, SequenceListener {
     return new CRFCliqueTree<E>(factorTables, classIndex, backgroundSymbol);
   }
 
+  /**
+   * @return a new CRFCliqueTree for the compacted or mapped weights on the data
+   */
+  public static <E> CRFCliqueTree<E> getCalibratedCliqueTree(WeightMatrix weights, int[][][] data,
+      Index[] labelIndices, int numClasses, Index<E> classIndex, E backgroundSymbol) {
+
+    FactorTable[] factorTables = new FactorTable[data.length];
+    FactorTable[] messages = new FactorTable[data.length - 1];
+
+    for (int i = 0; i < data.length; i++) {
+      factorTables[i] = getFactorTable(weights, data[i], labelIndices, numClasses);
+
+      if (i > 0) {
+        messages[i - 1] = factorTables[i - 1].sumOutFront();
+        factorTables[i].multiplyInFront(messages[i - 1]);
+      }
+    }
+
+    for (int i = factorTables.length - 2; i >= 0; i--) {
+      FactorTable summedOut = factorTables[i + 1].sumOutEnd();
+      summedOut.divideBy(messages[i]);
+      factorTables[i].multiplyInEnd(summedOut);
+    }
+
+    return new CRFCliqueTree<E>(factorTables, classIndex, backgroundSymbol);
+  }
+
   /**
    * @return a new CRFCliqueTree for the weights on the data
    */
@@ -636,6 +664,38 @@ public class CRFCliqueTree<E> implements SequenceModel, SequenceListener {
     return factorTable;
   }
 
+  /**
+   * Same as {@link #getFactorTable(double[][], int[][], Index[], int)}, but
+   * adds up the rows of the compacted or mapped weights of the features of each
+   * clique, rather than looking up every weight of every labeling.
+   */
+  public static FactorTable getFactorTable(WeightMatrix weights, int[][] data, Index[] labelIndices,
+      int numClasses) {
+
+    FactorTable factorTable = null;
+
+    for (int j = 0; j < labelIndices.length; j++) {
+      Index labelIndex = labelIndices[j];
+      FactorTable ft = new FactorTable(numClasses, j + 1);
+
+      double[] cliqueWeights = new double[labelIndex.size()];
+      for (int m = 0; m < data[j].length; m++) {
+        weights.addRow(data[j][m], cliqueWeights);
+      }
+      for (int k = 0, liSize = labelIndex.size(); k < liSize; k++) {
+        int[] label = ((CRFLabel) labelIndex.get(k)).getLabel();
+        ft.setValue(label, cliqueWeights[k]);
+      }
+      if (j > 0) {
+        ft.multiplyInEnd(factorTable);
+      }
+      factorTable = ft;
+
+    }
+
+    return factorTable;
+  }
+
   // SEQUENCE MODEL METHODS
 
   /**
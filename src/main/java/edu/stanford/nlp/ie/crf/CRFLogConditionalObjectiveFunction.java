@@ -4,7 +4,15 @@ import edu.stanford.nlp.math.ArrayMath;
 import edu.stanford.nlp.optimization.AbstractStochasticCachingDiffUpdateFunction;
 import edu.stanford.nlp.util.Index;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * @author Jenny Finkel
@@ -38,6 +46,10 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
   String crfType = "maxent";
   String backgroundSymbol;
 
+  /** Number of threads for calculate(); each one gets a contiguous range of the documents */
+  int multiThreadGrad = 1;
+  private ExecutorService threadPool;
+
   public static boolean VERBOSE = false;
 
   public static int getPriorType(String priorTypeStr)
@@ -185,67 +197,32 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
     }
   }
 
-  // todo [cdm]: Below data[m] --> docData
   /**
    * Calculates both value and partial derivatives at the point x, and save them internally.
    */
   @Override
   public void calculate(double[] x) {
 
-    double prob = 0.0; // the log prob of the sequence given the model, which is the negation of value at this point
+    double prob; // the log prob of the sequence given the model, which is the negation of value at this point
     double[][] weights = to2D(x);
 
     // the expectations over counts
     // first index is feature index, second index is of possible labeling
-    double[][] E = empty2D();
-
-    // iterate over all the documents
-    for (int m = 0; m < data.length; m++) {
-      int[][][] docData = data[m];
-      int[] docLabels = labels[m];
+    double[][] E;
 
-      // make a clique tree for this document
-      CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(weights, docData, labelIndices, numClasses, classIndex, backgroundSymbol);
-
-      // compute the log probability of the document given the model with the parameters x
-      int[] given = new int[window - 1];
-      Arrays.fill(given, classIndex.indexOf(backgroundSymbol));
-      if (docLabels.length>docData.length) { // only true for self-training
-        // fill the given array with the extra docLabels
-        System.arraycopy(docLabels, 0, given, 0, given.length);
-        // shift the docLabels array left
-        int[] newDocLabels = new int[docData.length];
-        System.arraycopy(docLabels, docLabels.length-newDocLabels.length, newDocLabels, 0, newDocLabels.length);
-        docLabels = newDocLabels;
-      }
-      // iterate over the positions in this document
-      for (int i = 0; i < docData.length; i++) {
-        int label = docLabels[i];
-        double p = cliqueTree.condLogProbGivenPrevious(i, label, given);
-        if (VERBOSE) {
-          System.err.println("P(" + label + "|" + ArrayMath.toString(given) + ")=" + p);
-        }
+    int threads = Math.min(multiThreadGrad, data.length);
+    if (threads <= 1) {
+      E = empty2D();
+      prob = expectedCounts(weights, 0, data.length, E);
+    } else {
+      double[][][] shardE = new double[threads][][];
+      double[] shardProb = parallelExpectedCounts(weights, threads, shardE);
+      // the shards are always added up in the same order, so the result doesn't depend on thread timing
+      prob = 0.0;
+      for (double p : shardProb) {
         prob += p;
-        System.arraycopy(given, 1, given, 0, given.length - 1);
-        given[given.length - 1] = label;
-      }
-
-      // compute the expected counts for this document, which we will need to compute the derivative
-      // iterate over the positions in this document
-      for (int i = 0; i < data[m].length; i++) {
-        // for each possible clique at this position
-        for (int j = 0; j < data[m][i].length; j++) {
-          Index<CRFLabel> labelIndex = labelIndices[j];
-          // for each possible labeling for that clique
-          for (int k = 0; k < labelIndex.size(); k++) {
-            int[] label = labelIndex.get(k).getLabel();
-            double p = cliqueTree.prob(i, label); // probability of these labels occurring in this clique with these features
-            for (int n = 0; n < data[m][i][j].length; n++) {
-              E[data[m][i][j][n]][k] += p;
-            }
-          }
-        }
       }
+      E = sumShards(shardE);
     }
 
     if (Double.isNaN(prob)) { // shouldn't be the case
@@ -303,6 +280,153 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
 
   }
 
+  /**
+   * Splits the documents in contiguous ranges, one per thread, and computes
+   * the expected counts of each range into its own array.
+   *
+   * @param shardE Where the expected counts of each range are stored
+   * @return The log probability of each range
+   */
+  private double[] parallelExpectedCounts(final double[][] weights, int threads, final double[][][] shardE) {
+    List<Future<Double>> results = new ArrayList<Future<Double>>(threads);
+    for (int s = 0; s < threads; s++) {
+      final int shard = s;
+      final int from = (int) ((long) data.length * s / threads);
+      final int to = (int) ((long) data.length * (s + 1) / threads);
+      results.add(threadPool(threads).submit(new Callable<Double>() {
+        public Double call() {
+          shardE[shard] = empty2D();
+          return expectedCounts(weights, from, to, shardE[shard]);
+        }
+      }));
+    }
+    double[] shardProb = new double[threads];
+    for (int s = 0; s < threads; s++) {
+      shardProb[s] = getResult(results.get(s));
+    }
+    return shardProb;
+  }
+
+  /**
+   * Adds up the expected counts of all the shards into the first one.
+   * The features are split among the threads, and every feature sums its shards in order.
+   */
+  private double[][] sumShards(final double[][][] shardE) {
+    final double[][] E = shardE[0];
+    int threads = shardE.length;
+    List<Future<Double>> results = new ArrayList<Future<Double>>(threads);
+    for (int t = 0; t < threads; t++) {
+      final int from = (int) ((long) E.length * t / threads);
+      final int to = (int) ((long) E.length * (t + 1) / threads);
+      results.add(threadPool(threads).submit(new Callable<Double>() {
+        public Double call() {
+          for (int s = 1; s < shardE.length; s++) {
+            for (int i = from; i < to; i++) {
+              double[] sum = E[i];
+              double[] part = shardE[s][i];
+              for (int j = 0; j < sum.length; j++) {
+                sum[j] += part[j];
+              }
+            }
+          }
+          return 0.0;
+        }
+      }));
+    }
+    for (Future<Double> result : results) {
+      getResult(result);
+    }
+    return E;
+  }
+
+  private synchronized ExecutorService threadPool(int threads) {
+    if (threadPool == null) {
+      threadPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "CRFLogConditionalObjectiveFunction");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return threadPool;
+  }
+
+  private static double getResult(Future<Double> result) {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  // todo [cdm]: Below data[m] --> docData
+  /**
+   * Adds the expected counts of the documents from (inclusive) to to (exclusive) to E.
+   *
+   * @return The log probability of the gold labels of these documents
+   */
+  private double expectedCounts(double[][] weights, int from, int to, double[][] E) {
+    double prob = 0.0;
+
+    // iterate over the documents
+    for (int m = from; m < to; m++) {
+      int[][][] docData = data[m];
+      int[] docLabels = labels[m];
+
+      // make a clique tree for this document
+      CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(weights, docData, labelIndices, numClasses, classIndex, backgroundSymbol);
+
+      // compute the log probability of the document given the model with the parameters x
+      int[] given = new int[window - 1];
+      Arrays.fill(given, classIndex.indexOf(backgroundSymbol));
+      if (docLabels.length>docData.length) { // only true for self-training
+        // fill the given array with the extra docLabels
+        System.arraycopy(docLabels, 0, given, 0, given.length);
+        // shift the docLabels array left
+        int[] newDocLabels = new int[docData.length];
+        System.arraycopy(docLabels, docLabels.length-newDocLabels.length, newDocLabels, 0, newDocLabels.length);
+        docLabels = newDocLabels;
+      }
+      // iterate over the positions in this document
+      for (int i = 0; i < docData.length; i++) {
+        int label = docLabels[i];
+        double p = cliqueTree.condLogProbGivenPrevious(i, label, given);
+        if (VERBOSE) {
+          System.err.println("P(" + label + "|" + ArrayMath.toString(given) + ")=" + p);
+        }
+        prob += p;
+        System.arraycopy(given, 1, given, 0, given.length - 1);
+        given[given.length - 1] = label;
+      }
+
+      // compute the expected counts for this document, which we will need to compute the derivative
+      // iterate over the positions in this document
+      for (int i = 0; i < data[m].length; i++) {
+        // for each possible clique at this position
+        for (int j = 0; j < data[m][i].length; j++) {
+          Index<CRFLabel> labelIndex = labelIndices[j];
+          // for each possible labeling for that clique
+          for (int k = 0; k < labelIndex.size(); k++) {
+            int[] label = labelIndex.get(k).getLabel();
+            double p = cliqueTree.prob(i, label); // probability of these labels occurring in this clique with these features
+            for (int n = 0; n < data[m][i][j].length; n++) {
+              E[data[m][i][j][n]][k] += p;
+            }
+          }
+        }
+      }
+    }
+
+    return prob;
+  }
+
   @Override
   public void calculateStochastic(double[] x, double [] v, int[] batch){
     calculateStochasticGradientOnly(x,batch);
@@ -34,9 +34,17 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
+import lv.semti.morphology.analyzer.Word;
+
+import edu.stanford.nlp.classify.CompactDataset;
 import edu.stanford.nlp.classify.Dataset;
+import edu.stanford.nlp.classify.GeneralDataset;
 import edu.stanford.nlp.classify.LinearClassifier;
 import edu.stanford.nlp.classify.LinearClassifierFactory;
 import edu.stanford.nlp.classify.LogPrior;
@@ -46,6 +54,7 @@ import edu.stanford.nlp.classify.SVMLightClassifierFactory;
 import edu.stanford.nlp.ie.AbstractSequenceClassifier;
 import edu.stanford.nlp.ie.NERFeatureFactory;
 import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.io.MappedModel;
 import edu.stanford.nlp.ling.BasicDatum;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.ling.Datum;
@@ -56,13 +65,15 @@ import edu.stanford.nlp.ling.WordTag;
 import edu.stanford.nlp.ling.CoreAnnotations.AnswerAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.GazAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.IDAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.LVMorphologyAnalysis;
 import edu.stanford.nlp.ling.CoreAnnotations.PositionAnnotation;
 import edu.stanford.nlp.math.ArrayMath;
+import edu.stanford.nlp.math.CompactWeights;
 import edu.stanford.nlp.math.SloppyMath;
 import edu.stanford.nlp.objectbank.ObjectBank;
 import edu.stanford.nlp.process.DocumentProcessor;
 import edu.stanford.nlp.process.ListProcessor;
-import edu.stanford.nlp.sequences.BeamBestSequenceFinder;
+import edu.stanford.nlp.sequences.ArrayBeamBestSequenceFinder;
 import edu.stanford.nlp.sequences.Clique;
 import edu.stanford.nlp.sequences.DocumentReaderAndWriter;
 import edu.stanford.nlp.sequences.ExactBestSequenceFinder;
@@ -73,6 +84,7 @@ import edu.stanford.nlp.sequences.SequenceModel;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.FeatureHashIndex;
 import edu.stanford.nlp.util.Index;
 import edu.stanford.nlp.util.HashIndex;
 import edu.stanford.nlp.util.PaddedList;
@@ -132,12 +144,18 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
 
   private ProbabilisticClassifier<String, String> classifier;
 
+  /** Integer-indexed features for tagging; built from the classifier on first use. */
+  private transient volatile CMMFeatureIndex indexedFeatures;
+
   /** The set of empirically legal label sequences (of length (order) at most
    *  <code>flags.maxLeft</code>).  Used to filter valid class sequences if
    *  <code>useObuseObservedSequencesOnly</code> is set.
    */
   Set<List<String>> answerArrays;
 
+  /** The tags of the frequent words of the training data, if <code>flags.useTagDictionary</code> */
+  TagDictionary tagDictionary;
+
   /** Default place to look in Jar file for classifier. */
   public static final String DEFAULT_CLASSIFIER = "/classifiers/ner-eng-ie.cmm-3-all2006.ser.gz";
 
@@ -163,6 +181,8 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
 
   /**
    * Classify a {@link List} of {@link CoreLabel}s.
+   * The classifier keeps no state between calls, so a single instance may
+   * be used to classify different documents from several threads at once.
    *
    * @param document A {@link List} of {@link CoreLabel}s
    *                 to be classified.
@@ -289,7 +309,7 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
     // cdm Aug 2005: why is this next line needed?  Seems really ugly!!!  [2006: it broke things! removed]
     // document.add(0, new CoreLabel());
 
-    SequenceModel ts = new Scorer(document,
+    SequenceModel ts = new Scorer(scratchCopy(document),
                                   classIndex,
                                   this,
                                   (!flags.useTaggySequences ? (flags.usePrevSequences ? 1 : 0) : flags.maxLeft),
@@ -299,6 +319,19 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
     return ts;
   }
 
+  /**
+   * Makes a shallow copy of the tokens, so that the candidate answers that are
+   * tried during decoding don't touch the caller's labels.
+   */
+  @SuppressWarnings("unchecked")
+  private List<IN> scratchCopy(List<IN> document) {
+    List<IN> copy = new ArrayList<IN>(document.size());
+    for (IN token : document) {
+      copy.add((IN) new CoreLabel(token));
+    }
+    return copy;
+  }
+
   /**
    * Classify a List of {@link CoreLabel}s using sequence information
    * (i.e. Viterbi or Beam Search).
@@ -321,8 +354,8 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
       ExactBestSequenceFinder ti = new ExactBestSequenceFinder();
       tags = ti.bestSequence(ts);
     } else {
-      BeamBestSequenceFinder ti = new BeamBestSequenceFinder(flags.beamSize, true, true);
-      tags = ti.bestSequence(ts, document.size());
+      ArrayBeamBestSequenceFinder ti = new ArrayBeamBestSequenceFinder(flags.beamSize, true, true);
+      tags = ti.bestSequence(ts);
     }
     //System.err.println("***end test***");
 
@@ -367,7 +400,7 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
           for (j = start; j < end; j++) {
             double[] scores = ts.scoresOf(copy, j);
             scores = Scorer.recenter(scores);
-            bgScore += scores[bgTag];
+            bgScore += Scorer.tagScore(ts, j, scores, bgTag);
           }
 
           // first pass, compute all of the scores
@@ -386,7 +419,7 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
               for (int m = start; m < end; m++) {
                 double[] scores = ts.scoresOf(copy, m);
                 scores = Scorer.recenter(scores);
-                ngScore += scores[tags[m]];
+                ngScore += Scorer.tagScore(ts, m, scores, tags[m]);
               }
               prevScores.incrementCount(new Pair<Integer,Integer>(Integer.valueOf(j), Integer.valueOf(k)), ngScore - bgScore);
             }
@@ -551,13 +584,32 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
   @Override
   public void train(Collection<List<IN>> wordInfos,
                     DocumentReaderAndWriter<IN> readerAndWriter) {
+    if (flags.compactDataset) {
+      if (flags.classifierType.equalsIgnoreCase("SVM") || flags.numTimesPruneFeatures > 0 ||
+          flags.doAdaptation || flags.featThreshFile != null || flags.useStochasticQN || flags.useSMD ||
+          flags.useSGD || flags.useSGDtoQN || flags.useHybrid) {
+        System.err.println("compactDataset only works for maxent training with QN or CG, without pruning, " +
+            "adaptation or featThreshFile; using a Dataset");
+      } else {
+        trainMaxEnt(getCompactDataset(wordInfos));
+        printBuiltClassifier();
+        compactWeights();
+        return;
+      }
+    }
+
     Dataset<String, String> train = getDataset(wordInfos);
     //train.summaryStatistics();
     //train.printSVMLightFormat();
     // wordInfos = null;  // cdm: I think this does no good as ptr exists in caller (could empty the list or better refactor so conversion done earlier?)
     train(train);
 
-    for (int i = 0; i < flags.numTimesPruneFeatures; i++) {
+    int numTimesPruneFeatures = flags.numTimesPruneFeatures;
+    if (flags.featureHashing > 0 && numTimesPruneFeatures > 0) {
+      System.err.println("Hashed features can't be pruned; not pruning");
+      numTimesPruneFeatures = 0;
+    }
+    for (int i = 0; i < numTimesPruneFeatures; i++) {
 
       Index<String> featuresAboveThreshhold = getFeaturesAboveThreshhold(train, flags.featureDiffThresh);
       System.err.println("Removing features with weight below " + flags.featureDiffThresh + " and retraining...");
@@ -573,6 +625,29 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
       adapt(flags.adaptFile,train,readerAndWriter);
     }
 
+    printBuiltClassifier();
+    compactWeights();
+  }
+
+  /**
+   * Replaces the weights of the classifier by their {@link CompactWeights}
+   * form, if the flags ask for it (compactWeights) and they aren't compacted
+   * with that precision yet. The exact weights of a mapped model stay mapped.
+   */
+  private void compactWeights() {
+    if (!flags.compactWeights || !(classifier instanceof LinearClassifier)) {
+      return;
+    }
+    LinearClassifier<String, String> lc = (LinearClassifier<String, String>) classifier;
+    CompactWeights.Precision precision = CompactWeights.Precision.parse(flags.weightPrecision);
+    if (lc.compactWeights() != null && lc.compactWeights().precision() == precision) {
+      return;
+    }
+    lc.compact(flags.compactWeightsThreshold, precision);
+    System.err.println("Compacted the weights: " + lc.compactWeights());
+  }
+
+  private void printBuiltClassifier() {
     System.err.print("Built this classifier: ");
     if (classifier instanceof LinearClassifier) {
       String classString = ((LinearClassifier<String, String>)classifier).toString(flags.printClassifier, flags.printClassifierParam);
@@ -658,27 +733,13 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
       System.err.println("Using feature/class Index from existing Dataset...");
       System.err.println("(This is used when getting Dataset from adaptation set. We want to make the index consistent.)"); //pichuan
       train = new Dataset<String, String>(size, featureIndex, classIndex);
+    } else if (flags.featureHashing > 0) {
+      train = new Dataset<String, String>(size, new FeatureHashIndex(flags.featureHashing), new HashIndex<String>());
     } else {
       train = new Dataset<String, String>(size);
     }
 
-    for (List<IN> doc : data) {
-      if (flags.useReverse) {
-        Collections.reverse(doc);
-      }
-
-      for (int i = 0, dsize = doc.size(); i < dsize; i++) {
-        Datum<String, String> d = makeDatum(doc, i, featureFactory);
-
-        //CoreLabel fl = doc.get(i);
-
-        train.add(d);
-      }
-
-      if (flags.useReverse) {
-        Collections.reverse(doc);
-      }
-    }
+    addDocuments(data, train);
 
     System.err.println("done.");
     // reset printing before test data
@@ -687,7 +748,9 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
 //       ((FeatureFactory) featureFactory).resetPrintFeatures();
 //     }
 
-    if (flags.featThreshFile != null) {
+    if (train.featureIndex instanceof FeatureHashIndex) {
+      // there are no features to count, only buckets
+    } else if (flags.featThreshFile != null) {
       System.err.println("applying thresholds...");
       List<Pair<Pattern, Integer>> thresh = getThresholds(flags.featThreshFile);
       train.applyFeatureCountThreshold(thresh);
@@ -699,6 +762,146 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
     return train;
   }
 
+  /**
+   * Build a {@link CompactDataset} from some data, for training a maxent classifier.
+   * The features of each position go into it as they are made, without Datum
+   * objects or per-datum arrays, except that with multiThreadGrad the Datums of
+   * one batch of documents are made in parallel before they are added.
+   * The features and labels get the same indices as in {@link #getDataset(Collection)}.
+   *
+   * @param data A collection of documents, each of which is a sequence of CoreLabels
+   * @return The compact encoding of the data
+   */
+  public CompactDataset<String, String> getCompactDataset(Collection<List<IN>> data) {
+    makeAnswerArraysAndTagIndex(data);
+
+    int size = 0;
+    for (List<IN> doc : data) {
+      size += doc.size();
+    }
+
+    System.err.println("Making compact Dataset...");
+    CompactDataset<String, String> train = (flags.featureHashing > 0) ?
+        new CompactDataset<String, String>(size, new FeatureHashIndex(flags.featureHashing), new HashIndex<String>()) :
+        new CompactDataset<String, String>(size);
+    addDocuments(data, train);
+    System.err.println("done.");
+
+    if (flags.featureThreshold > 1 && flags.featureHashing == 0) {
+      System.err.println("Removing Features with counts < " + flags.featureThreshold);
+      train.applyFeatureCountThreshold(flags.featureThreshold);
+    }
+    train.summaryStatistics();
+    return train;
+  }
+
+  private void addDocuments(Collection<List<IN>> data, GeneralDataset<String, String> train) {
+    // printFeatures writes to one file, so it needs the datums one by one
+    if (flags.multiThreadGrad > 1 && flags.printFeatures == null) {
+      addDatumsInParallel(data, train);
+    } else if (train instanceof CompactDataset && flags.printFeatures == null) {
+      for (List<IN> doc : data) {
+        addFeatures(doc, (CompactDataset<String, String>) train);
+      }
+    } else {
+      for (List<IN> doc : data) {
+        for (Datum<String, String> d : makeDatums(doc)) {
+          train.add(d);
+        }
+      }
+    }
+  }
+
+  /** The datums of all the positions of a document */
+  private List<Datum<String, String>> makeDatums(List<IN> doc) {
+    if (flags.useReverse) {
+      Collections.reverse(doc);
+    }
+
+    List<Datum<String, String>> datums = new ArrayList<Datum<String, String>>(doc.size());
+    for (int i = 0, dsize = doc.size(); i < dsize; i++) {
+      datums.add(makeDatum(doc, i, featureFactory));
+    }
+
+    if (flags.useReverse) {
+      Collections.reverse(doc);
+    }
+    return datums;
+  }
+
+  /**
+   * Adds the positions of a document to a CompactDataset feature by feature,
+   * as {@link #makeDatum} would make them, but without a Datum.
+   */
+  private void addFeatures(List<IN> doc, CompactDataset<String, String> train) {
+    if (flags.useReverse) {
+      Collections.reverse(doc);
+    }
+
+    PaddedList<IN> pInfo = new PaddedList<IN>(doc, pad);
+    List<Clique> cliques = featureFactory.getCliques();
+    for (int loc = 0, dsize = doc.size(); loc < dsize; loc++) {
+      for (Clique c : cliques) {
+        for (String feature : addOtherClasses(featureFactory.getCliqueFeatures(pInfo, loc, c), pInfo, loc, c)) {
+          train.addFeature(feature);
+        }
+      }
+      train.finishDatum(doc.get(loc).get(AnswerAnnotation.class));
+    }
+
+    if (flags.useReverse) {
+      Collections.reverse(doc);
+    }
+  }
+
+  /** Documents of about this many tokens are featurized at once by addDatumsInParallel */
+  private static final int PARALLEL_BATCH_TOKENS = 100000;
+
+  /**
+   * Makes the datums of the documents on a fork-join pool of flags.multiThreadGrad threads.
+   * The documents are taken in batches, and the datums of a batch are added to the Dataset
+   * in the order of the documents, so that the features and labels get the same indices as
+   * when the Dataset is built serially.
+   */
+  private void addDatumsInParallel(Collection<List<IN>> data, GeneralDataset<String, String> train) {
+    ForkJoinPool pool = new ForkJoinPool(flags.multiThreadGrad);
+    try {
+      List<Callable<List<Datum<String, String>>>> batch = new ArrayList<Callable<List<Datum<String, String>>>>();
+      int batchTokens = 0;
+      for (final List<IN> doc : data) {
+        batch.add(new Callable<List<Datum<String, String>>>() {
+          public List<Datum<String, String>> call() {
+            return makeDatums(doc);
+          }
+        });
+        batchTokens += doc.size();
+        if (batchTokens >= PARALLEL_BATCH_TOKENS) {
+          addDatums(pool.invokeAll(batch), train);
+          batch.clear();
+          batchTokens = 0;
+        }
+      }
+      addDatums(pool.invokeAll(batch), train);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static void addDatums(List<Future<List<Datum<String, String>>>> results, GeneralDataset<String, String> train) {
+    for (Future<List<Datum<String, String>>> result : results) {
+      try {
+        for (Datum<String, String> d : result.get()) {
+          train.add(d);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+  }
+
   public Dataset<String, String> getBiasedDataset(ObjectBank<List<IN>> data, Index<String> featureIndex, Index<String> classIndex) {
     makeAnswerArraysAndTagIndex(data);
 
@@ -882,10 +1085,11 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
   private void trainSVM(Dataset<String, String> train) {
     SVMLightClassifierFactory<String, String> fact = new SVMLightClassifierFactory<String, String>();
     classifier = fact.trainClassifier(train);
+    indexedFeatures = null;
 
   }
 
-  private void trainMaxEnt(Dataset<String, String> train) {
+  private void trainMaxEnt(GeneralDataset<String, String> train) {
     int prior = LogPrior.LogPriorType.QUADRATIC.ordinal();
     if (flags.useHuber) {
       prior = LogPrior.LogPriorType.HUBER.ordinal();
@@ -898,6 +1102,7 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
       lc = new NBLinearClassifierFactory<String, String>(flags.sigma).trainClassifier(train);
     } else {
       LinearClassifierFactory<String, String> lcf = new LinearClassifierFactory<String, String>(flags.tolerance, flags.useSum, prior, flags.sigma, flags.epsilon, flags.QNsize);
+      lcf.setThreads(flags.multiThreadGrad);
       if (flags.useQN) {
         lcf.useQuasiNewton(flags.useRobustQN);
       } else if(flags.useStochasticQN) {
@@ -918,6 +1123,7 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
       lc = lcf.trainClassifier(train);
     }
     this.classifier = lc;
+    indexedFeatures = null;
   }
 
   private void trainSemiSup(Dataset<String, String> data, Dataset<String, String> biasedData, double[][] confusionMatrix) {
@@ -937,6 +1143,7 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
     }
 
     this.classifier = (LinearClassifier<String, String>) lcf.trainClassifierSemiSup(data, biasedData, confusionMatrix, null);
+    indexedFeatures = null;
   }
 
 
@@ -1027,6 +1234,9 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
       //oos.writeObject(WordShapeClassifier.getKnownLowerCaseWords());
 
       oos.writeObject(knownLCWords);
+      if (flags.useTagDictionary) {
+        oos.writeObject(tagDictionary);
+      }
 
       oos.close();
       System.err.println("Done.");
@@ -1040,6 +1250,63 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
   }
 
 
+  /**
+   * {@inheritDoc}
+   * Only a classifier whose model is a LinearClassifier can be saved this way.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public void serializeMappedClassifier(String serializePath) {
+    if (!(classifier instanceof LinearClassifier)) {
+      throw new UnsupportedOperationException("Only a LinearClassifier can be saved as a mapped model");
+    }
+    LinearClassifier<String, String> lc = (LinearClassifier<String, String>) classifier;
+    if (lc.featureIndex() instanceof FeatureHashIndex) {
+      throw new UnsupportedOperationException("A classifier with hashed features has no feature index to map");
+    }
+
+    System.err.print("Serializing classifier to " + serializePath + " as a mapped model...");
+    try {
+      MappedModel.write(serializePath, lc.featureIndex(), lc.weights(), lc.labelIndex(), lc.thresholds(),
+          flags, featureFactory, classIndex, answerArrays, knownLCWords, tagDictionary);
+      System.err.println("Done.");
+    } catch (Exception e) {
+      System.err.println("Error serializing to " + serializePath);
+      e.printStackTrace();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @SuppressWarnings("unchecked")
+  @Override
+  protected void loadMappedClassifier(MappedModel model, Properties props) throws ClassCastException, IOException, ClassNotFoundException {
+    ObjectInputStream ois = model.objects();
+    Index<String> labelIndex = (Index<String>) ois.readObject();
+    double[] thresholds = (double[]) ois.readObject();
+    try {
+      classifier = new LinearClassifier<String, String>(model.weights(), model.featureIndex(), labelIndex, thresholds);
+    } catch (Exception e) {
+      throw new IOException("Inconsistent mapped model", e);
+    }
+    indexedFeatures = null;
+    flags = (SeqClassifierFlags) ois.readObject();
+    featureFactory = (FeatureFactory) ois.readObject();
+    // only models trained with useTagDictionary have it, whatever props say
+    boolean hasTagDictionary = flags.useTagDictionary;
+
+    if (props != null) {
+      flags.setProperties(props);
+    }
+    reinit();
+
+    classIndex = (Index<String>) ois.readObject();
+    answerArrays = (Set<List<String>>) ois.readObject();
+
+    knownLCWords = concurrentSet((Set<String>) ois.readObject());
+    tagDictionary = hasTagDictionary ? (TagDictionary) ois.readObject() : null;
+    compactWeights();
+  }
+
   /**
    * Used to load the default supplied classifier.  **THIS FUNCTION
    * WILL ONLY WORK IF RUN INSIDE A JAR FILE**
@@ -1078,8 +1345,11 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
   @Override
   public void loadClassifier(ObjectInputStream ois, Properties props) throws ClassCastException, IOException, ClassNotFoundException {
     classifier = (LinearClassifier<String, String>) ois.readObject();
+    indexedFeatures = null;
     flags = (SeqClassifierFlags) ois.readObject();
     featureFactory = (FeatureFactory) ois.readObject();
+    // only models trained with useTagDictionary have it, whatever props say
+    boolean hasTagDictionary = flags.useTagDictionary;
 
     if (props != null) {
       flags.setProperties(props);
@@ -1089,7 +1359,9 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
     classIndex = (Index<String>) ois.readObject();
     answerArrays = (Set<List<String>>) ois.readObject();
 
-    knownLCWords = (Set<String>) ois.readObject();
+    knownLCWords = concurrentSet((Set<String>) ois.readObject());
+    tagDictionary = hasTagDictionary ? (TagDictionary) ois.readObject() : null;
+    compactWeights();
   }
 
 
@@ -1147,6 +1419,7 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
     if (classIndex == null) {
       classIndex = new HashIndex<String>();
     }
+    tagDictionary = flags.useTagDictionary ? new TagDictionary() : null;
 
     for (List<IN> doc : docs) {
       if (flags.useReverse) {
@@ -1166,12 +1439,19 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
       for (int i = 0; i < leng; i++) {
         CoreLabel wordInfo = doc.get(i);
         classIndex.add(wordInfo.get(AnswerAnnotation.class));
+        if (tagDictionary != null) {
+          tagDictionary.add(wordInfo.word(), wordInfo.get(AnswerAnnotation.class));
+        }
       }
 
       if (flags.useReverse) {
         Collections.reverse(doc);
       }
     }
+    if (tagDictionary != null) {
+      tagDictionary.prune(flags.tagDictionaryMinCount);
+      System.err.println("Tag dictionary of " + tagDictionary.size() + " words");
+    }
   }
 
   /** Make an individual Datum out of the data list info, focused at position
@@ -1208,6 +1488,31 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
    */
   private static Collection<String> addOtherClasses(Collection<String> feats, List<? extends CoreLabel> info,
                                      int loc, Clique c) {
+    String addend = historyAddend(info, loc, c);
+    if (addend == null) {
+      return feats;
+    }
+    Collection<String> newFeats = new HashSet<String>();
+    for (String feat : feats) {
+      String newFeat = feat + addend;
+      newFeats.add(newFeat);
+    }
+    return newFeats;
+  }
+
+  /** Whether {@link #addOtherClasses} conditions the features of this clique on other classes */
+  static boolean isClassConditioned(Clique c) {
+    return c == FeatureFactory.cliqueCpC || c == FeatureFactory.cliqueCp2C || c == FeatureFactory.cliqueCp3C ||
+        c == FeatureFactory.cliqueCp4C || c == FeatureFactory.cliqueCp5C || c == FeatureFactory.cliqueCpCp2C ||
+        c == FeatureFactory.cliqueCpCp2Cp3C || c == FeatureFactory.cliqueCpCp2Cp3Cp4C ||
+        c == FeatureFactory.cliqueCpCp2Cp3Cp4Cp5C || c == FeatureFactory.cliqueCnC || c == FeatureFactory.cliqueCpCnC;
+  }
+
+  /** The suffix that {@link #addOtherClasses} appends to the features of
+   *  clique c at position loc, or null if the clique doesn't condition on
+   *  other classes.
+   */
+  static String historyAddend(List<? extends CoreLabel> info, int loc, Clique c) {
     String addend = null;
     String pAnswer = info.get(loc - 1).get(AnswerAnnotation.class);
     String p2Answer = info.get(loc - 2).get(AnswerAnnotation.class);
@@ -1239,15 +1544,7 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
     } else if (c == FeatureFactory.cliqueCpCnC) {
       addend = '|' + pAnswer + '-' + nAnswer;
     }
-    if (addend == null) {
-      return feats;
-    }
-    Collection<String> newFeats = new HashSet<String>();
-    for (String feat : feats) {
-      String newFeat = feat + addend;
-      newFeats.add(newFeat);
-    }
-    return newFeats;
+    return addend;
   }
 
 
@@ -1326,11 +1623,34 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
     trainSemiSup(dataset, biasedDataset, confusionMatrix);
   }
 
+  /** Integer-indexed features for the tagging fast path, or null if the
+   *  classifier isn't a LinearClassifier (or features are being printed,
+   *  which needs the String datums).
+   */
+  CMMFeatureIndex indexedFeatures() {
+    CMMFeatureIndex result = indexedFeatures;
+    if (result == null && classifier instanceof LinearClassifier && flags.printFeatures == null) {
+      synchronized (this) {
+        if (indexedFeatures == null) {
+          indexedFeatures = new CMMFeatureIndex((LinearClassifier<String, String>) classifier, classIndex);
+        }
+        result = indexedFeatures;
+      }
+    }
+    return result;
+  }
+
   static class Scorer implements SequenceModel {
     private CMMClassifier classifier = null;
+    private CMMFeatureIndex featureIndex = null;
+    private PaddedList<CoreLabel> paddedInfos = null;
+    private CMMFeatureIndex.Observation[] observations = null;
+    private int[] featureBuffer = null;
 
     private int[] tagArray = null;
     private int[] backgroundTags = null;
+    /** The candidate tags of each position with useTagDictionary, computed on first use */
+    private int[][] possibleValues = null;
     private Index<String> tagIndex = null;
     private List<? extends CoreLabel> lineInfos = null;
     private int pre = 0;
@@ -1371,16 +1691,60 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
       if (position < pre) {
         return backgroundTags;
       }
+      if (possibleValues != null) {
+        if (possibleValues[position] == null) {
+          possibleValues[position] = candidateTags(lineInfos.get(position));
+        }
+        return possibleValues[position];
+      }
       return tagArray;
     }
 
+    /**
+     * The tags of the token in the tag dictionary and those allowed by its morphological
+     * analysis, if it has one; all the tags for words that are neither frequent in the
+     * training data nor known to the analyzer.
+     */
+    private int[] candidateTags(CoreLabel token) {
+      Set<String> tags = new HashSet<String>();
+      boolean known = false;
+      Set<String> seen = classifier.tagDictionary == null ? null : classifier.tagDictionary.tags(token.word());
+      if (seen != null) {
+        tags.addAll(seen);
+        known = true;
+      }
+      Word analysis = token.get(LVMorphologyAnalysis.class);
+      if (analysis != null && !analysis.wordforms.isEmpty() && !TagDictionary.isGuessed(analysis)) {
+        tags.addAll(TagDictionary.analyzerTags(analysis));
+        known = true;
+      }
+      if (!known) {
+        return tagArray;
+      }
+      int[] candidates = new int[tags.size()];
+      int n = 0;
+      for (String tag : tags) {
+        int t = tagIndex.indexOf(tag);
+        if (t >= 0) {
+          candidates[n++] = t;
+        }
+      }
+      if (n == 0) {
+        return tagArray;
+      }
+      candidates = Arrays.copyOf(candidates, n);
+      // in tag order, like tagArray, so that ties are decided the same way
+      Arrays.sort(candidates);
+      return candidates;
+    }
+
     public double scoreOf(int[] sequence) {
       throw new UnsupportedOperationException();
     }
 
     private double[] scoreCache = null;
     private int[] lastWindow = null;
-    //private int lastPos = -1;
+    private int lastPos = -1;
 
     public double scoreOf(int[] tags, int pos) {
       if (false) {
@@ -1410,7 +1774,16 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
         }
         lastPos = pos;
       }
-      return scoreCache[tags[pos]];
+      int[] tA = getPossibleValues(pos);
+      if (tA == tagArray) {
+        return scoreCache[tags[pos]];
+      }
+      for (int j = 0; j < tA.length; j++) {
+        if (tA[j] == tags[pos]) {
+          return scoreCache[j];
+        }
+      }
+      throw new IllegalArgumentException("Tag " + tags[pos] + " isn't a candidate at position " + pos);
     }
 
     private int percent = -1;
@@ -1446,7 +1819,7 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
           pre[i] = answers[i];
         }
       }
-      double[] scores = new double[tagIndex.size()];
+      double[] scores = new double[getPossibleValues(pos).length];
       //System.out.println("Considering: "+Arrays.asList(pre));
       if (!legalTags.contains(Arrays.asList(pre)) && classifier.flags.useObservedSequencesOnly) {
         // System.out.println("Rejecting: " + Arrays.asList(pre));
@@ -1456,6 +1829,20 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
       }
       num++;
       hit++;
+      if (featureIndex != null) {
+        double[] logProbs = indexedLogProbabilities(pos);
+        int[] tA = getPossibleValues(pos);
+        for (int j = 0; j < tA.length; j++) {
+          int label = featureIndex.classLabel(tA[j]);
+          if (label > -1) {
+            scores[j] = logProbs[label];
+          }
+        }
+        if (classifier.normalize()) {
+          ArrayMath.logNormalize(scores);
+        }
+        return scores;
+      }
       Counter<String> c = classifier.scoresOf(lineInfos, pos);
       //System.out.println("Pos "+pos+" hist "+Arrays.asList(pre)+" result "+c);
       //System.out.println(c);
@@ -1485,6 +1872,39 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
       return scores;
     }
 
+    /**
+     * Same as classifier.scoresOf(lineInfos, pos), but indexed by the classifier's labels.
+     * The String features and the scores of the history-independent features of a position
+     * are computed once, on its first history; after that a history costs as much as its own features.
+     */
+    @SuppressWarnings("unchecked")
+    private double[] indexedLogProbabilities(int pos) {
+      CMMFeatureIndex.Observation o = observations[pos];
+      if (o == null) {
+        o = featureIndex.observe(classifier, paddedInfos, pos);
+        observations[pos] = o;
+      }
+      if (featureBuffer == null || featureBuffer.length < o.maxFeatures()) {
+        featureBuffer = new int[Math.max(o.maxFeatures(), 2 * (featureBuffer == null ? 0 : featureBuffer.length))];
+      }
+      int numFeatures = featureIndex.features(o, paddedInfos, pos, featureBuffer);
+      return featureIndex.logProbabilities(o, featureBuffer, numFeatures, new double[featureIndex.numLabels()]);
+    }
+
+    /**
+     * The score of a tag in scores as returned by scoresOf, which has one entry per candidate
+     * of getPossibleValues(pos); negative infinity if the tag isn't a candidate there.
+     */
+    static double tagScore(SequenceModel ts, int pos, double[] scores, int tag) {
+      int[] candidates = ts.getPossibleValues(pos);
+      for (int j = 0; j < candidates.length; j++) {
+        if (candidates[j] == tag) {
+          return scores[j];
+        }
+      }
+      return Double.NEGATIVE_INFINITY;
+    }
+
     static double[] recenter(double[] x) {
       double[] r = new double[x.length];
       // double logTotal = Double.NEGATIVE_INFINITY;
@@ -1518,6 +1938,14 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
       this.classifier = classifier;
       this.legalTags = legalTags;
       backgroundTags = new int[]{tagIndex.indexOf(classifier.flags.backgroundSymbol)};
+      if (classifier.flags.useTagDictionary) {
+        possibleValues = new int[lineInfos.size()][];
+      }
+      featureIndex = classifier.indexedFeatures();
+      if (featureIndex != null) {
+        paddedInfos = new PaddedList<CoreLabel>((List<CoreLabel>) lineInfos, (CoreLabel) classifier.pad);
+        observations = new CMMFeatureIndex.Observation[lineInfos.size()];
+      }
     }
 
   } // end class Scorer
@@ -1526,14 +1954,7 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
     return flags.normalize;
   }
 
-  static int lastPos = -1;
-
   public Counter<String> scoresOf(List<IN> lineInfos, int pos) {
-//     if (pos != lastPos) {
-//       System.err.print(pos+".");
-//       lastPos = pos;
-//     }
-//     System.err.print("!");
     Datum<String, String> d = makeDatum(lineInfos, pos, featureFactory);
     return classifier.logProbabilityOf(d);
   }
@@ -1583,7 +2004,11 @@ public class CMMClassifier<IN extends CoreLabel> extends AbstractSequenceClassif
     }
 
     if (serializeTo != null) {
-      cmm.serializeClassifier(serializeTo);
+      if (cmm.flags.serializeToMapped) {
+        cmm.serializeMappedClassifier(serializeTo);
+      } else {
+        cmm.serializeClassifier(serializeTo);
+      }
     }
 
     if (testFile != null) {
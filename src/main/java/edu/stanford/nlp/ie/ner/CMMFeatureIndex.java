@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * Copyright 2015 Institute of Mathematics and Computer Science, University of Latvia
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package edu.stanford.nlp.ie.ner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.stanford.nlp.classify.LinearClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.CoreAnnotations.AnswerAnnotation;
+import edu.stanford.nlp.math.ArrayMath;
+import edu.stanford.nlp.sequences.Clique;
+import edu.stanford.nlp.sequences.FeatureFactory;
+import edu.stanford.nlp.util.FeatureHashIndex;
+import edu.stanford.nlp.util.Index;
+import edu.stanford.nlp.util.PaddedList;
+
+/**
+ * Integer-indexed features for tagging with a {@link CMMClassifier} whose
+ * classifier is a {@link LinearClassifier}.
+ * <p>
+ * The string features of a position are computed and looked up in the
+ * feature {@link Index} only once per position, in {@link #observe}.
+ * For the cliques that are conditioned on one other class (CpC, Cp2C ... Cp5C
+ * and CnC), the <code>feature|class</code> variants of a feature are looked up
+ * for every class the first time the feature is seen, and kept in a bounded
+ * cache, so a particular class history then only costs an array lookup per
+ * feature, and no Strings are built while decoding. Nothing is decoded from the
+ * feature index up front, so a mapped index stays in the mapped file.
+ * Cliques conditioned on several classes (CpCp2C etc.) are rare, and for them
+ * the feature names are still completed per history.
+ * <p>
+ * The features that don't depend on the other classes are the bulk of each
+ * position, so their contribution to the label scores is summed once in
+ * {@link #observe} too, and each history then only adds the weights of its
+ * own few features.
+ */
+class CMMFeatureIndex {
+
+  private static final Clique[] singleClassCliques = {
+    FeatureFactory.cliqueCpC, FeatureFactory.cliqueCp2C, FeatureFactory.cliqueCp3C,
+    FeatureFactory.cliqueCp4C, FeatureFactory.cliqueCp5C, FeatureFactory.cliqueCnC };
+  private static final int[] singleClassOffsets = { -1, -2, -3, -4, -5, 1 };
+
+  /** The cache of class-conditioned features is cleared when it gets this big */
+  private static final int MAX_CACHED_FEATURES = 1 << 18;
+  /** Cached for the features that have no class-conditioned variants at all */
+  private static final int[] NONE = new int[0];
+
+  private final LinearClassifier<String, String> classifier;
+  private final Index<String> featureIndex;
+  private final Index<String> classIndex;
+  /** CMM class index (tag) for each label of the classifier, -1 if unknown */
+  private final int[] labelToClass;
+  /** Classifier label for each CMM class index, -1 if the classifier never saw the class */
+  private final int[] classToLabel;
+  /** Feature name without the class suffix -> pairs of (class, feature index), sorted by class; filled on demand */
+  private final Map<String, int[]> classConditioned = new ConcurrentHashMap<String, int[]>();
+  /** Whether the features are hashed, so they are looked up by their whole name instead of through classConditioned */
+  private final boolean hashed;
+
+  CMMFeatureIndex(LinearClassifier<String, String> classifier, Index<String> classIndex) {
+    this.classifier = classifier;
+    this.featureIndex = classifier.featureIndex();
+    this.classIndex = classIndex;
+
+    Index<String> labelIndex = classifier.labelIndex();
+    labelToClass = new int[labelIndex.size()];
+    for (int i = 0; i < labelToClass.length; i++) {
+      labelToClass[i] = classIndex.indexOf(labelIndex.get(i));
+    }
+    classToLabel = new int[classIndex.size()];
+    Arrays.fill(classToLabel, -1);
+    for (int i = 0; i < labelToClass.length; i++) {
+      if (labelToClass[i] >= 0) {
+        classToLabel[labelToClass[i]] = i;
+      }
+    }
+
+    hashed = featureIndex instanceof FeatureHashIndex;
+  }
+
+  /**
+   * The (class, feature index) pairs of the <code>feature|class</code> variants of a feature,
+   * sorted by class, or null if the model has none of them. These are the exact names that
+   * addOtherClasses would build, so a lookup here always finds the same feature as the String version.
+   */
+  private int[] classConditioned(String feature) {
+    int[] pairs = classConditioned.get(feature);
+    if (pairs == null) {
+      int[] found = new int[2 * classIndex.size()];
+      int n = 0;
+      StringBuilder name = new StringBuilder(feature.length() + 16).append(feature).append('|');
+      for (int c = 0, size = classIndex.size(); c < size; c++) {
+        name.setLength(feature.length() + 1);
+        int f = featureIndex.indexOf(name.append(classIndex.get(c)).toString());
+        if (f >= 0) {
+          found[n++] = c;
+          found[n++] = f;
+        }
+      }
+      pairs = n == 0 ? NONE : Arrays.copyOf(found, n);
+      if (classConditioned.size() >= MAX_CACHED_FEATURES) {
+        classConditioned.clear();
+      }
+      classConditioned.put(feature, pairs);
+    }
+    return pairs == NONE ? null : pairs;
+  }
+
+  private static int singleClassClique(Clique c) {
+    for (int i = 0; i < singleClassCliques.length; i++) {
+      if (singleClassCliques[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  int numLabels() {
+    return labelToClass.length;
+  }
+
+  /** Classifier label of a CMM class (tag) index, -1 if there is none */
+  int classLabel(int c) {
+    return classToLabel[c];
+  }
+
+  /**
+   * The features of one position, split into the part that doesn't depend on the
+   * classes of the other positions and the part that does.
+   */
+  static class Observation {
+    /** Thresholds plus the weights of the cliques not conditioned on other classes, per classifier label */
+    double[] fixedScores;
+    /** For each single-class clique feature: its (class, feature index) pairs */
+    int[][] conditioned;
+    /** Relative position of the conditioning class, per entry of conditioned */
+    int[] conditionedOffsets;
+    /** Features of cliques conditioned on several classes, still lacking the class suffix */
+    String[] multiClass;
+    Clique[] multiClassCliques;
+
+    /** Upper bound on the number of history features for any class history */
+    int maxFeatures() {
+      return conditioned.length + multiClass.length;
+    }
+  }
+
+  /** Extracts and indexes the features of position loc; this is where all the String work happens. */
+  <IN extends CoreLabel> Observation observe(CMMClassifier<IN> cmm, PaddedList<IN> info, int loc) {
+    List<Integer> fixed = new ArrayList<Integer>();
+    List<int[]> conditioned = new ArrayList<int[]>();
+    List<Integer> offsets = new ArrayList<Integer>();
+    List<String> multiClass = new ArrayList<String>();
+    List<Clique> multiClassCliques = new ArrayList<Clique>();
+
+    for (Clique c : cmm.featureFactory.getCliques()) {
+      Collection<String> feats = cmm.featureFactory.getCliqueFeatures(info, loc, c);
+      if (!CMMClassifier.isClassConditioned(c)) {
+        for (String feat : feats) {
+          int f = featureIndex.indexOf(feat);
+          if (f >= 0) {
+            fixed.add(f);
+          }
+        }
+        continue;
+      }
+      // conditioned features are a set in the string version (see addOtherClasses)
+      Collection<String> distinct = new LinkedHashSet<String>(feats);
+      int single = singleClassClique(c);
+      for (String feat : distinct) {
+        // hashed features are looked up by their whole name, as the multi-class ones
+        if (single >= 0 && ! hashed) {
+          int[] pairs = classConditioned(feat);
+          if (pairs != null) {
+            conditioned.add(pairs);
+            offsets.add(singleClassOffsets[single]);
+          }
+        } else {
+          multiClass.add(feat);
+          multiClassCliques.add(c);
+        }
+      }
+    }
+
+    Observation o = new Observation();
+    int[] fixedFeatures = new int[fixed.size()];
+    for (int i = 0; i < fixedFeatures.length; i++) {
+      fixedFeatures[i] = fixed.get(i);
+    }
+    o.fixedScores = classifier.scoresOf(fixedFeatures, fixedFeatures.length, new double[numLabels()]);
+    o.conditioned = conditioned.toArray(new int[conditioned.size()][]);
+    o.conditionedOffsets = new int[offsets.size()];
+    for (int i = 0; i < o.conditionedOffsets.length; i++) {
+      o.conditionedOffsets[i] = offsets.get(i);
+    }
+    o.multiClass = multiClass.toArray(new String[multiClass.size()]);
+    o.multiClassCliques = multiClassCliques.toArray(new Clique[multiClassCliques.size()]);
+    return o;
+  }
+
+  /**
+   * Indices of the history features of position loc, given the classes
+   * currently set as the {@link AnswerAnnotation} of the other positions.
+   *
+   * @param buffer Where the feature indices are stored; at least {@link Observation#maxFeatures()} long
+   * @return The number of features stored in buffer
+   */
+  int features(Observation o, List<? extends CoreLabel> info, int loc, int[] buffer) {
+    int n = 0;
+    for (int i = 0; i < o.conditioned.length; i++) {
+      // the answers are the very String objects of classIndex, so this lookup doesn't even compare characters
+      int c = classIndex.indexOf(info.get(loc + o.conditionedOffsets[i]).get(AnswerAnnotation.class));
+      int f = find(o.conditioned[i], c);
+      if (f >= 0) {
+        buffer[n++] = f;
+      }
+    }
+    for (int i = 0; i < o.multiClass.length; i++) {
+      int f = featureIndex.indexOf(o.multiClass[i] + CMMClassifier.historyAddend(info, loc, o.multiClassCliques[i]));
+      if (f >= 0) {
+        buffer[n++] = f;
+      }
+    }
+    return n;
+  }
+
+  private static int find(int[] pairs, int c) {
+    if (c < 0) {
+      return -1;
+    }
+    int lo = 0;
+    int hi = pairs.length / 2 - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int midClass = pairs[2 * mid];
+      if (midClass < c) {
+        lo = mid + 1;
+      } else if (midClass > c) {
+        hi = mid - 1;
+      } else {
+        return pairs[2 * mid + 1];
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Log probabilities of the classifier labels for an observation and the given
+   * history features, as in LinearClassifier.logProbabilityOf
+   */
+  double[] logProbabilities(Observation o, int[] features, int numFeatures, double[] scores) {
+    System.arraycopy(o.fixedScores, 0, scores, 0, scores.length);
+    classifier.addWeights(features, numFeatures, scores);
+    double logTotal = ArrayMath.logSum(scores);
+    for (int i = 0; i < scores.length; i++) {
+      scores[i] -= logTotal;
+    }
+    return scores;
+  }
+
+}
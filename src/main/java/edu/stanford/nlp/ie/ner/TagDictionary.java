@@ -0,0 +1,91 @@
+package edu.stanford.nlp.ie.ner;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import lv.semti.morphology.analyzer.Word;
+import lv.semti.morphology.analyzer.Wordform;
+import lv.semti.morphology.attributes.AttributeNames;
+import lv.semti.morphology.attributes.AttributeValues;
+import lv.semti.morphology.attributes.TagSet;
+
+/**
+ * The tags that each frequent word of the training data has been seen with,
+ * for limiting the candidate tags of a {@link CMMClassifier} at decoding time
+ * (<code>useTagDictionary</code>). Words seen fewer than the given number of
+ * times aren't kept, as their tags in the training data are no good guide to
+ * the tags they can have.
+ * <p>
+ * For Latvian morphology, the tags that the morphological analyzer allows for a
+ * token are given by {@link #analyzerTags}.
+ */
+class TagDictionary implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Map<String, Set<String>> tags = new HashMap<String, Set<String>>();
+  private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+  /** Counts an occurrence of the word with the tag */
+  void add(String word, String tag) {
+    Set<String> wordTags = tags.get(word);
+    if (wordTags == null) {
+      wordTags = new HashSet<String>(4);
+      tags.put(word, wordTags);
+    }
+    wordTags.add(tag);
+    Integer count = counts.get(word);
+    counts.put(word, count == null ? 1 : count + 1);
+  }
+
+  /** Drops the words seen fewer than minCount times; no words can be added after this */
+  void prune(int minCount) {
+    for (Iterator<Map.Entry<String, Set<String>>> it = tags.entrySet().iterator(); it.hasNext(); ) {
+      if (counts.get(it.next().getKey()) < minCount) {
+        it.remove();
+      }
+    }
+    counts.clear();
+  }
+
+  /** The tags the word has been seen with, or null if it isn't a frequent word */
+  Set<String> tags(String word) {
+    return tags.get(word);
+  }
+
+  int size() {
+    return tags.size();
+  }
+
+  /** Whether any of the analyses is a guess, i.e. the analyzer doesn't know the word */
+  static boolean isGuessed(Word analysis) {
+    if (!analysis.isRecognized()) {
+      return true;
+    }
+    for (Wordform wf : analysis.wordforms) {
+      if (!wf.isMatchingWeak(AttributeNames.i_Guess, AttributeNames.v_NoGuess)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The answer tags of the analyses of a token: the tags of its wordforms without the
+   * non-lexical attributes, as LVMorphologyReaderAndWriter makes the answers of the training data.
+   */
+  static Set<String> analyzerTags(Word analysis) {
+    Set<String> result = new HashSet<String>();
+    for (Wordform wf : analysis.wordforms) {
+      AttributeValues av = new AttributeValues(wf);
+      av.removeNonlexicalAttributes();
+      result.add(TagSet.getTagSet().toTag(av));
+    }
+    return result;
+  }
+
+}
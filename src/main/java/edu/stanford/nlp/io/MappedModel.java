@@ -0,0 +1,343 @@
+package edu.stanford.nlp.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import edu.stanford.nlp.math.CompactWeights;
+import edu.stanford.nlp.math.WeightMatrix;
+import edu.stanford.nlp.util.Index;
+import edu.stanford.nlp.util.MappedStringIndex;
+
+/**
+ * A model file that is memory-mapped rather than deserialized: a feature
+ * {@link Index} of Strings, a weight matrix with one row per feature, and a
+ * few small objects that are serialized as usual (flags, label indices,
+ * feature factory...).
+ * <p>
+ * The feature index is a {@link MappedStringIndex} over the mapped file, so
+ * the millions of feature Strings of a large model are never deserialized or
+ * hashed, and the operating system shares their pages among the processes
+ * that load the same model. The weights are stored row by row in the order of
+ * that index, and the classifiers score straight from the mapped rows, as a
+ * {@link WeightMatrix}, so they aren't copied to the heap either.
+ * <p>
+ * The layout, all little-endian: the magic bytes "NLPM", version, the offset
+ * and length of the serialized objects, of the feature index and of the
+ * weights, and the number of rows; then those sections. The weights section
+ * is the length of every row, padded to a multiple of 8 bytes, then the rows.
+ */
+public class MappedModel {
+
+  private static final byte[] MAGIC = { 'N', 'L', 'P', 'M' };
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 64;
+  /** The weights are mapped at most this many bytes at a time */
+  private static final int CHUNK = 1 << 30;
+
+  private final File file;
+  private final byte[] objects;
+  private final ByteBuffer dict;
+  private final long weightsOffset;
+  private final int rows;
+
+  /**
+   * Maps the given model file. The mapping stays valid after the file is
+   * closed, for as long as the feature index is referenced.
+   */
+  public MappedModel(File file) throws IOException {
+    this.file = file;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException(file + " is not a mapped model");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException(file + " is a mapped model of version " + version + ", expected " + VERSION);
+      }
+      long objectsOffset = header.getLong();
+      long objectsLength = header.getLong();
+      long dictOffset = header.getLong();
+      long dictLength = header.getLong();
+      weightsOffset = header.getLong();
+      rows = header.getInt();
+
+      objects = new byte[(int) objectsLength];
+      channel.map(FileChannel.MapMode.READ_ONLY, objectsOffset, objectsLength).get(objects);
+      dict = channel.map(FileChannel.MapMode.READ_ONLY, dictOffset, dictLength);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Whether the file starts like a mapped model, as opposed to a serialized classifier */
+  public static boolean isMappedModel(File file) {
+    if (!file.isFile() || file.length() < HEADER_SIZE) {
+      return false;
+    }
+    byte[] magic = new byte[MAGIC.length];
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        if (in.read(magic) != magic.length) {
+          return false;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+    return Arrays.equals(magic, MAGIC);
+  }
+
+  /** The small objects, in the order they were given to {@link #write} */
+  public ObjectInputStream objects() throws IOException {
+    return new ObjectInputStream(new ByteArrayInputStream(objects));
+  }
+
+  /** The feature index, a view of the mapped file */
+  public Index<String> featureIndex() {
+    return new MappedStringIndex(dict);
+  }
+
+  /**
+   * The weights, in the order of {@link #featureIndex()}: a view of the mapped
+   * file, which is mapped in chunks of whole rows of at most 1GB.
+   */
+  public WeightMatrix weights() throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      int[] lengths = new int[rows];
+      ByteBuffer lengthBuffer = channel.map(FileChannel.MapMode.READ_ONLY, weightsOffset, 4L * rows).order(ByteOrder.LITTLE_ENDIAN);
+      lengthBuffer.asIntBuffer().get(lengths);
+      return new MappedWeights(channel, weightsOffset + 4L * (rows + (rows & 1)), lengths);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * The weights of a mapped model, read from the mapped rows. A row is never
+   * split between chunks, so it is at an offset in one DoubleBuffer; the
+   * absolute gets of DoubleBuffer are safe for concurrent use.
+   * It serializes as an exact {@link CompactWeights} of the same weights.
+   */
+  private static class MappedWeights implements WeightMatrix, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient DoubleBuffer[] chunks;
+    /** The first row of each chunk */
+    private final transient int[] chunkStart;
+    /** The chunk of each row, if there are several chunks */
+    private final transient byte[] rowChunk;
+    /** Where each row starts in its chunk */
+    private final transient int[] rowOffset;
+    private final transient int[] rowLength;
+
+    MappedWeights(FileChannel channel, long position, int[] lengths) throws IOException {
+      int rows = lengths.length;
+      rowLength = lengths;
+      rowOffset = new int[rows];
+      int[] starts = new int[8];
+      DoubleBuffer[] mapped = new DoubleBuffer[starts.length];
+      int n = 0;
+      long chunkPosition = position;
+      long chunkLength = 0;
+      for (int i = 0; i <= rows; i++) {
+        if (i == rows || (chunkLength > 0 && chunkLength + lengths[i] > CHUNK / 8)) {
+          if (n == mapped.length) {
+            starts = Arrays.copyOf(starts, 2 * n);
+            mapped = Arrays.copyOf(mapped, 2 * n);
+          }
+          mapped[n] = channel.map(FileChannel.MapMode.READ_ONLY, chunkPosition, 8L * chunkLength).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+          n++;
+          if (i == rows) {
+            break;
+          }
+          chunkPosition += 8L * chunkLength;
+          chunkLength = 0;
+          starts[n] = i;
+        }
+        rowOffset[i] = (int) chunkLength;
+        chunkLength += lengths[i];
+      }
+      if (n > Byte.MAX_VALUE) {
+        throw new IOException("The weights are too large to map: " + n + " chunks");
+      }
+      chunks = Arrays.copyOf(mapped, n);
+      chunkStart = Arrays.copyOf(starts, n);
+      if (n > 1) {
+        rowChunk = new byte[rows];
+        for (int c = 0; c < n; c++) {
+          Arrays.fill(rowChunk, chunkStart[c], c + 1 < n ? chunkStart[c + 1] : rows, (byte) c);
+        }
+      } else {
+        rowChunk = null;
+      }
+    }
+
+    private DoubleBuffer chunk(int row) {
+      return rowChunk == null ? chunks[0] : chunks[rowChunk[row]];
+    }
+
+    public CompactWeights.Precision precision() {
+      return CompactWeights.Precision.DOUBLE;
+    }
+
+    public int rows() {
+      return rowLength.length;
+    }
+
+    public int length(int row) {
+      return rowLength[row];
+    }
+
+    public double get(int row, int column) {
+      return chunk(row).get(rowOffset[row] + column);
+    }
+
+    public void addRow(int row, double[] scores) {
+      DoubleBuffer chunk = chunk(row);
+      for (int j = 0, offset = rowOffset[row], length = rowLength[row]; j < length; j++) {
+        scores[j] += chunk.get(offset + j);
+      }
+    }
+
+    public double[][] toArray() {
+      double[][] weights = new double[rowLength.length][];
+      for (int i = 0; i < weights.length; i++) {
+        weights[i] = new double[rowLength[i]];
+        addRow(i, weights[i]);
+      }
+      return weights;
+    }
+
+    @Override
+    public String toString() {
+      return "MappedWeights of " + rowLength.length + " rows in " + chunks.length + " chunks";
+    }
+
+    /** Serialized as a CompactWeights that keeps every weight but the zeros, as they are */
+    private Object writeReplace() throws ObjectStreamException {
+      return new CompactWeights(toArray(), 0.0, CompactWeights.Precision.DOUBLE);
+    }
+  }
+
+  /**
+   * Writes a mapped model.
+   *
+   * @param path The file to write
+   * @param featureIndex The features; in the model they are sorted, and
+   *     the rows of the weights are reordered with them
+   * @param weights One row per feature of featureIndex
+   * @param objects Other parts of the model, which are serialized
+   */
+  public static void write(String path, Index<String> featureIndex, double[][] weights, Object... objects) throws IOException {
+    if (weights.length != featureIndex.size()) {
+      throw new IllegalArgumentException("There are " + weights.length + " rows of weights for " + featureIndex.size() + " features");
+    }
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(serialized);
+    for (Object o : objects) {
+      oos.writeObject(o);
+    }
+    oos.close();
+
+    byte[][] sorted = MappedStringIndex.sortedBytes(featureIndex.objectsList());
+    ByteBuffer dict = MappedStringIndex.write(sorted);
+    int[] order = new int[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      order[i] = featureIndex.indexOf(new String(sorted[i], "UTF-8"));
+      if (order[i] < 0) {
+        throw new IllegalArgumentException("A feature isn't valid Unicode: " + new String(sorted[i], "UTF-8"));
+      }
+    }
+
+    long objectsOffset = HEADER_SIZE;
+    long dictOffset = objectsOffset + serialized.size();
+    // the weights are aligned, so that the doubles are aligned in the mapped pages
+    long weightsOffset = (dictOffset + dict.remaining() + 7) & ~7L;
+
+    RandomAccessFile raf = new RandomAccessFile(path, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      header.put(MAGIC);
+      header.putInt(VERSION);
+      header.putLong(objectsOffset);
+      header.putLong(serialized.size());
+      header.putLong(dictOffset);
+      header.putLong(dict.remaining());
+      header.putLong(weightsOffset);
+      header.putInt(weights.length);
+      header.rewind();
+      writeFully(channel, header, 0);
+      writeFully(channel, ByteBuffer.wrap(serialized.toByteArray()), objectsOffset);
+      writeFully(channel, dict, dictOffset);
+
+      ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+      long position = weightsOffset;
+      for (int row : order) {
+        if (buffer.remaining() < 4) {
+          position = flush(channel, buffer, position);
+        }
+        buffer.putInt(weights[row].length);
+      }
+      if ((order.length & 1) != 0) {
+        // pad the lengths, so that the doubles are aligned too
+        if (buffer.remaining() < 4) {
+          position = flush(channel, buffer, position);
+        }
+        buffer.putInt(0);
+      }
+      for (int row : order) {
+        for (double w : weights[row]) {
+          if (buffer.remaining() < 8) {
+            position = flush(channel, buffer, position);
+          }
+          buffer.putDouble(w);
+        }
+      }
+      flush(channel, buffer, position);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static long flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    buffer.flip();
+    int length = buffer.remaining();
+    writeFully(channel, buffer, position);
+    buffer.clear();
+    return position + length;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+}
@@ -1517,6 +1517,12 @@ public class CoreAnnotations {
       return String.class;
     }
   }
+  // morphoFeatureString parsed once, for the NER features
+  public static class LVMorphoFeaturesAnnotation implements CoreAnnotation<edu.stanford.nlp.sequences.LVMorphoFeatures> {
+    public Class<edu.stanford.nlp.sequences.LVMorphoFeatures> getType() {
+      return edu.stanford.nlp.sequences.LVMorphoFeatures.class;
+    }
+  }
   public static class LVFullTagAnnotation implements CoreAnnotation<String> {
     public Class<String> getType() {
       return String.class;
@@ -0,0 +1,330 @@
+package edu.stanford.nlp.math;
+
+import java.io.Serializable;
+
+/**
+ * A read-only matrix of trained weights, one row per feature, kept in
+ * compressed sparse row (CSR) form: the weights whose magnitude is below a
+ * threshold are dropped, and the rest are stored with their column (label)
+ * numbers, optionally quantized to 16 bit floats or to 8 bit integers with a
+ * scale per row.
+ * <p>
+ * The rows may have different lengths, as the weights of a CRF have, one per
+ * labeling of the clique of the feature. The classifiers score straight from
+ * this form with {@link #addRow}, which adds a row into an array of scores.
+ */
+public class CompactWeights implements WeightMatrix, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** How the weights that are kept are stored */
+  public enum Precision {
+    /** 8 bytes a weight: exact */
+    DOUBLE,
+    /** 2 bytes a weight: about 3 significant digits */
+    FLOAT16,
+    /** 1 byte a weight: 1/127 of the largest weight of its row */
+    INT8;
+
+    /**
+     * Parses a precision name, ignoring case; "half" and "float" are FLOAT16 and "byte" is INT8.
+     * A null name, as in the flags of models serialized before there was a choice, is DOUBLE.
+     */
+    public static Precision parse(String name) {
+      if (name == null) {
+        return DOUBLE;
+      }
+      String s = name.trim().toUpperCase();
+      if (s.equals("HALF") || s.equals("FLOAT")) {
+        return FLOAT16;
+      } else if (s.equals("BYTE")) {
+        return INT8;
+      }
+      return valueOf(s);
+    }
+  }
+
+  private final Precision precision;
+  private final int rows;
+  /** The length of every row, or -1 if they differ; then they are in rowLength */
+  private final int width;
+  private final int[] rowLength;
+  /** Row i is at [rowStart[i], rowStart[i+1]) of the column and value arrays */
+  private final int[] rowStart;
+  /** Columns in increasing order within each row: as chars if all rows are short enough, else as ints */
+  private final char[] shortColumns;
+  private final int[] columns;
+  private final double[] doubleValues;
+  private final short[] halfValues;
+  private final byte[] byteValues;
+  private final float[] rowScale;
+
+  /**
+   * Compacts a matrix of weights, which isn't changed.
+   *
+   * @param weights The weights, indexed by row (feature) and column (label)
+   * @param threshold Weights whose magnitude is less than or equal to this are dropped;
+   *          0 only drops the weights that are 0
+   * @param precision How the weights that are kept are stored
+   */
+  public CompactWeights(double[][] weights, double threshold, Precision precision) {
+    this.precision = precision;
+    rows = weights.length;
+    int commonWidth = rows == 0 ? 0 : weights[0].length;
+    int maxWidth = 0;
+    long kept = 0;
+    for (double[] row : weights) {
+      if (row.length != commonWidth) {
+        commonWidth = -1;
+      }
+      maxWidth = Math.max(maxWidth, row.length);
+      for (double w : row) {
+        if (Math.abs(w) > threshold) {
+          kept++;
+        }
+      }
+    }
+    if (kept > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many weights to compact: " + kept);
+    }
+    width = commonWidth;
+    if (width < 0) {
+      rowLength = new int[rows];
+      for (int i = 0; i < rows; i++) {
+        rowLength[i] = weights[i].length;
+      }
+    } else {
+      rowLength = null;
+    }
+    int n = (int) kept;
+    shortColumns = maxWidth <= Character.MAX_VALUE + 1 ? new char[n] : null;
+    columns = shortColumns == null ? new int[n] : null;
+    doubleValues = precision == Precision.DOUBLE ? new double[n] : null;
+    halfValues = precision == Precision.FLOAT16 ? new short[n] : null;
+    byteValues = precision == Precision.INT8 ? new byte[n] : null;
+    rowScale = precision == Precision.INT8 ? new float[rows] : null;
+
+    rowStart = new int[rows + 1];
+    int k = 0;
+    for (int i = 0; i < rows; i++) {
+      double[] row = weights[i];
+      if (precision == Precision.INT8) {
+        double max = 0.0;
+        for (double w : row) {
+          if (Math.abs(w) > threshold) {
+            max = Math.max(max, Math.abs(w));
+          }
+        }
+        rowScale[i] = (float) (max / 127.0);
+      }
+      for (int j = 0; j < row.length; j++) {
+        double w = row[j];
+        if (Math.abs(w) <= threshold) {
+          continue;
+        }
+        if (shortColumns != null) {
+          shortColumns[k] = (char) j;
+        } else {
+          columns[k] = j;
+        }
+        switch (precision) {
+        case DOUBLE:
+          doubleValues[k] = w;
+          break;
+        case FLOAT16:
+          halfValues[k] = toHalf((float) w);
+          break;
+        case INT8:
+          byteValues[k] = (byte) Math.round(w / rowScale[i]);
+          break;
+        }
+        k++;
+      }
+      rowStart[i + 1] = k;
+    }
+  }
+
+  public Precision precision() {
+    return precision;
+  }
+
+  /** The number of rows (features) */
+  public int rows() {
+    return rows;
+  }
+
+  /** The length of a row, counting the weights that were dropped */
+  public int length(int row) {
+    return width < 0 ? rowLength[row] : width;
+  }
+
+  /** The number of weights kept */
+  public int size() {
+    return rowStart[rows];
+  }
+
+  /** About how many bytes the arrays of this take */
+  public long bytes() {
+    long bytes = 4L * rowStart.length;
+    if (rowLength != null) {
+      bytes += 4L * rowLength.length;
+    }
+    bytes += shortColumns != null ? 2L * shortColumns.length : 4L * columns.length;
+    switch (precision) {
+    case DOUBLE:
+      bytes += 8L * doubleValues.length;
+      break;
+    case FLOAT16:
+      bytes += 2L * halfValues.length;
+      break;
+    case INT8:
+      bytes += byteValues.length + 4L * rowScale.length;
+      break;
+    }
+    return bytes;
+  }
+
+  private int column(int k) {
+    return shortColumns != null ? shortColumns[k] : columns[k];
+  }
+
+  private double value(int row, int k) {
+    switch (precision) {
+    case DOUBLE:
+      return doubleValues[k];
+    case FLOAT16:
+      return HALF_TO_FLOAT[halfValues[k] & 0xffff];
+    default:
+      return byteValues[k] * rowScale[row];
+    }
+  }
+
+  /** The weight of a row and column; 0 if it was dropped */
+  public double get(int row, int column) {
+    int lo = rowStart[row];
+    int hi = rowStart[row + 1] - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = column(mid);
+      if (c < column) {
+        lo = mid + 1;
+      } else if (c > column) {
+        hi = mid - 1;
+      } else {
+        return value(row, mid);
+      }
+    }
+    return 0.0;
+  }
+
+  /**
+   * Adds a row to an array of scores indexed by column, which must be at
+   * least as long as the row.
+   */
+  public void addRow(int row, double[] scores) {
+    int end = rowStart[row + 1];
+    int k = rowStart[row];
+    switch (precision) {
+    case DOUBLE:
+      for (; k < end; k++) {
+        scores[column(k)] += doubleValues[k];
+      }
+      break;
+    case FLOAT16:
+      for (; k < end; k++) {
+        scores[column(k)] += HALF_TO_FLOAT[halfValues[k] & 0xffff];
+      }
+      break;
+    case INT8:
+      float scale = rowScale[row];
+      for (; k < end; k++) {
+        scores[column(k)] += byteValues[k] * scale;
+      }
+      break;
+    }
+  }
+
+  /** A dense copy of a row */
+  public double[] row(int row) {
+    double[] result = new double[length(row)];
+    addRow(row, result);
+    return result;
+  }
+
+  /** A dense copy of all the weights, with 0 for the ones that were dropped */
+  public double[][] toArray() {
+    double[][] result = new double[rows][];
+    for (int i = 0; i < rows; i++) {
+      result[i] = row(i);
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    long cells = 0;
+    for (int i = 0; i < rows; i++) {
+      cells += length(i);
+    }
+    return "CompactWeights of " + rows + " rows, " + size() + " of " + cells + " weights kept as " + precision
+        + " in " + bytes() + " bytes";
+  }
+
+  private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+  static {
+    for (int h = 0; h < HALF_TO_FLOAT.length; h++) {
+      HALF_TO_FLOAT[h] = fromHalf((short) h);
+    }
+  }
+
+  /** The IEEE 754 binary16 float nearest to f, rounding to even */
+  static short toHalf(float f) {
+    int bits = Float.floatToIntBits(f);
+    int sign = (bits >>> 16) & 0x8000;
+    int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+    int mantissa = bits & 0x7fffff;
+    if (exponent >= 0x1f) {
+      // overflow, infinity or NaN
+      boolean nan = ((bits >>> 23) & 0xff) == 0xff && mantissa != 0;
+      return (short) (sign | 0x7c00 | (nan ? 0x200 : 0));
+    }
+    if (exponent <= 0) {
+      if (exponent < -10) {
+        return (short) sign;
+      }
+      // subnormal: shift the mantissa with its implicit bit into place
+      mantissa |= 0x800000;
+      int shift = 14 - exponent;
+      int half = mantissa >> shift;
+      int rest = mantissa & ((1 << shift) - 1);
+      int halfway = 1 << (shift - 1);
+      if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+        half++;
+      }
+      return (short) (sign | half);
+    }
+    int half = (exponent << 10) | (mantissa >> 13);
+    int rest = mantissa & 0x1fff;
+    if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+      half++; // may carry into the exponent, up to infinity, which is right
+    }
+    return (short) (sign | half);
+  }
+
+  /** The float value of an IEEE 754 binary16 float */
+  static float fromHalf(short h) {
+    int sign = (h & 0x8000) << 16;
+    int exponent = (h >>> 10) & 0x1f;
+    int mantissa = h & 0x3ff;
+    if (exponent == 0x1f) {
+      return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+    }
+    if (exponent == 0) {
+      float value = mantissa * 5.9604645e-8f; // 2^-24
+      return sign == 0 ? value : -value;
+    }
+    return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+  }
+
+}
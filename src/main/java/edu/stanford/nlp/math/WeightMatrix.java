@@ -0,0 +1,32 @@
+package edu.stanford.nlp.math;
+
+/**
+ * A read-only matrix of trained weights, one row per feature, that the
+ * classifiers score from in place of a <code>double[][]</code>: a
+ * {@link CompactWeights} on the heap, or the weights of a mapped model file.
+ * The rows may have different lengths, as the weights of a CRF have.
+ */
+public interface WeightMatrix {
+
+  /** How the weights are stored; DOUBLE if they are exact */
+  CompactWeights.Precision precision();
+
+  /** The number of rows (features) */
+  int rows();
+
+  /** The length of a row */
+  int length(int row);
+
+  /** The weight of a row and column */
+  double get(int row, int column);
+
+  /**
+   * Adds a row to an array of scores indexed by column, which must be at
+   * least as long as the row.
+   */
+  void addRow(int row, double[] scores);
+
+  /** A dense copy of all the weights */
+  double[][] toArray();
+
+}
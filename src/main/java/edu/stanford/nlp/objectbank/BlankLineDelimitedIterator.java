@@ -0,0 +1,166 @@
+package edu.stanford.nlp.objectbank;
+
+import edu.stanford.nlp.io.RuntimeIOException;
+import edu.stanford.nlp.util.Function;
+import edu.stanford.nlp.util.AbstractIterator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An Iterator over the documents of a Reader that are separated by blank
+ * lines (lines of whitespace only), each processed by a Function to produce
+ * an Object of type T.
+ * <p>
+ * It gives the same documents as a {@link DelimitRegExIterator} with the
+ * delimiter <code>"\n(?:\\s*\n)+"</code>, but reads the Reader only as far as
+ * the start of the next document, instead of reading all of it into memory
+ * first, so a corpus of any size can be iterated over in constant memory,
+ * and the first document is available as soon as it has been read.
+ * (Unlike DelimitRegExIterator, a Reader with no text gives no documents rather
+ * than one empty document.)
+ *
+ * @param <T> The type of the objects returned
+ */
+public class BlankLineDelimitedIterator<T> extends AbstractIterator<T> {
+
+  private final BufferedReader in;
+  private final Function<String,T> op;
+  private final StringBuilder document = new StringBuilder();
+  /** The first line of the document after the next one, if it has been read */
+  private String nextLine;
+  private boolean first = true;
+  private T nextToken; // = null;
+
+  public static BlankLineDelimitedIterator<String> defaultBlankLineDelimitedIterator(Reader in) {
+    return new BlankLineDelimitedIterator<String>(in, new IdentityFunction<String>());
+  }
+
+  public BlankLineDelimitedIterator(Reader r, Function<String,T> op) {
+    this.op = op;
+    this.in = new BufferedReader(r);
+    nextLine = skipBlankLines();
+    setNext();
+  }
+
+  private static boolean isBlank(String line) {
+    // the whitespace of the regular expression \s
+    for (int i = 0, len = line.length(); i < len; i++) {
+      switch (line.charAt(i)) {
+      case ' ': case '\t': case '\n': case '\u000B': case '\f': case '\r':
+        break;
+      default:
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return The next line that isn't blank, or null at the end of the Reader */
+  private String skipBlankLines() {
+    try {
+      String line;
+      while ((line = in.readLine()) != null && isBlank(line)) {
+        // skip
+      }
+      return line;
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
+  private void setNext() {
+    if (nextLine == null) {
+      nextToken = null;
+      return;
+    }
+    document.setLength(0);
+    document.append(nextLine);
+    try {
+      String line;
+      while ((line = in.readLine()) != null && !isBlank(line)) {
+        document.append('\n').append(line);
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+    nextLine = skipBlankLines();
+
+    // DelimitRegExIterator trims the whole text, i.e., the start of the first and the end of the last document
+    int start = 0;
+    int end = document.length();
+    if (first) {
+      while (start < end && document.charAt(start) <= ' ') {
+        start++;
+      }
+      first = false;
+    }
+    if (nextLine == null) {
+      while (end > start && document.charAt(end - 1) <= ' ') {
+        end--;
+      }
+    }
+    nextToken = parseString(document.substring(start, end));
+  }
+
+  protected T parseString(String s) {
+    return op.apply(s);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return nextToken != null;
+  }
+
+  @Override
+  public T next() {
+    if (nextToken == null) {
+      throw new NoSuchElementException("BlankLineDelimitedIterator exhausted");
+    }
+    T token = nextToken;
+    setNext();
+    return token;
+  }
+
+  public Object peek() {
+    return nextToken;
+  }
+
+  /**
+   * Returns a factory that vends BlankLineDelimitedIterators that read the contents of the
+   * given Reader, split at blank lines, apply op, then return the result.
+   */
+  public static <T> IteratorFromReaderFactory<T> getFactory(Function<String,T> op) {
+    return new BlankLineDelimitedIteratorFactory<T>(op);
+  }
+
+  public static class BlankLineDelimitedIteratorFactory<T> implements IteratorFromReaderFactory<T>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Function<String,T> op;
+
+    public BlankLineDelimitedIteratorFactory(Function<String,T> op) {
+      this.op = op;
+    }
+
+    public Iterator<T> getIterator(Reader r) {
+      return new BlankLineDelimitedIterator<T>(r, op);
+    }
+
+  }
+
+  public static void main(String[] args) {
+    String s = "@@123\nthis\nis\na\nsentence\n\n@@124\nThis\nis\nanother\n.\n\n@125\nThis\nis\nthe\nlast\n";
+    BlankLineDelimitedIterator<String> di = BlankLineDelimitedIterator.defaultBlankLineDelimitedIterator(new StringReader(s));
+    while (di.hasNext()) {
+      System.out.println("****\n" + di.next() + "\n****");
+    }
+  }
+
+}
@@ -0,0 +1,183 @@
+package edu.stanford.nlp.sequences;
+
+import java.util.Arrays;
+
+/**
+ * The beam search of {@link BeamBestSequenceFinder}, with the hypotheses kept in primitive arrays
+ * instead of a Beam of linked tag lists. A hypothesis is its last tag, the index of the hypothesis
+ * that it extends and its score; all the extensions of a position are scored into one array, and
+ * the best beamSize of them are picked by an in-place partial selection, instead of going through
+ * a heap one by one. Finds the same sequences as BeamBestSequenceFinder, with the same scores,
+ * apart from the choice among exactly tied hypotheses.
+ * The finder keeps no state between calls, so it can be shared by threads.
+ */
+public class ArrayBeamBestSequenceFinder implements BestSequenceFinder {
+
+  /** The beam size of the start positions with exhaustiveStart, as in BeamBestSequenceFinder */
+  private static final int EXHAUSTIVE_BEAM_SIZE = 100000;
+
+  private final int beamSize;
+  private final boolean exhaustiveStart;
+  private final boolean recenter;
+
+  public ArrayBeamBestSequenceFinder(int beamSize) {
+    this(beamSize, false, false);
+  }
+
+  public ArrayBeamBestSequenceFinder(int beamSize, boolean exhaustiveStart) {
+    this(beamSize, exhaustiveStart, false);
+  }
+
+  public ArrayBeamBestSequenceFinder(int beamSize, boolean exhaustiveStart, boolean recenter) {
+    this.beamSize = beamSize;
+    this.exhaustiveStart = exhaustiveStart;
+    this.recenter = recenter;
+  }
+
+  public int[] bestSequence(SequenceModel ts) {
+    // Set up tag options
+    int length = ts.length();
+    int leftWindow = ts.leftWindow();
+    int rightWindow = ts.rightWindow();
+    int padLength = length + leftWindow + rightWindow;
+    int[][] tags = new int[padLength][];
+    int[] tagNum = new int[padLength];
+    for (int pos = 0; pos < padLength; pos++) {
+      tags[pos] = ts.getPossibleValues(pos);
+      tagNum[pos] = tags[pos].length;
+    }
+
+    // the hypotheses of all the positions, one after another: the tag and the index of the parent
+    int[] hypTag = new int[Math.max(padLength * Math.min(beamSize, 64), 16)];
+    int[] hypParent = new int[hypTag.length];
+    int hypCount = 0;
+    // the scores of the hypotheses of the current position, and of their extensions
+    double[] scores = new double[Math.max(beamSize, 1)];
+    double[] candidates = new double[scores.length * 8];
+    int[] order = new int[candidates.length];
+    int[] window = new int[padLength];
+
+    int size = 1; // the empty hypothesis
+    int first = -1; // the index of the first hypothesis of the previous position
+    scores[0] = 0.0;
+    for (int pos = 0; pos < padLength; pos++) {
+      int n = size * tagNum[pos];
+      if (candidates.length < n) {
+        candidates = new double[Math.max(n, candidates.length * 2)];
+        order = new int[candidates.length];
+      }
+      boolean scored = pos >= leftWindow + rightWindow;
+      // each hypothesis gets extended with each tag; extension c is of hypothesis c / tagNum[pos]
+      for (int i = 0, c = 0; i < size; i++) {
+        if (scored) {
+          int h = first + i;
+          for (int q = pos - 1; q >= pos - leftWindow - rightWindow; q--) {
+            window[q] = hypTag[h];
+            h = hypParent[h];
+          }
+        }
+        for (int t = 0; t < tagNum[pos]; t++, c++) {
+          if (scored) {
+            window[pos] = tags[pos][t];
+            candidates[c] = scores[i] + ts.scoreOf(window, pos - rightWindow);
+          } else {
+            candidates[c] = scores[i];
+          }
+          order[c] = c;
+        }
+      }
+
+      int capacity = (pos < leftWindow + rightWindow && exhaustiveStart) ? EXHAUSTIVE_BEAM_SIZE : beamSize;
+      int kept = Math.min(n, capacity);
+      if (kept == 0) {
+        System.err.println("Beam empty -- no best sequence.");
+        return null;
+      }
+      if (kept < n) {
+        selectBest(candidates, order, n, kept);
+      }
+
+      // the kept extensions become the hypotheses of this position
+      if (hypTag.length < hypCount + kept) {
+        int grown = Math.max(hypCount + kept, hypTag.length * 2);
+        hypTag = Arrays.copyOf(hypTag, grown);
+        hypParent = Arrays.copyOf(hypParent, grown);
+      }
+      if (scores.length < kept) {
+        scores = new double[kept];
+      }
+      double max = Double.NEGATIVE_INFINITY;
+      for (int j = 0; j < kept; j++) {
+        int c = order[j];
+        hypTag[hypCount + j] = tags[pos][c % tagNum[pos]];
+        hypParent[hypCount + j] = first + c / tagNum[pos];
+        scores[j] = candidates[c];
+        if (scores[j] > max) {
+          max = scores[j];
+        }
+      }
+      if (recenter) {
+        for (int j = 0; j < kept; j++) {
+          scores[j] -= max;
+        }
+      }
+      first = hypCount;
+      hypCount += kept;
+      size = kept;
+    }
+
+    // follow the parents of the best hypothesis of the last position
+    int best = 0;
+    for (int j = 1; j < size; j++) {
+      if (scores[j] > scores[best]) {
+        best = j;
+      }
+    }
+    int[] sequence = new int[padLength];
+    for (int pos = padLength - 1, h = first + best; pos >= 0; pos--) {
+      sequence[pos] = hypTag[h];
+      h = hypParent[h];
+    }
+    return sequence;
+  }
+
+  /**
+   * Rearranges the first n entries of order, which are indices into scores, so that the first k of them
+   * are those of the k highest scores, in no particular order. This is quickselect with Hoare partitioning
+   * around the middle entry, which needs no extra memory.
+   */
+  static void selectBest(double[] scores, int[] order, int n, int k) {
+    int lo = 0;
+    int hi = n - 1;
+    int target = k - 1;
+    while (lo < hi) {
+      double pivot = scores[order[(lo + hi) >>> 1]];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (scores[order[i]] > pivot) {
+          i++;
+        }
+        while (scores[order[j]] < pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int swap = order[i];
+          order[i] = order[j];
+          order[j] = swap;
+          i++;
+          j--;
+        }
+      }
+      // now order[lo..j] score at least the pivot, order[i..hi] at most, and those in between equal it
+      if (target <= j) {
+        hi = j;
+      } else if (target >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+}
@@ -206,7 +206,6 @@ public class BeamBestSequenceFinder implements BestSequenceFinder {
       }
       // each hypothesis gets extended and beamed
       for (Iterator beamI = oldBeam.iterator(); beamI.hasNext();) {
-          System.out.print("#"); System.out.flush();
         TagSeq tagSeq = (TagSeq) beamI.next();
         for (int nextTagNum = 0; nextTagNum < tagNum[pos]; nextTagNum++) {
           TagSeq nextSeq = tagSeq.tclone();
@@ -223,7 +222,6 @@ public class BeamBestSequenceFinder implements BestSequenceFinder {
           //System.out.println("Best is: "+((Scored)newBeam.iterator().next()).score());
         }
       }
-      System.out.println(" done");
       if (recenter) {
         double max = Double.NEGATIVE_INFINITY;
         for (Iterator beamI = newBeam.iterator(); beamI.hasNext();) {
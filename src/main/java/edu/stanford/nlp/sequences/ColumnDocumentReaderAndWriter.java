@@ -11,7 +11,7 @@ import java.util.regex.Pattern;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.ling.CoreAnnotations.AnswerAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.GoldAnswerAnnotation;
-import edu.stanford.nlp.objectbank.DelimitRegExIterator;
+import edu.stanford.nlp.objectbank.BlankLineDelimitedIterator;
 import edu.stanford.nlp.objectbank.IteratorFromReaderFactory;
 import edu.stanford.nlp.util.Function;
 import edu.stanford.nlp.util.StringUtils;
@@ -38,14 +38,14 @@ public class ColumnDocumentReaderAndWriter implements DocumentReaderAndWriter<Co
 
   public void init(SeqClassifierFlags flags) {
     this.map = StringUtils.mapStringToArray(flags.map);
-    factory = DelimitRegExIterator.getFactory("\n(?:\\s*\n)+", new ColumnDocParser());
+    factory = BlankLineDelimitedIterator.getFactory(new ColumnDocParser());
   }
 
 
   public void init(String map) {
 //    this.flags = null;
     this.map = StringUtils.mapStringToArray(map);
-    factory = DelimitRegExIterator.getFactory("\n(\\s*\n)+", new ColumnDocParser());
+    factory = BlankLineDelimitedIterator.getFactory(new ColumnDocParser());
   }
 
   public Iterator<List<CoreLabel>> getIterator(Reader r) {
@@ -1,11 +1,29 @@
 package edu.stanford.nlp.sequences;
 
 import edu.stanford.nlp.stats.ClassicCounter;
-import edu.stanford.nlp.stats.Counters;
+import edu.stanford.nlp.util.ScoredObject;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 /**
+ * Finds the k best tag sequences of a SequenceModel.
+ * <p>
+ * A forward Viterbi pass keeps just the best score and back-pointer of each state, a state being
+ * the tags of the last max(leftWindow, 1) positions; the scores of the transitions are asked from
+ * the model as they are needed instead of being stored. The 2nd to k-th best sequences are then
+ * enumerated lazily, best first, as in Algorithm 3 of Huang and Chiang (2005), "Better k-best
+ * parsing": only the states that the k sequences go through get a list of their ranked partial
+ * sequences and a heap of candidates for the next one. With leftWindow 1 the memory is
+ * proportional to k * length * tags, instead of the tags^2 window scores of every position.
+ *
  * @author Jenny Finkel
  */
 public class KBestSequenceFinder implements BestSequenceFinder {
@@ -16,202 +34,304 @@ public class KBestSequenceFinder implements BestSequenceFinder {
    * @return an array containing the int tags of the best sequence
    */
   public int[] bestSequence(SequenceModel ts) {
-    return Counters.argmax(kBestSequences(ts, 1));
+    List<ScoredObject<int[]>> best = kBestSequenceList(ts, 1);
+    return best.isEmpty() ? null : best.get(0).object();
   }
-  
+
+  /**
+   * The same sequences as {@link #kBestSequenceList}, as a counter from the sequence arrays
+   * (which are compared by identity) to their scores.
+   */
   public ClassicCounter<int[]> kBestSequences(SequenceModel ts, int k) {
+    ClassicCounter<int[]> kBestWithScores = new ClassicCounter<int[]>();
+    for (ScoredObject<int[]> sequence : kBestSequenceList(ts, k)) {
+      kBestWithScores.setCount(sequence.object(), sequence.score());
+    }
+    return kBestWithScores;
+  }
 
-    // Set up tag options
-    int length = ts.length();
-    int leftWindow = ts.leftWindow();
-    int rightWindow = ts.rightWindow();
+  /**
+   * @return At most k tag sequences, best first, each scored by the sum of its scoresOf scores.
+   *         The arrays are indexed by the model positions, so the first token's tag is at leftWindow.
+   */
+  public List<ScoredObject<int[]>> kBestSequenceList(SequenceModel ts, int k) {
+    return new Search(ts).kBest(k);
+  }
 
-    assert (rightWindow == 0);
-    
-    int padLength = length + leftWindow + rightWindow;
+  /** A ranked partial sequence that isn't known yet: the previous state, and which of its partial sequences */
+  private static class Candidate {
+    final double score;
+    final int pred;
+    final int rank;
 
-    int[][] tags = new int[padLength][];
-    int[] tagNum = new int[padLength];    
-    for (int pos = 0; pos < padLength; pos++) {
-      tags[pos] = ts.getPossibleValues(pos);
-      tagNum[pos] = tags[pos].length;
+    Candidate(double score, int pred, int rank) {
+      this.score = score;
+      this.pred = pred;
+      this.rank = rank;
     }
+  }
 
-    int[] tempTags = new int[padLength];
+  private static final Comparator<Candidate> BEST_FIRST = new Comparator<Candidate>() {
+    public int compare(Candidate a, Candidate b) {
+      return Double.compare(b.score, a.score);
+    }
+  };
 
-    // Set up product space sizes
-    int[] productSizes = new int[padLength];
+  /** The ranked partial sequences ending in a state, found so far */
+  private static class Node {
+    double[] score = new double[2];
+    int[] pred = new int[2];
+    int[] rank = new int[2];
+    int size;
+    /** How many of the partial sequences have had their successor put among the candidates */
+    int expanded;
+    boolean exhausted;
+    /** The transition scores from the previous states, by the previous state's oldest tag */
+    double[] edge;
+    PriorityQueue<Candidate> candidates;
 
-    int curProduct = 1;
-    for (int i = 0; i < leftWindow; i++) {
-      curProduct *= tagNum[i];
-    }
-    for (int pos = leftWindow; pos < padLength; pos++) {
-      if (pos > leftWindow + rightWindow) {
-        curProduct /= tagNum[pos - leftWindow - rightWindow - 1]; // shift off
+    void add(double s, int p, int r) {
+      if (size == score.length) {
+        score = Arrays.copyOf(score, size * 2);
+        pred = Arrays.copyOf(pred, size * 2);
+        rank = Arrays.copyOf(rank, size * 2);
       }
-      curProduct *= tagNum[pos]; // shift on
-      productSizes[pos - rightWindow] = curProduct;
+      score[size] = s;
+      pred[size] = p;
+      rank[size] = r;
+      size++;
     }
+  }
 
-    double[][] windowScore = new double[padLength][];
-    
-    // Score all of each window's options
-    for (int pos = leftWindow; pos < leftWindow + length; pos++) {
-      windowScore[pos] = new double[productSizes[pos]];
+  /**
+   * The trellis of one sequence. Layer 0 holds the start states (the padding before the first token),
+   * layer l the states at position start + l - 1. A state is numbered by its tags in mixed radix,
+   * the oldest tag being the most significant.
+   */
+  private static class Search {
+    private final SequenceModel ts;
+    private final int length;
+    private final int leftWindow;
+    private final int start;
+    private final int[][] tags;
+    private final int[] tagNum;
+    private final int[] tempTags;
+    /** the number of states in each layer */
+    private final int[] stateCount;
+    /** the number of states of the tags that a state shares with its predecessors, per layer */
+    private final int[] kept;
+    private final double[][] best;
+    private final int[][] back;
+    private final List<Map<Integer, Node>> nodes;
+
+    Search(SequenceModel ts) {
+      this.ts = ts;
+      length = ts.length();
+      leftWindow = ts.leftWindow();
+      assert (ts.rightWindow() == 0);
+      start = leftWindow;
+      int padLength = length + leftWindow + ts.rightWindow();
+      tags = new int[padLength][];
+      tagNum = new int[padLength];
+      for (int pos = 0; pos < padLength; pos++) {
+        tags[pos] = ts.getPossibleValues(pos);
+        tagNum[pos] = tags[pos].length;
+      }
+      tempTags = new int[padLength];
       Arrays.fill(tempTags, tags[0][0]);
 
-      for (int product = 0; product < productSizes[pos]; product++) {
-        int p = product;
-        int shift = 1;
-        for (int curPos = pos; curPos >= pos - leftWindow; curPos--) {
-          tempTags[curPos] = tags[curPos][p % tagNum[curPos]];
-          p /= tagNum[curPos];
-          if (curPos > pos) {
-            shift *= tagNum[curPos];
-          }
+      int window = Math.max(leftWindow, 1);
+      stateCount = new int[length + 1];
+      kept = new int[length + 1];
+      stateCount[0] = 1;
+      for (int pos = 0; pos < leftWindow; pos++) {
+        stateCount[0] *= tagNum[pos];
+      }
+      for (int l = 1; l <= length; l++) {
+        int pos = start + l - 1;
+        kept[l] = 1;
+        for (int q = pos - window + 1; q < pos; q++) {
+          kept[l] *= tagNum[q];
         }
-        if (tempTags[pos] == tags[pos][0]) {
-          // get all tags at once
-          double[] scores = ts.scoresOf(tempTags, pos);
-          // fill in the relevant windowScores
+        stateCount[l] = kept[l] * tagNum[pos];
+      }
+
+      best = new double[length + 1][];
+      back = new int[length + 1][];
+      nodes = new ArrayList<Map<Integer, Node>>(length + 1);
+      for (int l = 0; l <= length; l++) {
+        nodes.add(new HashMap<Integer, Node>());
+      }
+      viterbi();
+    }
+
+    /** The scores of all the tags at pos, following the tags of state p of the previous layer */
+    private double[] scoresAfter(int p, int pos) {
+      for (int q = pos - 1; q >= pos - leftWindow; q--) {
+        tempTags[q] = tags[q][p % tagNum[q]];
+        p /= tagNum[q];
+      }
+      tempTags[pos] = tags[pos][0];
+      return ts.scoresOf(tempTags, pos);
+    }
+
+    private void viterbi() {
+      for (int l = 1; l <= length; l++) {
+        int pos = start + l - 1;
+        best[l] = new double[stateCount[l]];
+        back[l] = new int[stateCount[l]];
+        Arrays.fill(best[l], Double.NEGATIVE_INFINITY);
+        for (int p = 0; p < stateCount[l - 1]; p++) {
+          double predScore = (l == 1) ? 0 : best[l - 1][p];
+          if (predScore == Double.NEGATIVE_INFINITY) {
+            continue;
+          }
+          double[] scores = scoresAfter(p, pos);
+          int prefix = (p % kept[l]) * tagNum[pos];
           for (int t = 0; t < tagNum[pos]; t++) {
-            windowScore[pos][product + t * shift] = scores[t];
+            double score = predScore + scores[t];
+            if (score > best[l][prefix + t]) {
+              best[l][prefix + t] = score;
+              back[l][prefix + t] = p;
+            }
           }
         }
       }
     }
-    
-    // Set up score and backtrace arrays
-    double[][][] score = new double[padLength][][];
-    int[][][][] trace = new int[padLength][][][];
-    int[][] numWaysToMake = new int[padLength][];
-    for (int pos = 0; pos < padLength; pos++) {
-
-      score[pos] = new double[productSizes[pos]][];
-      trace[pos] = new int[productSizes[pos]][][]; // the 2 is for backtrace, and which of the k best for that backtrace
-
-      numWaysToMake[pos] = new int[productSizes[pos]];
-      Arrays.fill(numWaysToMake[pos], 1);
-      for (int product = 0; product < productSizes[pos]; product++) {
-        if (pos == leftWindow) {
-          numWaysToMake[pos][product] = 1;
-        } else if (pos > leftWindow) {
-          // loop over possible p redece ssor types
-          int sharedProduct = product / tagNum[pos];
-          int factor = productSizes[pos] / tagNum[pos];
-          
-          numWaysToMake[pos][product] = 0;
-          for (int newTagNum = 0; newTagNum < tagNum[pos - leftWindow - 1]; newTagNum++) {
-            int predProduct = newTagNum * factor + sharedProduct;
-            numWaysToMake[pos][product] += numWaysToMake[pos-1][predProduct];
-          }
-          if (numWaysToMake[pos][product] > k) { numWaysToMake[pos][product] = k; }
+
+    /** The node of a state, starting with its Viterbi partial sequence */
+    private Node node(int l, int s) {
+      Node v = nodes.get(l).get(s);
+      if (v == null) {
+        v = new Node();
+        if (best[l][s] > Double.NEGATIVE_INFINITY) {
+          v.add(best[l][s], back[l][s], 0);
         } else {
-          numWaysToMake[pos][product] = 1;
+          v.exhausted = true;
         }
-
-        score[pos][product] = new double[numWaysToMake[pos][product]];
-        trace[pos][product] = new int[numWaysToMake[pos][product]][2];
+        nodes.get(l).put(s, v);
       }
+      return v;
     }
-    
-    // Do forward Viterbi algorithm
-
-    // loop over the classification spot
-    for (int pos = leftWindow; pos < length + leftWindow; pos++) {
-      // loop over window product types
-      for (int product = 0; product < productSizes[pos]; product++) {
-        // check for initial spot
-        if (pos == leftWindow) {
-          // no predecessor type
-          score[pos][product][0] = windowScore[pos][product];
-          trace[pos][product][0][0] = -1;
-          trace[pos][product][0][1] = -1;
-        } else {
-          // loop over possible predecessor types/k-best
 
-          for (int k1 = 0; k1 < score[pos][product].length; k1++) {
-            score[pos][product][k1] = Double.NEGATIVE_INFINITY;
-            trace[pos][product][k1][0] = -1;
-            trace[pos][product][k1][1] = -1;
-          }
-          int sharedProduct = product / tagNum[pos + rightWindow];
-          int factor = productSizes[pos] / tagNum[pos + rightWindow];
-          for (int newTagNum = 0; newTagNum < tagNum[pos - leftWindow - 1]; newTagNum++) {
-            int predProduct = newTagNum * factor + sharedProduct;
-            for (int k1 = 0; k1 < score[pos-1][predProduct].length; k1++) {
-              double predScore = score[pos - 1][predProduct][k1] + windowScore[pos][product];
-              for (int k2 = 0; k2 < score[pos][product].length; k2++) {
-                if (predScore > score[pos][product][k2]) {
-                  System.arraycopy(score[pos][product], k2, score[pos][product], k2+1, score[pos][product].length-(k2+1));
-                  System.arraycopy(trace[pos][product], k2, trace[pos][product], k2+1, trace[pos][product].length-(k2+1)); 
-                  score[pos][product][k2] = predScore;
-                  trace[pos][product][k2]= new int[2];
-                  trace[pos][product][k2][0] = predProduct;
-                  trace[pos][product][k2][1] = k1;
-                  break;
-                }
-              }
-            }
-          }
+    /** The transitions into state s, and the first partial sequence through each of them that isn't Viterbi's */
+    private void initCandidates(Node v, int l, int s) {
+      int pos = start + l - 1;
+      int t = s % tagNum[pos];
+      int shared = s / tagNum[pos];
+      int preds = stateCount[l - 1] / kept[l];
+      v.edge = new double[preds];
+      v.candidates = new PriorityQueue<Candidate>(Math.max(preds, 1), BEST_FIRST);
+      for (int o = 0; o < preds; o++) {
+        int p = o * kept[l] + shared;
+        double predScore = (l == 1) ? 0 : best[l - 1][p];
+        if (predScore == Double.NEGATIVE_INFINITY) {
+          continue;
+        }
+        v.edge[o] = scoresAfter(p, pos)[t];
+        if (p != v.pred[0]) {
+          v.candidates.add(new Candidate(predScore + v.edge[o], p, 0));
         }
       }
     }
 
-    // Project the actual tag sequence
-    int[][] kBest = new int[k][padLength];
-    int[] whichDerivation = new int[k];
-    int[] bestCurrentProducts = new int[k];
-    double[] bestFinalScores = new double[k];
-    Arrays.fill(bestFinalScores, Double.NEGATIVE_INFINITY);
-
-    // just the last guy
-    for (int product = 0; product < productSizes[padLength - 1]; product++) {
-      for (int k1 = 0; k1 < score[padLength - 1][product].length; k1++) {
-        for (int k2 = 0; k2 < bestFinalScores.length; k2++) {
-          if (score[padLength - 1][product][k1] > bestFinalScores[k2]) {
-
-            System.arraycopy(bestFinalScores, k1, bestFinalScores, k1+1, bestFinalScores.length-(k1+1));
-            System.arraycopy(whichDerivation, k1, whichDerivation, k1+1, whichDerivation.length-(k1+1));
-            System.arraycopy(bestCurrentProducts, k1, bestCurrentProducts, k1+1, bestCurrentProducts.length-(k1+1));
-            
-            bestCurrentProducts[k2] = product;
-            whichDerivation[k2] = k1;
-            bestFinalScores[k2] = score[padLength - 1][product][k1];
+    /**
+     * Finds the partial sequences of state s in layer l up to the given rank, if there are that many.
+     * The partial sequences of the previous layers are found on the way, with an explicit stack
+     * instead of recursion, since documents can be long.
+     */
+    private boolean ensure(int l0, int s0, int r0) {
+      Deque<int[]> requests = new ArrayDeque<int[]>();
+      requests.push(new int[] {l0, s0, r0});
+      while (!requests.isEmpty()) {
+        int[] request = requests.peek();
+        int l = request[0], s = request[1], r = request[2];
+        Node v = node(l, s);
+        if (v.size > r || v.exhausted) {
+          requests.pop();
+          continue;
+        }
+        if (v.candidates == null) {
+          initCandidates(v, l, s);
+        }
+        boolean waiting = false;
+        while (v.expanded < v.size) {
+          int j = v.expanded;
+          if (l == 1) {
+            v.expanded++; // a start state has just one partial sequence
+            continue;
+          }
+          int p = v.pred[j], pr = v.rank[j] + 1;
+          Node u = node(l - 1, p);
+          if (u.size > pr) {
+            v.candidates.add(new Candidate(u.score[pr] + v.edge[p / kept[l]], p, pr));
+            v.expanded++;
+          } else if (u.exhausted) {
+            v.expanded++;
+          } else {
+            requests.push(new int[] {l - 1, p, pr});
+            waiting = true;
             break;
           }
         }
+        if (waiting) {
+          continue;
+        }
+        Candidate next = v.candidates.poll();
+        if (next == null) {
+          v.exhausted = true;
+        } else {
+          v.add(next.score, next.pred, next.rank);
+        }
       }
+      return node(l0, s0).size > r0;
     }
-    int[] lastProducts = new int[k];
-    System.arraycopy(bestCurrentProducts, 0, lastProducts, 0, lastProducts.length);
-    
-    for (int last = padLength - 1; last >= length - 1 && last >= 0; last--) {
-      for (int k1 = 0; k1 < lastProducts.length; k1++) {
-        kBest[k1][last] = tags[last][lastProducts[k1] % tagNum[last]];
-        lastProducts[k1] /= tagNum[last];
+
+    /** Follows the back-pointers of the partial sequence of the given rank of a last layer state */
+    private int[] sequence(int s, int r) {
+      int[] sequence = new int[tags.length];
+      for (int l = length; l >= 1; l--) {
+        int pos = start + l - 1;
+        sequence[pos] = tags[pos][s % tagNum[pos]];
+        Node v = nodes.get(l).get(s);
+        int p, pr;
+        if (v != null && v.size > r) {
+          p = v.pred[r];
+          pr = v.rank[r];
+        } else { // only the Viterbi partial sequence of an untouched state
+          p = back[l][s];
+          pr = 0;
+        }
+        s = p;
+        r = pr;
       }
-    }
-    for (int pos = padLength - 2; pos >= leftWindow; pos--) {
-      System.arraycopy(bestCurrentProducts, 0, lastProducts, 0, lastProducts.length);
-      Arrays.fill(bestCurrentProducts, -1);
-      for (int k1 = 0; k1 < lastProducts.length; k1++) {
-        bestCurrentProducts[k1] = trace[pos + 1][lastProducts[k1]][whichDerivation[k1]][0];
-        whichDerivation[k1] = trace[pos + 1][lastProducts[k1]][whichDerivation[k1]][1];
-        kBest[k1][pos - leftWindow] = tags[pos - leftWindow][bestCurrentProducts[k1] / (productSizes[pos] / tagNum[pos - leftWindow])];
+      for (int pos = start - 1; pos >= 0; pos--) {
+        sequence[pos] = tags[pos][s % tagNum[pos]];
+        s /= tagNum[pos];
       }
+      return sequence;
     }
 
-    ClassicCounter<int[]> kBestWithScores = new ClassicCounter<int[]>();
-    for (int i = 0; i < kBest.length; i++) {
-      if(bestFinalScores[i] > Double.NEGATIVE_INFINITY) {
-        kBestWithScores.setCount(kBest[i], bestFinalScores[i]);
-        //System.err.println(bestFinalScores[i]+"\t"+Arrays.toString(kBest[i]));
+    List<ScoredObject<int[]>> kBest(int k) {
+      List<ScoredObject<int[]>> result = new ArrayList<ScoredObject<int[]>>();
+      if (length == 0 || k <= 0) {
+        return result;
       }
+      PriorityQueue<Candidate> ends = new PriorityQueue<Candidate>(stateCount[length], BEST_FIRST);
+      for (int s = 0; s < stateCount[length]; s++) {
+        if (best[length][s] > Double.NEGATIVE_INFINITY) {
+          ends.add(new Candidate(best[length][s], s, 0));
+        }
+      }
+      while (result.size() < k && !ends.isEmpty()) {
+        Candidate c = ends.poll();
+        result.add(new ScoredObject<int[]>(sequence(c.pred, c.rank), c.score));
+        if (result.size() < k && ensure(length, c.pred, c.rank + 1)) {
+          ends.add(new Candidate(node(length, c.pred).score[c.rank + 1], c.pred, c.rank + 1));
+        }
+      }
+      return result;
     }
-    
-    return kBestWithScores;
   }
-  
+
 }
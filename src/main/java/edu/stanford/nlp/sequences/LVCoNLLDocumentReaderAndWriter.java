@@ -36,13 +36,14 @@ import edu.stanford.nlp.ling.CoreAnnotations.ExtraColumnAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.LVFullTagAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.LVGazAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.LVGazFileAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.LVMorphoFeaturesAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.LabelAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.MorphologyFeatureStringAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.NamedEntityTagAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.NamedEntityTagGoldAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.ParentAnnotation;
 import edu.stanford.nlp.ling.CoreLabel;
-import edu.stanford.nlp.objectbank.DelimitRegExIterator;
+import edu.stanford.nlp.objectbank.BlankLineDelimitedIterator;
 import edu.stanford.nlp.objectbank.IteratorFromReaderFactory;
 import edu.stanford.nlp.util.Function;
 import edu.stanford.nlp.util.StringUtils;
@@ -77,7 +78,7 @@ public class LVCoNLLDocumentReaderAndWriter implements DocumentReaderAndWriter<C
   
   public void init(SeqClassifierFlags flags) {
 	  this.flags = flags;
-	  factory = DelimitRegExIterator.getFactory("\n(?:\\s*\n)+", new ConlllDocParser());
+	  factory = BlankLineDelimitedIterator.getFactory(new ConlllDocParser());
   }
 
 
@@ -138,11 +139,13 @@ public class LVCoNLLDocumentReaderAndWriter implements DocumentReaderAndWriter<C
 
 
 	  /** 
+	   * Builds the token of a single input line, so that a document can be read line by line as it arrives;
+	   * a blank or single column line is a sentence boundary.
 	   *
 	   *  @param line A line of CoNLL input
 	   *  @return The constructed token
 	   */
-	  private CoreLabel makeCoreLabel(String line) {
+	  public CoreLabel makeCoreLabel(String line) {
 	    CoreLabel wi = new CoreLabel();
 	    line = line.trim();				//TODO empty simple morpho tag fix
 	    String[] bits = line.split("\t");//String[] bits = line.split("\\s+"); 
@@ -161,6 +164,9 @@ public class LVCoNLLDocumentReaderAndWriter implements DocumentReaderAndWriter<C
 	    	if (!bits[4].isEmpty()) tag = bits[4].substring(0,1); 
 	    	wi.setTag(tag);
 	    	wi.set(MorphologyFeatureStringAnnotation.class, bits[5]);
+	    	if (flags != null && flags.useMorphologyFeatures) {
+	    		wi.set(LVMorphoFeaturesAnnotation.class, LVMorphoFeatures.parse(bits[5]));
+	    	}
 	    	//wi.set(ParentAnnotation);
 	    	if (bits.length >= 7) {
 	    		//syntax
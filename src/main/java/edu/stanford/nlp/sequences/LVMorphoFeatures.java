@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright 2014 Institute of Mathematics and Computer Science, University of Latvia
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package edu.stanford.nlp.sequences;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.stanford.nlp.ling.CoreAnnotations.LVMorphoFeaturesAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.MorphologyFeatureStringAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+
+/**
+ * The attributes of a token's morphology feature string (MorphologyFeatureStringAnnotation, e.g.
+ * "Vārdšķira=Lietvārds|Locījums=Nominatīvs|...") that the NER features use, parsed once per token.
+ * <p>
+ * The case, number and part of speech, which have only the few values of the tag set, are kept as ids
+ * in a table shared by all the tokens, and the table holds the MORPHO-* feature names of every value
+ * for the current, previous and next token, so that NERFeatureFactory neither splits the string again
+ * nor concatenates these names at every position. The LETA lemma is an open class, so it is kept as
+ * it is, and its feature names are made when they are asked for.
+ * The records are immutable and the table is thread-safe.
+ */
+public final class LVMorphoFeatures {
+	public static final int CASE = 0;
+	public static final int NUMBER = 1;
+	public static final int POS = 2;
+	public static final int LETA_LEMMA = 3;
+
+	/** The token positions of the feature names: the current, previous and next token */
+	public static final int CURRENT = 0;
+	public static final int PREVIOUS = 1;
+	public static final int NEXT = 2;
+
+	/** The attribute name prefixes in the feature string; the value is the rest of the item, as before */
+	private static final String[] ATTRIBUTES = {"Locījums", "Skaitlis", "Vārdšķira", "LETA_lemma"};
+	private static final String[] FEATURE_PREFIXES = {"MORPHO-CASE-", "MORPHO-NUMBER-", "MORPHO-POS-", "MORPHO-LETA-LEMMA-"};
+	private static final String[] POSITION_NAMES = {"C-", "P-", "N-"};
+
+	/** The attributes before this one are interned */
+	private static final int INTERNED = LETA_LEMMA;
+
+	private static final Values[] values = new Values[INTERNED];
+	static {
+		for (int a = 0; a < INTERNED; a++) {
+			values[a] = new Values(FEATURE_PREFIXES[a]);
+		}
+	}
+
+	/** The record of a token without a feature string; every value is the empty string */
+	public static final LVMorphoFeatures EMPTY = new LVMorphoFeatures(new int[INTERNED], "");
+
+	/** The interned values of an attribute, with their feature names; id 0 is the missing value "" */
+	private static class Values {
+		private final String prefix;
+		private final Map<String, Integer> ids = new HashMap<String, Integer>();
+		/** By id, the value followed by its feature names at each position */
+		private volatile String[][] names = new String[16][];
+		private int size;
+
+		Values(String prefix) {
+			this.prefix = prefix;
+			id("");
+		}
+
+		synchronized int id(String value) {
+			Integer id = ids.get(value);
+			if (id != null) {
+				return id;
+			}
+			String[][] n = names;
+			if (size == n.length) {
+				n = Arrays.copyOf(n, size * 2);
+			}
+			String[] entry = new String[1 + POSITION_NAMES.length];
+			entry[0] = value;
+			for (int position = 0; position < POSITION_NAMES.length; position++) {
+				entry[1 + position] = prefix + POSITION_NAMES[position] + value;
+			}
+			n[size] = entry;
+			names = n; // publishes the new entry to the unsynchronized readers
+			ids.put(entry[0], size);
+			return size++;
+		}
+
+		String get(int id, int index) {
+			return names[id][index];
+		}
+	}
+
+	private final int[] ids;
+	private final String letaLemma;
+
+	private LVMorphoFeatures(int[] ids, String letaLemma) {
+		this.ids = ids;
+		this.letaLemma = letaLemma;
+	}
+
+	/**
+	 * Parses a morphology feature string; an item starting with an attribute name gives the attribute
+	 * the rest of the item (the last such item wins), and missing attributes get the empty string.
+	 */
+	public static LVMorphoFeatures parse(String featureString) {
+		if (featureString == null) {
+			return EMPTY;
+		}
+		int[] ids = new int[INTERNED];
+		String letaLemma = "";
+		for (int start = 0, length = featureString.length(); start < length; ) {
+			int end = featureString.indexOf('|', start);
+			if (end < 0) {
+				end = length;
+			}
+			for (int a = 0; a < ATTRIBUTES.length; a++) {
+				if (featureString.startsWith(ATTRIBUTES[a], start)) {
+					String value = featureString.substring(start + ATTRIBUTES[a].length(), end);
+					if (a < INTERNED) {
+						ids[a] = values[a].id(value);
+					} else {
+						letaLemma = value;
+					}
+				}
+			}
+			start = end + 1;
+		}
+		return new LVMorphoFeatures(ids, letaLemma);
+	}
+
+	/**
+	 * The record of a token: the one made when it was read, or else parsed from its feature string
+	 * now and kept in the token. A token without a feature string is left as it is.
+	 */
+	public static LVMorphoFeatures of(CoreLabel token) {
+		LVMorphoFeatures features = token.get(LVMorphoFeaturesAnnotation.class);
+		if (features == null) {
+			String featureString = token.get(MorphologyFeatureStringAnnotation.class);
+			if (featureString == null) {
+				return EMPTY;
+			}
+			features = parse(featureString);
+			token.set(LVMorphoFeaturesAnnotation.class, features);
+		}
+		return features;
+	}
+
+	/** The value of an attribute, "" if the token doesn't have it */
+	public String value(int attribute) {
+		if (attribute == LETA_LEMMA) {
+			return letaLemma;
+		}
+		return values[attribute].get(ids[attribute], 0);
+	}
+
+	/** The feature name of an attribute's value at a token position, e.g. "MORPHO-CASE-P-=Ģenitīvs" */
+	public String feature(int attribute, int position) {
+		if (attribute == LETA_LEMMA) {
+			return FEATURE_PREFIXES[LETA_LEMMA] + POSITION_NAMES[position] + letaLemma;
+		}
+		return values[attribute].get(ids[attribute], 1 + position);
+	}
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright 2014 Institute of Mathematics and Computer Science, University of Latvia
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package edu.stanford.nlp.sequences;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lv.semti.morphology.analyzer.Word;
+import lv.semti.morphology.analyzer.Wordform;
+
+/**
+ * Size-bounded, thread-safe LRU cache of morphological analyses by token, with their statistically best wordform.
+ * <p>
+ * The cached analyses are never handed out: every hit returns a copy, because the taggers and MorphoPipe
+ * change the wordforms that they get (removeNonlexicalAttributes, addAttribute...).
+ * The cache is split into segments by the hash of the token, each an access-ordered LinkedHashMap under its own lock,
+ * so that the tagging threads rarely wait for each other.
+ */
+public class LVMorphologyCache {
+	private static final int SEGMENTS = 16;
+
+	/** A cached analysis; the Word is only ever read */
+	private static class Cached {
+		final Word analysis;
+		final int best;
+
+		Cached(Word analysis, int best) {
+			this.analysis = analysis;
+			this.best = best;
+		}
+	}
+
+	private final Segment[] segments;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private static class Segment extends LinkedHashMap<String, Cached> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	/**
+	 * @param capacity - how many tokens are kept at most
+	 */
+	public LVMorphologyCache(int capacity) {
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS));
+	}
+
+	private Segment segment(String token) {
+		int h = token.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % SEGMENTS];
+	}
+
+	/** An analysis of a token and its statistically best wordform (or null, if it has none) */
+	public static class Analysis {
+		public final Word word;
+		public final Wordform best;
+
+		public Analysis(Word word, Wordform best) {
+			this.word = word;
+			this.best = best;
+		}
+	}
+
+	/**
+	 * A copy of the cached analysis of the token, which the caller may change, or null if it isn't cached.
+	 */
+	public Analysis get(String token) {
+		Segment s = segment(token);
+		Cached e;
+		synchronized (s) {
+			e = s.get(token);
+		}
+		if (e == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		Word copy = e.analysis.clone();
+		Wordform best = e.best < 0 ? null : copy.wordforms.get(e.best);
+		return new Analysis(copy, best);
+	}
+
+	/**
+	 * Caches an analysis; it must not be changed afterwards, so the caller should keep using a copy.
+	 * @param best - one of the wordforms of the analysis, or null
+	 */
+	public void put(String token, Word analysis, Wordform best) {
+		Cached e = new Cached(analysis, analysis.wordforms.indexOf(best));
+		Segment s = segment(token);
+		synchronized (s) {
+			s.put(token, e);
+		}
+	}
+
+	public void clear() {
+		for (Segment s : segments) {
+			synchronized (s) {
+				s.clear();
+			}
+		}
+	}
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				size += s.size();
+			}
+		}
+		return size;
+	}
+}
@@ -23,7 +23,10 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.regex.Pattern;
 
 import edu.stanford.nlp.ling.CoreAnnotations.LVMorphologyAnalysis;
@@ -32,7 +35,7 @@ import edu.stanford.nlp.ling.CoreAnnotations.TextAnnotation;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.ling.CoreAnnotations.AnswerAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.GoldAnswerAnnotation;
-import edu.stanford.nlp.objectbank.DelimitRegExIterator;
+import edu.stanford.nlp.objectbank.BlankLineDelimitedIterator;
 import edu.stanford.nlp.objectbank.IteratorFromReaderFactory;
 import edu.stanford.nlp.util.Function;
 import edu.stanford.nlp.util.StringUtils;
@@ -53,16 +56,24 @@ public class LVMorphologyReaderAndWriter implements DocumentReaderAndWriter<Core
 
   private static final long serialVersionUID = 4858022869289996959L;
   private static transient Analyzer analyzer = null;
+  /** Analyses of the tokens given as strings; null if caching is off */
+  private static volatile LVMorphologyCache cache = new LVMorphologyCache(50000);
+  /** How many analyzers the tagging threads may use at the same time; see setAnalyzerPoolSize */
+  private static int analyzerPoolSize = 1;
+  /** The analyzers of the tagging threads, starting with the shared one; null until it is needed */
+  private static volatile AnalyzerPool pool = null;
   private Collection<String> answerAttributes = null;
 
   private String[] map; // = null;
   private IteratorFromReaderFactory<List<CoreLabel>> factory;
 
 
-  public static void initAnalyzer(){
+  public static synchronized void initAnalyzer(){
 	  try {
 		  analyzer = new Analyzer(false);
 		  setAnalyzerDefaults();
+		  clearAnalysisCache();
+		  Statistics.getStatistics(); // load it now instead of racing for it from the tagging threads
 	  } catch (Exception e) {
 		  // TODO Auto-generated catch block
 		  e.printStackTrace();
@@ -80,34 +91,202 @@ public class LVMorphologyReaderAndWriter implements DocumentReaderAndWriter<Core
    * Instead of loading lexicon.xml in this class (as would happen automatically), provide a pre-loaded analyzer object to put in that singleton. 
    * @param preloaded
    */
-  public static void setPreloadedAnalyzer(Analyzer preloaded){
+  public static synchronized void setPreloadedAnalyzer(Analyzer preloaded){
 	  analyzer = preloaded;
+	  clearAnalysisCache();
+  }
+
+  /**
+   * Sets how many analyzers the tagging threads can use at the same time; 1 (the default) is just the shared analyzer.
+   * The analyzer is not thread-safe, so with only one of them the threads analyze one token at a time, which limits
+   * how well tagging scales with threads. The extra analyzers are made when the threads need them, with the settings
+   * of the shared one, and each loads its own lexicon, so the size is a trade between threads and memory;
+   * usually it is the number of tagging threads.
+   */
+  public static synchronized void setAnalyzerPoolSize(int size) {
+	  analyzerPoolSize = Math.max(1, size);
+	  pool = null;
+  }
+
+  /**
+   * Sets how many tokens the cache of analyses keeps (by default 50000); 0 turns the cache off.
+   * The analyses of frequent tokens and their most likely wordforms are reused instead of asking the analyzer
+   * (one token at a time, as it is not thread-safe) and the statistics every time.
+   */
+  public static synchronized void setAnalysisCacheSize(int size) {
+	  cache = size > 0 ? new LVMorphologyCache(size) : null;
+  }
+
+  /**
+   * The cache of analyses, for its hit and miss counts; null if it is off
+   */
+  public static LVMorphologyCache getAnalysisCache() {
+	  return cache;
+  }
+
+  /**
+   * Forget the cached analyses, e.g. after the analyzer settings have been changed
+   */
+  public static void clearAnalysisCache() {
+	  LVMorphologyCache c = cache;
+	  if (c != null) c.clear();
+	  synchronized (LVMorphologyReaderAndWriter.class) {
+		  pool = null; // the extra analyzers are made again, with the current settings
+	  }
   }
   
   /**
    * Getter for the currently used analyzer
    * @return
    */
-  public static Analyzer getAnalyzer() {
+  public static synchronized Analyzer getAnalyzer() {
       if (analyzer == null ) initAnalyzer();
       if (!analyzer.enableGuessing)
           System.err.println("Morphologic analyzer has disabled out-of-vocabulary guessing - this will reduce tagging accuracy");
       return analyzer;
   }
+
+  private static synchronized Analyzer analyzer() {
+      if (analyzer == null ) initAnalyzer();
+      return analyzer;
+  }
+
+  /**
+   * The analyzers that the tagging threads take turns with.
+   * The shared analyzer is one of them; it is still used under its lock, as other code may use it through getAnalyzer().
+   */
+  private static class AnalyzerPool {
+	  private final Analyzer shared;
+	  private final int size;
+	  private final BlockingQueue<Analyzer> idle = new LinkedBlockingQueue<Analyzer>();
+	  private int made = 1;
+
+	  AnalyzerPool(Analyzer shared, int size) {
+		  this.shared = shared;
+		  this.size = size;
+		  idle.add(shared);
+	  }
+
+	  /** An idle analyzer, a new one if there are fewer than size, or else the first one that is given back */
+	  Analyzer take() {
+		  Analyzer a = idle.poll();
+		  if (a != null) return a;
+		  boolean make;
+		  synchronized (this) {
+			  make = made < size;
+			  if (make) made++;
+		  }
+		  if (make) {
+			  try {
+				  a = new Analyzer(false);
+				  copySettings(shared, a);
+				  return a;
+			  } catch (Exception e) {
+				  System.err.println("Could not make another analyzer, the threads will share the ones there are: " + e);
+				  synchronized (this) {
+					  made = size; // don't try again
+				  }
+			  }
+		  }
+		  boolean interrupted = false;
+		  try {
+			  while (true) {
+				  try {
+					  return idle.take();
+				  } catch (InterruptedException e) {
+					  interrupted = true;
+				  }
+			  }
+		  } finally {
+			  if (interrupted) Thread.currentThread().interrupt();
+		  }
+	  }
+
+	  void give(Analyzer a) {
+		  idle.add(a);
+	  }
+  }
+
+  /** The analyzer settings that this project changes */
+  private static void copySettings(Analyzer from, Analyzer to) {
+	  to.enableVocative = from.enableVocative;
+	  to.enableGuessing = from.enableGuessing;
+	  to.enablePrefixes = from.enablePrefixes;
+	  to.enableAllGuesses = from.enableAllGuesses;
+	  to.guessVerbs = from.guessVerbs;
+	  to.guessParticiples = from.guessParticiples;
+	  to.guessInflexibleNouns = from.guessInflexibleNouns;
+  }
+
+  private static AnalyzerPool pool() {
+	  AnalyzerPool p = pool;
+	  if (p != null) return p;
+	  synchronized (LVMorphologyReaderAndWriter.class) {
+		  if (pool == null) pool = new AnalyzerPool(analyzer(), analyzerPoolSize);
+		  return pool;
+	  }
+  }
+
+  /**
+   * Analyzes a single token.
+   * The analyzer keeps an internal word cache and is not thread-safe, so every call has an analyzer of the pool
+   * (see setAnalyzerPoolSize) to itself.
+   */
+  public static Word analyze(String token) {
+	  AnalyzerPool p = pool();
+	  Analyzer a = p.take();
+	  try {
+		  synchronized (a) {
+			  return a.analyze(token);
+		  }
+	  } finally {
+		  p.give(a);
+	  }
+  }
+
+  /**
+   * Thread-safe wrapper for {@link Splitting#tokenize(Analyzer, String)}
+   */
+  public static LinkedList<Word> tokenize(String text) {
+	  AnalyzerPool p = pool();
+	  Analyzer a = p.take();
+	  try {
+		  synchronized (a) {
+			  return Splitting.tokenize(a, text);
+		  }
+	  } finally {
+		  p.give(a);
+	  }
+  }
+
+  /**
+   * Thread-safe wrapper for {@link Splitting#tokenizeSentences(Analyzer, String, int)}
+   */
+  public static LinkedList<LinkedList<Word>> tokenizeSentences(String text, int sentenceLengthCap) {
+	  AnalyzerPool p = pool();
+	  Analyzer a = p.take();
+	  try {
+		  synchronized (a) {
+			  return Splitting.tokenizeSentences(a, text, sentenceLengthCap);
+		  }
+	  } finally {
+		  p.give(a);
+	  }
+  }
   
   public void init(SeqClassifierFlags flags) {
     this.map = StringUtils.mapStringToArray(flags.map);
-    if (analyzer == null ) initAnalyzer();
+    analyzer();
     //answerAttributes = Arrays.asList(AttributeNames.i_PartOfSpeech, AttributeNames.i_Gender, AttributeNames.i_Number, AttributeNames.i_Case, AttributeNames.i_Izteiksme);
     //answerAttributes = Arrays.asList(flags.lvMorphoAnalyzerTag);
-    factory = DelimitRegExIterator.getFactory("\n(?:\\s*\n)+", new LVColumnDocParser(answerAttributes));
+    factory = BlankLineDelimitedIterator.getFactory(new LVColumnDocParser(answerAttributes));
   }
 
 
   public void init(String map) {
     this.map = StringUtils.mapStringToArray(map);
-    if (analyzer == null ) initAnalyzer();
-	factory = DelimitRegExIterator.getFactory("\n(?:\\s*\n)+", new LVColumnDocParser(answerAttributes));
+    analyzer();
+	factory = BlankLineDelimitedIterator.getFactory(new LVColumnDocParser(answerAttributes));
   }
 
   public Iterator<List<CoreLabel>> getIterator(Reader r) {
@@ -183,11 +362,45 @@ public class LVMorphologyReaderAndWriter implements DocumentReaderAndWriter<Core
    * @param answerAttributes
    */
   private static void applyLVmorphoanalysis(CoreLabel wi, Collection<String> answerAttributes) {
-	  Word analysis = analyzer.analyze(wi.word());
-	  applyLVmorphoanalysis(wi, analysis, answerAttributes);
+	  LVMorphologyCache c = cache;
+	  if (c == null) {
+		  Word analysis = analyze(wi.word());
+		  applyLVmorphoanalysis(wi, analysis, bestWordform(analysis), answerAttributes);
+		  return;
+	  }
+	  LVMorphologyCache.Analysis cached = c.get(wi.word());
+	  if (cached == null) {
+		  Word analysis = analyze(wi.word());
+		  Wordform best = bestWordform(analysis);
+		  // the cache keeps this one untouched, the token gets a copy
+		  c.put(wi.word(), analysis, best);
+		  Word copy = analysis.clone();
+		  cached = new LVMorphologyCache.Analysis(copy, best == null ? null : copy.wordforms.get(analysis.wordforms.indexOf(best)));
+	  }
+	  applyLVmorphoanalysis(wi, cached.word, cached.best, answerAttributes);
   }
+
+	/**
+	 * The statistically most likely of the wordforms of the analysis, or null if there are none
+	 */
+	private static Wordform bestWordform(Word analysis) {
+		Wordform mainwf = null;
+		double max_likelihood = -1;
+		for (Wordform wf : analysis.wordforms) {  // Paskatamies visus atrastos variantus un ņemam statistiski ticamāko
+			double estimate = Statistics.getStatistics().getEstimate(wf);
+			if (estimate > max_likelihood) {
+				max_likelihood = estimate;
+				mainwf = wf;
+			}
+		}
+		return mainwf;
+	}
   
 	private static void applyLVmorphoanalysis(CoreLabel wi, Word analysis, Collection<String> answerAttributes) {
+		applyLVmorphoanalysis(wi, analysis, bestWordform(analysis), answerAttributes);
+	}
+  
+	private static void applyLVmorphoanalysis(CoreLabel wi, Word analysis, Wordform mainwf, Collection<String> answerAttributes) {
 		String token = wi.word();
 	    if (!token.contains("<s>")) {
 	        String answer = wi.get(AnswerAnnotation.class);
@@ -207,16 +420,6 @@ public class LVMorphologyReaderAndWriter implements DocumentReaderAndWriter<Core
 				answer = TagSet.getTagSet().toTag(answerAV);
 	        }
 	        wi.set(AnswerAnnotation.class, answer);
-	        	        
-	        Wordform mainwf = null;
-			double max_likelihood = -1;
-			for (Wordform wf : analysis.wordforms) {  // Paskatamies visus atrastos variantus un ņemam statistiski ticamāko
-				double estimate = Statistics.getStatistics().getEstimate(wf);
-				if (estimate > max_likelihood) {
-					max_likelihood = estimate;
-					mainwf = wf;
-				}
-			}
 	        wi.set(LVMorphologyAnalysis.class, analysis);
 	        wi.set(LVMorphologyAnalysisBest.class, mainwf);
 	    }
@@ -249,8 +452,7 @@ public class LVMorphologyReaderAndWriter implements DocumentReaderAndWriter<Core
 	}
 
 	public static List<CoreLabel> analyzeSentence(String sentence) {
-	    if (analyzer == null ) initAnalyzer();
-	    List<Word> words = Splitting.tokenize(analyzer, sentence); 
+	    List<Word> words = tokenize(sentence);
 	    
 	    return analyzeSentence2(words);
 	}
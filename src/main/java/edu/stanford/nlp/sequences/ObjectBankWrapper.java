@@ -92,6 +92,22 @@ public class ObjectBankWrapper<IN extends CoreMap> extends ObjectBank<List<IN>>
     }
   }
 
+  /**
+   * Does to a single document what iterating over the wrapped ObjectBank does, for documents that
+   * are read some other way: splits it if it is longer than flags.maxDocSize and processes the parts.
+   *
+   * @return The processed parts of the document; none if it is empty
+   */
+  public List<List<IN>> processDocuments(List<IN> doc) {
+    List<List<IN>> docs = new ArrayList<List<IN>>();
+    docs.add(doc);
+    fixDocLengths(docs);
+    for (List<IN> part : docs) {
+      processDocument(part);
+    }
+    return docs;
+  }
+
   public List<IN> processDocument(List<IN> doc) {
     if (flags.mergeTags) { mergeTags(doc); }
     if (flags.iobTags) { iobTags(doc); }
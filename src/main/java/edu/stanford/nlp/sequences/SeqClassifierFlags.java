@@ -1,5 +1,7 @@
 package edu.stanford.nlp.sequences;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
@@ -59,6 +61,103 @@ import edu.stanford.nlp.util.ReflectionLoading;
  * features, after the first iteration - the first iteration is with QNSize).</td>
  * </tr>
  * <tr>
+ * <td>multiThreadGrad</td>
+ * <td>int</td>
+ * <td>1</td>
+ * <td>Number of threads that compute the CRF objective and gradient, each over
+ * its own share of the training documents. Every thread keeps its own copy of
+ * the expected counts, so memory use grows accordingly. For the CMMClassifier,
+ * the number of threads that build the training Dataset and compute the maxent
+ * objective; the trained model is the same as with one thread.</td>
+ * </tr>
+ * <tr>
+ * <td>compactDataset</td>
+ * <td>boolean</td>
+ * <td>false</td>
+ * <td>CMMClassifier: keep the training data in a CompactDataset (all feature
+ * indices in one array) instead of a Dataset, which needs much less memory
+ * for large corpora and gives the same model. Only for maxent training with
+ * QN or CG, without feature pruning, adaptation or featThreshFile.</td>
+ * </tr>
+ * <tr>
+ * <td>useTagDictionary</td>
+ * <td>boolean</td>
+ * <td>false</td>
+ * <td>CMMClassifier: in sequence decoding, consider at each position only the
+ * tags that the word had in the training data (for words seen at least
+ * tagDictionaryMinCount times) and those of its LV morphological analyses that
+ * aren't guesses. Words that are neither get all the tags. The dictionary is
+ * built from the training data and stored with the model, so it exists only
+ * if this is also set at training time; otherwise only the analyses are used.</td>
+ * </tr>
+ * <tr>
+ * <td>tagDictionaryMinCount</td>
+ * <td>int</td>
+ * <td>20</td>
+ * <td>How many times a word has to occur in the training data for its tags to
+ * be kept in the tag dictionary (useTagDictionary)</td>
+ * </tr>
+ * <tr>
+ * <td>featureHashing</td>
+ * <td>int</td>
+ * <td>0</td>
+ * <td>If a power of two (which can be given as 2^k), features are hashed into
+ * that many buckets (per clique for the CRFClassifier) instead of being kept
+ * in a feature index, both in training and in tagging, so the model has no
+ * feature dictionary at all. Features that share a bucket share their weights.
+ * Feature count thresholds and pruning aren't applied. 0 means no hashing.</td>
+ * </tr>
+ * <tr>
+ * <td>compactWeights</td>
+ * <td>boolean</td>
+ * <td>false</td>
+ * <td>After training, or after loading a model, replace the weights of the
+ * CMMClassifier or CRFClassifier by a sparse CompactWeights matrix, which
+ * drops the weights whose magnitude is at most compactWeightsThreshold and
+ * stores the rest with weightPrecision. The model is scored straight from it,
+ * and serialized with it.</td>
+ * </tr>
+ * <tr>
+ * <td>compactWeightsThreshold</td>
+ * <td>double</td>
+ * <td>1e-4</td>
+ * <td>The magnitude at or below which weights are dropped by compactWeights</td>
+ * </tr>
+ * <tr>
+ * <td>weightPrecision</td>
+ * <td>String</td>
+ * <td>double</td>
+ * <td>How compactWeights stores the weights it keeps: double, float16 (2 bytes)
+ * or int8 (1 byte, scaled by the largest weight of each feature). float16
+ * changes next to no tags; int8 changes a few in a thousand, so check it on
+ * held-out data first.</td>
+ * </tr>
+ * <tr>
+ * <td>combinerThreads</td>
+ * <td>int</td>
+ * <td>1</td>
+ * <td>Number of threads a ClassifierCombiner uses to run its base classifiers
+ * on a document at the same time. The output doesn't depend on it.</td>
+ * </tr>
+ * <tr>
+ * <td>morphoNextFeatures</td>
+ * <td>boolean</td>
+ * <td>false</td>
+ * <td>Give the MORPHO-*-N- features of useMorphoCase, useMorphoNumber,
+ * useMorphoPOS and useMorphoLetaLemma the next token's values. They used to
+ * be always empty, and models trained before this flag existed read it as
+ * false, so they keep getting the features they were trained with.</td>
+ * </tr>
+ * <tr>
+ * <td>serializeToMapped</td>
+ * <td>boolean</td>
+ * <td>false</td>
+ * <td>Write the serializeTo model as a memory-mapped MappedModel instead of a
+ * serialized object stream. loadClassifier recognizes such files and maps
+ * their feature index and weights instead of deserializing them. CRFClassifier, and
+ * CMMClassifier with a LinearClassifier.</td>
+ * </tr>
+ * <tr>
  * <td>useInPlaceSGD</td>
  * <td>boolean</td>
  * <td>false</td>
@@ -221,6 +320,15 @@ public class SeqClassifierFlags implements Serializable {
   public int QNsize = 25;
   public int QNsize2 = 25;
   public int maxIterations = -1;
+  public int multiThreadGrad = 1;
+  public boolean compactDataset = false;
+  public boolean useTagDictionary = false;
+  public int tagDictionaryMinCount = 20;
+  public int featureHashing = 0;
+  public boolean compactWeights = false;
+  public double compactWeightsThreshold = 1e-4;
+  public String weightPrecision = "double";
+  public int combinerThreads = 1;
 
   public int wordShape = WordShapeClassifier.NOWORDSHAPE;
   public boolean useShapeStrings = false;
@@ -444,6 +552,7 @@ public class SeqClassifierFlags implements Serializable {
   public transient String loadAuxClassifier = null;
   public transient String serializeTo = null;
   public transient String serializeToText = null;
+  public transient boolean serializeToMapped = false;
   public transient int interimOutputFreq = 0;
   public transient String initialWeights = null;
   public transient List<String> gazettes = new ArrayList<String>();
@@ -843,6 +952,15 @@ public class SeqClassifierFlags implements Serializable {
   public boolean useLVMorphoAnalyzerPrev = false;
   public boolean useLVMorphoAnalyzerItemIDs = false;
 
+  public boolean morphoNextFeatures = false;
+
+  /**
+   * True in the flags of this version. Models serialized before multiThreadGrad and the flags
+   * after it (compactWeightsThreshold and others) read it as false, and readObject gives those
+   * flags their defaults instead of 0 or null.
+   */
+  private boolean hasNewFlagDefaults = true;
+
   // "ADD VARIABLES ABOVE HERE"
 
   public transient List<String> phraseGazettes = null;
@@ -851,6 +969,19 @@ public class SeqClassifierFlags implements Serializable {
   public SeqClassifierFlags() {
   }
 
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if ( ! hasNewFlagDefaults) {
+      // flags that weren't in the stream are 0 or null, not the defaults above
+      if (multiThreadGrad == 0) multiThreadGrad = 1;
+      if (tagDictionaryMinCount == 0) tagDictionaryMinCount = 20;
+      if (compactWeightsThreshold == 0.0) compactWeightsThreshold = 1e-4;
+      if (weightPrecision == null) weightPrecision = "double";
+      if (combinerThreads == 0) combinerThreads = 1;
+      hasNewFlagDefaults = true;
+    }
+  }
+
   /**
    * Create a new SeqClassifierFlags object and initialize it using values in
    * the Properties object. The properties are printed to stderr as it works.
@@ -1312,6 +1443,8 @@ public class SeqClassifierFlags implements Serializable {
         serializeTo = val;
       } else if (key.equalsIgnoreCase("serializeToText")) {
         serializeToText = val;
+      } else if (key.equalsIgnoreCase("serializeToMapped")) {
+        serializeToMapped = Boolean.parseBoolean(val);
       } else if (key.equalsIgnoreCase("serializeDatasetsDir")) {
         serializeDatasetsDir = val;
       } else if (key.equalsIgnoreCase("loadDatasetsDir")) {
@@ -1369,6 +1502,28 @@ public class SeqClassifierFlags implements Serializable {
         QNsize = Integer.parseInt(val);
       } else if (key.equalsIgnoreCase("QNsize2")) {
         QNsize2 = Integer.parseInt(val);
+      } else if (key.equalsIgnoreCase("multiThreadGrad")) {
+        multiThreadGrad = Integer.parseInt(val);
+      } else if (key.equalsIgnoreCase("compactDataset")) {
+        compactDataset = Boolean.parseBoolean(val);
+      } else if (key.equalsIgnoreCase("useTagDictionary")) {
+        useTagDictionary = Boolean.parseBoolean(val);
+      } else if (key.equalsIgnoreCase("tagDictionaryMinCount")) {
+        tagDictionaryMinCount = Integer.parseInt(val);
+      } else if (key.equalsIgnoreCase("featureHashing")) {
+        String[] power = val.trim().split("\\^");
+        featureHashing = (power.length == 2 && power[0].trim().equals("2")) ? 1 << Integer.parseInt(power[1].trim()) : Integer.parseInt(val.trim());
+        if (featureHashing < 0 || Integer.bitCount(featureHashing) > 1) {
+          throw new IllegalArgumentException("featureHashing must be a power of two: " + val);
+        }
+      } else if (key.equalsIgnoreCase("compactWeights")) {
+        compactWeights = Boolean.parseBoolean(val);
+      } else if (key.equalsIgnoreCase("compactWeightsThreshold")) {
+        compactWeightsThreshold = Double.parseDouble(val);
+      } else if (key.equalsIgnoreCase("weightPrecision")) {
+        weightPrecision = val.trim();
+      } else if (key.equalsIgnoreCase("combinerThreads")) {
+        combinerThreads = Integer.parseInt(val);
       } else if (key.equalsIgnoreCase("l1reg")) {
         useQN = false;
         l1reg = Double.parseDouble(val);
@@ -2043,6 +2198,8 @@ public class SeqClassifierFlags implements Serializable {
     	  useMorphoLetaLemma = Boolean.parseBoolean(val);
       } else if (key.equalsIgnoreCase("useMorphoNumber")) {
     	  useMorphoNumber = Boolean.parseBoolean(val);
+      } else if (key.equalsIgnoreCase("morphoNextFeatures")) {
+        morphoNextFeatures = Boolean.parseBoolean(val);
 
         // ADD VALUE ABOVE HERE
       } else if (key.length() > 0 && !key.equals("prop")) {
@@ -0,0 +1,207 @@
+package edu.stanford.nlp.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An {@link Index} of feature Strings that keeps no Strings at all: the index
+ * of a feature is a hash of its characters, taken modulo the number of buckets
+ * (the "hashing trick"). So every String has an index, and features that hash
+ * to the same bucket are one and the same feature for the classifier that
+ * uses this index.
+ * <p>
+ * The buckets can be split into blocks, one per kind of feature (such as the
+ * cliques of a CRF, which have weights of different sizes), as chosen by
+ * {@link #block}; a feature is hashed into the buckets of its block.
+ * <p>
+ * The index is always locked, and its size is fixed. {@link #get} gives a
+ * made-up name of the bucket, as the features themselves aren't known.
+ */
+public class FeatureHashIndex implements Index<String> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int bits;
+  private final int blocks;
+
+  /**
+   * @param buckets The number of buckets, a power of two
+   */
+  public FeatureHashIndex(int buckets) {
+    this(buckets, 1);
+  }
+
+  /**
+   * @param buckets The number of buckets of each block, a power of two
+   * @param blocks The number of blocks
+   */
+  protected FeatureHashIndex(int buckets, int blocks) {
+    if (buckets <= 0 || Integer.bitCount(buckets) != 1) {
+      throw new IllegalArgumentException("The number of buckets must be a power of two, not " + buckets);
+    }
+    if ((long) buckets * blocks > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(blocks + " blocks of " + buckets + " buckets are too many");
+    }
+    this.bits = Integer.numberOfTrailingZeros(buckets);
+    this.blocks = blocks;
+  }
+
+  /** The number of buckets of each block */
+  public int buckets() {
+    return 1 << bits;
+  }
+
+  /** The block of the bucket with the given index */
+  public int blockOf(int index) {
+    return index >>> bits;
+  }
+
+  /** The block that a feature is hashed into; there is only one, unless a subclass says otherwise */
+  protected int block(String feature) {
+    return 0;
+  }
+
+  /**
+   * MurmurHash3 (x86, 32 bit) of the UTF-16 characters of a String, two at a time.
+   * It is much better spread than String.hashCode, whose low bits collide for
+   * similar short strings, such as the n-grams of words.
+   */
+  public static int hash(String s) {
+    int h = 0x9747b28c;
+    int length = s.length();
+    int i = 0;
+    for (; i + 1 < length; i += 2) {
+      h = mix(h, s.charAt(i) | (s.charAt(i + 1) << 16));
+      h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+    }
+    if (i < length) {
+      h = mix(h, s.charAt(i));
+    }
+    h ^= length * 2;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  private static int mix(int h, int k) {
+    k *= 0xcc9e2d51;
+    k = Integer.rotateLeft(k, 15);
+    k *= 0x1b873593;
+    return h ^ k;
+  }
+
+  public int size() {
+    return blocks << bits;
+  }
+
+  /** A name of the bucket; not any of the features in it */
+  public String get(int i) {
+    if (i < 0 || i >= size()) {
+      throw new ArrayIndexOutOfBoundsException("Index " + i + " outside the bounds [0," + size() + ")");
+    }
+    return "#" + i;
+  }
+
+  public int indexOf(String o) {
+    if (o == null) {
+      return -1;
+    }
+    return (block(o) << bits) | (hash(o) & ((1 << bits) - 1));
+  }
+
+  /** The index is fixed, so this is the same as indexOf(o) */
+  public int indexOf(String o, boolean add) {
+    return indexOf(o);
+  }
+
+  /** A view of the bucket names */
+  public List<String> objectsList() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return FeatureHashIndex.this.get(index);
+      }
+
+      @Override
+      public int size() {
+        return FeatureHashIndex.this.size();
+      }
+    };
+  }
+
+  public Collection<String> objects(final int[] indices) {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return FeatureHashIndex.this.get(indices[index]);
+      }
+
+      @Override
+      public int size() {
+        return indices.length;
+      }
+    };
+  }
+
+  public boolean isLocked() {
+    return true;
+  }
+
+  public void lock() {
+  }
+
+  public void unlock() {
+    throw new UnsupportedOperationException("A FeatureHashIndex can't be unlocked");
+  }
+
+  public void saveToWriter(Writer out) throws IOException {
+    out.write("FeatureHashIndex of " + blocks + " blocks of " + buckets() + " buckets\n");
+  }
+
+  public void saveToFilename(String s) {
+    throw new UnsupportedOperationException("A FeatureHashIndex has no features to save");
+  }
+
+  /** Every String is in some bucket */
+  public boolean contains(Object o) {
+    return o instanceof String;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T[] toArray(T[] a) {
+    List<String> copy = new ArrayList<String>(objectsList());
+    return copy.toArray(a);
+  }
+
+  /** Nothing is added, as every String has its bucket already */
+  public boolean add(String e) {
+    return false;
+  }
+
+  /** Nothing is added, as every String has its bucket already */
+  public boolean addAll(Collection<? extends String> c) {
+    return false;
+  }
+
+  public void clear() {
+    throw new UnsupportedOperationException("A FeatureHashIndex is fixed");
+  }
+
+  public Iterator<String> iterator() {
+    return objectsList().iterator();
+  }
+
+  @Override
+  public String toString() {
+    return "FeatureHashIndex of " + blocks + " blocks of " + buckets() + " buckets";
+  }
+
+}
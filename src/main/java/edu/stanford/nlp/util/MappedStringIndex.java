@@ -0,0 +1,277 @@
+package edu.stanford.nlp.util;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A read-only {@link Index} of Strings that lives in a (memory-mapped) ByteBuffer
+ * instead of the heap: the UTF-8 bytes of the strings, sorted, and their offsets.
+ * The index of a string is its position in the sorted order, and
+ * {@link #indexOf} is a binary search, so nothing has to be built when the
+ * buffer is mapped, and processes that map the same file share its pages.
+ * <p>
+ * The layout, all little-endian: the number of strings <i>n</i>, then <i>n+1</i>
+ * int offsets of the strings relative to the end of the offset table, then the
+ * bytes of the strings. {@link #write} makes it from a collection of strings.
+ * <p>
+ * The index is always locked. It serializes as a {@link HashIndex} with the same
+ * indices, so a classifier that uses it can still be saved the usual way.
+ */
+public class MappedStringIndex implements Index<String> {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final transient ByteBuffer buffer;
+  private final int size;
+  private final int stringsStart;
+
+  /**
+   * @param buffer The index, as made by {@link #write}; only absolute gets are
+   *     used on it, so it is safe for concurrent use.
+   */
+  public MappedStringIndex(ByteBuffer buffer) {
+    this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    this.size = this.buffer.getInt(0);
+    this.stringsStart = 4 * (size + 2);
+  }
+
+  /**
+   * The UTF-8 bytes of the strings in the order of this index: the order in
+   * which {@link #write} stores them, and in which weights that go with them
+   * have to be stored.
+   */
+  public static byte[][] sortedBytes(Collection<String> strings) {
+    byte[][] bytes = new byte[strings.size()][];
+    int i = 0;
+    for (String s : strings) {
+      bytes[i++] = s.getBytes(UTF8);
+    }
+    Arrays.sort(bytes, new Comparator<byte[]>() {
+      public int compare(byte[] a, byte[] b) {
+        return compareBytes(a, b);
+      }
+    });
+    return bytes;
+  }
+
+  /** Writes the strings given by {@link #sortedBytes} in the layout this class reads */
+  public static ByteBuffer write(byte[][] sorted) {
+    long length = 4L * (sorted.length + 2);
+    for (byte[] s : sorted) {
+      length += s.length;
+    }
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("The strings take " + length + " bytes, more than an index can have");
+    }
+    ByteBuffer out = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+    out.putInt(sorted.length);
+    int offset = 0;
+    for (byte[] s : sorted) {
+      out.putInt(offset);
+      offset += s.length;
+    }
+    out.putInt(offset);
+    for (byte[] s : sorted) {
+      out.put(s);
+    }
+    out.flip();
+    return out;
+  }
+
+  private static int compareBytes(byte[] a, byte[] b) {
+    int n = Math.min(a.length, b.length);
+    for (int i = 0; i < n; i++) {
+      int diff = (a[i] & 0xff) - (b[i] & 0xff);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  private int start(int i) {
+    return stringsStart + buffer.getInt(4 * (i + 1));
+  }
+
+  /**
+   * Compares the i-th string of this index with the given string, decoding the
+   * UTF-8 bytes as it goes rather than encoding the string. The order of UTF-8
+   * bytes is that of the code points, so this is the order of {@link #sortedBytes}.
+   */
+  private int compareTo(int i, String key) {
+    int p = start(i);
+    int end = start(i + 1);
+    int j = 0;
+    int length = key.length();
+    while (p < end && j < length) {
+      int b = buffer.get(p) & 0xff;
+      int c;
+      if (b < 0x80) {
+        c = b;
+        p++;
+      } else if (b < 0xe0) {
+        c = ((b & 0x1f) << 6) | (buffer.get(p + 1) & 0x3f);
+        p += 2;
+      } else if (b < 0xf0) {
+        c = ((b & 0x0f) << 12) | ((buffer.get(p + 1) & 0x3f) << 6) | (buffer.get(p + 2) & 0x3f);
+        p += 3;
+      } else {
+        c = ((b & 0x07) << 18) | ((buffer.get(p + 1) & 0x3f) << 12) | ((buffer.get(p + 2) & 0x3f) << 6)
+            | (buffer.get(p + 3) & 0x3f);
+        p += 4;
+      }
+      int k = key.charAt(j);
+      if (k < Character.MIN_SURROGATE) {
+        j++;
+      } else {
+        k = key.codePointAt(j);
+        j += Character.charCount(k);
+      }
+      if (c != k) {
+        return c - k;
+      }
+    }
+    return (p < end ? 1 : 0) - (j < length ? 1 : 0);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String get(int i) {
+    if (i < 0 || i >= size) {
+      throw new ArrayIndexOutOfBoundsException("Index " + i + " outside the bounds [0," + size + ")");
+    }
+    int from = start(i);
+    byte[] bytes = new byte[start(i + 1) - from];
+    for (int j = 0; j < bytes.length; j++) {
+      bytes[j] = buffer.get(from + j);
+    }
+    return new String(bytes, UTF8);
+  }
+
+  public int indexOf(String o) {
+    if (o == null) {
+      return -1;
+    }
+    int lo = 0;
+    int hi = size - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = compareTo(mid, o);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /** The index is read-only, so this is the same as indexOf(o) */
+  public int indexOf(String o, boolean add) {
+    return indexOf(o);
+  }
+
+  /** A view that decodes the strings when they are accessed */
+  public List<String> objectsList() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return MappedStringIndex.this.get(index);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  public Collection<String> objects(final int[] indices) {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return MappedStringIndex.this.get(indices[index]);
+      }
+
+      @Override
+      public int size() {
+        return indices.length;
+      }
+    };
+  }
+
+  public boolean isLocked() {
+    return true;
+  }
+
+  public void lock() {
+  }
+
+  public void unlock() {
+    throw new UnsupportedOperationException("A MappedStringIndex is read-only");
+  }
+
+  public void saveToWriter(Writer out) throws IOException {
+    for (int i = 0; i < size; i++) {
+      out.write(i + "=" + get(i) + '\n');
+    }
+  }
+
+  public void saveToFilename(String s) {
+    new HashIndex<String>(objectsList()).saveToFilename(s);
+  }
+
+  public boolean contains(Object o) {
+    return o instanceof String && indexOf((String) o) >= 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T[] toArray(T[] a) {
+    List<String> copy = new ArrayList<String>(objectsList());
+    return copy.toArray(a);
+  }
+
+  public boolean add(String e) {
+    throw new UnsupportedOperationException("A MappedStringIndex is read-only");
+  }
+
+  public boolean addAll(Collection<? extends String> c) {
+    throw new UnsupportedOperationException("A MappedStringIndex is read-only");
+  }
+
+  public void clear() {
+    throw new UnsupportedOperationException("A MappedStringIndex is read-only");
+  }
+
+  public Iterator<String> iterator() {
+    return objectsList().iterator();
+  }
+
+  @Override
+  public String toString() {
+    return "MappedStringIndex of " + size + " strings";
+  }
+
+  /** Serialized as a HashIndex with the same contents */
+  private Object writeReplace() throws ObjectStreamException {
+    return new HashIndex<String>(objectsList());
+  }
+
+}
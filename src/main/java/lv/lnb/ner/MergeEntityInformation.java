@@ -18,13 +18,28 @@
 package lv.lnb.ner;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import lv.semti.morphology.analyzer.Analyzer;
@@ -33,22 +48,42 @@ import lv.semti.morphology.analyzer.Word;
 import lv.semti.morphology.analyzer.Wordform;
 import lv.semti.morphology.attributes.AttributeNames;
 
-import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
 import edu.stanford.nlp.stats.IntCounter;
+import edu.stanford.nlp.util.HashIndex;
 
+/**
+ * Merges the entity counts of tagFolders (name, normal form, category, document and count in tab separated lines)
+ * into SQL statements that add the entities, their names and the documents they occur in.
+ * <p>
+ * The mentions are aggregated in two passes, so that the input may be much larger than the heap.
+ * First, worker threads normalize the lines and count them by entity (category|normalform), by form and by document,
+ * with the strings numbered by a dictionary and the counts in a primitive map. When their share of the memory budget
+ * is used up, they spill the counts to sorted run files, hash-partitioned by entity into as many shards as there are workers.
+ * Then every shard is reduced in parallel by merging its runs, so that all the counts of an entity come together:
+ * the entities with at least filter_floor mentions get their most popular form, normalized with a cached
+ * normalizeForm, and their document rows are written out. At most MAX_FAN_IN runs are merged at once; a shard with
+ * more of them is first merged down to fewer, longer runs. The new names are spilled to sorted runs as well, and
+ * merged into their statements at the end.
+ * The statements are the same as when everything was counted in memory, but in another order; a new name that is the
+ * best form of entities of several categories is added with the smallest of them, where it used to get whichever came first.
+ */
 public class MergeEntityInformation {
 	
 	static int filter_floor = 10; // vismaz cik pieminējumiem jābūt, lai iekļautu entīti sarakstā
+	static int threads = Runtime.getRuntime().availableProcessors();
+	static long memory_budget = Runtime.getRuntime().maxMemory() / 4; // bytes for the counts of all the workers together
+	static File tmp_dir = null; // for the run files; the system default if null
 	
-	static Counter<String> counter = new IntCounter<String>();
-	static Counter<String> counterbydoc = new IntCounter<String>();
-	static HashMap<String, Counter<String>> popular_forms = new HashMap<String, Counter<String>>();
-	static HashMap<String, String> best_forms = new HashMap<String, String>();
 	static HashMap<String, String> blacklist = new HashMap<String, String>();
 	static HashMap<String, String> doc_ids = new HashMap<String, String>();
 	static HashMap<String, String> name_ids = new HashMap<String, String>();
 	
+	private static final int BATCH_SIZE = 10000; // lines
+	static final int MAX_FAN_IN = 64; // runs merged at once, each with its own read buffer
+	private static final int NORMALIZED_FORMS = 100000; // normalizeForm results cached by every reducer
+	private static final Batch END = new Batch(0);
+	
     public static void main(String[] args) throws Exception {
     	String all_entity_file = "/Users/pet/Documents/LNB_converted/all_entities.txt";
     	String doc_id_file = "/Users/pet/Dropbox/LNB/data/data_LNB_documents.txt";
@@ -57,7 +92,25 @@ public class MergeEntityInformation {
     	String entity_doc_file = "/Users/pet/Documents/LNB_converted/entities_documents.sql";
     	String new_name_file = "/Users/pet/Documents/LNB_converted/entities.sql";
     	
-    	String src = "PP120924";
+    	final String src = "PP120924";
+    	
+		for (int a = 0; a < args.length; a++) {
+			if (args[a].equalsIgnoreCase("-threads") && a + 1 < args.length) {
+				threads = Math.max(1, Integer.parseInt(args[++a]));
+			} else if (args[a].equalsIgnoreCase("-memory") && a + 1 < args.length) {
+				memory_budget = Long.parseLong(args[++a]) * 1024 * 1024;
+			} else if (args[a].equalsIgnoreCase("-tmp") && a + 1 < args.length) {
+				tmp_dir = new File(args[++a]);
+			} else if (args[a].equalsIgnoreCase("-in") && a + 1 < args.length) {
+				all_entity_file = args[++a];
+			} else if (args[a].equalsIgnoreCase("-out") && a + 1 < args.length) {
+				entity_doc_file = new File(args[++a], "entities_documents.sql").getPath();
+				new_name_file = new File(args[a], "entities.sql").getPath();
+			} else {
+				System.err.println("MergeEntityInformation [-in all_entities.txt] [-out folder] [-threads N] [-memory MB] [-tmp folder]");
+				System.exit(1);
+			}
+		}
     	    	
 		String line;
 		BufferedReader liste = new BufferedReader(	new InputStreamReader(new FileInputStream("NERdicts/Forenames.txt"), "UTF-8"));
@@ -95,87 +148,515 @@ public class MergeEntityInformation {
 		}
 		liste.close();	
 		
+		// map: the workers count the lines, spilling sorted runs for every shard
+		final BlockingQueue<Batch> batches = new ArrayBlockingQueue<Batch>(threads * 4);
+		final List<List<File>> runs = new ArrayList<List<File>>();
+		for (int s = 0; s < threads; s++) runs.add(Collections.synchronizedList(new ArrayList<File>()));
+		final Throwable[] failure = new Throwable[1];
+		Thread[] mappers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			mappers[t] = new Thread("MergeEntityInformation-map-" + t) {
+				public void run() {
+					Aggregator mentions = new Aggregator(runs, memory_budget / threads);
+					try {
+						Batch batch;
+						while ((batch = batches.take()) != END) {
+							for (int l = 0; l < batch.lines.size(); l++) {
+								add_line(batch.lines.get(l), batch.first + l, mentions);
+							}
+						}
+						mentions.spill();
+					} catch (Throwable e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+						e.printStackTrace();
+						try {
+							while (batches.take() != END);
+						} catch (InterruptedException e2) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+			};
+			mappers[t].start();
+		}
+		
 		BufferedReader ieeja = new BufferedReader(	new InputStreamReader(new FileInputStream(all_entity_file), "UTF-8"));
 		int i=0;
-		
+		Batch batch = new Batch(1);
 		while ((line = ieeja.readLine()) != null) {
 			if (line.startsWith("--") ) continue;			
-			//if (i>=100000) break;
 			i++;
-			
-			String[] info = line.split("\t");
-			if (info.length<5) {
-				System.err.printf("%d @ %s", i, line);
-			} else {
-				String word = info[0];
-				String normalform = info[1];
-				String category = info[2];
-				String doc = info[3];
-				int mention_count = Integer.parseInt(info[4]);
-				
-				add_word(word.trim(), normalform.trim(), category, doc, mention_count);
-				//System.out.printf("%s:%d\n", word, mention_count);
+			batch.lines.add(line);
+			if (batch.lines.size() >= BATCH_SIZE) {
+				batches.put(batch);
+				batch = new Batch(i + 1);
 			}
 		}
 		ieeja.close();
+		batches.put(batch);
+		for (int t = 0; t < threads; t++) batches.put(END);
+		for (Thread mapper : mappers) mapper.join();
+		if (failure[0] != null) throw new RuntimeException("Counting the entities failed", failure[0]);
 		
-		System.out.printf("Apskatījām %d ierakstus, %d dažādi.\n", i, counter.size());
-		
-		Counters.retainAbove(counter, filter_floor);
-		System.out.printf("\t%d no tiem vismaz %d reizes.\n\n", counter.size(), filter_floor);
-		
-		Analyzer analyzer = new Analyzer("dist/Lexicon.xml");
-		
-		for (Entry<String, Double> entry: counter.entrySet()) {
-			String key = entry.getKey();
-			Counter<String> forms = popular_forms.get(key);
-			String best_form = Counters.argmax(forms);
-			String[] info = key.split(Pattern.quote("|"));
-			String category = info[0];
-			
-			best_form = normalizeForm(best_form, category, analyzer);			
-			best_forms.put(key, best_form);
-			//System.out.printf("%s sastopams %d reizes.\n", best_form, entry.getValue().intValue());
+		// reduce: the shards are merged in parallel
+		final Analyzer analyzer = new Analyzer("dist/Lexicon.xml");
+		final BufferedWriter izeja = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(entity_doc_file), "UTF-8"));
+		final BufferedWriter jaunie_vārdi = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new_name_file), "UTF-8"));
+		final List<File> name_runs = Collections.synchronizedList(new ArrayList<File>());
+		ExecutorService reducers = Executors.newFixedThreadPool(threads);
+		List<Future<int[]>> shards = new ArrayList<Future<int[]>>();
+		for (final List<File> shard : runs) {
+			shards.add(reducers.submit(new Callable<int[]>() {
+				public int[] call() throws IOException {
+					NewNames new_names = new NewNames(name_runs, memory_budget / threads);
+					int[] counts = reduce(shard, analyzer, src, izeja, new_names);
+					new_names.spill();
+					return counts;
+				}
+			}));
+		}
+		int entities = 0, frequent = 0;
+		try {
+			for (Future<int[]> shard : shards) {
+				int[] counts = shard.get();
+				entities += counts[0];
+				frequent += counts[1];
+			}
+		} finally {
+			reducers.shutdown();
+			for (List<File> shard : runs) {
+				for (File run : shard) run.delete();
+			}
 		}
 		
-		BufferedWriter izeja = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(entity_doc_file), "UTF-8"));
-		BufferedWriter jaunie_vārdi = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new_name_file), "UTF-8"));
-		for (Entry<String, Double> entry: counterbydoc.entrySet()) {
-			String[] info = entry.getKey().split(Pattern.quote("|"));
-			if (info.length<3) {
-				System.err.printf("%d @ %s", i, line);
-			} else {
-				String normalform = info[1];
-				String category = info[0];
-				String doc = doc_ids.get(info[2]);
-				if (doc == null) System.err.println("bad docid: " + info[2]);
+		// a name run has the best form as the key and the category as the value, so the smallest category comes first
+		List<File> names = mergeDown(name_runs);
+		MergedRuns new_names = new MergedRuns(names);
+		try {
+			String best_form = null;
+			Record name;
+			while ((name = new_names.next()) != null) {
+				if (name.key.equals(best_form)) continue;
+				best_form = name.key;
+				String category = name.value;
+				String insert = String.format("insert into entity (categoryid, definition, infoSource) values (%s, \"%s\", \"%s\");\n", category, best_form, src);
+				insert += String.format("insert into name (name, infoSource) values (\"%s\", \"%s\");\n", best_form, src);
+				insert += String.format("insert into entityName(nameID, entityID, infoSource) select LAST_INSERT_ID() as nameID, ID as entityID, \"%s\" from entity where definition=\"%s\" and infoSource=\"%s\";\n",src,best_form,src);
 				
-				String key = category+"|"+normalform;
-				String best_form = best_forms.get(key);								
-				if (best_form != null) {
-					String name_id = name_ids.get(best_form);
-					if (name_id == null) {
-						String insert = String.format("insert into entity (categoryid, definition, infoSource) values (%s, \"%s\", \"%s\");\n", category, best_form, src);
-						insert += String.format("insert into name (name, infoSource) values (\"%s\", \"%s\");\n", best_form, src);
-						insert += String.format("insert into entityName(nameID, entityID, infoSource) select LAST_INSERT_ID() as nameID, ID as entityID, \"%s\" from entity where definition=\"%s\" and infoSource=\"%s\";\n",src,best_form,src);
-						
-						jaunie_vārdi.append(String.format("%s\n", insert));
-						name_id = "1234567890";
-						name_ids.put(best_form, name_id);
-					}
-					izeja.append(String.format("insert into nameDocument (nameID, documentID, occurrences, infoSource) values (%s, %s, %d, \"%s\");\n", name_id, doc, entry.getValue().intValue(), src));
-					//izeja.append(String.format("%s\t%s\t%s\t%s\t%d\t%s\n", best_form, normalform, category, doc, entry.getValue().intValue(),name_id));
-				}
+				jaunie_vārdi.append(String.format("%s\n", insert));
 			}
+		} finally {
+			new_names.close();
+			for (File run : names) run.delete();
+			for (File run : name_runs) run.delete();
 		}
+		
+		System.out.printf("Apskatījām %d ierakstus, %d dažādi.\n", i, entities);
+		System.out.printf("\t%d no tiem vismaz %d reizes.\n\n", frequent, filter_floor);
+		
 		jaunie_vārdi.flush();
 		jaunie_vārdi.close();
 		izeja.flush();
 		izeja.close();
     }
 
+	/** Lines of the input, numbered from first */
+	private static class Batch {
+		final int first;
+		final List<String> lines = new ArrayList<String>(BATCH_SIZE);
+		
+		Batch(int first) {
+			this.first = first;
+		}
+	}
+	
+	private static void add_line(String line, int i, Aggregator mentions) throws IOException {
+		String[] info = line.split("\t");
+		if (info.length<5) {
+			System.err.printf("%d @ %s", i, line);
+		} else {
+			String word = info[0];
+			String normalform = info[1];
+			String category = info[2];
+			String doc = info[3];
+			int mention_count = Integer.parseInt(info[4]);
+			
+			add_word(word.trim(), normalform.trim(), category, doc, mention_count, mentions);
+			//System.out.printf("%s:%d\n", word, mention_count);
+		}
+	}
+	
+	/**
+	 * Merges the sorted runs of a shard and writes out the statements for its entities with at least filter_floor mentions.
+	 * @return the number of entities and the number of those written out
+	 */
+	private static int[] reduce(List<File> runs, Analyzer analyzer, String src, Writer izeja, NewNames new_names)
+			throws IOException {
+		@SuppressWarnings("serial")
+		HashMap<String, String> normalized_forms = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Entry<String, String> eldest) {
+				return size() > NORMALIZED_FORMS;
+			}
+		};
+		List<File> merged = mergeDown(runs);
+		MergedRuns records = new MergedRuns(merged);
+		try {
+			int entities = 0, frequent = 0;
+			String key = null;
+			IntCounter<String> forms = null;
+			String best_form = null; // of the current entity, once its forms are counted; null if it is too rare
+			StringBuilder statements = new StringBuilder();
+			Record record;
+			while ((record = records.next()) != null) {
+				if (!record.key.equals(key)) {
+					key = record.key;
+					forms = new IntCounter<String>();
+					best_form = null;
+					entities++;
+				}
+				if (record.type == Record.FORM) {
+					forms.incrementCount(record.value, record.count);
+				} else {
+					if (best_form == null && forms != null) {
+						// all the forms of the entity come before its documents
+						if (forms.totalCount() >= filter_floor) {
+							frequent++;
+							String category = key.split(Pattern.quote("|"))[0];
+							best_form = normalizeCached(Counters.argmax(forms), category, analyzer, normalized_forms);
+						}
+						forms = null;
+					}
+					if (best_form != null) {
+						add_statement(key, best_form, record.value, record.count, src, statements, new_names);
+					}
+				}
+				if (statements.length() > 1 << 16) {
+					synchronized (izeja) {
+						izeja.append(statements);
+					}
+					statements.setLength(0);
+				}
+			}
+			synchronized (izeja) {
+				izeja.append(statements);
+			}
+			return new int[] {entities, frequent};
+		} finally {
+			records.close();
+			for (File run : merged) run.delete();
+		}
+	}
+	
+	/**
+	 * Merges runs, MAX_FAN_IN at a time, in as many passes as it takes to have at most MAX_FAN_IN of them.
+	 * The runs that are merged are deleted.
+	 * @return the merged runs
+	 */
+	static List<File> mergeDown(List<File> runs) throws IOException {
+		while (runs.size() > MAX_FAN_IN) {
+			List<File> merged = new ArrayList<File>();
+			for (int first = 0; first < runs.size(); first += MAX_FAN_IN) {
+				List<File> group = runs.subList(first, Math.min(first + MAX_FAN_IN, runs.size()));
+				if (group.size() == 1) {
+					merged.add(group.get(0));
+					continue;
+				}
+				MergedRuns records = new MergedRuns(group);
+				RunWriter out = new RunWriter();
+				try {
+					Record record;
+					while ((record = records.next()) != null) out.write(record);
+				} finally {
+					records.close();
+					out.close();
+				}
+				merged.add(out.file);
+				for (File run : group) run.delete();
+			}
+			runs = merged;
+		}
+		return runs;
+	}
+	
+	/**
+	 * Adds the nameDocument row of an entity in a document.
+	 * A best form that isn't a known name is added to new_names, which are written out at the end. If the same form is
+	 * the best one of entities of several categories, the smallest category is taken, so that the result doesn't depend
+	 * on the order of the shards.
+	 */
+	private static void add_statement(String key, String best_form, String document, int occurrences, String src,
+			StringBuilder izeja, NewNames new_names) throws IOException {
+		String[] info = key.split(Pattern.quote("|"));
+		String category = info[0];
+		String doc = doc_ids.get(document);
+		if (doc == null) System.err.println("bad docid: " + document);
+		
+		String name_id = name_ids.get(best_form);
+		if (name_id == null) {
+			name_id = "1234567890";
+			new_names.add(best_form, category);
+		}
+		izeja.append(String.format("insert into nameDocument (nameID, documentID, occurrences, infoSource) values (%s, %s, %d, \"%s\");\n", name_id, doc, occurrences, src));
+		//izeja.append(String.format("%s\t%s\t%s\t%s\t%d\t%s\n", best_form, normalform, category, doc, entry.getValue().intValue(),name_id));
+	}
+
+	/** A count of a form (word) or a document of an entity (category|normalform) */
+	static class Record implements Comparable<Record> {
+		static final int FORM = 0, DOCUMENT = 1; // forms first, so that the best form is known before the documents
+		final String key;
+		final int type;
+		final String value;
+		int count;
+		
+		Record(String key, int type, String value, int count) {
+			this.key = key;
+			this.type = type;
+			this.value = value;
+			this.count = count;
+		}
+		
+		@Override
+		public int compareTo(Record that) {
+			int result = key.compareTo(that.key);
+			if (result == 0) result = type - that.type;
+			if (result == 0) result = value.compareTo(that.value);
+			return result;
+		}
+	}
+	
+	/** A sorted run file being merged, positioned at its current record */
+	static class Run implements Comparable<Run> {
+		private final BufferedReader in;
+		Record record;
+		
+		Run(File f) throws IOException {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"), 1 << 16);
+		}
+		
+		boolean next() throws IOException {
+			String line = in.readLine();
+			if (line == null) {
+				record = null;
+				return false;
+			}
+			String[] info = line.split("\t", -1);
+			record = new Record(info[0], Integer.parseInt(info[1]), info[2], Integer.parseInt(info[3]));
+			return true;
+		}
+		
+		void close() throws IOException {
+			in.close();
+		}
+		
+		@Override
+		public int compareTo(Run that) {
+			return record.compareTo(that.record);
+		}
+	}
+	
+	/** The records of some sorted runs in order, with the counts of the same record in several runs added up */
+	static class MergedRuns {
+		private final PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		
+		MergedRuns(List<File> runs) throws IOException {
+			try {
+				for (File f : runs) {
+					Run run = new Run(f);
+					if (run.next()) queue.add(run);
+					else run.close();
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+		
+		/** @return the next record, or null at the end */
+		Record next() throws IOException {
+			Record record = null;
+			while (!queue.isEmpty()) {
+				Run run = queue.peek();
+				if (record != null && run.record.compareTo(record) != 0) break;
+				queue.poll();
+				if (record == null) record = run.record;
+				else record.count += run.record.count;
+				if (run.next()) queue.add(run);
+				else run.close();
+			}
+			return record;
+		}
+		
+		void close() throws IOException {
+			for (Run run : queue) run.close();
+			queue.clear();
+		}
+	}
+	
+	/** A new sorted run file, written record by record */
+	static class RunWriter {
+		final File file;
+		private final BufferedWriter out;
+		
+		RunWriter() throws IOException {
+			file = File.createTempFile("entities-run-", ".txt", tmp_dir);
+			file.deleteOnExit();
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16);
+		}
+		
+		void write(Record r) throws IOException {
+			out.write(r.key + "\t" + r.type + "\t" + r.value + "\t" + r.count + "\n");
+		}
+		
+		void close() throws IOException {
+			out.close();
+		}
+	}
+	
+	/**
+	 * The new names of a reducer, each with the smallest category it is the best form of.
+	 * When they take more than the memory budget, they are written out to a sorted run and forgotten.
+	 */
+	private static class NewNames {
+		private final List<File> runs;
+		private final long budget;
+		private final TreeMap<String, String> names = new TreeMap<String, String>(); // best form -> category
+		private long bytes = 0;
+		
+		NewNames(List<File> runs, long budget) {
+			this.runs = runs;
+			this.budget = budget;
+		}
+		
+		void add(String best_form, String category) throws IOException {
+			String known = names.get(best_form);
+			if (known == null) bytes += 100 + 2 * (best_form.length() + category.length()); // the entry, roughly
+			if (known == null || category.compareTo(known) < 0) names.put(best_form, category);
+			if (bytes > budget) spill();
+		}
+		
+		void spill() throws IOException {
+			if (names.isEmpty()) return;
+			RunWriter out = new RunWriter();
+			try {
+				for (Entry<String, String> name : names.entrySet()) {
+					out.write(new Record(name.getKey(), Record.FORM, name.getValue(), 1));
+				}
+			} finally {
+				out.close();
+			}
+			runs.add(out.file);
+			names.clear();
+			bytes = 0;
+		}
+	}
+	
+	/**
+	 * The counts of one map worker: the strings are numbered by a dictionary, and the counts are kept in an
+	 * open addressing map from (entity, type, form or document) numbers to ints.
+	 * When they take more than the memory budget, they are written out to sorted runs, one per shard, and forgotten.
+	 */
+	static class Aggregator {
+		private final List<List<File>> runs;
+		private final long budget;
+		private final HashIndex<String> strings = new HashIndex<String>();
+		private long[] keys = new long[1 << 12];
+		private int[] counts = new int[1 << 12];
+		private int size = 0;
+		private long bytes = 0;
+		
+		Aggregator(List<List<File>> runs, long budget) {
+			this.runs = runs;
+			this.budget = budget;
+			Arrays.fill(keys, -1L);
+		}
+		
+		void add(String key, String word, String doc, int mention_count) throws IOException {
+			int k = index(key);
+			add(((long) k << 32) | ((long) index(word) << 1) | Record.FORM, mention_count);
+			add(((long) k << 32) | ((long) index(doc) << 1) | Record.DOCUMENT, mention_count);
+			if (bytes + 12L * keys.length > budget) spill();
+		}
+		
+		private int index(String s) {
+			int n = strings.size();
+			int i = strings.indexOf(s, true);
+			if (i == n) bytes += 100 + 2 * s.length(); // the string and its place in the dictionary, roughly
+			return i;
+		}
+		
+		private void add(long key, int count) {
+			int mask = keys.length - 1;
+			int slot = hash(key) & mask;
+			while (keys[slot] != -1L && keys[slot] != key) slot = (slot + 1) & mask;
+			if (keys[slot] == -1L) {
+				keys[slot] = key;
+				if (++size > keys.length / 2) {
+					counts[slot] = count;
+					grow();
+					return;
+				}
+			}
+			counts[slot] += count;
+		}
+		
+		private static int hash(long key) {
+			key *= 0x9E3779B97F4A7C15L;
+			return (int) (key ^ (key >>> 32));
+		}
+		
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldCounts = counts;
+			keys = new long[oldKeys.length * 2];
+			counts = new int[oldKeys.length * 2];
+			Arrays.fill(keys, -1L);
+			int mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] == -1L) continue;
+				int slot = hash(oldKeys[i]) & mask;
+				while (keys[slot] != -1L) slot = (slot + 1) & mask;
+				keys[slot] = oldKeys[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+		
+		/** Writes the counts out to a sorted run for every shard and starts over */
+		void spill() throws IOException {
+			if (size == 0) return;
+			List<List<Record>> shards = new ArrayList<List<Record>>();
+			for (int s = 0; s < runs.size(); s++) shards.add(new ArrayList<Record>());
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == -1L) continue;
+				String key = strings.get((int) (keys[i] >>> 32));
+				int low = (int) keys[i];
+				Record record = new Record(key, low & 1, strings.get(low >>> 1), counts[i]);
+				shards.get((key.hashCode() & 0x7fffffff) % runs.size()).add(record);
+			}
+			for (int s = 0; s < shards.size(); s++) {
+				List<Record> records = shards.get(s);
+				if (records.isEmpty()) continue;
+				Collections.sort(records);
+				RunWriter out = new RunWriter();
+				try {
+					for (Record r : records) out.write(r);
+				} finally {
+					out.close();
+				}
+				runs.get(s).add(out.file);
+			}
+			strings.clear();
+			keys = new long[1 << 12];
+			counts = new int[1 << 12];
+			Arrays.fill(keys, -1L);
+			size = 0;
+			bytes = 0;
+		}
+	}
+
 	private static void add_word(String word, String normalform,
-			String category, String doc, int mention_count) {
+			String category, String doc, int mention_count, Aggregator mentions) throws IOException {
 		if (word.trim().length()<3) return;
 		if (word.contains(",")) {
 			String[] wordparts = word.split(",");
@@ -185,7 +666,7 @@ public class MergeEntityInformation {
 				return;
 			}
 			for (int i=0; i<wordparts.length; i++) {
-				add_word(wordparts[i].trim(), formparts[i].trim(), category, doc, mention_count);
+				add_word(wordparts[i].trim(), formparts[i].trim(), category, doc, mention_count, mentions);
 			}
 			return;
 		} 
@@ -197,7 +678,7 @@ public class MergeEntityInformation {
 				return;
 			}
 			for (int i=0; i<wordparts.length; i++) {
-				add_word(wordparts[i].trim(), formparts[i].trim(), category, doc, mention_count);
+				add_word(wordparts[i].trim(), formparts[i].trim(), category, doc, mention_count, mentions);
 			}
 			return;
 		} 
@@ -273,22 +754,30 @@ public class MergeEntityInformation {
 		if (normalform.length() > 50) return;  
     	
 		String key = category+"|"+normalform;				
-		counter.incrementCount(key, mention_count);
-		
-		Counter<String> forms = popular_forms.get(key);
-		if (forms == null) {
-			forms = new IntCounter<String>();
-			popular_forms.put(key, forms);
-		}
-		forms.incrementCount(word, mention_count);
-		
-		counterbydoc.incrementCount(key+"|"+doc, mention_count);
+		mentions.add(key, word, doc, mention_count);
 	}
 
+	/**
+	 * normalizeForm, remembering the results in normalized_forms, as the same forms come up in many entities;
+	 * the reducers give it a map that keeps only the most recently used ones.
+	 */
+	static String normalizeCached(String form, String category, Analyzer analyzer, HashMap<String, String> normalized_forms) {
+		String key = category + "|" + form;
+		String result = normalized_forms.get(key);
+		if (result == null) {
+			result = normalizeForm(form, category, analyzer);
+			normalized_forms.put(key, result);
+		}
+		return result;
+	}
+	
     static String normalizeForm(String form, String category, Analyzer analyzer) {
     	String result = form;
     	
-    	List<Word> words = Splitting.tokenize(analyzer, result);
+    	List<Word> words;
+    	synchronized (analyzer) {
+    		words = Splitting.tokenize(analyzer, result);
+    	}
     	Word lastword = words.get(words.size()-1);
     	Wordform bestform = lastword.getBestWordform(); 
     	if (bestform != null && (bestform.isMatchingStrong(AttributeNames.i_Case, AttributeNames.v_Genitive) || bestform.isMatchingStrong(AttributeNames.i_Case, AttributeNames.v_Locative))) {
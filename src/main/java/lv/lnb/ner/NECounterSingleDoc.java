@@ -59,6 +59,24 @@ public class NECounterSingleDoc {
 		}		
 	}
 	
+	/** The same as db_insert, as one SQL insert statement for all the entities of the document */
+	void sql_insert(Writer writer) throws IOException {
+		if (count.isEmpty()) return;
+		StringBuilder sql = new StringBuilder("insert into NELinks (name, normalform, category, docID, frequency) values\n");
+		String separator = "";
+		for (Entry<NE,Integer> entry : count.entrySet()) {
+			sql.append(separator);
+			sql.append(String.format("(\"%s\", \"%s\", %d, \"%s\", %d)", escape(entry.getKey().getName()), escape(entry.getKey().normalform), entry.getKey().category(), escape(docID), entry.getValue()));
+			separator = ",\n";
+		}
+		sql.append(";\n");
+		writer.write(sql.toString());
+	}
+	
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+	
 	void filter(int limit) {
 		HashMap<String,NE> newentities = new HashMap<String,NE>();
 		for (Map.Entry<String,NE> entry : entities.entrySet()) {
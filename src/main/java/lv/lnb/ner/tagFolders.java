@@ -1,17 +1,17 @@
 /*******************************************************************************
  * Copyright 2012 Institute of Mathematics and Computer Science, University of Latvia
  * Author: Pēteris Paikens
- * 
+ *
  *     This program is free software: you can redistribute it and/or modify
  *     it under the terms of the GNU General Public License as published by
  *     the Free Software Foundation, either version 3 of the License, or
  *     (at your option) any later version.
- * 
+ *
  *     This program is distributed in the hope that it will be useful,
  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  *     GNU General Public License for more details.
- * 
+ *
  *     You should have received a copy of the GNU General Public License
  *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
  *******************************************************************************/
@@ -25,7 +25,16 @@ import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.ling.CoreAnnotations.AnswerAnnotation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -34,70 +43,319 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
 import java.io.Writer;
 
+/**
+ * Finds the named entities of a corpus of tagged files (word, lemma and tag in tab separated columns, with
+ * &lt;doc&gt;, &lt;page&gt; and &lt;p&gt; markup lines), counting them per file, for MergeEntityInformation.
+ * <p>
+ * The folder tree is walked by the main thread, which feeds the files through a bounded queue to a pool of workers
+ * that share one classifier. Each file is read as a stream and classified in chunks of whole paragraphs, so the
+ * size of a file doesn't matter. Every worker writes the entities of its files to its own output file in the output
+ * folder, and after each batch of files flushes it and appends a record to the checkpoint file: the name of the output
+ * file, its length in bytes and the names of the files of the batch, in one tab separated line.
+ * A rerun skips the files in the checkpoint, cuts every output file back to its last checkpointed length and appends
+ * to it, so an interrupted run can be resumed and every entity is written exactly once. A file's entities are
+ * written only once the whole file is processed, so a file that fails leaves nothing behind.
+ */
 public class tagFolders {
 	static String serializedClassifier = "/Users/pet/Dropbox/NER/stanford-ner-2012-04-07/lv-ner-model.ser.gz";
-	
-    public static void main(String[] args) throws IOException {
+	static String startFolder = "/Users/pet/Documents/LNB_converted";
+	static String outputFolder = null; // the start folder if not given
+	static String checkpointFile = null; // checkpoint.txt in the output folder if not given
+	static int threads = Runtime.getRuntime().availableProcessors();
+	static int chunkSize = 2000; // tokens; a chunk is cut at the first paragraph end after this
+	static int maxChunkSize = 20000; // tokens; a chunk without paragraph ends is cut here anyway
+	static int batchSize = 100; // files between flushes and checkpoints
+	static boolean sql = false; // SQL insert statements instead of tab separated lines
 
-      if (args.length > 0) {
-        serializedClassifier = args[0];
-      }
+	/** Marks the end of the files for the workers */
+	private static final File END = new File("");
+
+	private static final AtomicLong totalWords = new AtomicLong();
+	private static final AtomicInteger totalFiles = new AtomicInteger();
+	private static long sākums;
+
+	public static void main(String[] args) throws Exception {
+		List<String> positional = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equalsIgnoreCase("-threads") && i + 1 < args.length) {
+				threads = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equalsIgnoreCase("-out") && i + 1 < args.length) {
+				outputFolder = args[++i];
+			} else if (args[i].equalsIgnoreCase("-checkpoint") && i + 1 < args.length) {
+				checkpointFile = args[++i];
+			} else if (args[i].equalsIgnoreCase("-chunk") && i + 1 < args.length) {
+				chunkSize = Integer.parseInt(args[++i]);
+				maxChunkSize = Math.max(maxChunkSize, chunkSize * 10);
+			} else if (args[i].equalsIgnoreCase("-batch") && i + 1 < args.length) {
+				batchSize = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equalsIgnoreCase("-sql")) {
+				sql = true;
+			} else if (args[i].equalsIgnoreCase("-h") || args[i].equalsIgnoreCase("--help") || args[i].equalsIgnoreCase("-?")) {
+				System.out.println("tagFolders [model] [folder] [options] : named entities of a folder tree of tagged files");
+				System.out.println("\t-threads N : number of worker threads (all available cores by default)");
+				System.out.println("\t-out folder : where the entities-N.txt (or .sql) files of the workers are written (the input folder by default)");
+				System.out.println("\t-checkpoint file : list of the finished files, which are skipped when rerun, and of the output lengths (checkpoint.txt in the output folder by default)");
+				System.out.println("\t-chunk N : classify at least N tokens at once, up to the end of a paragraph (default 2000)");
+				System.out.println("\t-batch N : flush the output and the checkpoint after every N files of a worker (default 100)");
+				System.out.println("\t-sql : write SQL insert statements instead of tab separated lines");
+				System.out.flush();
+				System.exit(0);
+			} else {
+				positional.add(args[i]);
+			}
+		}
+		if (positional.size() > 0) serializedClassifier = positional.get(0);
+		if (positional.size() > 1) startFolder = positional.get(1);
+		if (outputFolder == null) outputFolder = startFolder;
+		if (checkpointFile == null) checkpointFile = new File(outputFolder, "checkpoint.txt").getPath();
+
+		Set<String> done = new HashSet<String>();
+		Map<String, Long> lengths = new HashMap<String, Long>();
+		boolean oldCheckpoint = readCheckpoint(checkpointFile, done, lengths);
+		if (!done.isEmpty()) System.err.printf("Skipping %,d files already done according to %s\n", done.size(), checkpointFile);
+		for (int i = 0; i < threads; i++) {
+			String name = "entities-" + i + (sql ? ".sql" : ".txt");
+			// an old checkpoint has no lengths, so its output files are taken as they are
+			if (!lengths.containsKey(name) && !oldCheckpoint) lengths.put(name, 0L);
+		}
+		for (Map.Entry<String, Long> length : lengths.entrySet()) {
+			truncate(new File(outputFolder, length.getKey()), length.getValue());
+		}
+
+		AbstractSequenceClassifier<CoreLabel> classifier = CRFClassifier.getClassifierNoExceptions(serializedClassifier);
+		Writer checkpoint = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(checkpointFile, true), "UTF-8"));
+		BlockingQueue<File> files = new ArrayBlockingQueue<File>(threads * 64);
+
+		sākums = System.currentTimeMillis();
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			String name = "entities-" + i + (sql ? ".sql" : ".txt");
+			workers[i] = new Worker(classifier, files, new File(outputFolder, name), checkpoint);
+			workers[i].start();
+		}
+
+		walk(new File(startFolder), files, done);
+		for (int i = 0; i < threads; i++) files.put(END);
+		boolean failed = false;
+		for (Worker worker : workers) {
+			worker.join();
+			failed |= worker.failure != null;
+		}
+		checkpoint.close();
+
+		long beigas = System.currentTimeMillis();
+		System.out.printf("Finished %s : %,d files, %,d k-words, %,d wps\n", startFolder, totalFiles.get(), totalWords.get()/1000,
+				totalWords.get()*1000/Math.max(1, beigas-sākums));
+		if (failed) System.exit(1);
+	}
+
+	/**
+	 * Reads the checkpoint records into the files that are done and the last checkpointed length of each output file.
+	 * A record cut short by a crash, which doesn't end with a line break, doesn't count.
+	 * @return whether the checkpoint has lines of the old format, which were just the names of the files that are done
+	 */
+	static boolean readCheckpoint(String filename, Set<String> done, Map<String, Long> lengths) throws IOException {
+		File f = new File(filename);
+		if (!f.exists()) return false;
+		boolean oldCheckpoint = false;
+		BufferedReader ieeja = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+		try {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = ieeja.read()) != -1) {
+				if (c != '\n') {
+					line.append((char) c);
+					continue;
+				}
+				String[] record = line.toString().split("\t");
+				line.setLength(0);
+				if (record.length == 1) {
+					if (!record[0].isEmpty()) {
+						done.add(record[0]);
+						oldCheckpoint = true;
+					}
+				} else if (record.length > 1) {
+					lengths.put(record[0], Long.parseLong(record[1]));
+					done.addAll(Arrays.asList(record).subList(2, record.length));
+				}
+			}
+		} finally {
+			ieeja.close();
+		}
+		return oldCheckpoint;
+	}
 
-      //String startFolder = "/Users/pet/Documents/LNB_converted/01-03-01";
-      String startFolder = "/Users/pet/Documents/LNB_converted";
-      
-      int total = walk(startFolder, null, null);
-      System.out.print(total);
-    }
+	/** Cuts a file back to a length, dropping what was written after the last checkpoint */
+	static void truncate(File file, long length) throws IOException {
+		if (!file.exists() || file.length() <= length) return;
+		System.err.printf("Cutting %s back from %,d to %,d bytes, as of the last checkpoint\n", file, file.length(), length);
+		RandomAccessFile f = new RandomAccessFile(file, "rw");
+		try {
+			f.setLength(length);
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * Puts the files of the folder tree in the queue, blocking while it is full; a folder is listed only when the walk gets to it.
+	 */
+	private static void walk(File root, BlockingQueue<File> files, Set<String> done) throws InterruptedException {
+		File[] list = root.listFiles();
+		if (list == null) {
+			System.err.printf("Can't list %s\n", root);
+			return;
+		}
+		Arrays.sort(list);
+		for (File f : list) {
+			if (f.getName().startsWith(".")) continue;
+			if (f.isDirectory()) {
+				walk(f, files, done);
+			} else if (!f.getName().startsWith("entities") && !f.getName().startsWith("checkpoint")
+					&& !done.contains(f.getAbsolutePath())) {
+				files.put(f);
+			}
+		}
+	}
 
-	private static int processFile(
+	private static class Worker extends Thread {
+		private final AbstractSequenceClassifier<CoreLabel> classifier;
+		private final BlockingQueue<File> files;
+		private final File output;
+		private final Writer checkpoint;
+		private final List<String> batch = new ArrayList<String>();
+		volatile Throwable failure = null;
+
+		Worker(AbstractSequenceClassifier<CoreLabel> classifier, BlockingQueue<File> files, File output, Writer checkpoint) {
+			super("tagFolders-" + output.getName());
+			this.classifier = classifier;
+			this.files = files;
+			this.output = output;
+			this.checkpoint = checkpoint;
+		}
+
+		@Override
+		public void run() {
+			Writer writer = null;
+			try {
+				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output, true), "UTF-8"));
+				File f;
+				while ((f = files.take()) != END) {
+					// the entities of the file are kept until it is all processed, so that a failure writes none of them
+					StringWriter entities = new StringWriter();
+					try {
+						processFile(classifier, f, f.getAbsoluteFile().getParentFile().getName(), entities);
+					} catch (IOException e) {
+						// not checkpointed, so a rerun tries it again
+						System.err.printf("Failed to process %s: %s\n", f, e);
+						continue;
+					}
+					writer.write(entities.toString());
+					batch.add(f.getAbsolutePath());
+					if (batch.size() >= batchSize) endBatch(writer);
+				}
+				endBatch(writer);
+			} catch (Throwable e) {
+				failure = e;
+				e.printStackTrace();
+				// keep taking the files, so that the walk and the other workers don't block on a full queue
+				try {
+					while (files.take() != END);
+				} catch (InterruptedException e2) {
+					Thread.currentThread().interrupt();
+				}
+			} finally {
+				if (writer != null) {
+					try {
+						writer.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+
+		/** Writes out the entities of the batch, then marks its files as done along with the length of the output */
+		private void endBatch(Writer writer) throws IOException {
+			writer.flush();
+			StringBuilder record = new StringBuilder();
+			record.append(output.getName()).append('\t').append(output.length());
+			for (String filename : batch) {
+				record.append('\t').append(filename);
+			}
+			record.append('\n');
+			synchronized (checkpoint) {
+				checkpoint.write(record.toString());
+				checkpoint.flush();
+			}
+			int n = totalFiles.addAndGet(batch.size());
+			batch.clear();
+			long laiks = System.currentTimeMillis() - sākums;
+			System.out.printf("%,d files, %,d k-words, %,d wps\n", n, totalWords.get()/1000, totalWords.get()*1000/Math.max(1, laiks));
+		}
+	}
+
+	/**
+	 * Counts the entities of a file, classifying it a chunk of paragraphs at a time, and writes them out.
+	 * @return the number of lines read
+	 */
+	static int processFile(
 			AbstractSequenceClassifier<CoreLabel> classifier,
-			String filename,
+			File file,
 			String doc_id,
-			Writer writer) {
+			Writer writer) throws IOException {
+
+		NECounterSingleDoc counter = new NECounterSingleDoc(doc_id);
 
-		NECounterSingleDoc counter = new NECounterSingleDoc(doc_id);	
-		
-		List<CoreLabel> document = new ArrayList<CoreLabel>(); 
+		List<CoreLabel> document = new ArrayList<CoreLabel>();
 		int i = 0;
+		BufferedReader ieeja = new BufferedReader(	new InputStreamReader(new FileInputStream(file), "UTF-8"));
 		try {
-			BufferedReader ieeja = new BufferedReader(	new InputStreamReader(new FileInputStream(filename), "UTF-8"));
 			String line;
 			while ((line = ieeja.readLine()) != null) {
 				i++;
-				if (line.contains("<doc") || line.contains("</doc>") || line.contains("<page") || line.contains("</page>") ||line.contains("<p>")) continue;
-				
-				String[] info = line.split("\t");
-				CoreLabel word = new CoreLabel();
-
-				if (line.contains("</p>")) {
-					word.set(TextAnnotation.class, "<p/>");
-					word.set(LemmaAnnotation.class, "<p/>");
-					word.set(PartOfSpeechAnnotation.class, "-");										
+				if (line.contains("<p>") || line.contains("</p>")) {
+					// paragraph boundaries are where the file may be cut into chunks
+					if (document.size() >= chunkSize) {
+						countEntities(classifier.classify(document), doc_id, counter);
+						document = new ArrayList<CoreLabel>();
+					}
 					continue;
-				} else if (line.contains("<g />")) {
-					word.set(TextAnnotation.class, "<g/>");
-					word.set(LemmaAnnotation.class, "<g/>");
-					word.set(PartOfSpeechAnnotation.class, "-");										
+				}
+				if (line.contains("<doc") || line.contains("</doc>") || line.contains("<page") || line.contains("</page>") || line.contains("<g />")) continue;
+
+				String[] info = line.split("\t");
+				if (info.length<3) {
+					System.err.printf("%d @ %s:%s\n", i, file, line);
 					continue;
-				} else if (info.length<3) {
-					System.err.printf("%d @ %s:%s", i, filename, line);
-				} else {
-					word.set(TextAnnotation.class, info[0]);
-					word.set(LemmaAnnotation.class, info[1]);
-					word.set(PartOfSpeechAnnotation.class, info[2].substring(0, 1));					
 				}
+				CoreLabel word = new CoreLabel();
+				word.set(TextAnnotation.class, info[0]);
+				word.set(LemmaAnnotation.class, info[1]);
+				word.set(PartOfSpeechAnnotation.class, info[2].substring(0, 1));
 				document.add(word);
+				if (document.size() >= maxChunkSize) {
+					countEntities(classifier.classify(document), doc_id, counter);
+					document = new ArrayList<CoreLabel>();
+				}
 			}
+		} finally {
 			ieeja.close();
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
 		}
-		
-	  List<CoreLabel> out = classifier.classify(document);
+		if (!document.isEmpty()) countEntities(classifier.classify(document), doc_id, counter);
+		totalWords.addAndGet(i);
+
+		if (sql) counter.sql_insert(writer);
+		else counter.db_insert(writer);
+		return i;
+	}
+
+	/** Adds the entities of a classified chunk (runs of tokens with the same answer) to the counter */
+	private static void countEntities(List<CoreLabel> out, String doc_id, NECounterSingleDoc counter) {
 	  String prevtag = "";
 	  String name_part = "";
 	  String lemma_part = "";
@@ -114,56 +372,10 @@ public class tagFolders {
     		  name_part = name_part + " "  + word.word();
     		  lemma_part = lemma_part + " "  + word.get(LemmaAnnotation.class);
     	  }
-    		  
+
     	  prevtag = tag;
-      }	    
-		try {
-			counter.db_insert(writer);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		return i;
+      }
+      if (!prevtag.equalsIgnoreCase("")) counter.add(doc_id, name_part, lemma_part, prevtag);
 	}
-    
-    private static int walk( String path,
-    		AbstractSequenceClassifier<CoreLabel> parentclassifier,
-    		Writer writer
-			) throws IOException {
-
-        File root = new File( path );
-        File[] list = root.listFiles();
-
-		int i = 0;
 
-        AbstractSequenceClassifier<CoreLabel> classifier = parentclassifier;
-        if (classifier == null && !path.endsWith("converted")) classifier = CRFClassifier.getClassifierNoExceptions(serializedClassifier);
-        
-        for ( File f : list ) {
-            if (f.getName().startsWith(".")) continue;
-        	if ( f.isDirectory() ) {
-            	Writer straume;
-            	if (writer == null)  {
-	                straume = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f.getAbsolutePath() + "/entities.sql"), "UTF-8"));
-	                straume.write("-- " + f.getAbsolutePath() + "\n");
-            	} else straume = writer;
-            	long sākums = System.currentTimeMillis();
-	
-                int words = walk( f.getAbsolutePath(), classifier, straume );
-                i += words;
-                
-                if (writer == null) {
-                	long beigas = System.currentTimeMillis();
-                	System.out.printf( "Finished %s : %,d k-words, %,d wps\n", f.getAbsoluteFile(), i/1000, words*1000/(beigas-sākums));
-                	straume.close();
-                }
-            }
-            else {        
-                i += processFile(classifier, f.getAbsoluteFile().toString(), f.getAbsoluteFile().getParentFile().getName(), writer);
-            }
-        }
-        
-        return i;
-    }
- 
 }
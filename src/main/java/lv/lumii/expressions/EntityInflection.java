@@ -24,6 +24,8 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.json.simple.JSONObject;
@@ -34,17 +36,23 @@ import org.json.simple.JSONObject;
  */
 public class EntityInflection {
 
+	private static final int BATCH = 10000;
+
 	/**
-	 * @param args
+	 * @param args - optionally, the number of threads (by default, one per processor)
 	 */
 	public static void main(String[] args) throws Exception {
 		String input_filename = "entities_locīšanai.txt"; // Ieejā jābūt 1 ieraksts uz rindiņu, ar tab-delimited kolonnām id-name-category 
 		String output_filename = "entities_izlocītas.txt";
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (args.length > 0) threads = Integer.parseInt(args[0]);
 		BufferedReader ieeja = new BufferedReader(new InputStreamReader(new FileInputStream(input_filename), "UTF-8"));
 		PrintWriter izeja = new PrintWriter(new OutputStreamWriter(new FileOutputStream(output_filename), "UTF-8"));
 		
 		String entity_row;
 		int count = 0;
+		List<String> entity_ids = new ArrayList<String>();
+		List<Expression.Phrase> phrases = new ArrayList<Expression.Phrase>();
 		while ((entity_row = ieeja.readLine()) != null) {
 			count++;
 			if (count % 1000 == 0) System.out.print('.');
@@ -62,15 +70,12 @@ public class EntityInflection {
 			if (fields.length > 2)
 				category = fields[2];
 			
-			JSONObject oInflections = new JSONObject();
-        	Expression e = new Expression(entity_name, category, true); // Pieņemam ka te jau visi ir normalizēti
-        	Map<String,String> inflections= e.getInflections();
-        	for (String i_case : inflections.keySet()) {
-        		oInflections.put(i_case, inflections.get(i_case).replaceAll("'", "''"));
-        	}
-        	            
-			izeja.printf("update entities set nameinflections='%s' where entityid = %s;\n",oInflections.toJSONString(), entity_id);
+			entity_ids.add(entity_id);
+			phrases.add(new Expression.Phrase(entity_name, category, true)); // Pieņemam ka te jau visi ir normalizēti
+			if (phrases.size() >= BATCH)
+				inflectBatch(entity_ids, phrases, threads, izeja);
 		}
+		inflectBatch(entity_ids, phrases, threads, izeja);
 		
 		ieeja.close();
 		izeja.flush();
@@ -78,4 +83,23 @@ public class EntityInflection {
 		System.out.println("Done!");
 	}
 
+	/**
+	 * Inflects the collected entities and writes their update statements, then empties the lists
+	 */
+	@SuppressWarnings("unchecked")
+	private static void inflectBatch(List<String> entity_ids, List<Expression.Phrase> phrases, int threads, PrintWriter izeja) throws InterruptedException {
+		List<Map<String,String>> tables = Expression.getInflections(phrases, threads);
+		for (int i = 0; i < phrases.size(); i++) {
+			JSONObject oInflections = new JSONObject();
+			Map<String,String> inflections = tables.get(i);
+			for (String i_case : inflections.keySet()) {
+				oInflections.put(i_case, inflections.get(i_case).replaceAll("'", "''"));
+			}
+			            
+			izeja.printf("update entities set nameinflections='%s' where entityid = %s;\n",oInflections.toJSONString(), entity_ids.get(i));
+		}
+		entity_ids.clear();
+		phrases.clear();
+	}
+
 }
@@ -20,10 +20,16 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import lv.semti.morphology.analyzer.Analyzer;
 import lv.semti.morphology.analyzer.Splitting;
@@ -38,10 +44,15 @@ import edu.stanford.nlp.ling.CoreAnnotations.LVMorphologyAnalysis;
 import edu.stanford.nlp.ling.CoreAnnotations.TextAnnotation;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.sequences.LVMorphologyReaderAndWriter;
+/**
+ * A named entity phrase that can be inflected.
+ * The tagger and the analyzer are shared by all the phrases; the tagger is used concurrently,
+ * while the calls to the analyzer, which is not thread-safe, are made under its lock.
+ */
 public class Expression {
 	public LinkedList <ExpressionWord> expWords;
-	public static transient AbstractSequenceClassifier<CoreLabel> morphoClassifier = null;
-	protected static transient Analyzer analyzer = null;
+	public static transient volatile AbstractSequenceClassifier<CoreLabel> morphoClassifier = null;
+	protected static transient volatile Analyzer analyzer = null;
 	public enum Category {
 		org,
 		hum,
@@ -56,17 +67,17 @@ public class Expression {
 	}
 	public Gender gender = Gender.unknown;
 	
-	public static void initClassifier(String model) throws Exception {
+	public static synchronized void initClassifier(String model) throws Exception {
 		morphoClassifier = CMMClassifier.getClassifier(model);
 		analyzer = LVMorphologyReaderAndWriter.getAnalyzer(); // Assumption - that the morphology model actually loads the LVMorphologyReaderAndWriter data, so it should be filled.
 	}
 	
-	public static void setClassifier(AbstractSequenceClassifier<CoreLabel> preloadedClassifier) {
+	public static synchronized void setClassifier(AbstractSequenceClassifier<CoreLabel> preloadedClassifier) {
 		morphoClassifier = preloadedClassifier;
 		analyzer = LVMorphologyReaderAndWriter.getAnalyzer(); // Assumption - that the morphology model actually loads the LVMorphologyReaderAndWriter data, so it should be filled.
 	}
 	
-	public static void initClassifier() throws Exception {
+	public static synchronized void initClassifier() throws Exception {
 		// FIXME - nepamatoti paļaujamies ka tur tāds modelis būs
 		try {
 			initClassifier("models/lv-morpho-model.ser.gz");
@@ -83,6 +94,31 @@ public class Expression {
 		return analyzer;
 	}
 	
+	/**
+	 * Loads the default classifier, unless one is already set; only one of the threads creating phrases does the loading
+	 */
+	private static synchronized void ensureClassifier() {
+		if (morphoClassifier == null)
+			try {
+				initClassifier();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new Error("Expression inflection: morphoClassifier not supplied and unable to load from default values");
+			} 
+	}
+	
+	private static LinkedList<Word> tokenize(String phrase) {
+		synchronized (analyzer) {
+			return Splitting.tokenize(analyzer, phrase);
+		}
+	}
+	
+	private static Word guessByEnding(String word, String originalWord) {
+		synchronized (analyzer) {
+			return analyzer.guessByEnding(word, originalWord);
+		}
+	}
+	
 	/*
 	 * Izveido frāzi no teksta, pirms tam to notagojot ar morfotageri
 	 * @param phrase - pati frāze
@@ -94,12 +130,7 @@ public class Expression {
 	}
 	public Expression(String phrase, String phraseCategory, boolean knownLemma, boolean debug) {
 		if (morphoClassifier == null)
-			try {
-				initClassifier();
-			} catch (Exception e) {
-				e.printStackTrace();
-				throw new Error("Expression inflection: morphoClassifier not supplied and unable to load from default values");
-			} 
+			ensureClassifier();
 		setCategory(phraseCategory);
 
 		loadUsingTagger(phrase, knownLemma, debug);
@@ -127,7 +158,7 @@ public class Expression {
 	
 	public void loadUsingBestWordform(String phrase)
 	{
-		LinkedList <Word> words = Splitting.tokenize(analyzer, phrase);
+		LinkedList <Word> words = tokenize(phrase);
 		expWords=new LinkedList<ExpressionWord>();
 		for (Word w : words)
 		{
@@ -145,7 +176,7 @@ public class Expression {
 		if (phrase.matches("\\p{IsLatin}+-\\p{IsLatin}+") &&
 			this.category != Category.hum) phrase = phrase.replace("-", " - ");
 		
-	    List<Word> words = Splitting.tokenize(analyzer, phrase);
+	    List<Word> words = tokenize(phrase);
 	    for (Word word : words) { // filtrējam variantus, ņemot vērā to ko zinam par frāzi un kategoriju
 		    if (debug) {
 		    	System.out.printf("%s normal analysis:\n", word.getToken());
@@ -207,7 +238,7 @@ public class Expression {
 	    		word.wordforms.removeAll(izmetamie);
 	    		if (izmetamie.size() > 0 && word.wordforms.size() == 0) { 
 	    			// Ja šis process noveda peie tā, ka izmetām visus visus variantus... tad jāieslēdz minēšana un jāuzmin tieši lietvārdi ! 
-	    			Word extra_possibilities = analyzer.guessByEnding(word.getToken().toLowerCase(), word.getToken());
+	    			Word extra_possibilities = guessByEnding(word.getToken().toLowerCase(), word.getToken());
 			    	for (Wordform new_wf : extra_possibilities.wordforms) {
 			    		if ( (new_wf.isMatchingWeak(AttributeNames.i_Gender, AttributeNames.v_Masculine) && gender != Gender.feminine) ||  
 			    			(new_wf.isMatchingWeak(AttributeNames.i_Gender, AttributeNames.v_Feminine) && gender != Gender.masculine) ) { 
@@ -336,7 +367,7 @@ public class Expression {
 	}
 
 	private void addExtraPossibilities(Word word, boolean knownLemma, boolean debug) {
-		Word extra_possibilities = analyzer.guessByEnding(word.getToken().toLowerCase(), word.getToken());
+		Word extra_possibilities = guessByEnding(word.getToken().toLowerCase(), word.getToken());
 		
 	    if (debug) {
 	    	System.out.printf("%s extra possibilities before filtering:\n", word.getToken());
@@ -647,7 +678,141 @@ public class Expression {
 		}
 		return result;
 	}
-	
+
+	/**
+	 * A phrase to be inflected, together with what is known about it; the key of the inflection cache
+	 */
+	public static class Phrase {
+		public final String phrase;
+		public final String category;
+		public final boolean knownLemma;
+
+		/**
+		 * @param phrase - pati frāze
+		 * @param category - frāzes kategorija - person org loc, vai null
+		 * @param knownLemma - ja true, tad frāze ir 'pamatformā'
+		 */
+		public Phrase(String phrase, String category, boolean knownLemma) {
+			this.phrase = phrase;
+			this.category = category;
+			this.knownLemma = knownLemma;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Phrase)) return false;
+			Phrase other = (Phrase) o;
+			return knownLemma == other.knownLemma && phrase.equals(other.phrase)
+				&& (category == null ? other.category == null : category.equals(other.category));
+		}
+
+		@Override
+		public int hashCode() {
+			int h = phrase.hashCode() * 31 + (category == null ? 0 : category.hashCode());
+			return h * 2 + (knownLemma ? 1 : 0);
+		}
+	}
+
+	private static final ConcurrentHashMap<Phrase, Map<String,String>> inflectionCache = new ConcurrentHashMap<Phrase, Map<String,String>>();
+	private static volatile int inflectionCacheSize = 100000;
+
+	/**
+	 * Sets how many inflection tables are remembered at most (0 turns the cache off); the cache is emptied when it fills up
+	 */
+	public static void setInflectionCacheSize(int size) {
+		inflectionCacheSize = size;
+		inflectionCache.clear();
+	}
+
+	/**
+	 * Forget the remembered inflection tables, e.g. after a different classifier has been set
+	 */
+	public static void clearInflectionCache() {
+		inflectionCache.clear();
+	}
+
+	/**
+	 * The inflection table of a phrase, the same as new Expression(phrase, category, knownLemma).getInflections(),
+	 * remembered for the next time the same phrase comes up. The returned map must not be modified.
+	 */
+	public static Map<String,String> getInflections(String phrase, String category, boolean knownLemma) {
+		return getInflections(new Phrase(phrase, category, knownLemma));
+	}
+
+	public static Map<String,String> getInflections(Phrase p) {
+		Map<String,String> result = inflectionCache.get(p);
+		if (result == null) {
+			result = Collections.unmodifiableMap(new Expression(p.phrase, p.category, p.knownLemma).getInflections());
+			int size = inflectionCacheSize;
+			if (size > 0) {
+				if (inflectionCache.size() >= size) inflectionCache.clear();
+				inflectionCache.put(p, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The inflection tables of a batch of phrases, in the same order as the phrases.
+	 * Each distinct phrase is tagged and inflected once; the work is split among the given number of threads,
+	 * which share the classifier. A phrase that fails to inflect gets an empty table.
+	 */
+	public static List<Map<String,String>> getInflections(List<Phrase> phrases, int threads) throws InterruptedException {
+		if (morphoClassifier == null)
+			ensureClassifier();
+
+		final Map<Phrase, Map<String,String>> tables = new ConcurrentHashMap<Phrase, Map<String,String>>();
+		List<Phrase> todo = new ArrayList<Phrase>();
+		for (Phrase p : new LinkedHashSet<Phrase>(phrases)) {
+			Map<String,String> cached = inflectionCache.get(p);
+			if (cached != null)
+				tables.put(p, cached);
+			else todo.add(p);
+		}
+
+		if (threads <= 1 || todo.size() < 2) {
+			inflectAll(todo, tables);
+		} else {
+			ExecutorService workers = Executors.newFixedThreadPool(threads);
+			int chunks = Math.min(todo.size(), threads * 4);
+			for (int i = 0; i < chunks; i++) {
+				final List<Phrase> chunk = todo.subList(i * todo.size() / chunks, (i + 1) * todo.size() / chunks);
+				workers.execute(new Runnable() {
+					public void run() {
+						inflectAll(chunk, tables);
+					}
+				});
+			}
+			workers.shutdown();
+			try {
+				while (!workers.awaitTermination(1, TimeUnit.MINUTES)) { }
+			} catch (InterruptedException e) {
+				workers.shutdownNow();
+				throw e;
+			}
+		}
+
+		List<Map<String,String>> result = new ArrayList<Map<String,String>>(phrases.size());
+		for (Phrase p : phrases)
+			result.add(tables.get(p));
+		return result;
+	}
+
+	private static void inflectAll(List<Phrase> phrases, Map<Phrase, Map<String,String>> tables) {
+		for (Phrase p : phrases) {
+			Map<String,String> table;
+			try {
+				table = getInflections(p);
+			} catch (Exception e) {
+				System.err.printf("Expression nevarēja izlocīt frāzi '%s'\n", p.phrase);
+				e.printStackTrace();
+				table = Collections.emptyMap();
+			}
+			tables.put(p, table);
+		}
+	}
+
 	public String inflect(String inflectCase) {
 		return inflect(inflectCase, false);
 	}
@@ -768,9 +933,13 @@ public class Expression {
 			lemma_filtrs.removeAttribute(AttributeNames.i_Case);
 			lemma_filtrs.removeAttribute(AttributeNames.i_Number);
 			lemma_filtrs.removeAttribute(AttributeNames.i_Definiteness);
-			inflWordforms=analyzer.generateInflections(forma.getValue(AttributeNames.i_Lemma),false, lemma_filtrs);
+			synchronized (analyzer) {
+				inflWordforms=analyzer.generateInflections(forma.getValue(AttributeNames.i_Lemma),false, lemma_filtrs);
+			}
 		} else {
-			inflWordforms=analyzer.generateInflections(forma.lexeme, forma.getToken()); 
+			synchronized (analyzer) {
+				inflWordforms=analyzer.generateInflections(forma.lexeme, forma.getToken()); 
+			}
 			//FIXME - kāpēc tur ir tokens nevis lemma? Šis varbūt rada 'atgriešanos' normalizācijas problēmu
 			// varbūt vajag inflWordforms=analyzer.generateInflections(forma.lexeme, w.correctWordform.getValue(AttributeNames.i_Lemma));
 		}
@@ -852,7 +1021,10 @@ public class Expression {
 	}
 
 	public static String getWordPartOfSpeech(String string) {
-		Word vārds = analyzer.analyze(string); //FIXME - jāskatās, kas te bija Guntai un varbūt vajag AnalyzeLemma saukt
+		Word vārds;
+		synchronized (analyzer) {
+			vārds = analyzer.analyze(string); //FIXME - jāskatās, kas te bija Guntai un varbūt vajag AnalyzeLemma saukt
+		}
 		if (vārds.getBestWordform() == null) return AttributeNames.v_Noun;
 		return vārds.getBestWordform().getValue(AttributeNames.i_PartOfSpeech);
 	}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright 2014 Institute of Mathematics and Computer Science, University of Latvia
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package lv.lumii.morphotagger;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Request latency bookkeeping for the tagging servers.
+ * Keeps the most recent latencies in a ring buffer, so the percentiles describe the current load and not the whole uptime.
+ */
+public class LatencyStats {
+	private final long[] recent;
+	private int next = 0;
+	private int size = 0;
+	private long count = 0;
+	private long failures = 0;
+
+	/**
+	 * @param window - how many of the most recent requests are used for the percentiles
+	 */
+	public LatencyStats(int window) {
+		recent = new long[window];
+	}
+
+	/**
+	 * Records one finished request
+	 * @param nanos - request latency in nanoseconds
+	 */
+	public synchronized void record(long nanos) {
+		recent[next] = nanos;
+		next = (next + 1) % recent.length;
+		if (size < recent.length) size++;
+		count++;
+	}
+
+	public synchronized void recordFailure() {
+		failures++;
+	}
+
+	public synchronized long count() {
+		return count;
+	}
+
+	public synchronized long failures() {
+		return failures;
+	}
+
+	/**
+	 * @param percentiles - e.g. 50, 90, 99
+	 * @return latencies in milliseconds at the requested percentiles of the recent requests; zeroes if there were none
+	 */
+	public double[] percentiles(double... percentiles) {
+		long[] sorted;
+		synchronized (this) {
+			sorted = Arrays.copyOf(recent, size);
+		}
+		Arrays.sort(sorted);
+		double[] result = new double[percentiles.length];
+		if (sorted.length == 0) return result;
+		for (int i = 0; i < percentiles.length; i++) {
+			int rank = (int) Math.ceil(percentiles[i] / 100.0 * sorted.length) - 1;
+			rank = Math.max(0, Math.min(sorted.length - 1, rank));
+			result[i] = sorted[rank] / 1e6;
+		}
+		return result;
+	}
+
+	/**
+	 * Counters and p50/p90/p99/max latency as a JSON object (without the closing brace, so that callers can append their own fields)
+	 */
+	public String toJSONFields() {
+		double[] p = percentiles(50, 90, 99, 100);
+		return String.format(Locale.ROOT, "{\"requests\":%d,\"failures\":%d,\"p50_ms\":%.3f,\"p90_ms\":%.3f,\"p99_ms\":%.3f,\"max_ms\":%.3f",
+				count(), failures(), p[0], p[1], p[2], p[3]);
+	}
+}
@@ -55,6 +55,7 @@ public class MorphoCRF {
 		String testfile = "MorphoCRF/test.txt";
 		
 		boolean train = false;
+		int threads = Runtime.getRuntime().availableProcessors();
 		for (int i=0; i<args.length; i++) {
 			if (args[i].equalsIgnoreCase("-train")) {  
 				train = true;
@@ -67,6 +68,9 @@ public class MorphoCRF {
 				trainfile = "MorphoCRF/all.txt";
 				testfile = "MorphoCRF/test.txt";
 			}
+			if (args[i].equalsIgnoreCase("-threads") && i+1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			}
 		}
 
 		if (train) {
@@ -110,6 +114,8 @@ public class MorphoCRF {
 		
 		props.setProperty("readerAndWriter", "edu.stanford.nlp.sequences.LVMorphologyReaderAndWriter");
 		props.setProperty("map", "word=0,answer=1,lemma=2");
+		props.setProperty("multiThreadGrad", String.valueOf(threads)); // training threads; the model doesn't depend on their number
+		props.setProperty("compactDataset", "true"); // the same model from much less memory
 		
 		
 	    AbstractSequenceClassifier<CoreLabel> crf = new CMMClassifier<CoreLabel>(props);
@@ -17,6 +17,7 @@
  *******************************************************************************/
 package lv.lumii.morphotagger;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
@@ -26,6 +27,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
 import lv.semti.morphology.analyzer.Splitting;
 import lv.semti.morphology.analyzer.Word;
@@ -68,8 +70,11 @@ public class MorphoPipe {
 	private static boolean outputSeparators = false; // <s> for sentences, <p> for paragraphs
     private static boolean whitespaceMarker = false;
 	private static boolean stopOnEmpty = true; // quit on empty line
+	private static int threads = 1; // number of tagging worker threads
+	private static int analyzers = 0; // number of morphological analyzers for the threads, 0 = one per thread
+	private static OrderedPipeline pipeline = null; // used only if threads > 1
 	
-	private static String morphoClassifierLocation = "models/lv-morpho-model.ser.gz"; //FIXME - make it configurable
+	static String morphoClassifierLocation = "models/lv-morpho-model.ser.gz"; //FIXME - make it configurable
 	
 	public static void main(String[] args) throws Exception {
 		
@@ -123,6 +128,26 @@ public class MorphoPipe {
 			if (args[i].equalsIgnoreCase("-output-separators")) outputSeparators = true;
             if (args[i].equalsIgnoreCase("-whitespace-marker")) whitespaceMarker = true;
             if (args[i].equalsIgnoreCase("-allow-empty-lines")) stopOnEmpty = false;
+			if (args[i].equalsIgnoreCase("-threads")) {
+				if (i+1 < args.length && !args[i+1].startsWith("-")) {
+					try {
+						threads = Math.max(1, Integer.parseInt(args[i+1]));
+						i++;
+					} catch (Exception e) {
+						System.err.printf("Error when parsing command line param '%s %s'\n",args[i], args[i+1]);
+						System.err.println(e.getMessage());
+					}
+				} else threads = Runtime.getRuntime().availableProcessors();
+			}
+			if (args[i].equalsIgnoreCase("-analyzers") && i+1 < args.length) {
+				try {
+					analyzers = Math.max(1, Integer.parseInt(args[i+1]));
+					i++;
+				} catch (Exception e) {
+					System.err.printf("Error when parsing command line param '%s %s'\n",args[i], args[i+1]);
+					System.err.println(e.getMessage());
+				}
+			}
 						
 			if (args[i].equalsIgnoreCase("-h") || args[i].equalsIgnoreCase("--help") || args[i].equalsIgnoreCase("-?")) {
 				System.out.println("LV morphological tagger");
@@ -153,6 +178,8 @@ public class MorphoPipe {
 				System.out.println("\t-output-separators : put <s></s> sentence markup and <p></p> paragraph markup");
 				System.out.println("\t-whitespace-marker : put <g /> tags where the tokens did not have whitespace between them");
                 System.out.println("\t-allow-empty-lines : do not quit on blank lines input (as per default)");
+				System.out.println("\t-threads [N] : tag with N worker threads (all available cores if N is omitted); output order and content is the same as with a single thread");
+				System.out.println("\t-analyzers N : with -threads, the threads share N morphological analyzers instead of having one each; every analyzer loads its own lexicon, so this limits the memory use");
 				System.out.flush();
 				System.exit(0);
 			}
@@ -165,9 +192,19 @@ public class MorphoPipe {
 			
 		PrintStream out = new PrintStream(System.out, true, "UTF8");
 		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF8"));
+		if (threads > 1) {
+			System.err.printf("Tagging with %d threads\n", threads);
+			LVMorphologyReaderAndWriter.setAnalyzerPoolSize(analyzers > 0 ? analyzers : threads);
+			pipeline = new OrderedPipeline(out, threads);
+		}
 		
 		switch(inputType) {
 		case CONLL:
+			if (pipeline != null) {
+				for (List<CoreLabel> sentence : readCONLLUnanalyzed(in))
+					submitCONLLSentence(morphoClassifier, sentence);
+				break;
+			}
 			for (List<CoreLabel> sentence : readCONLL(in)) {
 		    	outputSentence(morphoClassifier, out, sentence);
 			}
@@ -177,17 +214,17 @@ public class MorphoPipe {
 		    String sentence = "";
 		    while ((s = in.readLine()) != null && (s.length() != 0 || !stopOnEmpty)) {
 		    	if (s.startsWith("<") && s.length()>1 && keepTags) {
-		    		if (outputType != outputTypes.lemmatizedText && outputType != outputTypes.lowercasedText) out.println(s);
+		    		if (outputType != outputTypes.lemmatizedText && outputType != outputTypes.lowercasedText) echo(out, s);
 		    		continue;
 		    	}
                 if (s.length() == 0) continue;
 		    	boolean finished = true; // is sentence finished and ready to analyze
 		    	if (inputType == inputTypes.VERT) {
 					if (s.startsWith("</s>")) {
-						processSentences(morphoClassifier, out, sentence.trim());
+						dispatchSentences(morphoClassifier, out, sentence.trim());
 						sentence = "";
-						out.println(s);
-					} else if (s.startsWith("<") && s.length()>1) out.println(s);
+						echo(out, s);
+					} else if (s.startsWith("<") && s.length()>1) echo(out, s);
 		    		else {
 						if (s.indexOf('\t') > -1) { // If the vert file contains multiple tab-delimited columns, we read the first one
 							s = s.substring(0, s.indexOf('\t'));
@@ -196,17 +233,57 @@ public class MorphoPipe {
 					}
 		    	} else {
 		    		// All other input types except VERT
-					processSentences(morphoClassifier, out, s.trim());
+					dispatchSentences(morphoClassifier, out, s.trim());
 				}
 		    }
 	    	if (inputType != inputTypes.VERT && sentence.length()>0) { //FIXME, not DRY
-	    		processSentences(morphoClassifier, out, sentence.trim());
+	    		dispatchSentences(morphoClassifier, out, sentence.trim());
 	    	}	    			
 		}
+		if (pipeline != null) pipeline.close();
 		in.close();
 		out.close();
 	}
 
+	/**
+	 * Processes the text right away, or, if running multithreaded, queues it for the worker threads
+	 */
+	private static void dispatchSentences(final CMMClassifier<CoreLabel> cmm, PrintStream out, final String text) throws InterruptedException {
+		if (pipeline == null) {
+			processSentences(cmm, out, text);
+			return;
+		}
+		pipeline.submit(new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				PrintStream bufferOut = new PrintStream(buffer, false, "UTF8");
+				processSentences(cmm, bufferOut, text);
+				bufferOut.flush();
+				return buffer.toByteArray();
+			}
+		});
+	}
+
+	private static void submitCONLLSentence(final CMMClassifier<CoreLabel> cmm, final List<CoreLabel> sentence) throws InterruptedException {
+		pipeline.submit(new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				PrintStream bufferOut = new PrintStream(buffer, false, "UTF8");
+				outputSentence(cmm, bufferOut, LVMorphologyReaderAndWriter.analyzeLabels(sentence));
+				bufferOut.flush();
+				return buffer.toByteArray();
+			}
+		});
+	}
+
+	/**
+	 * Echoes an input line (e.g. xml-style markup) to the output, keeping its position relative to the tagged sentences
+	 */
+	private static void echo(PrintStream out, String line) throws InterruptedException {
+		if (pipeline == null) out.println(line);
+		else pipeline.submitText(line + System.getProperty("line.separator"));
+	}
+
 	/**
 	 * Splits the text in sentences if needed, and forwards to outputSentance
 	 * @param cmm - the tagger, needed to retrieve tagger features if they are requested
@@ -218,7 +295,7 @@ public class MorphoPipe {
 		
 		if (inputType == inputTypes.PARAGRAPH || inputType == inputTypes.VERT) { // split in multiple sentences
 			if (outputSeparators) out.println("<p>");
-			LinkedList<LinkedList<Word>> sentences = Splitting.tokenizeSentences(LVMorphologyReaderAndWriter.getAnalyzer(), text, sentencelengthcap);
+			LinkedList<LinkedList<Word>> sentences = LVMorphologyReaderAndWriter.tokenizeSentences(text, sentencelengthcap);
 			for (LinkedList<Word> sentence : sentences) 
 				outputSentence(cmm, out, LVMorphologyReaderAndWriter.analyzeSentence2(sentence) );
 			if (outputSeparators) 
@@ -276,7 +353,7 @@ public class MorphoPipe {
 		out.flush();
 	}	
 	
-	private static String output_JSON(List<CoreLabel> tokens) {		
+	static String output_JSON(List<CoreLabel> tokens) {		
 		LinkedList<String> tokenJSON = new LinkedList<String>();
 		
 		for (CoreLabel word : tokens) {
@@ -314,7 +391,7 @@ public class MorphoPipe {
 		w.flush();
 	}
 
-	private static String output_CONLL(List<CoreLabel> tokens, CMMClassifier<CoreLabel> cmm){
+	static String output_CONLL(List<CoreLabel> tokens, CMMClassifier<CoreLabel> cmm){
 		StringBuilder s = new StringBuilder();
 
 		int counter = 1;
@@ -586,6 +663,16 @@ public class MorphoPipe {
 	
 	
 	public static List<List<CoreLabel>> readCONLL(BufferedReader in) throws IOException {
+		List<List<CoreLabel>> result = readCONLLUnanalyzed(in);
+		for (List<CoreLabel> sentence : result)
+			LVMorphologyReaderAndWriter.analyzeLabels(sentence);
+		return result;
+	}
+
+	/**
+	 * Reads the CONLL sentences without running the morphological analysis on them
+	 */
+	private static List<List<CoreLabel>> readCONLLUnanalyzed(BufferedReader in) throws IOException {
 		String s;
 	    List<CoreLabel> sentence = new LinkedList<CoreLabel>();
 	    List<List<CoreLabel>> result = new LinkedList<List<CoreLabel>>();
@@ -617,7 +704,7 @@ public class MorphoPipe {
 	    		stag.set(TextAnnotation.class, "<s>");
 	    		sentence.add(stag);
 	    		
-	    		result.add(LVMorphologyReaderAndWriter.analyzeLabels(sentence));
+	    		result.add(sentence);
 	    		
 	    		sentence = new LinkedList<CoreLabel>();
 	    		stag = new CoreLabel();
@@ -629,7 +716,7 @@ public class MorphoPipe {
 	    	stag = new CoreLabel();
 			stag.set(TextAnnotation.class, "<s>");
 			sentence.add(stag);
-	    	result.add(LVMorphologyReaderAndWriter.analyzeLabels(sentence));
+	    	result.add(sentence);
 	    }
 	    		
 		return result;
@@ -0,0 +1,337 @@
+/*******************************************************************************
+ * Copyright 2014 Institute of Mathematics and Computer Science, University of Latvia
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package lv.lumii.morphotagger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import lv.semti.morphology.analyzer.Word;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import edu.stanford.nlp.ie.ner.CMMClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.sequences.LVMorphologyCache;
+import edu.stanford.nlp.sequences.LVMorphologyReaderAndWriter;
+
+/**
+ * Long-running morphological tagging server, so that the model and the lexicon are loaded only once.
+ * <p>
+ * The protocol is newline-delimited JSON over a plain socket; a connection can carry any number of requests,
+ * each answered with one line, in order. A request is either an array of sentences, or an object
+ * <pre>{"id": 1, "format": "json" | "conll", "sentences": ["...", ...]}</pre>
+ * where "paragraphs" can be given instead of "sentences" for texts that have to be split into sentences first.
+ * The reply is <pre>{"id": 1, "result": [...]}</pre> with one element per input text, in the
+ * {@link MorphoPipe} JSON format (for paragraphs, an array of sentences) or a CONLL-X string;
+ * or <pre>{"id": 1, "error": "..."}</pre>.
+ * The request <pre>{"stats": true}</pre> returns the request counters and latency percentiles,
+ * and the hits and misses of the cache of token analyses.
+ * <p>
+ * The texts of all the requests go to one bounded work queue, from which the tagging threads take them one
+ * at a time, so the texts of one large request are tagged in parallel, and a full queue makes the clients wait
+ * instead of exhausting the memory. At most a fixed number of connections are served at once; further clients
+ * wait to be accepted. A connection that sends nothing for the read timeout is closed, so that idle clients
+ * can't hold all the sessions.
+ */
+public class MorphoServer {
+	private final CMMClassifier<CoreLabel> cmm;
+	private final ServerSocket listener;
+	private final BlockingQueue<Item> queue;
+	private final ExecutorService sessions;
+	private final Semaphore freeSessions;
+	private final int timeout;
+	private final LatencyStats stats = new LatencyStats(10000);
+
+	private static int sentencelengthcap = 250;
+	/** The work queue holds this many texts per tagging thread */
+	private static final int QUEUE_PER_THREAD = 1024;
+	/** Seconds a connection may wait between requests, by default */
+	private static final int DEFAULT_TIMEOUT = 300;
+
+	/**
+	 * One request from a client, finished when all its texts are tagged
+	 */
+	private static class Request {
+		final boolean paragraphs;
+		final boolean conll;
+		final String[] results;
+		final CountDownLatch remaining;
+		volatile Throwable failure = null;
+
+		Request(int size, boolean paragraphs, boolean conll) {
+			this.paragraphs = paragraphs;
+			this.conll = conll;
+			this.results = new String[size];
+			this.remaining = new CountDownLatch(size);
+		}
+	}
+
+	/**
+	 * One text of a request - the unit of work for the tagging threads
+	 */
+	private static class Item {
+		final Request request;
+		final int index;
+		final String text;
+
+		Item(Request request, int index, String text) {
+			this.request = request;
+			this.index = index;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * @param port - TCP port to listen on
+	 * @param cmm - the morphological tagger
+	 * @param threads - number of tagging threads
+	 * @param maxSessions - maximum number of connections that are served at once
+	 */
+	public MorphoServer(int port, CMMClassifier<CoreLabel> cmm, int threads, int maxSessions) throws IOException {
+		this(port, cmm, threads, maxSessions, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param port - TCP port to listen on
+	 * @param cmm - the morphological tagger
+	 * @param threads - number of tagging threads
+	 * @param maxSessions - maximum number of connections that are served at once
+	 * @param timeout - seconds a connection may wait between requests before it is closed; 0 for no limit
+	 */
+	public MorphoServer(int port, CMMClassifier<CoreLabel> cmm, int threads, int maxSessions, int timeout) throws IOException {
+		this.cmm = cmm;
+		this.timeout = timeout;
+		this.queue = new ArrayBlockingQueue<Item>(threads * QUEUE_PER_THREAD);
+		this.sessions = Executors.newFixedThreadPool(maxSessions);
+		this.freeSessions = new Semaphore(maxSessions);
+		this.listener = new ServerSocket(port);
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "MorphoServer-worker-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Accepts connections until the process is killed
+	 */
+	@SuppressWarnings("InfiniteLoopStatement")
+	public void run() {
+		while (true) {
+			// a connection is accepted only when there is a session thread free to serve it
+			freeSessions.acquireUninterruptibly();
+			try {
+				final Socket client = listener.accept();
+				sessions.execute(new Runnable() {
+					public void run() {
+						try {
+							session(client);
+						} finally {
+							freeSessions.release();
+						}
+					}
+				});
+			} catch (IOException e) {
+				freeSessions.release();
+				System.err.println("MorphoServer: couldn't accept");
+				e.printStackTrace(System.err);
+			}
+		}
+	}
+
+	private void work() {
+		while (true) {
+			Item item;
+			try {
+				item = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				item.request.results[item.index] = tag(item.request, item.text);
+			} catch (Throwable e) {
+				// also an Error, such as running out of memory on one huge text, so that the thread lives on
+				System.err.println("MorphoServer: failed to tag a text");
+				e.printStackTrace(System.err);
+				item.request.failure = e;
+			} finally {
+				item.request.remaining.countDown();
+			}
+		}
+	}
+
+	private String tag(Request request, String text) {
+		if (!request.paragraphs) {
+			List<CoreLabel> sentence = cmm.classify(LVMorphologyReaderAndWriter.analyzeSentence(text));
+			return request.conll ? MorphoPipe.output_CONLL(sentence, cmm) : MorphoPipe.output_JSON(sentence);
+		}
+		StringBuilder s = new StringBuilder();
+		if (!request.conll) s.append('[');
+		LinkedList<LinkedList<Word>> sentences = LVMorphologyReaderAndWriter.tokenizeSentences(text, sentencelengthcap);
+		for (LinkedList<Word> words : sentences) {
+			List<CoreLabel> sentence = cmm.classify(LVMorphologyReaderAndWriter.analyzeSentence2(words));
+			if (request.conll) {
+				s.append(MorphoPipe.output_CONLL(sentence, cmm));
+				s.append('\n');
+			} else {
+				if (s.length() > 1) s.append(", ");
+				s.append(MorphoPipe.output_JSON(sentence));
+			}
+		}
+		if (!request.conll) s.append(']');
+		return s.toString();
+	}
+
+	private void session(Socket client) {
+		try {
+			client.setSoTimeout(timeout * 1000);
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF8"));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), "UTF8"));
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().isEmpty()) continue;
+				out.println(answer(line));
+				out.flush();
+			}
+		} catch (SocketTimeoutException e) {
+			// an idle or half-open connection; closed to free its session
+		} catch (IOException e) {
+			// the client went away; nothing to answer
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				System.err.println("MorphoServer: can't close session");
+			}
+		}
+	}
+
+	/**
+	 * Parses one request line, waits until its texts are tagged, and formats the reply line
+	 */
+	private String answer(String line) throws InterruptedException {
+		long start = System.nanoTime();
+		Object id = null;
+		try {
+			Object json = JSONValue.parse(line);
+			List<?> texts;
+			boolean paragraphs = false;
+			boolean conll = false;
+			if (json instanceof JSONArray) {
+				texts = (JSONArray) json;
+			} else if (json instanceof JSONObject) {
+				JSONObject request = (JSONObject) json;
+				if (Boolean.TRUE.equals(request.get("stats")))
+					return stats.toJSONFields() + ",\"queued\":" + queue.size() + cacheStats() + "}";
+				id = request.get("id");
+				conll = "conll".equalsIgnoreCase(String.valueOf(request.get("format")));
+				paragraphs = request.containsKey("paragraphs");
+				Object list = paragraphs ? request.get("paragraphs") : request.get("sentences");
+				if (!(list instanceof List)) throw new IllegalArgumentException("Expected a \"sentences\" or \"paragraphs\" array");
+				texts = (List<?>) list;
+			} else throw new IllegalArgumentException("Expected a JSON array or object");
+
+			Request request = new Request(texts.size(), paragraphs, conll);
+			for (int i = 0; i < texts.size(); i++)
+				queue.put(new Item(request, i, String.valueOf(texts.get(i))));
+			request.remaining.await();
+			if (request.failure != null) throw new RuntimeException(request.failure);
+			for (String result : request.results)
+				if (result == null) throw new IllegalStateException("A text could not be tagged");
+
+			StringBuilder reply = new StringBuilder("{\"id\":");
+			reply.append(JSONValue.toJSONString(id));
+			reply.append(",\"result\":[");
+			for (int i = 0; i < request.results.length; i++) {
+				if (i > 0) reply.append(", ");
+				if (conll) reply.append('"').append(JSONValue.escape(request.results[i])).append('"');
+				else reply.append(request.results[i]);
+			}
+			reply.append("]}");
+			stats.record(System.nanoTime() - start);
+			return reply.toString();
+		} catch (RuntimeException e) {
+			stats.recordFailure();
+			String message = e.getCause() != null ? e.getCause().toString() : e.toString();
+			return "{\"id\":" + JSONValue.toJSONString(id) + ",\"error\":\"" + JSONValue.escape(message) + "\"}";
+		}
+	}
+
+	private static String cacheStats() {
+		LVMorphologyCache cache = LVMorphologyReaderAndWriter.getAnalysisCache();
+		if (cache == null) return "";
+		return ",\"cache_hits\":" + cache.hits() + ",\"cache_misses\":" + cache.misses() + ",\"cache_size\":" + cache.size();
+	}
+
+	private static final String USAGE = "Usage: MorphoServer -port portNumber [-threads N] [-sessions N] [-timeout seconds] [-paragraphs lengthcap] [-cache tokens]";
+
+	public static void main(String[] args) throws Exception {
+		int port = -1;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int maxSessions = 64;
+		int timeout = DEFAULT_TIMEOUT;
+		for (int i=0; i<args.length; i++) {
+			try {
+				if (args[i].equalsIgnoreCase("-port")) port = Integer.parseInt(args[++i]);
+				else if (args[i].equalsIgnoreCase("-threads")) threads = Math.max(1, Integer.parseInt(args[++i]));
+				else if (args[i].equalsIgnoreCase("-sessions")) maxSessions = Math.max(1, Integer.parseInt(args[++i]));
+				else if (args[i].equalsIgnoreCase("-timeout")) timeout = Math.max(0, Integer.parseInt(args[++i]));
+				else if (args[i].equalsIgnoreCase("-paragraphs")) sentencelengthcap = Integer.parseInt(args[++i]);
+				else if (args[i].equalsIgnoreCase("-cache")) LVMorphologyReaderAndWriter.setAnalysisCacheSize(Integer.parseInt(args[++i]));
+				else if (args[i].equalsIgnoreCase("-h") || args[i].equalsIgnoreCase("--help") || args[i].equalsIgnoreCase("-?")) {
+					System.out.println(USAGE);
+					System.exit(0);
+				}
+			} catch (RuntimeException e) {
+				System.err.printf("Error when parsing command line param '%s'\n", args[i]);
+				System.err.println(USAGE);
+				System.exit(1);
+			}
+		}
+		if (port < 0) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+
+		CMMClassifier<CoreLabel> cmm = CMMClassifier.getClassifier(MorphoPipe.morphoClassifierLocation);
+		LVMorphologyReaderAndWriter.getAnalyzer(); // load the lexicon before accepting the first request
+		System.err.printf("MorphoServer listening on port %d with %d tagging threads\n", port, threads);
+		new MorphoServer(port, cmm, threads, maxSessions, timeout).run();
+	}
+}
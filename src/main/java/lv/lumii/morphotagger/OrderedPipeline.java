@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright 2014 Institute of Mathematics and Computer Science, University of Latvia
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package lv.lumii.morphotagger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Reader / worker pool / writer pipeline that keeps the input order.
+ * The reader thread submits jobs, each of which renders its part of the output into a byte array;
+ * the workers run the jobs in parallel, and a single writer thread copies the results to the
+ * output stream strictly in the order the jobs were submitted.
+ * The number of jobs in flight is bounded, so a fast reader blocks instead of filling the heap.
+ */
+public class OrderedPipeline {
+	private final OutputStream out;
+	private final ExecutorService workers;
+	private final BlockingQueue<Future<byte[]>> pending;
+	private final Thread writer;
+	private volatile Throwable failure = null;
+
+	private static final Future<byte[]> END = new FutureTask<byte[]>(new Callable<byte[]>() {
+		public byte[] call() { return null; }
+	});
+
+	/**
+	 * @param out - stream where the results are written in input order
+	 * @param threads - number of worker threads
+	 */
+	public OrderedPipeline(OutputStream out, int threads) {
+		this.out = out;
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.pending = new ArrayBlockingQueue<Future<byte[]>>(threads * 16);
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				writeResults();
+			}
+		}, "OrderedPipeline-writer");
+		this.writer.start();
+	}
+
+	/**
+	 * Queues a job for the worker pool; blocks while too many jobs are waiting for output.
+	 */
+	public void submit(Callable<byte[]> job) throws InterruptedException {
+		checkFailure();
+		pending.put(workers.submit(job));
+	}
+
+	/**
+	 * Queues a piece of already finished output (e.g. an echoed metadata line), so that it stays in its place among the job results.
+	 */
+	public void submitText(String text) throws InterruptedException {
+		final byte[] bytes;
+		try {
+			bytes = text.getBytes("UTF8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		FutureTask<byte[]> done = new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() { return bytes; }
+		});
+		done.run();
+		checkFailure();
+		pending.put(done);
+	}
+
+	/**
+	 * Waits until all the submitted jobs are written out and stops the threads.
+	 * Rethrows the first failure that happened in a worker or in the writer.
+	 */
+	public void close() throws InterruptedException {
+		if (failure == null) pending.put(END);
+		writer.join();
+		workers.shutdown();
+		checkFailure();
+	}
+
+	private void checkFailure() {
+		if (failure != null) {
+			workers.shutdownNow();
+			throw new RuntimeException("Tagging pipeline failed", failure);
+		}
+	}
+
+	private void writeResults() {
+		try {
+			Future<byte[]> result;
+			while ((result = pending.take()) != END) {
+				byte[] bytes = result.get();
+				out.write(bytes, 0, bytes.length);
+				if (pending.isEmpty()) out.flush(); // don't keep the consumer waiting if the reader has nothing more for now
+			}
+			out.flush();
+		} catch (ExecutionException e) {
+			failure = e.getCause();
+		} catch (InterruptedException e) {
+			failure = e;
+		} catch (IOException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = e;
+		} finally {
+			if (failure != null) pending.clear(); // unblock the reader so that it can notice the failure
+		}
+	}
+}
@@ -65,6 +65,7 @@ public class NerPipe {
 		if (props.containsKey("regexList")) classifiers.add(new RegexNERSequenceClassifier(props.getProperty("regexList"), true, true));
 
 		classifier = new NERClassifierCombiner(classifiers);
+		if (props.containsKey("combinerThreads")) classifier.flags.combinerThreads = Integer.parseInt(props.getProperty("combinerThreads"));
 		defaultReaderWriter = new LVCoNLLDocumentReaderAndWriter();
 		defaultReaderWriter.init(classifier.flags);
 	}
@@ -144,6 +145,23 @@ public class NerPipe {
 	}
 	
 	
+	/**
+	 * Classifies the documents of a CoNLL formatted text and returns the answers in the format of LVCoNLLDocumentReaderAndWriter.
+	 * Each call uses its own reader/writer, so this can be called from several threads at once.
+	 */
+	public String classifyCONLL(String text) {
+		DocumentReaderAndWriter<CoreLabel> rw = new LVCoNLLDocumentReaderAndWriter();
+		rw.init(classifier.flags);
+		StringWriter bos = new StringWriter();
+		PrintWriter printer = new PrintWriter(bos);
+		for (List<CoreLabel> doc : classifier.makeObjectBankFromString(text, rw)) {
+			classifier.classify(doc);
+			rw.printAnswers(doc, printer);
+		}
+		printer.flush();
+		return bos.toString();
+	}
+	
 	public String getAnswerString(List<CoreLabel> doc) {
 		return getAnswerString(doc, defaultReaderWriter);
 	}
@@ -200,6 +218,7 @@ public class NerPipe {
 			System.out.println("\nOther options:");
 			System.out.println("\t-saveExtraColumns : save extra columns after typical conll input (6 columns)");
 			System.out.println("\t-whiteList : files containing white list named entities (separated by comma)");
+			System.out.println("\t-combinerThreads N : run the list, CRF and regex classifiers of a document on N threads at once");
 			System.out.flush();
 			System.exit(0);
 		}
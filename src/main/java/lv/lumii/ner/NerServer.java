@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright 2014 Institute of Mathematics and Computer Science, University of Latvia
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package lv.lumii.ner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import lv.lumii.morphotagger.LatencyStats;
+
+import edu.stanford.nlp.util.StringUtils;
+
+/**
+ * Named entity recognition server built on {@link NerPipe}, for many clients at once.
+ * <p>
+ * A connection carries any number of documents in the NerPipe stdin format: CoNLL lines,
+ * sentences separated by a blank line, and each document terminated by three blank lines.
+ * Every document is answered in the output format of LVCoNLLDocumentReaderAndWriter, also terminated
+ * by three blank lines; a failed or timed out document is answered with a single line starting with
+ * "# ERROR". The line "#stats" returns the counters (queue depth, p50/p99 latency) as one JSON line.
+ * <p>
+ * Documents are tagged by a fixed pool of worker threads. At most as many documents as the queue
+ * capacity can wait for a worker; after that the connections stop reading, so that TCP flow control
+ * slows down the clients instead of the server running out of memory. At most a fixed number of
+ * connections are served at once; further clients wait to be accepted.
+ */
+public class NerServer {
+	private final NerPipe ner;
+	private final ServerSocket listener;
+	private final ThreadPoolExecutor workers;
+	private final Semaphore capacity;
+	private final ExecutorService sessions;
+	private final Semaphore freeSessions;
+	private final long timeoutMillis;
+	private final LatencyStats stats = new LatencyStats(10000);
+	private long timeouts = 0;
+
+	private static final String ERROR = "# ERROR";
+	private static final String STATS = "#stats";
+	private static final String DOCUMENT_END = "\n\n\n";
+
+	/**
+	 * @param port - TCP port to listen on
+	 * @param ner - the tagger; its classifiers are shared by all the worker threads
+	 * @param threads - number of worker threads
+	 * @param queueSize - how many documents can wait for a worker
+	 * @param timeoutMillis - how long a client waits for a document before getting an error, 0 for no limit
+	 * @param maxSessions - maximum number of connections that are served at once
+	 */
+	public NerServer(int port, NerPipe ner, int threads, int queueSize, long timeoutMillis, int maxSessions) throws IOException {
+		this.ner = ner;
+		this.timeoutMillis = timeoutMillis;
+		this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize));
+		this.capacity = new Semaphore(threads + queueSize);
+		this.sessions = Executors.newFixedThreadPool(maxSessions);
+		this.freeSessions = new Semaphore(maxSessions);
+		this.listener = new ServerSocket(port);
+	}
+
+	/**
+	 * Accepts connections until the process is killed
+	 */
+	@SuppressWarnings("InfiniteLoopStatement")
+	public void run() {
+		while (true) {
+			// a connection is accepted only when there is a session thread free to serve it
+			freeSessions.acquireUninterruptibly();
+			try {
+				final Socket client = listener.accept();
+				sessions.execute(new Runnable() {
+					public void run() {
+						try {
+							session(client);
+						} finally {
+							freeSessions.release();
+						}
+					}
+				});
+			} catch (IOException e) {
+				freeSessions.release();
+				System.err.println("NerServer: couldn't accept");
+				e.printStackTrace(System.err);
+			}
+		}
+	}
+
+	private void session(Socket client) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "utf-8"));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), "utf-8"));
+			String document;
+			while ((document = readDocument(in)) != null) {
+				if (document.trim().equals(STATS)) {
+					out.print(stats() + "\n");
+				} else {
+					out.print(answer(document));
+					out.print(DOCUMENT_END);
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			// the client went away; nothing to answer
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				System.err.println("NerServer: can't close session");
+			}
+		}
+	}
+
+	/**
+	 * Reads one document, with the blank lines inside it replaced by sentence boundaries as in classifyDocumentStdin.
+	 * A "#stats" line is returned on its own.
+	 * @return null if the client has closed the connection without sending anything more
+	 */
+	static String readDocument(BufferedReader in) throws IOException {
+		StringBuilder text = new StringBuilder();
+		int blankLines = 0;
+		boolean empty = true;
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.trim().isEmpty()) {
+				if (empty) continue; // leftovers of the previous terminator
+				if (++blankLines > 2) break;
+				text.append("<s>\n");
+			} else {
+				if (empty && line.trim().equals(STATS)) return STATS;
+				text.append(line).append('\n');
+				blankLines = 0;
+				empty = false;
+			}
+		}
+		return empty ? null : text.toString();
+	}
+
+	/**
+	 * A document to tag, which holds its place in the queue until a worker has taken it: a cancelled job
+	 * stays in the queue, and is given back when the worker skips it, as a tagged one is.
+	 */
+	private class Job extends FutureTask<String> {
+		Job(final String document) {
+			super(new Callable<String>() {
+				public String call() {
+					return ner.classifyCONLL(document);
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				capacity.release();
+			}
+		}
+	}
+
+	/**
+	 * Tags a document on the worker pool, waiting for a free place in the queue first
+	 */
+	private String answer(final String document) throws InterruptedException {
+		long start = System.nanoTime();
+		capacity.acquire();
+		Job job = new Job(document);
+		try {
+			workers.execute(job);
+		} catch (RuntimeException e) {
+			capacity.release();
+			throw e;
+		}
+		try {
+			String output = timeoutMillis > 0 ? job.get(timeoutMillis, TimeUnit.MILLISECONDS) : job.get();
+			stats.record(System.nanoTime() - start);
+			return output;
+		} catch (TimeoutException e) {
+			// a running classifier can't be stopped, but a document that is still queued is dropped
+			job.cancel(false);
+			synchronized (this) {
+				timeouts++;
+			}
+			stats.recordFailure();
+			return ERROR + ": timed out after " + timeoutMillis + " ms\n";
+		} catch (ExecutionException e) {
+			stats.recordFailure();
+			return ERROR + ": " + e.getCause() + "\n";
+		}
+	}
+
+	private String stats() {
+		long timedOut;
+		synchronized (this) {
+			timedOut = timeouts;
+		}
+		return stats.toJSONFields() + ",\"timeouts\":" + timedOut + ",\"queued\":" + workers.getQueue().size()
+				+ ",\"active\":" + workers.getActiveCount() + "}";
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties props = StringUtils.argsToProperties(args);
+		if (props.getProperty("port") == null || props.containsKey("h") || props.containsKey("help")) {
+			System.out.println("LV Named Entity Recognition server");
+			System.out.println("\nUsage: NerServer -prop lv-ner-tagger.prop -port portNumber [options]");
+			System.out.println("\t-threads N : number of tagging threads (default: number of cores)");
+			System.out.println("\t-queue N : number of documents that can wait for a tagging thread (default: 100)");
+			System.out.println("\t-timeout ms : answer with an error if a document isn't tagged in this time (default: no limit)");
+			System.out.println("\t-sessions N : number of connections that are served at once (default: 64)");
+			System.out.println("\nOther options are the same as for NerPipe.");
+			System.out.flush();
+			System.exit(0);
+		}
+		int port = Integer.parseInt(props.getProperty("port"));
+		int threads = Integer.parseInt(props.getProperty("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		int queueSize = Integer.parseInt(props.getProperty("queue", "100"));
+		long timeout = Long.parseLong(props.getProperty("timeout", "0"));
+		int maxSessions = Integer.parseInt(props.getProperty("sessions", "64"));
+		for (String key : new String[] {"port", "threads", "queue", "timeout", "sessions"})
+			props.remove(key); // so that the classifier flags don't complain
+
+		NerPipe ner = new NerPipe(props);
+		System.err.printf("NerServer listening on port %d with %d tagging threads\n", port, threads);
+		new NerServer(port, ner, Math.max(1, threads), Math.max(1, queueSize), timeout, Math.max(1, maxSessions)).run();
+	}
+}
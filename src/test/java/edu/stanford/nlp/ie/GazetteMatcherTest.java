@@ -0,0 +1,124 @@
+package edu.stanford.nlp.ie;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of the Aho-Corasick matching of {@link GazetteMatcher}: overlapping, nested and repeated
+ * occurrences, against a brute-force search too.
+ */
+public class GazetteMatcherTest {
+
+  private static GazetteMatcher matcher(boolean ignoreCase, String... phrases) {
+    GazetteMatcher.Builder builder = new GazetteMatcher.Builder(ignoreCase);
+    for (String phrase : phrases) {
+      builder.add(new GazetteMatcher.Entry("T", phrase.split(" "), null, 0, null));
+    }
+    return builder.build();
+  }
+
+  /** The matches as "entry@[start,end)" */
+  private static List<String> matches(GazetteMatcher matcher, String sentence) {
+    List<String> found = new ArrayList<String>();
+    for (GazetteMatcher.Match match : matcher.matches(Arrays.asList(sentence.split(" ")))) {
+      found.add(match.toString());
+    }
+    return found;
+  }
+
+  @Test
+  public void testSingleAndMultiToken() {
+    GazetteMatcher m = matcher(false, "Rīga", "Latvijas Universitāte", "Latvijas Universitātes Matemātikas un informātikas institūts");
+    assertEquals(Arrays.asList("0@[0,1)"), matches(m, "Rīga ir galvaspilsēta"));
+    assertEquals(Arrays.asList("1@[2,4)"), matches(m, "es mācos Latvijas Universitāte"));
+    assertEquals(Arrays.asList("2@[1,7)"), matches(m, "no Latvijas Universitātes Matemātikas un informātikas institūts"));
+    assertEquals(Arrays.asList(), matches(m, "Latvijas Universitātes Matemātikas institūts"));
+  }
+
+  @Test
+  public void testOverlapping() {
+    GazetteMatcher m = matcher(false, "a b", "b c", "c d e");
+    assertEquals(Arrays.asList("0@[0,2)", "1@[1,3)", "2@[2,5)"), matches(m, "a b c d e"));
+  }
+
+  @Test
+  public void testNested() {
+    GazetteMatcher m = matcher(false, "New York City", "New York", "York", "City");
+    assertEquals(Arrays.asList("1@[1,3)", "0@[1,4)", "2@[2,3)", "3@[3,4)"), matches(m, "in New York City"));
+  }
+
+  @Test
+  public void testRepeatedAndFailureLinks() {
+    // after "a b a", the match of "a b c" has to go on from the second "a" through the failure links
+    GazetteMatcher m = matcher(false, "a b c", "b a", "a");
+    assertEquals(Arrays.asList("2@[0,1)", "1@[1,3)", "2@[2,3)", "0@[2,5)"), matches(m, "a b a b c"));
+    assertEquals(Arrays.asList("2@[0,1)", "2@[1,2)", "2@[2,3)"), matches(m, "a a a"));
+  }
+
+  @Test
+  public void testDuplicateEntries() {
+    GazetteMatcher m = matcher(false, "x y", "x y");
+    assertEquals(Arrays.asList("0@[0,2)", "1@[0,2)"), matches(m, "x y"));
+  }
+
+  @Test
+  public void testIgnoreCaseAndNullTokens() {
+    GazetteMatcher m = matcher(true, "latvijas banka");
+    assertEquals(Arrays.asList("0@[0,2)"), matches(m, "Latvijas BANKA"));
+    assertEquals(Arrays.asList(), matches(matcher(false, "latvijas banka"), "Latvijas banka"));
+    // a null token matches nothing and breaks any phrase across it
+    assertTrue(m.matches(Arrays.asList("latvijas", null, "banka")).isEmpty());
+  }
+
+  @Test
+  public void testMaxLength() {
+    assertEquals(0, matcher(false).maxLength());
+    assertEquals(3, matcher(false, "a", "a b c", "d e").maxLength());
+  }
+
+  @Test
+  public void testAgainstBruteForce() {
+    Random random = new Random(1);
+    String[] vocabulary = { "a", "b", "c", "d" };
+    for (int trial = 0; trial < 500; trial++) {
+      List<String[]> phrases = new ArrayList<String[]>();
+      GazetteMatcher.Builder builder = new GazetteMatcher.Builder(false);
+      for (int e = 0, n = 1 + random.nextInt(8); e < n; e++) {
+        String[] words = new String[1 + random.nextInt(4)];
+        for (int i = 0; i < words.length; i++) {
+          words[i] = vocabulary[random.nextInt(vocabulary.length)];
+        }
+        phrases.add(words);
+        builder.add(new GazetteMatcher.Entry("T", words, null, 0, null));
+      }
+      GazetteMatcher m = builder.build();
+      String[] sentence = new String[random.nextInt(20)];
+      for (int i = 0; i < sentence.length; i++) {
+        sentence[i] = vocabulary[random.nextInt(vocabulary.length)];
+      }
+
+      List<String> expected = new ArrayList<String>();
+      for (int start = 0; start < sentence.length; start++) {
+        for (int end = start + 1; end <= sentence.length; end++) {
+          for (int e = 0; e < phrases.size(); e++) {
+            if (Arrays.equals(phrases.get(e), Arrays.copyOfRange(sentence, start, end))) {
+              expected.add(e + "@[" + start + ',' + end + ')');
+            }
+          }
+        }
+      }
+      List<String> found = new ArrayList<String>();
+      for (GazetteMatcher.Match match : m.matches(Arrays.asList(sentence))) {
+        found.add(match.toString());
+      }
+      assertEquals("trial " + trial + ": " + Arrays.toString(sentence), expected, found);
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+package edu.stanford.nlp.ie;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import edu.stanford.nlp.ling.CoreAnnotations.TextAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.sequences.FeatureFactory;
+import edu.stanford.nlp.sequences.SeqClassifierFlags;
+import edu.stanford.nlp.util.PaddedList;
+
+/**
+ * Checks that the clean gazette features, which are matched once per document, follow the changes
+ * of a document that is tagged again.
+ */
+public class NERFeatureFactoryGazetteTest {
+
+  private static final String FEATURE = "LOC-GAZC2|C";
+
+  private static NERFeatureFactory<CoreLabel> factory() throws Exception {
+    File gazette = File.createTempFile("gazette", ".txt");
+    gazette.deleteOnExit();
+    Writer out = new OutputStreamWriter(new FileOutputStream(gazette), "UTF-8");
+    out.write("LOC Latvijas Republika\n");
+    out.close();
+    Properties props = new Properties();
+    props.setProperty("gazette", gazette.getPath());
+    props.setProperty("cleanGazette", "true");
+    SeqClassifierFlags flags = new SeqClassifierFlags(props);
+    NERFeatureFactory<CoreLabel> factory = new NERFeatureFactory<CoreLabel>();
+    factory.init(flags);
+    return factory;
+  }
+
+  private static List<CoreLabel> document(String... words) {
+    List<CoreLabel> document = new ArrayList<CoreLabel>();
+    for (String word : words) {
+      CoreLabel token = new CoreLabel();
+      token.set(TextAnnotation.class, word);
+      document.add(token);
+    }
+    return document;
+  }
+
+  private static boolean hasGazetteFeature(NERFeatureFactory<CoreLabel> factory, List<CoreLabel> document, int loc) {
+    Collection<String> features = factory.getCliqueFeatures(new PaddedList<CoreLabel>(document, new CoreLabel()), loc, FeatureFactory.cliqueC);
+    return features.contains(FEATURE);
+  }
+
+  @Test
+  public void testDocuments() throws Exception {
+    NERFeatureFactory<CoreLabel> factory = factory();
+    List<CoreLabel> document = document("Latvijas", "Republika", "un", "Lietuva");
+    assertTrue(hasGazetteFeature(factory, document, 0));
+    assertTrue(hasGazetteFeature(factory, document, 1));
+    assertFalse(hasGazetteFeature(factory, document, 2));
+    assertFalse(hasGazetteFeature(factory, document("Lietuvas", "Republika", "un", "Latvija"), 1));
+  }
+
+  @Test
+  public void testChangedDocument() throws Exception {
+    NERFeatureFactory<CoreLabel> factory = factory();
+    List<CoreLabel> document = document("Latvijas", "Republika", "un", "Lietuva");
+    assertTrue(hasGazetteFeature(factory, document, 1));
+    // the same list, of the same size, with other tokens
+    document.set(0, document("Lietuvas").get(0));
+    assertFalse(hasGazetteFeature(factory, document, 1));
+    // and with a token of the same object changed
+    document.get(0).set(TextAnnotation.class, "Latvijas");
+    assertTrue(hasGazetteFeature(factory, document, 1));
+    document.get(1).set(TextAnnotation.class, "Banka");
+    assertFalse(hasGazetteFeature(factory, document, 0));
+  }
+
+  @Test
+  public void testDocumentNotKept() throws Exception {
+    NERFeatureFactory<CoreLabel> factory = factory();
+    List<CoreLabel> document = document("Latvijas", "Republika", "un", "Lietuva");
+    assertTrue(hasGazetteFeature(factory, document, 0));
+    WeakReference<List<CoreLabel>> kept = new WeakReference<List<CoreLabel>>(document);
+    WeakReference<CoreLabel> first = new WeakReference<CoreLabel>(document.get(0));
+    document = null;
+    for (int i = 0; i < 20 && (kept.get() != null || first.get() != null); i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(kept.get());
+    assertNull(first.get());
+    // and a new document is matched anew
+    assertFalse(hasGazetteFeature(factory, document("Lietuvas", "Republika", "un", "Latvija"), 1));
+  }
+
+}
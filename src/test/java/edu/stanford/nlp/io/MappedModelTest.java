@@ -0,0 +1,93 @@
+package edu.stanford.nlp.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.stanford.nlp.math.CompactWeights;
+import edu.stanford.nlp.math.WeightMatrix;
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
+
+/**
+ * Tests that a {@link MappedModel} gives back the features, weights and objects it was written with,
+ * with the weights read from the mapped file.
+ */
+public class MappedModelTest {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Random random = new Random(3);
+    Index<String> features = new HashIndex<String>();
+    double[][] weights = new double[300][];
+    for (int i = 0; i < weights.length; i++) {
+      features.add("F" + random.nextInt(1000000) + "-" + i + "|ā");
+      // rows of different lengths, as those of a CRF, and some of them empty
+      weights[i] = new double[random.nextInt(5) * 3];
+      for (int j = 0; j < weights[i].length; j++) {
+        weights[i][j] = random.nextGaussian();
+      }
+    }
+
+    File file = File.createTempFile("mapped", ".model");
+    file.deleteOnExit();
+    MappedModel.write(file.getPath(), features, weights, "objects", Integer.valueOf(7));
+    assertTrue(MappedModel.isMappedModel(file));
+
+    MappedModel model = new MappedModel(file);
+    Index<String> mappedFeatures = model.featureIndex();
+    WeightMatrix mappedWeights = model.weights();
+    assertEquals(features.size(), mappedFeatures.size());
+    assertEquals(weights.length, mappedWeights.rows());
+    double[][] dense = mappedWeights.toArray();
+    for (int i = 0; i < weights.length; i++) {
+      int row = mappedFeatures.indexOf(features.get(i));
+      assertEquals(weights[i].length, mappedWeights.length(row));
+      assertArrayEquals(weights[i], dense[row], 0.0);
+      double[] scores = new double[weights[i].length];
+      Arrays.fill(scores, 1.0);
+      mappedWeights.addRow(row, scores);
+      for (int j = 0; j < weights[i].length; j++) {
+        assertEquals(weights[i][j], mappedWeights.get(row, j), 0.0);
+        assertEquals(1.0 + weights[i][j], scores[j], 0.0);
+      }
+    }
+
+    ObjectInputStream objects = model.objects();
+    assertEquals("objects", objects.readObject());
+    assertEquals(Integer.valueOf(7), objects.readObject());
+  }
+
+  @Test
+  public void testWeightsSerializeAsCompactWeights() throws Exception {
+    Index<String> features = new HashIndex<String>();
+    features.add("b");
+    features.add("a");
+    double[][] weights = { { 1.0, 0.0, -2.5 }, { 0.25, 3.0, 0.0 } };
+    File file = File.createTempFile("mapped", ".model");
+    file.deleteOnExit();
+    MappedModel.write(file.getPath(), features, weights);
+    WeightMatrix mapped = new MappedModel(file).weights();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(mapped);
+    out.close();
+    Object copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    assertTrue(copy instanceof CompactWeights);
+    double[][] expected = mapped.toArray();
+    double[][] actual = ((CompactWeights) copy).toArray();
+    for (int i = 0; i < expected.length; i++) {
+      assertArrayEquals(expected[i], actual[i], 0.0);
+    }
+  }
+
+}
@@ -0,0 +1,258 @@
+package edu.stanford.nlp.math;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link CompactWeights}: the binary16 conversions (rounding, subnormals, overflow)
+ * and the compressed sparse rows, with every precision.
+ */
+public class CompactWeightsTest {
+
+  private static final float MIN_SUBNORMAL = 5.9604645e-8f; // 2^-24
+  private static final float MIN_NORMAL = 6.1035156e-5f; // 2^-14
+
+  @Test
+  public void testFromHalf() {
+    assertEquals(1.0f, CompactWeights.fromHalf((short) 0x3c00), 0.0f);
+    assertEquals(-2.0f, CompactWeights.fromHalf((short) 0xc000), 0.0f);
+    assertEquals(65504.0f, CompactWeights.fromHalf((short) 0x7bff), 0.0f);
+    assertEquals(MIN_NORMAL, CompactWeights.fromHalf((short) 0x0400), 0.0f);
+    assertEquals(MIN_SUBNORMAL, CompactWeights.fromHalf((short) 0x0001), 0.0f);
+    assertEquals(1023 * MIN_SUBNORMAL, CompactWeights.fromHalf((short) 0x03ff), 0.0f);
+    assertEquals(Float.POSITIVE_INFINITY, CompactWeights.fromHalf((short) 0x7c00), 0.0f);
+    assertEquals(Float.NEGATIVE_INFINITY, CompactWeights.fromHalf((short) 0xfc00), 0.0f);
+    assertTrue(Float.isNaN(CompactWeights.fromHalf((short) 0x7e00)));
+    assertEquals(Float.floatToIntBits(-0.0f), Float.floatToIntBits(CompactWeights.fromHalf((short) 0x8000)));
+  }
+
+  @Test
+  public void testEveryHalfRoundTrips() {
+    for (int h = 0; h < 1 << 16; h++) {
+      float f = CompactWeights.fromHalf((short) h);
+      if (Float.isNaN(f)) {
+        assertTrue(Float.isNaN(CompactWeights.fromHalf(CompactWeights.toHalf(f))));
+      } else {
+        assertEquals(Integer.toHexString(h), h, CompactWeights.toHalf(f) & 0xffff);
+      }
+    }
+  }
+
+  @Test
+  public void testRoundsToNearestEven() {
+    // halfway between 1 and the next half, 1 + 2^-10: to even, which is 1
+    assertEquals(0x3c00, CompactWeights.toHalf(1.0f + 0.00048828125f) & 0xffff);
+    // a little more than halfway rounds up
+    assertEquals(0x3c01, CompactWeights.toHalf(Math.nextUp(1.0f + 0.00048828125f)) & 0xffff);
+    // halfway between 0x3c01 and 0x3c02: to even, which is up
+    assertEquals(0x3c02, CompactWeights.toHalf(1.0f + 3 * 0.00048828125f) & 0xffff);
+    // rounding up the largest mantissa carries into the exponent
+    assertEquals(0x4000, CompactWeights.toHalf(Math.nextDown(2.0f)) & 0xffff);
+    // the sign stays
+    assertEquals(0x8000 | 0x3c01, CompactWeights.toHalf(-Math.nextUp(1.0f + 0.00048828125f)) & 0xffff);
+  }
+
+  @Test
+  public void testRandomFloatsRoundToNearest() {
+    Random random = new Random(4);
+    for (int i = 0; i < 200000; i++) {
+      float f = (float) (random.nextGaussian() * Math.pow(2, random.nextInt(40) - 26));
+      int h = CompactWeights.toHalf(f) & 0xffff;
+      double error = Math.abs(CompactWeights.fromHalf((short) h) - (double) f);
+      // no neighbour of the result, of the same sign, is nearer
+      for (int neighbour = h - 1; neighbour <= h + 1; neighbour += 2) {
+        if ((neighbour & 0x7fff) >= 0x7c00 || (neighbour & 0x8000) != (h & 0x8000) || neighbour < 0) {
+          continue;
+        }
+        double other = Math.abs(CompactWeights.fromHalf((short) neighbour) - (double) f);
+        assertTrue(f + ": " + Integer.toHexString(h), error < other || (error == other && (h & 1) == 0));
+      }
+    }
+  }
+
+  @Test
+  public void testSubnormals() {
+    assertEquals(0x0001, CompactWeights.toHalf(MIN_SUBNORMAL) & 0xffff);
+    assertEquals(0x03ff, CompactWeights.toHalf(1023 * MIN_SUBNORMAL) & 0xffff);
+    assertEquals(0x0400, CompactWeights.toHalf(MIN_NORMAL) & 0xffff);
+    // halfway between 0 and the smallest subnormal: to even, which is 0
+    assertEquals(0x0000, CompactWeights.toHalf(MIN_SUBNORMAL / 2) & 0xffff);
+    assertEquals(0x0001, CompactWeights.toHalf(Math.nextUp(MIN_SUBNORMAL / 2)) & 0xffff);
+    // halfway between 1 and 2 subnormals: to 2
+    assertEquals(0x0002, CompactWeights.toHalf(1.5f * MIN_SUBNORMAL) & 0xffff);
+    // halfway between 2 and 3: to 2
+    assertEquals(0x0002, CompactWeights.toHalf(2.5f * MIN_SUBNORMAL) & 0xffff);
+    // the largest subnormal rounds up into the smallest normal
+    assertEquals(0x0400, CompactWeights.toHalf(Math.nextDown(MIN_NORMAL)) & 0xffff);
+    assertEquals(0x0000, CompactWeights.toHalf(MIN_SUBNORMAL / 8) & 0xffff);
+    assertEquals(0x8000, CompactWeights.toHalf(-MIN_SUBNORMAL / 8) & 0xffff);
+    assertEquals(0x8001, CompactWeights.toHalf(-MIN_SUBNORMAL) & 0xffff);
+    assertEquals(0x0000, CompactWeights.toHalf(Float.MIN_VALUE) & 0xffff);
+  }
+
+  @Test
+  public void testOverflow() {
+    assertEquals(0x7bff, CompactWeights.toHalf(65504.0f) & 0xffff);
+    assertEquals(0x7bff, CompactWeights.toHalf(65519.0f) & 0xffff);
+    // halfway between the largest half and the next power of two: to even, which is infinity
+    assertEquals(0x7c00, CompactWeights.toHalf(65520.0f) & 0xffff);
+    assertEquals(0x7c00, CompactWeights.toHalf(1e6f) & 0xffff);
+    assertEquals(0xfc00, CompactWeights.toHalf(-1e6f) & 0xffff);
+    assertEquals(0x7c00, CompactWeights.toHalf(Float.MAX_VALUE) & 0xffff);
+    assertEquals(0x7c00, CompactWeights.toHalf(Float.POSITIVE_INFINITY) & 0xffff);
+    assertEquals(0xfc00, CompactWeights.toHalf(Float.NEGATIVE_INFINITY) & 0xffff);
+    assertTrue(Float.isNaN(CompactWeights.fromHalf(CompactWeights.toHalf(Float.NaN))));
+  }
+
+  private static double[][] randomWeights(Random random, int rows, boolean ragged) {
+    double[][] weights = new double[rows][];
+    for (int i = 0; i < rows; i++) {
+      weights[i] = new double[ragged ? random.nextInt(9) : 7];
+      for (int j = 0; j < weights[i].length; j++) {
+        // about a third of them small enough to drop
+        weights[i][j] = random.nextInt(3) == 0 ? random.nextGaussian() * 1e-5 : random.nextGaussian();
+      }
+    }
+    return weights;
+  }
+
+  private static void assertLayout(double[][] weights, double threshold, CompactWeights.Precision precision) {
+    CompactWeights compact = new CompactWeights(weights, threshold, precision);
+    assertEquals(precision, compact.precision());
+    assertEquals(weights.length, compact.rows());
+    int kept = 0;
+    double[][] dense = compact.toArray();
+    for (int i = 0; i < weights.length; i++) {
+      assertEquals(weights[i].length, compact.length(i));
+      assertEquals(weights[i].length, dense[i].length);
+      double maxAbs = 0.0;
+      for (double w : weights[i]) {
+        if (Math.abs(w) > threshold) {
+          maxAbs = Math.max(maxAbs, Math.abs(w));
+        }
+      }
+      double[] scores = new double[weights[i].length + 2];
+      Arrays.fill(scores, 1.0);
+      compact.addRow(i, scores);
+      for (int j = 0; j < weights[i].length; j++) {
+        double w = weights[i][j];
+        double expected = Math.abs(w) > threshold ? w : 0.0;
+        if (Math.abs(w) > threshold) {
+          kept++;
+        }
+        double tolerance;
+        switch (precision) {
+        case DOUBLE:
+          tolerance = 0.0;
+          break;
+        case FLOAT16:
+          tolerance = Math.max(Math.abs(w) / 1024, 1e-7);
+          break;
+        default:
+          tolerance = maxAbs / 127 / 2 + 1e-7;
+          break;
+        }
+        assertEquals(expected, compact.get(i, j), tolerance);
+        assertEquals(compact.get(i, j), dense[i][j], 0.0);
+        assertEquals(1.0 + compact.get(i, j), scores[j], 1e-12);
+      }
+      // addRow leaves the scores past the row alone
+      assertEquals(1.0, scores[weights[i].length], 0.0);
+      assertEquals(1.0, scores[weights[i].length + 1], 0.0);
+    }
+    assertEquals(kept, compact.size());
+  }
+
+  @Test
+  public void testLayoutWithEveryPrecision() {
+    Random random = new Random(5);
+    for (CompactWeights.Precision precision : CompactWeights.Precision.values()) {
+      assertLayout(randomWeights(random, 200, false), 1e-4, precision);
+      assertLayout(randomWeights(random, 200, true), 1e-4, precision);
+      assertLayout(randomWeights(random, 50, true), 0.0, precision);
+      assertLayout(new double[0][], 1e-4, precision);
+      assertLayout(new double[][] { {}, { 0.0, 0.0 }, {} }, 0.0, precision);
+    }
+  }
+
+  @Test
+  public void testThresholdDropsWeights() {
+    double[][] weights = { { 0.5, -1e-5, 0.0, -2.0 }, { 1e-4, -1e-4, 2e-4 } };
+    CompactWeights compact = new CompactWeights(weights, 1e-4, CompactWeights.Precision.DOUBLE);
+    assertEquals(3, compact.size());
+    assertEquals(0.5, compact.get(0, 0), 0.0);
+    assertEquals(0.0, compact.get(0, 1), 0.0);
+    assertEquals(0.0, compact.get(0, 2), 0.0);
+    assertEquals(-2.0, compact.get(0, 3), 0.0);
+    assertEquals(0.0, compact.get(1, 0), 0.0);
+    assertEquals(0.0, compact.get(1, 1), 0.0);
+    assertEquals(2e-4, compact.get(1, 2), 0.0);
+    assertEquals(4, compact.length(0));
+    assertEquals(3, compact.length(1));
+  }
+
+  @Test
+  public void testInt8ScalePerRow() {
+    double[][] weights = { { 127.0, -63.4, 1.0 }, { 0.01, -0.02, 0.0 } };
+    CompactWeights compact = new CompactWeights(weights, 0.0, CompactWeights.Precision.INT8);
+    // the largest weight of each row is exact, the others within half a step of its 1/127
+    assertEquals(127.0, compact.get(0, 0), 1e-5);
+    assertEquals(-63.0, compact.get(0, 1), 1e-5);
+    assertEquals(1.0, compact.get(0, 2), 1e-5);
+    assertEquals(-0.02, compact.get(1, 1), 1e-9);
+    assertEquals(0.01, compact.get(1, 0), 0.02 / 127 / 2 + 1e-7);
+    assertEquals(0.0, compact.get(1, 2), 0.0);
+  }
+
+  @Test
+  public void testWideRows() {
+    // too many columns for char column numbers
+    double[][] weights = new double[3][];
+    weights[0] = new double[70000];
+    weights[0][5] = 1.5;
+    weights[0][65536] = -2.5;
+    weights[0][69999] = 3.5;
+    weights[1] = new double[2];
+    weights[1][1] = 4.0;
+    weights[2] = new double[0];
+    CompactWeights compact = new CompactWeights(weights, 0.0, CompactWeights.Precision.DOUBLE);
+    assertEquals(4, compact.size());
+    assertEquals(1.5, compact.get(0, 5), 0.0);
+    assertEquals(-2.5, compact.get(0, 65536), 0.0);
+    assertEquals(0.0, compact.get(0, 0), 0.0);
+    assertEquals(3.5, compact.get(0, 69999), 0.0);
+    assertEquals(4.0, compact.get(1, 1), 0.0);
+    double[] scores = new double[70000];
+    compact.addRow(0, scores);
+    assertEquals(-2.5, scores[65536], 0.0);
+    assertEquals(0.0, scores[65535], 0.0);
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    Random random = new Random(6);
+    for (CompactWeights.Precision precision : CompactWeights.Precision.values()) {
+      CompactWeights compact = new CompactWeights(randomWeights(random, 100, true), 1e-4, precision);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(compact);
+      out.close();
+      CompactWeights copy = (CompactWeights) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+      assertEquals(compact.size(), copy.size());
+      double[][] expected = compact.toArray();
+      double[][] actual = copy.toArray();
+      for (int i = 0; i < expected.length; i++) {
+        assertArrayEquals(expected[i], actual[i], 0.0);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,192 @@
+package edu.stanford.nlp.sequences;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link ArrayBeamBestSequenceFinder} finds the same sequences as {@link BeamBestSequenceFinder},
+ * and the partial selection that it keeps the beam with.
+ */
+public class ArrayBeamBestSequenceFinderTest {
+
+  /** A model with a random set of candidate tags per position and hashed window scores, which don't tie */
+  static class RandomModel implements SequenceModel {
+    private final int length;
+    private final int leftWindow;
+    private final int rightWindow;
+    private final int[][] values;
+    private final long seed;
+
+    RandomModel(int length, int leftWindow, int rightWindow, int maxTags, Random random) {
+      this.length = length;
+      this.leftWindow = leftWindow;
+      this.rightWindow = rightWindow;
+      this.seed = random.nextLong();
+      values = new int[length + leftWindow + rightWindow][];
+      for (int pos = 0; pos < values.length; pos++) {
+        if (pos < leftWindow || pos >= leftWindow + length) {
+          values[pos] = new int[] { 0 };
+        } else {
+          // a random subset of the tags 1..2*maxTags, at least one, in increasing order
+          int[] tags = new int[2 * maxTags];
+          int n = 0;
+          for (int t = 1; t <= 2 * maxTags; t++) {
+            if (random.nextInt(3) == 0) {
+              tags[n++] = t;
+            }
+          }
+          if (n == 0) {
+            tags[n++] = 1 + random.nextInt(2 * maxTags);
+          }
+          values[pos] = Arrays.copyOf(tags, n);
+        }
+      }
+    }
+
+    public int length() {
+      return length;
+    }
+
+    public int leftWindow() {
+      return leftWindow;
+    }
+
+    public int rightWindow() {
+      return rightWindow;
+    }
+
+    public int[] getPossibleValues(int pos) {
+      return values[pos];
+    }
+
+    public double scoreOf(int[] sequence) {
+      throw new UnsupportedOperationException();
+    }
+
+    public double scoreOf(int[] tags, int pos) {
+      long h = seed * 31 + pos;
+      for (int q = pos - leftWindow; q <= pos + rightWindow; q++) {
+        h = h * 1000003 + tags[q];
+      }
+      h ^= h >>> 29;
+      h *= 0x9E3779B97F4A7C15L;
+      h ^= h >>> 32;
+      return (h & 0xFFFFFFL) / 1e5 - 80;
+    }
+
+    public double[] scoresOf(int[] tags, int pos) {
+      double[] scores = new double[values[pos].length];
+      for (int t = 0; t < scores.length; t++) {
+        tags[pos] = values[pos][t];
+        scores[t] = scoreOf(tags, pos);
+      }
+      return scores;
+    }
+  }
+
+  @Test
+  public void testSameAsBeamBestSequenceFinder() {
+    Random random = new Random(1);
+    for (int trial = 0; trial < 3000; trial++) {
+      RandomModel model = new RandomModel(1 + random.nextInt(15), random.nextInt(3), random.nextInt(2), 1 + random.nextInt(8), random);
+      int beamSize = 1 + random.nextInt(12);
+      // with a right window, the first real tags are kept before they are scored, all tied at 0, and the two
+      // finders may keep different ones when they don't all fit in the beam
+      boolean exhaustiveStart = model.rightWindow() > 0 || random.nextBoolean();
+      boolean recenter = random.nextBoolean();
+      int[] expected = new BeamBestSequenceFinder(beamSize, exhaustiveStart, recenter).bestSequence(model);
+      int[] found = new ArrayBeamBestSequenceFinder(beamSize, exhaustiveStart, recenter).bestSequence(model);
+      assertArrayEquals("trial " + trial + ", beam " + beamSize + ", exhaustiveStart " + exhaustiveStart + ", recenter " + recenter,
+          expected, found);
+    }
+  }
+
+  @Test
+  public void testBeamAsWideAsTheTags() {
+    // a beam that keeps every hypothesis is an exact search
+    Random random = new Random(2);
+    for (int trial = 0; trial < 200; trial++) {
+      RandomModel model = new RandomModel(1 + random.nextInt(8), 1, 0, 4, random);
+      int[] exact = new ExactBestSequenceFinder().bestSequence(model);
+      int[] found = new ArrayBeamBestSequenceFinder(10000).bestSequence(model);
+      assertArrayEquals("trial " + trial, exact, found);
+    }
+  }
+
+  /** Checks that order is still a permutation, and that its first k entries have the k highest scores */
+  private static void assertSelected(double[] scores, int[] order, int n, int k) {
+    boolean[] seen = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      assertFalse("entry " + order[i] + " twice", seen[order[i]]);
+      seen[order[i]] = true;
+    }
+    double lowestKept = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < k; i++) {
+      lowestKept = Math.min(lowestKept, scores[order[i]]);
+    }
+    for (int i = k; i < n; i++) {
+      assertTrue("a better score was left out", scores[order[i]] <= lowestKept);
+    }
+  }
+
+  private static int[] identity(int n) {
+    int[] order = new int[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    return order;
+  }
+
+  @Test
+  public void testSelectBest() {
+    Random random = new Random(3);
+    for (int trial = 0; trial < 2000; trial++) {
+      int k = 1 + random.nextInt(50);
+      int n = k + random.nextInt(100);
+      double[] scores = new double[n];
+      for (int i = 0; i < n; i++) {
+        scores[i] = random.nextInt(30);
+      }
+      int[] order = identity(n);
+      ArrayBeamBestSequenceFinder.selectBest(scores, order, n, k);
+      assertSelected(scores, order, n, k);
+    }
+  }
+
+  @Test
+  public void testSelectBestAll() {
+    double[] scores = { 3.0, -1.0, 7.5, 0.0, 2.0 };
+    int[] order = identity(scores.length);
+    ArrayBeamBestSequenceFinder.selectBest(scores, order, scores.length, scores.length);
+    assertSelected(scores, order, scores.length, scores.length);
+  }
+
+  @Test
+  public void testSelectBestTies() {
+    for (int n = 1; n < 40; n++) {
+      double[] scores = new double[n];
+      Arrays.fill(scores, -2.5);
+      for (int k = 1; k <= n; k++) {
+        int[] order = identity(n);
+        ArrayBeamBestSequenceFinder.selectBest(scores, order, n, k);
+        assertSelected(scores, order, n, k);
+      }
+    }
+  }
+
+  @Test
+  public void testSelectBestOnlyTheFirstN() {
+    // the entries after n aren't candidates, even if they score better
+    double[] scores = { 1.0, 5.0, 3.0, 100.0, 200.0 };
+    int[] order = identity(scores.length);
+    ArrayBeamBestSequenceFinder.selectBest(scores, order, 3, 1);
+    assertEquals(1, order[0]);
+    assertEquals(3, order[3]);
+    assertEquals(4, order[4]);
+  }
+
+}
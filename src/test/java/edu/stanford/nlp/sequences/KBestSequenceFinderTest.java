@@ -0,0 +1,165 @@
+package edu.stanford.nlp.sequences;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.stanford.nlp.util.ScoredObject;
+
+/**
+ * Compares the k best sequences of {@link KBestSequenceFinder} with those found by scoring every
+ * sequence of small random models, with left windows of 0 to 2 tags.
+ */
+public class KBestSequenceFinderTest {
+
+  private static final double EPSILON = 1e-9;
+
+  /** A model with a random number of candidate tags per position and pseudo-random window scores */
+  static class RandomModel implements SequenceModel {
+    private final int length;
+    private final int leftWindow;
+    private final int[][] values;
+
+    RandomModel(int length, int leftWindow, int maxTags, Random random) {
+      this.length = length;
+      this.leftWindow = leftWindow;
+      values = new int[length + leftWindow][];
+      for (int pos = 0; pos < values.length; pos++) {
+        if (pos < leftWindow) {
+          values[pos] = new int[] { random.nextBoolean() ? 7 : 3 };
+        } else {
+          values[pos] = new int[1 + random.nextInt(maxTags)];
+          for (int t = 0; t < values[pos].length; t++) {
+            values[pos][t] = 2 * t + 1;
+          }
+        }
+      }
+    }
+
+    public int length() {
+      return length;
+    }
+
+    public int leftWindow() {
+      return leftWindow;
+    }
+
+    public int rightWindow() {
+      return 0;
+    }
+
+    public int[] getPossibleValues(int pos) {
+      return values[pos];
+    }
+
+    public double scoreOf(int[] sequence, int pos) {
+      long h = pos * 1000003L;
+      for (int q = pos - leftWindow; q <= pos; q++) {
+        h = h * 31 + sequence[q];
+      }
+      return new Random(h).nextGaussian();
+    }
+
+    public double[] scoresOf(int[] sequence, int pos) {
+      double[] scores = new double[values[pos].length];
+      int[] s = sequence.clone();
+      for (int t = 0; t < scores.length; t++) {
+        s[pos] = values[pos][t];
+        scores[t] = scoreOf(s, pos);
+      }
+      return scores;
+    }
+
+    public double scoreOf(int[] sequence) {
+      double score = 0.0;
+      for (int pos = leftWindow; pos < leftWindow + length; pos++) {
+        score += scoreOf(sequence, pos);
+      }
+      return score;
+    }
+
+    /** The scores of all the sequences, best first */
+    List<Double> allScores() {
+      List<Double> scores = new ArrayList<Double>();
+      int[] index = new int[values.length];
+      int[] sequence = new int[values.length];
+      while (true) {
+        for (int pos = 0; pos < values.length; pos++) {
+          sequence[pos] = values[pos][index[pos]];
+        }
+        scores.add(scoreOf(sequence));
+        int pos = values.length - 1;
+        while (pos >= 0 && ++index[pos] == values[pos].length) {
+          index[pos] = 0;
+          pos--;
+        }
+        if (pos < 0) {
+          break;
+        }
+      }
+      Collections.sort(scores, Collections.reverseOrder());
+      return scores;
+    }
+  }
+
+  @Test
+  public void testAgainstBruteForce() {
+    Random random = new Random(1);
+    for (int trial = 0; trial < 300; trial++) {
+      int leftWindow = trial % 3;
+      int length = 1 + trial % 5;
+      int k = 1 + trial % 12;
+      RandomModel model = new RandomModel(length, leftWindow, 1 + (trial / 3) % 4, random);
+      List<Double> expected = model.allScores();
+
+      List<ScoredObject<int[]>> kBest = new KBestSequenceFinder().kBestSequenceList(model, k);
+      String where = "trial " + trial + ", leftWindow " + leftWindow + ", k " + k;
+      assertEquals(where, Math.min(k, expected.size()), kBest.size());
+      Set<String> seen = new HashSet<String>();
+      for (int rank = 0; rank < kBest.size(); rank++) {
+        ScoredObject<int[]> sequence = kBest.get(rank);
+        assertEquals(where + ", rank " + rank, expected.get(rank), sequence.score(), EPSILON);
+        assertEquals(where + ", rank " + rank, model.scoreOf(sequence.object()), sequence.score(), EPSILON);
+        assertTrue(where + ", rank " + rank + " repeats a sequence", seen.add(Arrays.toString(sequence.object())));
+      }
+    }
+  }
+
+  @Test
+  public void testBestIsViterbi() {
+    Random random = new Random(2);
+    for (int trial = 0; trial < 100; trial++) {
+      RandomModel model = new RandomModel(1 + random.nextInt(30), random.nextInt(3), 1 + random.nextInt(6), random);
+      int[] viterbi = new ExactBestSequenceFinder().bestSequence(model);
+      int[] best = new KBestSequenceFinder().bestSequence(model);
+      assertEquals("trial " + trial, model.scoreOf(viterbi), model.scoreOf(best), EPSILON);
+    }
+  }
+
+  @Test
+  public void testKBestSequencesCounter() {
+    RandomModel model = new RandomModel(4, 1, 3, new Random(3));
+    List<Double> expected = model.allScores();
+    int k = Math.min(5, expected.size());
+    List<Double> scores = new ArrayList<Double>(new KBestSequenceFinder().kBestSequences(model, k).values());
+    Collections.sort(scores, new Comparator<Double>() {
+      public int compare(Double a, Double b) {
+        return b.compareTo(a);
+      }
+    });
+    assertEquals(k, scores.size());
+    for (int rank = 0; rank < k; rank++) {
+      assertEquals(expected.get(rank), scores.get(rank), EPSILON);
+    }
+  }
+
+}
@@ -0,0 +1,88 @@
+package edu.stanford.nlp.sequences;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.stanford.nlp.ie.NERFeatureFactory;
+import edu.stanford.nlp.ling.CoreAnnotations.MorphologyFeatureStringAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TextAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.util.PaddedList;
+
+/**
+ * Tests the parsing of the morphology feature string and the names of the MORPHO features
+ * that {@link NERFeatureFactory} makes from it.
+ */
+public class LVMorphoFeaturesTest {
+
+  @Test
+  public void testParse() {
+    LVMorphoFeatures morpho = LVMorphoFeatures.parse("Locījums=Nominatīvs|Skaitlis=Vienskaitlis|Locījums=Ģenitīvs");
+    assertEquals("=Ģenitīvs", morpho.value(LVMorphoFeatures.CASE));
+    assertEquals("=Vienskaitlis", morpho.value(LVMorphoFeatures.NUMBER));
+    assertEquals("", morpho.value(LVMorphoFeatures.POS));
+    assertEquals("", morpho.value(LVMorphoFeatures.LETA_LEMMA));
+    assertEquals("=a=b", LVMorphoFeatures.parse("LETA_lemma=a=b").value(LVMorphoFeatures.LETA_LEMMA));
+  }
+
+  @Test
+  public void testNullAndEmpty() {
+    assertSame(LVMorphoFeatures.EMPTY, LVMorphoFeatures.parse(null));
+    LVMorphoFeatures empty = LVMorphoFeatures.parse("");
+    for (int attribute = LVMorphoFeatures.CASE; attribute <= LVMorphoFeatures.LETA_LEMMA; attribute++) {
+      assertEquals("", empty.value(attribute));
+      assertEquals("", LVMorphoFeatures.EMPTY.value(attribute));
+    }
+    assertEquals("MORPHO-POS-N-", LVMorphoFeatures.EMPTY.feature(LVMorphoFeatures.POS, LVMorphoFeatures.NEXT));
+  }
+
+  @Test
+  public void testFeatureNames() {
+    LVMorphoFeatures morpho = LVMorphoFeatures.parse("Vārdšķira=Lietvārds|Locījums=Nominatīvs|Skaitlis=Daudzskaitlis|LETA_lemma=Rīga");
+    assertEquals("MORPHO-CASE-C-=Nominatīvs", morpho.feature(LVMorphoFeatures.CASE, LVMorphoFeatures.CURRENT));
+    assertEquals("MORPHO-NUMBER-P-=Daudzskaitlis", morpho.feature(LVMorphoFeatures.NUMBER, LVMorphoFeatures.PREVIOUS));
+    assertEquals("MORPHO-POS-N-=Lietvārds", morpho.feature(LVMorphoFeatures.POS, LVMorphoFeatures.NEXT));
+    assertEquals("MORPHO-LETA-LEMMA-C-=Rīga", morpho.feature(LVMorphoFeatures.LETA_LEMMA, LVMorphoFeatures.CURRENT));
+  }
+
+  private static Set<String> morphoFeatures(boolean morphoNextFeatures) {
+    Properties props = new Properties();
+    props.setProperty("useMorphologyFeatures", "true");
+    props.setProperty("useMorphoCase", "true");
+    props.setProperty("morphoNextFeatures", Boolean.toString(morphoNextFeatures));
+    NERFeatureFactory<CoreLabel> factory = new NERFeatureFactory<CoreLabel>();
+    factory.init(new SeqClassifierFlags(props));
+
+    List<CoreLabel> document = new ArrayList<CoreLabel>();
+    String[][] tokens = { { "Rīgas", "Locījums=Ģenitīvs" }, { "dome", "Locījums=Nominatīvs" }, { "priekšsēdētājam", "Vārdšķira=Lietvārds|Locījums=Datīvs" } };
+    for (String[] token : tokens) {
+      CoreLabel label = new CoreLabel();
+      label.set(TextAnnotation.class, token[0]);
+      label.set(MorphologyFeatureStringAnnotation.class, token[1]);
+      document.add(label);
+    }
+    Collection<String> features = factory.getCliqueFeatures(new PaddedList<CoreLabel>(document, new CoreLabel()), 1, FeatureFactory.cliqueC);
+    Set<String> morpho = new HashSet<String>();
+    for (String feature : features) {
+      if (feature.startsWith("MORPHO-")) morpho.add(feature);
+    }
+    return morpho;
+  }
+
+  @Test
+  public void testNextFeatures() {
+    assertEquals(new HashSet<String>(Arrays.asList("MORPHO-CASE-C-=Nominatīvs|C", "MORPHO-CASE-P-=Ģenitīvs|C", "MORPHO-CASE-N-|C")),
+        morphoFeatures(false));
+    assertEquals(new HashSet<String>(Arrays.asList("MORPHO-CASE-C-=Nominatīvs|C", "MORPHO-CASE-P-=Ģenitīvs|C", "MORPHO-CASE-N-=Datīvs|C")),
+        morphoFeatures(true));
+  }
+}
@@ -0,0 +1,65 @@
+package edu.stanford.nlp.sequences;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * Tests that flags added since a model was serialized get their defaults when it is loaded,
+ * and that flags of new models come back as they were.
+ */
+public class SeqClassifierFlagsTest {
+
+  private static SeqClassifierFlags copy(SeqClassifierFlags flags) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(flags);
+    out.close();
+    return (SeqClassifierFlags) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+  }
+
+  @Test
+  public void testOldModelGetsDefaults() throws Exception {
+    // what an older model's flags read as: the fields it didn't have are 0 or null
+    SeqClassifierFlags old = new SeqClassifierFlags();
+    Field marker = SeqClassifierFlags.class.getDeclaredField("hasNewFlagDefaults");
+    marker.setAccessible(true);
+    marker.setBoolean(old, false);
+    old.multiThreadGrad = 0;
+    old.tagDictionaryMinCount = 0;
+    old.compactWeightsThreshold = 0.0;
+    old.weightPrecision = null;
+    old.combinerThreads = 0;
+    old.compactWeights = true;
+
+    SeqClassifierFlags flags = copy(old);
+    assertEquals(1e-4, flags.compactWeightsThreshold, 0.0);
+    assertEquals(1, flags.multiThreadGrad);
+    assertEquals(20, flags.tagDictionaryMinCount);
+    assertEquals("double", flags.weightPrecision);
+    assertEquals(1, flags.combinerThreads);
+    assertTrue(flags.compactWeights);
+    assertTrue(marker.getBoolean(flags));
+  }
+
+  @Test
+  public void testNewModelKeepsItsFlags() throws Exception {
+    Properties props = new Properties();
+    props.setProperty("compactWeightsThreshold", "0");
+    props.setProperty("weightPrecision", "int8");
+    props.setProperty("multiThreadGrad", "4");
+    SeqClassifierFlags flags = copy(new SeqClassifierFlags(props));
+    assertEquals(0.0, flags.compactWeightsThreshold, 0.0);
+    assertEquals("int8", flags.weightPrecision);
+    assertEquals(4, flags.multiThreadGrad);
+    assertEquals(20, flags.tagDictionaryMinCount);
+  }
+
+}
@@ -0,0 +1,87 @@
+package edu.stanford.nlp.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests of the lookups of {@link MappedStringIndex}, which compare the strings with the stored
+ * UTF-8 bytes without encoding them: ASCII, Latvian letters, three-byte and supplementary characters.
+ */
+public class MappedStringIndexTest {
+
+  private static final String[] ALPHABET = { "a", "b", "z", "~", "ā", "Ž", "ķ", "€", "中", "😀", "𐍈", "|", "-" };
+
+  private static MappedStringIndex index(List<String> strings) {
+    return new MappedStringIndex(MappedStringIndex.write(MappedStringIndex.sortedBytes(strings)));
+  }
+
+  private static String randomString(Random random) {
+    StringBuilder s = new StringBuilder();
+    for (int i = random.nextInt(6); i > 0; i--) {
+      s.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+    }
+    return s.toString();
+  }
+
+  @Test
+  public void testIndexOfEveryString() {
+    Random random = new Random(1);
+    Set<String> strings = new LinkedHashSet<String>();
+    while (strings.size() < 2000) {
+      strings.add(randomString(random));
+    }
+    List<String> list = new ArrayList<String>(strings);
+    MappedStringIndex index = index(list);
+    assertEquals(list.size(), index.size());
+    for (String s : list) {
+      int i = index.indexOf(s);
+      assertTrue(s, i >= 0);
+      assertEquals(s, index.get(i));
+    }
+    for (int i = 0; i < index.size(); i++) {
+      assertEquals(i, index.indexOf(index.get(i)));
+    }
+  }
+
+  @Test
+  public void testMissingStrings() {
+    Random random = new Random(2);
+    Set<String> strings = new LinkedHashSet<String>();
+    while (strings.size() < 500) {
+      strings.add(randomString(random));
+    }
+    MappedStringIndex index = index(new ArrayList<String>(strings));
+    for (int i = 0; i < 5000; i++) {
+      String s = randomString(random);
+      assertEquals(s, strings.contains(s), index.indexOf(s) >= 0);
+    }
+    assertEquals(-1, index.indexOf(null));
+  }
+
+  @Test
+  public void testPrefixesAndLoneSurrogates() {
+    List<String> strings = new ArrayList<String>();
+    strings.add("");
+    strings.add("WORD-ā");
+    strings.add("WORD-āb");
+    strings.add("WORD-😀");
+    strings.add("?");
+    MappedStringIndex index = index(strings);
+    for (String s : strings) {
+      assertEquals(s, index.get(index.indexOf(s)));
+    }
+    assertEquals(-1, index.indexOf("WORD-"));
+    assertEquals(-1, index.indexOf("WORD-ābc"));
+    // getBytes would have made these "?", but no stored string has a lone surrogate
+    assertEquals(-1, index.indexOf("\uD83D"));
+    assertEquals(-1, index.indexOf("WORD-\uDE00"));
+  }
+
+}
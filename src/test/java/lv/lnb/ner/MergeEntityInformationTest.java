@@ -0,0 +1,84 @@
+package lv.lnb.ner;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Tests that the counts of {@link MergeEntityInformation} come out of its run files right
+ * when a tiny memory budget makes the workers spill many more runs than are merged at once.
+ */
+public class MergeEntityInformationTest {
+
+	@Test
+	public void testManySpills() throws Exception {
+		List<List<File>> runs = new ArrayList<List<File>>();
+		for (int s = 0; s < 3; s++) runs.add(new ArrayList<File>());
+		List<File> merged = new ArrayList<File>();
+		try {
+			// the empty count map alone is over 48k, so this spills about every 20 new strings
+			MergeEntityInformation.Aggregator mentions = new MergeEntityInformation.Aggregator(runs, 12 * 4096 + 2000);
+			TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+			Random random = new Random(4);
+			for (int i = 0; i < 20000; i++) {
+				String key = random.nextInt(5) + "|vārds " + random.nextInt(300);
+				String word = "Vārds " + random.nextInt(50);
+				String doc = "doc" + random.nextInt(40);
+				int count = 1 + random.nextInt(3);
+				mentions.add(key, word, doc, count);
+				count(expected, key + "\t" + MergeEntityInformation.Record.FORM + "\t" + word, count);
+				count(expected, key + "\t" + MergeEntityInformation.Record.DOCUMENT + "\t" + doc, count);
+			}
+			mentions.spill();
+
+			TreeMap<String, Integer> actual = new TreeMap<String, Integer>();
+			for (int s = 0; s < runs.size(); s++) {
+				List<File> shard = runs.get(s);
+				assertTrue(shard.size() + " runs", shard.size() > MergeEntityInformation.MAX_FAN_IN * 2);
+				List<File> runsLeft = MergeEntityInformation.mergeDown(shard);
+				merged.addAll(runsLeft);
+				assertTrue(runsLeft.size() <= MergeEntityInformation.MAX_FAN_IN);
+				for (File run : shard) {
+					if (!runsLeft.contains(run)) assertFalse(run.exists());
+				}
+
+				MergeEntityInformation.MergedRuns records = new MergeEntityInformation.MergedRuns(runsLeft);
+				MergeEntityInformation.Record last = null;
+				MergeEntityInformation.Record record;
+				while ((record = records.next()) != null) {
+					assertEquals(s, (record.key.hashCode() & 0x7fffffff) % runs.size());
+					if (last != null) assertTrue(last.compareTo(record) < 0);
+					assertNull(actual.put(record.key + "\t" + record.type + "\t" + record.value, record.count));
+					last = record;
+				}
+				records.close();
+			}
+			assertEquals(expected, actual);
+		} finally {
+			for (List<File> shard : runs) {
+				for (File run : shard) run.delete();
+			}
+			for (File run : merged) run.delete();
+		}
+	}
+
+	private static void count(TreeMap<String, Integer> counts, String key, int count) {
+		Integer old = counts.get(key);
+		counts.put(key, old == null ? count : old + count);
+	}
+
+	@Test
+	public void testFewRunsAreNotMerged() throws Exception {
+		List<File> runs = new ArrayList<File>();
+		for (int i = 0; i < MergeEntityInformation.MAX_FAN_IN; i++) runs.add(new File("run" + i));
+		assertSame(runs, MergeEntityInformation.mergeDown(runs));
+		assertEquals(Collections.emptyList(), MergeEntityInformation.mergeDown(new ArrayList<File>()));
+	}
+}
@@ -0,0 +1,67 @@
+package lv.lnb.ner;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests the checkpoint of {@link tagFolders}: the records it reads back, and cutting an output file back to its
+ * checkpointed length, which is what makes a resumed run write every entity once.
+ */
+public class TagFoldersTest {
+
+	private static File write(String content) throws Exception {
+		File f = File.createTempFile("checkpoint", ".txt");
+		f.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(content.getBytes("UTF-8"));
+		out.close();
+		return f;
+	}
+
+	@Test
+	public void testReadCheckpoint() throws Exception {
+		File f = write("entities-0.txt\t120\t/a/1.txt\t/a/2.txt\n"
+				+ "entities-1.txt\t40\t/b/ē.txt\n"
+				+ "entities-0.txt\t300\t/a/3.txt\n"
+				+ "entities-1.txt\t90\n"
+				// cut short by a crash
+				+ "entities-1.txt\t95\t/b/4.txt");
+		Set<String> done = new HashSet<String>();
+		Map<String, Long> lengths = new HashMap<String, Long>();
+		assertFalse(tagFolders.readCheckpoint(f.getPath(), done, lengths));
+		assertEquals(new HashSet<String>(Arrays.asList("/a/1.txt", "/a/2.txt", "/a/3.txt", "/b/ē.txt")), done);
+		assertEquals(Long.valueOf(300), lengths.get("entities-0.txt"));
+		assertEquals(Long.valueOf(90), lengths.get("entities-1.txt"));
+		assertEquals(2, lengths.size());
+	}
+
+	@Test
+	public void testOldCheckpoint() throws Exception {
+		File f = write("/a/1.txt\n\n/a/2.txt\n");
+		Set<String> done = new HashSet<String>();
+		Map<String, Long> lengths = new HashMap<String, Long>();
+		assertTrue(tagFolders.readCheckpoint(f.getPath(), done, lengths));
+		assertEquals(2, done.size());
+		assertTrue(lengths.isEmpty());
+		assertFalse(tagFolders.readCheckpoint(f.getPath() + "-missing", done, lengths));
+	}
+
+	@Test
+	public void testTruncate() throws Exception {
+		File f = write("checkpointed\tand not\n");
+		tagFolders.truncate(f, 12);
+		assertEquals(12, f.length());
+		tagFolders.truncate(f, 100);
+		assertEquals(12, f.length());
+		tagFolders.truncate(new File(f.getPath() + "-missing"), 0);
+	}
+}
@@ -19,6 +19,10 @@ package lv.lumii.expressions;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 import lv.lumii.expressions.Expression.Gender;
 import lv.semti.morphology.analyzer.Analyzer;
 import lv.semti.morphology.attributes.AttributeNames;
@@ -660,4 +664,22 @@ public class PhraseInflectionTest
 		new Expression("Bergers", "person", true, true).inflect(null, true); // to check if it spams console with too much info
 	}
 
+	@Test
+	public void batchInflections() throws Exception {
+		List<Expression.Phrase> phrases = Arrays.asList(
+				new Expression.Phrase("Aina Vītola", "person", true),
+				new Expression.Phrase("Saldus profesionālā vidusskola", "organization", true),
+				new Expression.Phrase("Aina Vītola", "person", true),
+				new Expression.Phrase("Hārvardas universitāte", "org", true));
+		List<Map<String,String>> tables = Expression.getInflections(phrases, 2);
+		assertEquals(4, tables.size());
+		assertEquals("Ainai Vītolai", tables.get(0).get(AttributeNames.v_Dative));
+		assertSame(tables.get(0), tables.get(2));
+		assertEquals("Hārvardas universitāti", tables.get(3).get("Akuzatīvs"));
+		for (int i = 0; i < phrases.size(); i++) {
+			Expression.Phrase p = phrases.get(i);
+			assertEquals(new Expression(p.phrase, p.category, p.knownLemma).getInflections(), tables.get(i));
+		}
+	}
+
 }
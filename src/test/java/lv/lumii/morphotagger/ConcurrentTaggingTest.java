@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright 2014 Institute of Mathematics and Computer Science, University of Latvia
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package lv.lumii.morphotagger;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.stanford.nlp.ie.ner.CMMClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.CoreAnnotations.AnswerAnnotation;
+import edu.stanford.nlp.sequences.LVMorphologyReaderAndWriter;
+
+/**
+ * Checks that one shared tagger instance gives the same answers when called from many threads at once.
+ */
+public class ConcurrentTaggingTest {
+
+	private static CMMClassifier<CoreLabel> cmm;
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 20;
+
+	private static final String[] sentences = {
+		"Mārtiņš Bondars ir dzimis 1971. gada 31. decembrī, Rīgā.",
+		"Es roku roku.",
+		"Latvijas Universitātes Matemātikas un informātikas institūts atrodas Raiņa bulvārī.",
+		"Vakar vakarā Saeimas deputāti nobalsoja par grozījumiem likumā.",
+		"Kontrolētājs padzīs zaķus no autobusa.",
+		"Čārlzs un Čeinijs devās uz GPS konferenci Londonā.",
+		"Šodien līst, bet rīt būs saulains laiks.",
+		"cirvis"
+	};
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		cmm = CMMClassifier.getClassifier("models/lv-morpho-model.ser.gz");
+	}
+
+	private static List<String> tags(String sentence) {
+		List<CoreLabel> tagged = cmm.classify(LVMorphologyReaderAndWriter.analyzeSentence(sentence));
+		List<String> result = new ArrayList<String>();
+		for (CoreLabel word : tagged)
+			result.add(word.getString(AnswerAnnotation.class));
+		return result;
+	}
+
+	@Test
+	public void concurrentMatchesSequential() throws Exception {
+		final List<List<String>> expected = new ArrayList<List<String>>();
+		for (String sentence : sentences)
+			expected.add(tags(sentence));
+
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int t = 0; t < THREADS; t++) {
+			final long seed = t;
+			results.add(pool.submit(new Callable<Integer>() {
+				public Integer call() {
+					List<Integer> order = new ArrayList<Integer>();
+					for (int round = 0; round < ROUNDS; round++)
+						for (int i = 0; i < sentences.length; i++)
+							order.add(i);
+					Collections.shuffle(order, new Random(seed));
+					int mismatches = 0;
+					for (int i : order)
+						if (!expected.get(i).equals(tags(sentences[i])))
+							mismatches++;
+					return mismatches;
+				}
+			}));
+		}
+		int mismatches = 0;
+		for (Future<Integer> result : results)
+			mismatches += result.get();
+		pool.shutdown();
+
+		assertEquals(0, mismatches);
+	}
+}
@@ -1,4 +1,4 @@
 #!/bin/bash
 
 cd $(dirname $0)
-java -Xmx4G -cp dist/CRF.jar:dist/morphology.jar:dist/transliterator.jar:lib/json_simple-1.1.jar tagFolders $*
+java -Xmx4G -cp dist/CRF.jar:dist/morphology.jar:dist/transliterator.jar:lib/json_simple-1.1.jar lv.lnb.ner.tagFolders $*